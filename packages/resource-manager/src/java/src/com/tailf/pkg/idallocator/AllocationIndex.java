@@ -0,0 +1,115 @@
+package com.tailf.pkg.idallocator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import com.tailf.pkg.idpool.Allocation;
+import com.tailf.pkg.idpool.Range;
+
+/**
+ * AllocationIndex
+ *
+ * The allocation path by allocated id, and the paths of the allocations
+ * that got an error response, of one id pool. IdAllocator fills it from
+ * the responses in CDB and then keeps it up to date as responses are
+ * written and allocations deleted, so that range changes and retries
+ * need not read all the allocations of the pool back.
+ *
+ * Not thread safe, the pool lock guards it.
+ */
+public class AllocationIndex {
+
+    private final TreeMap<Long, String> ids = new TreeMap<Long, String>();
+    private final Set<String> errors = new HashSet<String>();
+
+    /* The allocation at path was answered with id */
+    public void answered(long id, String path) {
+        ids.put(id, path);
+        errors.remove(path);
+    }
+
+    /* The allocation at path was answered with an error */
+    public void failed(String path) {
+        errors.add(path);
+    }
+
+    /* The allocation at path is gone, or is to be answered anew */
+    public void removed(String path) {
+        errors.remove(path);
+    }
+
+    /* The id was given back to the pool */
+    public void released(long id) {
+        ids.remove(id);
+    }
+
+    /* The path of the allocation answered with id, or null */
+    public String pathOf(long id) {
+        return ids.get(id);
+    }
+
+    public boolean isAnswered(long id) {
+        return ids.containsKey(id);
+    }
+
+    /*
+     * The answered allocations that a new exclude of range, or with
+     * exclude false a new range, takes the id away from.
+     */
+    public TreeMap<Long, String> affectedBy(Range range, boolean exclude) {
+        TreeMap<Long, String> affected = new TreeMap<Long, String>();
+        if (exclude) {
+            affected.putAll(ids.subMap(range.getStart(), true,
+                                       range.getEnd(), true));
+        } else {
+            affected.putAll(ids.headMap(range.getStart(), false));
+            affected.putAll(ids.tailMap(range.getEnd(), false));
+        }
+        return affected;
+    }
+
+    /* A copy, so the caller may retry and update the index meanwhile */
+    public List<String> errors() {
+        return new ArrayList<String>(errors);
+    }
+
+    /*
+     * The allocated ids that have no response, such as an id reserved
+     * for a transaction that was not committed when the allocator
+     * stopped.
+     */
+    public List<Long> unanswered(Set<Allocation> allocations) {
+        List<Long> unanswered = new ArrayList<Long>();
+        for (Allocation a : allocations) {
+            if (!ids.containsKey(a.getAllocated())) {
+                unanswered.add(a.getAllocated());
+            }
+        }
+        Collections.sort(unanswered);
+        return unanswered;
+    }
+
+    /*
+     * The answered ids, with their paths, that are missing from the
+     * allocations, as when the allocator stopped before flushing them.
+     */
+    public TreeMap<Long, String> unrecorded(Set<Allocation> allocations) {
+        TreeMap<Long, String> unrecorded = new TreeMap<Long, String>();
+        for (Map.Entry<Long, String> entry : ids.entrySet()) {
+            if (!allocations.contains(new Allocation(entry.getKey()))) {
+                unrecorded.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return unrecorded;
+    }
+
+    public void clear() {
+        ids.clear();
+        errors.clear();
+    }
+}
@@ -1,5 +1,6 @@
 package com.tailf.pkg.idallocator;
 
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
 
@@ -7,6 +8,7 @@ import org.apache.log4j.Logger;
 
 import com.tailf.pkg.idallocator.namespaces.idAllocatorOper;
 import com.tailf.pkg.idpool.Allocation;
+import com.tailf.pkg.nsoutil.WriteBehindBuffer;
 import com.tailf.cdb.CdbSession;
 import com.tailf.conf.ConfObject;
 import com.tailf.conf.ConfPath;
@@ -15,6 +17,8 @@ import com.tailf.conf.ConfUInt32;
 /**
  * AllocationsSet
  *
+ * The allocated ids of a pool and their owners, written to the oper
+ * data on flush().
  */
 public class AllocationsSet extends HashSet<Allocation> {
 
@@ -23,8 +27,21 @@ public class AllocationsSet extends HashSet<Allocation> {
 
     private ConfPath allocPath;
     private CdbSession wsess;
+    private WriteBehindBuffer writes;
 
     public AllocationsSet(CdbSession wsess, String poolName) {
+        this(wsess, wsess, poolName, null);
+    }
+
+    /**
+     * See WriteBehindBuffer about wsess and rsess.
+     *
+     * @param saved  The allocations as saved in a PoolSnapshot that
+     *               matches the oper data, used instead of reading them
+     *               from CDB, or null to read them.
+     */
+    public AllocationsSet(CdbSession wsess, CdbSession rsess,
+                          String poolName, Collection<Allocation> saved) {
         super();
 
         this.wsess = wsess;
@@ -38,20 +55,28 @@ public class AllocationsSet extends HashSet<Allocation> {
                     idAllocatorOper._pool_, poolName);
 
             /* We have configured a pool but it isn't set up in oper data yet. */
-            if (wsess.exists(allocPath) == false) {
+            if (rsess.exists(allocPath) == false) {
                 LOGGER.debug(String.format(
                             "Operational pool %s missing, creating.",
                             poolName));
-                wsess.create(allocPath);
+                rsess.create(allocPath);
             }
 
             allocPath.append(idAllocatorOper._allocation_);
+            writes = new WriteBehindBuffer(wsess, allocPath.toString());
 
             LOGGER.debug("Adding existing allocations");
 
-            int n = wsess.getNumberOfInstances(allocPath);
+            if (saved != null) {
+                for (Allocation a : saved) {
+                    super.add(a);
+                }
+                return;
+            }
+
+            int n = rsess.getNumberOfInstances(allocPath);
             if (n > 0) {
-                List<ConfObject[]> objs = wsess.getObjects(1, 0, n, allocPath);
+                List<ConfObject[]> objs = rsess.getObjects(1, 0, n, allocPath);
 
                 for (ConfObject[] obj : objs) {
                     long id = ((ConfUInt32) obj[0]).longValue();
@@ -68,15 +93,7 @@ public class AllocationsSet extends HashSet<Allocation> {
         boolean res = super.add(e);
 
         if (res) {
-            try {
-                long id = e.getAllocated();
-                String p = String.format("%s{%s}",
-                                this.allocPath.toString(),
-                                Long.toString(id));
-                this.wsess.create(p);
-            } catch (Exception ex) {
-                LOGGER.error("Could not add allocation", ex);
-            }
+            writes.create(allocationPath(e));
         }
 
         return res;
@@ -84,18 +101,9 @@ public class AllocationsSet extends HashSet<Allocation> {
 
     public boolean remove(Object o) {
         boolean res = super.remove(o);
-        Allocation e = (Allocation) o;
 
         if (res) {
-            try {
-                long id = e.getAllocated();
-                String p = String.format("%s{%s}",
-                                this.allocPath.toString(),
-                                Long.toString(id));
-                this.wsess.delete(p);
-            } catch (Exception ex ) {
-                LOGGER.error("Could not remove allocation", ex);
-            }
+            writes.delete(allocationPath((Allocation) o));
         }
 
         return res;
@@ -103,13 +111,26 @@ public class AllocationsSet extends HashSet<Allocation> {
 
     public void clear() {
         super.clear();
+        writes.clear();
+    }
 
-        try {
-            if (this.wsess.exists(this.allocPath)) {
-                this.wsess.delete(this.allocPath);
-            }
-        } catch (Exception ex ) {
-            LOGGER.error("Failed to clear allocations", ex);
-        }
+    /**
+     * Write buffered changes to CDB, returning the number of writes.
+     */
+    public int flush() {
+        return writes.flush();
+    }
+
+    /**
+     * Drop buffered changes, used when the pool is deleted.
+     */
+    public void discard() {
+        writes.discard();
+    }
+
+    private String allocationPath(Allocation e) {
+        return String.format("%s{%s}",
+                             this.allocPath.toString(),
+                             Long.toString(e.getAllocated()));
     }
 }
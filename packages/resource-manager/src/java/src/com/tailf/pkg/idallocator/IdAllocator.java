@@ -10,6 +10,7 @@ import com.tailf.conf.ConfBuf;
 import com.tailf.conf.ConfException;
 import com.tailf.conf.ConfInt32;
 import com.tailf.conf.ConfKey;
+import com.tailf.conf.ConfNoExists;
 import com.tailf.conf.ConfObject;
 import com.tailf.conf.ConfObjectRef;
 import com.tailf.conf.ConfPath;
@@ -27,6 +28,7 @@ import com.tailf.navu.NavuException;
 import com.tailf.navu.NavuList;
 import com.tailf.navu.NavuNode;
 import com.tailf.ncs.ApplicationComponent;
+import com.tailf.ncs.NcsMain;
 import com.tailf.cdb.CdbException;
 import com.tailf.cdb.CdbSubscription;
 import com.tailf.cdb.CdbDiffIterate;
@@ -48,26 +50,48 @@ import com.tailf.pkg.idpool.Allocation;
 import com.tailf.pkg.idpool.IDPool;
 import com.tailf.pkg.idpool.Range;
 import com.tailf.pkg.idpool.exceptions.AllocationException;
+import com.tailf.pkg.nsoutil.AllocatorStats;
 import com.tailf.pkg.nsoutil.NSOUtil;
+import com.tailf.pkg.nsoutil.Partitions;
+import com.tailf.pkg.nsoutil.RedeployService;
+import com.tailf.pkg.nsoutil.RequestJournal;
+import com.tailf.pkg.nsoutil.ResponseCache;
+import com.tailf.pkg.nsoutil.SubscriberSessions;
 import com.tailf.pkg.nsoutil.ToRedeploy;
 import com.tailf.pkg.resourcemanager.ResourceErrorException;
 import com.tailf.pkg.resourcemanager.ResourceException;
 import com.tailf.pkg.resourcemanager.ResourceWaitException;
 import com.tailf.pkg.resourcemanager.namespaces.resourceAllocator;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.SocketException;
 import java.nio.channels.ClosedChannelException;
+import java.net.Socket;
 import java.util.EnumSet;
 import java.util.Arrays;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.TreeMap;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 /*
  * The ID Allocator is an implementation of a Resource Manager package,
@@ -88,7 +112,81 @@ public class IdAllocator implements ApplicationComponent {
     private CdbSubscription sub = null;
     private CdbSession wsess, isess;
 
-    private Set<Pool> pools = new HashSet<Pool>();
+    private Set<Pool> pools = newPoolSet();
+
+    /*
+     * Requests are partitioned per pool and run on a long-lived set of
+     * workers, so that a slow pool (e.g. a range change reallocating a
+     * lot of ids) does not hold up requests for other pools. Requests
+     * for one pool are always run in order by a single worker.
+     */
+    private static final int NUM_WORKERS = 4;
+    private static final long BATCH_TIMEOUT = 300000;
+
+    private ExecutorService workers;
+
+    /*
+     * On a clean stop the pools are saved to a snapshot, which the next
+     * start uses instead of reading every pool back from CDB as long as
+     * CDB has not changed in between. processedTxId is the CDB
+     * transaction the pools are up to date with, or null if unknown.
+     */
+    private static final File SNAPSHOT_FILE =
+        new File(System.getProperty("resource-manager.snapshot-dir",
+                                    "state"),
+                 "id-allocator.snapshot");
+
+    private volatile String processedTxId;
+
+    /*
+     * The allocator running in this VM, used by idAllocate() to reserve
+     * ids from within a service transaction. A reservation that is not
+     * confirmed by the commit of that transaction in time is given back.
+     */
+    private static volatile IdAllocator running;
+
+    private static final long RESERVATION_TIMEOUT =
+        Long.getLong("resource-manager.reservation-timeout", 600000L);
+
+    /*
+     * The responses written by the running allocator, read by
+     * responseReady() and idRead() instead of CDB, see
+     * responseCache().
+     */
+    private static final ResponseCache<AllocStatus> RESPONSES =
+        new ResponseCache<AllocStatus>();
+
+    /*
+     * With resource-manager.async-requests set the subscription is
+     * synced as soon as the requests of a notification are in the
+     * journal, and the dispatcher thread handles them afterwards. The
+     * subscriber thread then reads with subSessions, as the usual
+     * sockets are in use by the dispatcher. Batches left in the journal
+     * are handled on the next start, whatever the mode.
+     */
+    private static final boolean ASYNC =
+        Boolean.getBoolean("resource-manager.async-requests");
+    private static final File JOURNAL_FILE =
+        new File(System.getProperty("resource-manager.snapshot-dir",
+                                    "state"),
+                 "id-allocator.journal");
+
+    private RequestJournal journal;
+    private ExecutorService dispatcher;
+    private SubscriberSessions subSessions;
+
+    /* Published under /ralloc:resource-pools/statistics */
+    private final AllocatorStats stats = new AllocatorStats("id-allocator");
+
+    /*
+     * CDB and MAAPI sockets must not be shared between threads, each
+     * worker opens its own operational session and read transaction
+     * the first time it is used.
+     */
+    private ThreadLocal<WorkerSessions> workerSessions =
+        new ThreadLocal<WorkerSessions>();
+    private List<WorkerSessions> allWorkerSessions =
+        Collections.synchronizedList(new ArrayList<WorkerSessions>());
 
     public IdAllocator() {}
 
@@ -116,10 +214,14 @@ public class IdAllocator implements ApplicationComponent {
     private NavuList idpool;
 
     /* Used as a memory variable to find out when a node has become master. */
-    private boolean isMaster = true;
+    private volatile boolean isMaster = true;
 
     public void init() throws Exception {
         try {
+            /* Shared with the other allocator, see NSOUtil.redeploy() */
+            RedeployService.start();
+            stats.start();
+
             EnumSet<CdbLockType> flags =
                 EnumSet.<CdbLockType>of(CdbLockType.LOCK_REQUEST,
                                         CdbLockType.LOCK_WAIT);
@@ -138,6 +240,15 @@ public class IdAllocator implements ApplicationComponent {
 
             tid = maapi.startTrans(Conf.DB_RUNNING, Conf.MODE_READ);
 
+            workers = Executors.newFixedThreadPool(NUM_WORKERS,
+                                                   new WorkerThreadFactory());
+
+            journal = new RequestJournal(JOURNAL_FILE);
+            if (ASYNC) {
+                subSessions = new SubscriberSessions("id-allocator-subscriber");
+                dispatcher = Executors.newSingleThreadExecutor();
+            }
+
             sub = cdb.newSubscription();
 
             alloc_subid = sub.subscribe(
@@ -186,6 +297,10 @@ public class IdAllocator implements ApplicationComponent {
              */
             LOGGER.info("Setting up state");
             loadState();
+            replayJournal();
+
+            RESPONSES.clear();
+            running = this;
         } catch (Exception e) {
             LOGGER.error("init error", e);
             throw(e);
@@ -218,16 +333,25 @@ public class IdAllocator implements ApplicationComponent {
             }
 
             try {
-                if (NSOUtil.isHaEnabled(maapi, tid)) {
+                Maapi haMaapi = subSessions != null ? subSessions.maapi : maapi;
+                int haTid = subSessions != null ? subSessions.tid : tid;
+                if (NSOUtil.isHaEnabled(haMaapi, haTid)) {
                     /* Needed to determine if this node just became master. */
-                    boolean updatedIsMaster = NSOUtil.isMaster(maapi, tid);
+                    boolean updatedIsMaster =
+                        NSOUtil.isMaster(haMaapi, haTid);
 
                     if (updatedIsMaster && !isMaster) {
                         /* This node just became master, re-read our state. */
+                        awaitDispatcher();
                         loadState();
                     }
                     /* Remember new isMaster. */
+                    boolean changed = updatedIsMaster != isMaster;
                     isMaster = updatedIsMaster;
+                    if (changed) {
+                        /* Responses are now written by another node */
+                        RESPONSES.clear();
+                    }
                     if (!updatedIsMaster) {
                         /* This node is not the master node, it should sync. */
                         sub.sync(CdbSubscriptionSyncType.DONE_PRIORITY);
@@ -238,15 +362,15 @@ public class IdAllocator implements ApplicationComponent {
                 LOGGER.error("Failed reading HA mode:", e);
             }
 
-            ExecutorService executor =
-                Executors.newSingleThreadExecutor();
+            ArrayList<Request> reqs = new ArrayList<Request>();
+            String txId = null;
 
             try {
-                isess = icdb.startSession(CdbDBType.CDB_RUNNING,
+                Cdb rcdb = subSessions != null ? subSessions.rcdb : icdb;
+                isess = rcdb.startSession(CdbDBType.CDB_RUNNING,
                                           EnumSet.of(CdbLockType.LOCK_SESSION,
                                                      CdbLockType.LOCK_WAIT));
 
-                ArrayList<Request> reqs = new ArrayList<Request>();
                 EnumSet<DiffIterateFlags> enumSet =
                     EnumSet.<DiffIterateFlags>of(
                                     DiffIterateFlags.ITER_WANT_PREV,
@@ -283,37 +407,31 @@ public class IdAllocator implements ApplicationComponent {
 
                 isess.endSession();
 
-                /*
-                 * If you want to use something else than the IdPool:
-                 * If we are calling an external allocator we should do
-                 * the following call here and not after the for loop
-                 * sub.sync(CdbSubscriptionSyncType.DONE_PRIORITY);
-                 */
-
-                Set<ToRedeploy> redeps = new HashSet<ToRedeploy>();
-                ArrayList<Pool> modifiedPools = new ArrayList<Pool>();
-                RequestThread IterWorkItems = new RequestThread(reqs, wsess);
-
-                executor.execute(IterWorkItems);
-
+                /* The transaction the pools are up to date with after */
+                txId = (subSessions != null ? rcdb : wcdb).getTxId();
             } catch (Exception e) {
                 LOGGER.error("", e);
             } catch (Throwable e) {
                 LOGGER.error("", e);
             }
 
-
             try {
-                executor.shutdown();
                 /*
-                 * We need to wait for a while, otherwise the sync
-                 * lock might be released before we have updated the
-                 * resource pool status.
-                */
-                if (!executor.awaitTermination(300000, TimeUnit.MILLISECONDS)) {
-                    LOGGER.warn("Timeout waiting for ip address pool" +
-                                " update!");
-                    executor.shutdownNow();
+                 * If you want to use something else than the IdPool:
+                 * If we are calling an external allocator we should do
+                 * the following call here and not after the for loop
+                 * sub.sync(CdbSubscriptionSyncType.DONE_PRIORITY);
+                 *
+                 * In async mode that is what we do, once the requests
+                 * are safe in the journal.
+                 */
+                if (subSessions == null || !dispatch(reqs, txId)) {
+                    /*
+                     * We need to wait for the requests to be handled,
+                     * otherwise the sync lock might be released before
+                     * we have updated the resource pool status.
+                     */
+                    handleRequests(reqs, txId);
                 }
 
                 /*
@@ -336,11 +454,283 @@ public class IdAllocator implements ApplicationComponent {
         }
     }
 
+    /**
+     * Handle the requests of one notification: split them per pool,
+     * keeping their order, hand each partition to the workers and wait
+     * for them. Returns false if they did not finish in time, what the
+     * finished partitions did is written and re-deployed anyway.
+     */
+    private boolean handleRequests(ArrayList<Request> reqs, String txId) {
+        List<Future<?>> partitions = new ArrayList<Future<?>>();
+        /* The services to re-deploy, one set per partition */
+        List<Set<ToRedeploy>> partitionRedeps =
+            new ArrayList<Set<ToRedeploy>>();
+
+        try {
+            List<ArrayList<Request>> byPool =
+                Partitions.byKey(reqs, new Partitions.Key<Request>() {
+                        public String of(Request req) {
+                            return req.pool.elementAt(0).toString();
+                        }
+                    });
+
+            for (ArrayList<Request> poolReqs : byPool) {
+                Set<ToRedeploy> redeps = new HashSet<ToRedeploy>();
+                partitions.add(
+                    workers.submit(new RequestThread(poolReqs, redeps)));
+                partitionRedeps.add(redeps);
+            }
+        } catch (Exception e) {
+            LOGGER.error("", e);
+        } catch (Throwable e) {
+            LOGGER.error("", e);
+        }
+
+        try {
+            boolean done = awaitPartitions(partitions);
+            Set<ToRedeploy> redeps = new HashSet<ToRedeploy>();
+
+            if (done) {
+                /* Write the pool changes buffered during this batch. */
+                flushPools();
+                processedTxId = txId;
+
+                for (int i = 0; i < reqs.size(); i++) {
+                    Request req = reqs.get(i);
+                    if (req.type == Type.ALLOC) {
+                        stats.requestDone(req.received);
+                    }
+                }
+                for (Set<ToRedeploy> r : partitionRedeps) {
+                    redeps.addAll(r);
+                }
+            } else {
+                LOGGER.warn("Timeout waiting for id pool update!");
+                for (int i = 0; i < partitions.size(); i++) {
+                    Future<?> partition = partitions.get(i);
+                    if (partition.isDone() && !partition.isCancelled()) {
+                        redeps.addAll(partitionRedeps.get(i));
+                    } else {
+                        partition.cancel(true);
+                    }
+                }
+                flushIdlePools();
+                /* Not all of the transaction is in the pools */
+                processedTxId = null;
+            }
+
+            LOGGER.debug("REDEPLOYING....");
+
+            /* Invoke redeploy */
+            NSOUtil.redeploy(redeps);
+            return done;
+        } catch (Exception e) {
+            LOGGER.error("", e);
+            return false;
+        }
+    }
+
+    /**
+     * Async mode: journal the requests and queue them for the
+     * dispatcher. Returns false if they could not be journaled, they
+     * must then be handled before the subscription is synced.
+     */
+    private boolean dispatch(final ArrayList<Request> reqs,
+                             final String txId) {
+        final RequestJournal.Batch batch;
+        try {
+            batch = reqs.isEmpty() ? null : journal.append(encode(reqs));
+        } catch (Exception e) {
+            LOGGER.error("Failed to journal requests, handling them now", e);
+            return false;
+        }
+
+        dispatcher.execute(new Runnable() {
+                public void run() {
+                    if (handleRequests(reqs, txId) && batch != null) {
+                        batchDone(batch);
+                    }
+                }
+            });
+        return true;
+    }
+
+    private void batchDone(RequestJournal.Batch batch) {
+        try {
+            journal.done(batch);
+        } catch (IOException e) {
+            LOGGER.error("Failed to update request journal", e);
+        }
+    }
+
+    /*
+     * Wait for the dispatcher to handle what has been queued, e.g.
+     * before the pools are read again.
+     */
+    private void awaitDispatcher() {
+        if (dispatcher == null) {
+            return;
+        }
+        try {
+            dispatcher.submit(new Runnable() {
+                    public void run() {
+                        ;
+                    }
+                }).get(BATCH_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            LOGGER.warn("Failed waiting for queued requests", e);
+        }
+    }
+
+    /*
+     * Handle the batches left in the journal by the last run, after
+     * the pools have been read from CDB. Allocations created since are
+     * answered already and are skipped, those deleted since have been
+     * given back by reconcileAllocations().
+     */
+    private void replayJournal() throws ConfException, IOException {
+        String txId = wcdb.getTxId();
+        for (RequestJournal.Batch batch : journal.getPending()) {
+            LOGGER.info(String.format("Handling %d requests left in %s",
+                                      batch.getRecords().size(),
+                                      JOURNAL_FILE));
+            ArrayList<Request> reqs = new ArrayList<Request>();
+            for (String[] record : batch.getRecords()) {
+                try {
+                    reqs.add(decode(record));
+                } catch (Exception e) {
+                    LOGGER.error(String.format("Dropping journaled request %s",
+                                               Arrays.toString(record)), e);
+                }
+            }
+            if (handleRequests(reqs, txId)) {
+                batchDone(batch);
+            }
+        }
+    }
+
+    /*
+     * A request as a journal record. The keys are found again from the
+     * path the way Iter found them.
+     */
+    private List<String[]> encode(List<Request> reqs) {
+        List<String[]> records = new ArrayList<String[]>(reqs.size());
+        for (Request r : reqs) {
+            records.add(new String[] {
+                    r.type.name(),
+                    r.op.name(),
+                    r.path.toString(),
+                    r.val == null ? null :
+                        Long.toString(((ConfUInt32) r.val).longValue()),
+                    Long.toString(r.range_start),
+                    Long.toString(r.range_end),
+                    Integer.toString(r.alarmThreshold)
+                });
+        }
+        return records;
+    }
+
+    private Request decode(String[] record) throws ConfException {
+        Request r = new Request();
+        r.type = Type.valueOf(record[0]);
+        r.op = Operation.valueOf(record[1]);
+        r.path = new ConfPath(record[2]);
+
+        ConfObject[] kp = r.path.getKP();
+        r.pool = (ConfKey) kp[kp.length-3];
+        if (r.type == Type.ALARMS_ENABLED ||
+            r.type == Type.ALARMS_THRESHOLD) {
+            r.key = (ConfKey) kp[kp.length-3];
+        } else if (kp.length >= 5 && r.type != Type.RANGE) {
+            r.key = (ConfKey) kp[kp.length-5];
+        }
+
+        if (record[3] != null) {
+            r.val = new ConfUInt32(Long.parseLong(record[3]));
+        }
+        r.range_start = Long.parseLong(record[4]);
+        r.range_end = Long.parseLong(record[5]);
+        r.alarmThreshold = Integer.parseInt(record[6]);
+        r.replayed = true;
+        return r;
+    }
+
+    /**
+     * Wait for all partitions of a batch, at most BATCH_TIMEOUT in
+     * total. Returns false on timeout.
+     */
+    private boolean awaitPartitions(List<Future<?>> partitions)
+        throws InterruptedException {
+        long deadline = System.currentTimeMillis() + BATCH_TIMEOUT;
+
+        for (Future<?> partition : partitions) {
+            long left = Math.max(0, deadline - System.currentTimeMillis());
+            try {
+                partition.get(left, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                return false;
+            } catch (ExecutionException e) {
+                LOGGER.error("", e.getCause());
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Write the buffered changes of the pools no worker is busy with,
+     * after a batch timed out. A pool is only changed with its lock
+     * held, so those are consistent. The others are written with the
+     * next batch.
+     */
+    private void flushIdlePools() {
+        int writes = 0;
+        for (Pool pool : pools) {
+            if (!pool.lock.tryLock()) {
+                continue;
+            }
+            try {
+                writes += pool.flushWrites();
+            } finally {
+                pool.lock.unlock();
+            }
+        }
+        stats.operWrites(writes);
+    }
+
+    private void flushPools() {
+        int writes = 0;
+        for (Pool pool : pools) {
+            writes += pool.flushWrites();
+        }
+        stats.operWrites(writes);
+    }
+
     private void loadState() throws NavuException,
                                     UnknownHostException,
                                     ConfException,
                                     IOException {
-        pools = new HashSet<Pool>();
+        pools = newPoolSet();
+
+        /*
+         * A snapshot is only good for the oper data it was taken from,
+         * remove it before we change anything so that a crash does not
+         * leave a stale one behind.
+         */
+        String txId = wcdb.getTxId();
+        PoolSnapshot snapshot = PoolSnapshot.read(SNAPSHOT_FILE);
+        SNAPSHOT_FILE.delete();
+        if (snapshot != null && journal != null && journal.hasPending()) {
+            LOGGER.info("Requests left in the journal, reading pools"
+                        + " from CDB");
+            snapshot = null;
+        }
+        if (snapshot != null && !snapshot.getTxId().equals(txId)) {
+            LOGGER.info(String.format("CDB changed since the id pool"
+                                      + " snapshot (%s, now %s), reading"
+                                      + " pools from CDB",
+                                      snapshot.getTxId(), txId));
+            snapshot = null;
+        }
 
         /* Read existing config and create existing pools. */
         NavuContext context = new NavuContext(maapi, tid);
@@ -353,7 +743,22 @@ public class IdAllocator implements ApplicationComponent {
 
         /* Create id pools. */
         for(NavuContainer pool : idpool.elements()) {
-            createPool(pool);
+            PoolSnapshot.PoolState saved = null;
+            if (snapshot != null) {
+                saved = snapshot.getPool(pool.leaf("name").value().toString());
+            }
+            createPool(pool, saved);
+        }
+
+        if (snapshot != null) {
+            /*
+             * Nothing has been committed since the snapshot was taken,
+             * so every allocation request has been answered already.
+             */
+            LOGGER.info("Id pools restored from snapshot");
+            flushPools();
+            processedTxId = txId;
+            return;
         }
 
         Set<ToRedeploy> init_redeps = new HashSet<ToRedeploy>();
@@ -371,10 +776,12 @@ public class IdAllocator implements ApplicationComponent {
                 for(NavuContainer alloc : allocList.elements()) {
 
                     ConfPath path = new ConfPath(alloc.getKeyPath());
+                    ConfTag respCase = null;
 
                     try {
-                        wsess.getCase(idAllocator._response_choice_,
-                                      path+"/"+idAllocator._response_);
+                        respCase = (ConfTag) wsess.getCase(
+                                       idAllocator._response_choice_,
+                                       path+"/"+idAllocator._response_);
                     } catch (ConfException e) {
                         /* No case set, continue. */
                         Request req = new Request();
@@ -389,12 +796,33 @@ public class IdAllocator implements ApplicationComponent {
                             LOGGER.error("Cannot allocate id", ex);
                         }
                     }
+
+                    /* Answered before, note it in the indexes. */
+                    if (respCase == null) {
+                        continue;
+                    }
+                    if (respCase.getTagHash() == idAllocator._ok) {
+                        ConfPath okId =
+                            path.copyAppend(idAllocator._response_).
+                            copyAppend(idAllocator._id_);
+                        long id =
+                            ((ConfUInt32) wsess.getElem(okId)).longValue();
+                        pool.index.answered(id, path.toString());
+                    } else {
+                        pool.index.failed(path.toString());
+                    }
                 }
+
+                pool.indexed = true;
+                reconcileAllocations(pool);
             }
         } catch (Exception e) {
             LOGGER.error("Could not load state", e);
         }
 
+        flushPools();
+        processedTxId = txId;
+
         /* Invoke redeploy. */
         for (ToRedeploy rep : init_redeps) {
             if (LOGGER.isDebugEnabled()) {
@@ -405,7 +833,40 @@ public class IdAllocator implements ApplicationComponent {
         }
     }
 
+    /*
+     * Make the ids allocated in the pool match the responses in CDB.
+     * An id reserved by idAllocate() whose transaction had not been
+     * committed when the allocator stopped is allocated but has no
+     * response, and an id may have a response but be missing from the
+     * mirrored allocations if the allocator stopped before flushing
+     * them.
+     */
+    private void reconcileAllocations(Pool pool) {
+        for (long id : pool.index.unanswered(pool.allocations)) {
+            LOGGER.info(String.format("Releasing unanswered id %d in %s",
+                                      id, pool.idPool.getName()));
+            try {
+                pool.idPool.release(id);
+            } catch (AllocationException e) {
+                LOGGER.error("", e);
+            }
+        }
+
+        for (Map.Entry<Long, String> entry :
+                 pool.index.unrecorded(pool.allocations).entrySet()) {
+            long id = entry.getKey();
+            try {
+                pool.idPool.allocate(getOwner(entry.getValue()), id);
+            } catch (Exception e) {
+                LOGGER.error(String.format("Could not restore id %d of %s",
+                                           id, entry.getValue()), e);
+            }
+        }
+    }
+
     private String getOwner(String path) throws Exception {
+        Maapi maapi = readMaapi();
+        int tid = readTid();
         if (maapi.exists(tid,
                          String.format("%s/%s", path, idAllocator._allocating_service_))) {
             ConfObjectRef v =
@@ -420,6 +881,8 @@ public class IdAllocator implements ApplicationComponent {
     }
 
     private String getUsername(String path) throws Exception {
+        Maapi maapi = readMaapi();
+        int tid = readTid();
         if (maapi.exists(tid,
                 String.format("%s/%s", path, idAllocator._username_))) {
            ConfBuf v =
@@ -434,6 +897,7 @@ public class IdAllocator implements ApplicationComponent {
     }
 
     private long getAllocatedId(String path) throws Exception {
+        CdbSession wsess = operSession();
         /* Check if it has allocation. */
         try {
             String selectedCase =
@@ -461,6 +925,8 @@ public class IdAllocator implements ApplicationComponent {
     }
 
     private boolean getSync(String path) throws Exception {
+        Maapi maapi = readMaapi();
+        int tid = readTid();
         return ((ConfBool) maapi.getElem(
                     tid, String.format("%s/%s/%s",
                                        path,
@@ -469,6 +935,8 @@ public class IdAllocator implements ApplicationComponent {
     }
 
     private long getRequestId(String path) throws Exception {
+        Maapi maapi = readMaapi();
+        int tid = readTid();
         String requestId = String.format("%s/%s/%s",
                                          path,
                                          idAllocator._request_,
@@ -482,6 +950,8 @@ public class IdAllocator implements ApplicationComponent {
 
 
     private String getRequestMethod(String path) throws Exception {
+        Maapi maapi = readMaapi();
+        int tid = readTid();
         return (maapi.getCase(
                                   tid, idAllocator._method_,
                                   String.format("%s/%s/%s",
@@ -492,12 +962,14 @@ public class IdAllocator implements ApplicationComponent {
     }
 
     private void cleanupResponse(String path) throws Exception {
-        wsess.setCase(idAllocator._response_choice_,
+        uncacheResponse(path);
+        CdbSession wsess = operSession();
+        stats.setCase(wsess, idAllocator._response_choice_,
                       null,
                       String.format("%s/%s",
                       path, idAllocator._response_));
         try {
-            wsess.delete(String.format("%s/%s/%s",
+            stats.delete(wsess, String.format("%s/%s/%s",
                                        path,
                                        idAllocator._response_,
                                        idAllocator._id_));
@@ -507,7 +979,7 @@ public class IdAllocator implements ApplicationComponent {
         }
 
         try {
-            wsess.delete(path+"/"+idAllocator._response_+"/"+
+            stats.delete(wsess, path+"/"+idAllocator._response_+"/"+
                          idAllocator._error_);
         } catch (CdbException e) {
             /* Ignore because we might not have an _error_ */
@@ -515,23 +987,33 @@ public class IdAllocator implements ApplicationComponent {
         }
     }
 
-    private void reportSuccess(long id, String path, Set<ToRedeploy> redeps)
+    private void reportSuccess(Pool p, long id, String path,
+                               Set<ToRedeploy> redeps)
+        throws Exception {
+        reportSuccess(p, id, path, getOwner(path), getUsername(path), redeps);
+    }
+
+    private void reportSuccess(Pool p, long id, String path, String owner,
+                               String username, Set<ToRedeploy> redeps)
         throws Exception {
+        CdbSession wsess = operSession();
         LOGGER.debug(String.format("SET: %s/%s/%s -> %d",
                                    path, idAllocator._response_, idAllocator._id_, id));
 
-        wsess.setElem(new ConfUInt32(id),
+        stats.setElem(wsess, new ConfUInt32(id),
                       String.format("%s/%s/%s",
                                     path,
                                     idAllocator._response_,
                                     idAllocator._id_));
         /* We need to setCase after setElem due to a bug in NCS. */
-        wsess.setCase(idAllocator._response_choice_,
+        stats.setCase(wsess, idAllocator._response_choice_,
                       idAllocator._ok_,
                       String.format("%s/%s", path, idAllocator._response_));
-        String owner = getOwner(path);
-        String username = getUsername(path);
-        if (owner != "") {
+        AllocStatus status = new AllocStatus();
+        status.id = new ConfUInt32(id);
+        cacheResponse(path, status);
+        p.index.answered(id, path);
+        if (!owner.isEmpty()) {
             /*
              * Redeploy the service that consumes this
              * data, runs in separate thread
@@ -544,18 +1026,23 @@ public class IdAllocator implements ApplicationComponent {
         }
     }
 
-    private void reportError(String error, String path,
+    private void reportError(Pool p, String error, String path,
                              Set<ToRedeploy> redeps)
         throws Exception {
+        CdbSession wsess = operSession();
         LOGGER.debug(String.format("SET: %s/response/error -> %s", path, error));
-        wsess.setElem(new ConfBuf(error),
+        stats.setElem(wsess, new ConfBuf(error),
                       String.format("%s/%s/%s" , path,
                                     idAllocator._response_,
                                     idAllocator._error_));
         /*  We need to setCase after setElem due to a bug in NCS. */
-        wsess.setCase(idAllocator._response_choice_,
+        stats.setCase(wsess, idAllocator._response_choice_,
                       idAllocator._error_,
                       String.format("%s/%s", path, idAllocator._response_));
+        AllocStatus status = new AllocStatus();
+        status.error = new ConfBuf(error);
+        cacheResponse(path, status);
+        p.index.failed(path);
 
         String owner    = getOwner(path);
         String username = getUsername(path);
@@ -573,6 +1060,38 @@ public class IdAllocator implements ApplicationComponent {
         }
     }
 
+    /*
+     * Pool name and allocation id of the allocation at path, as keys
+     * of RESPONSES.
+     */
+    private static String[] responseKey(String path) throws ConfException {
+        ConfObject[] kp = new ConfPath(path).getKP();
+        return new String[] {
+            ((ConfKey) kp[kp.length-3]).elementAt(0).toString(),
+            ((ConfKey) kp[kp.length-5]).elementAt(0).toString()
+        };
+    }
+
+    private void cacheResponse(String path, AllocStatus status) {
+        try {
+            String[] key = responseKey(path);
+            RESPONSES.put(key[0], key[1], status);
+        } catch (ConfException e) {
+            LOGGER.debug(String.format("Not caching response of %s", path),
+                         e);
+        }
+    }
+
+    private void uncacheResponse(String path) {
+        try {
+            String[] key = responseKey(path);
+            RESPONSES.remove(key[0], key[1]);
+        } catch (ConfException e) {
+            /* Can't tell which one, so none of them can be trusted */
+            RESPONSES.clear();
+        }
+    }
+
     private void allocateOneId(Pool p, Set<ToRedeploy> redeps, Request req,
                                long requestedId, String requestMethod)
         throws Exception, NavuException {
@@ -596,14 +1115,205 @@ public class IdAllocator implements ApplicationComponent {
 
             /* Write the result and redeploy */
             long id = a.getAllocated();
-            reportSuccess(id, basePath, redeps);
+            reportSuccess(p, id, basePath, redeps);
         } catch (AllocationException ex) {
-            reportError(ex.toString(), basePath, redeps);
+            reportError(p, ex.toString(), basePath, redeps);
+        }
+    }
+
+    /*
+     * Serve a run of new allocation requests for the same pool, such as
+     * the ones created by idRequestBatch(). Plain first-free requests
+     * get their ids from one allocateRun() call, consecutive ones when
+     * the pool has room for that. Sync, specific-id and round-robin
+     * requests are handled one by one as usual.
+     */
+    private void allocateIds(Pool p, Set<ToRedeploy> redeps,
+                             List<Request> reqs)
+        throws Exception, NavuException {
+        String listPath = String.format("/%s:%s/%s:%s%s/%s",
+                                        resourceAllocator.prefix,
+                                        resourceAllocator._resource_pools_,
+                                        idAllocator.prefix,
+                                        idAllocator._id_pool_,
+                                        reqs.get(0).pool.toString(),
+                                        idAllocator._allocation_);
+        Map<String, ConfObject[]> objs = readAllocations(listPath, reqs);
+        List<Request> plain = new ArrayList<Request>();
+        List<String> plainPaths = new ArrayList<String>();
+        List<ConfObject[]> plainObjs = new ArrayList<ConfObject[]>();
+
+        for (Request req : reqs) {
+            String basePath = listPath + req.key.toString();
+            if (confirmReservation(p, req, basePath)) {
+                continue;
+            }
+
+            ConfObject[] obj = objs.get(req.key.elementAt(0).toString());
+            boolean other;
+            if (obj != null) {
+                other = !isPlainRequest(obj);
+            } else {
+                boolean sync = false;
+                try {
+                    sync = getSync(basePath);
+                } catch (Exception e) {
+                    //
+                }
+                other = sync ||
+                    getRequestId(basePath) != -1 ||
+                    !idAllocator._firstfree_.equals(
+                        getRequestMethod(basePath));
+            }
+
+            if (other) {
+                allocateId(p, redeps, req);
+            } else if (!hasResponse(basePath)) {
+                plain.add(req);
+                plainPaths.add(basePath);
+                plainObjs.add(obj);
+            }
+        }
+
+        if (plain.isEmpty()) {
+            return;
+        }
+
+        LOGGER.debug(String.format("Allocating %d ids from %s",
+                                   plain.size(), p.idPool.getName()));
+
+        /*
+         * The pool does not keep the occupant of an id, so the run can
+         * be taken in the name of its first request even if the run
+         * spans several services. Each response below is written and
+         * redeployed with the owner and username of its own request.
+         */
+        List<Allocation> allocs =
+            p.idPool.allocateRun(getOwner(plainPaths.get(0),
+                                          plainObjs.get(0)),
+                                 plain.size());
+
+        for (int i = 0; i < plain.size(); i++) {
+            if (i < allocs.size()) {
+                String path = plainPaths.get(i);
+                ConfObject[] obj = plainObjs.get(i);
+                reportSuccess(p, allocs.get(i).getAllocated(), path,
+                              getOwner(path, obj), getUsername(path, obj),
+                              redeps);
+            } else {
+                /* Out of ids, report it the usual way. */
+                allocateOneId(p, redeps, plain.get(i), -1L,
+                              idAllocator._firstfree_);
+            }
+        }
+    }
+
+    /*
+     * Positions of the values of an allocation entry read by
+     * getObjects(). A choice takes a position of its own, holding the
+     * selected case or ConfNoExists, before the leaves of its cases.
+     * Only the request part is read, the response is not in running.
+     */
+    private static final int ALLOC_ID = 0;
+    private static final int ALLOC_USERNAME = 1;
+    private static final int ALLOC_SERVICE = 2;
+    private static final int ALLOC_SYNC = 3;
+    private static final int ALLOC_REQUEST_ID = 4;
+    private static final int ALLOC_METHOD_CASE = 5;
+    private static final int ALLOC_FIRSTFREE = 6;
+    private static final int ALLOC_ROUNDROBIN = 7;
+    /* Number of values up to the end of the request */
+    private static final int ALLOC_REQUEST_VALUES = ALLOC_ROUNDROBIN + 1;
+
+    /**
+     * Whether an allocation entry, as read by getObjects(), is a plain
+     * first-free request that can be served as part of a run, i.e. not
+     * sync, without a specific id and with the firstfree case of the
+     * method choice, or no case, which defaults to firstfree.
+     */
+    public static boolean isPlainRequest(ConfObject[] obj) {
+        if (obj[ALLOC_SYNC] instanceof ConfBool &&
+            ((ConfBool) obj[ALLOC_SYNC]).booleanValue()) {
+            return false;
+        }
+        if (!(obj[ALLOC_REQUEST_ID] instanceof ConfNoExists)) {
+            return false;
+        }
+        ConfObject method = obj[ALLOC_METHOD_CASE];
+        return !(method instanceof ConfTag) ||
+            ((ConfTag) method).getTagHash() == idAllocator._firstfree;
+    }
+
+    /*
+     * The entries of a run of requests, by id, read in one go if they
+     * are not spread out too far over the allocation list, like
+     * IPAddressAllocator.readAllocations(). Requests not in the result
+     * are read one by one.
+     */
+    private Map<String, ConfObject[]> readAllocations(String listPath,
+                                                      List<Request> run) {
+        Map<String, ConfObject[]> objs = new HashMap<String, ConfObject[]>();
+        CdbSession rsess = null;
+        try {
+            WorkerSessions ws = currentWorkerSessions();
+            if (ws == null) {
+                return objs;
+            }
+            rsess = ws.rcdb.startSession(CdbDBType.CDB_RUNNING);
+
+            /* The diff is iterated in schema order, i.e. by id */
+            int first = rsess.index(listPath + run.get(0).key.toString());
+            int last = rsess.index(listPath +
+                                   run.get(run.size() - 1).key.toString());
+            int n = last - first + 1;
+            if (first < 0 || n < run.size() || n > 4 * run.size()) {
+                return objs;
+            }
+
+            for (ConfObject[] obj :
+                     rsess.getObjects(ALLOC_REQUEST_VALUES, first, n,
+                                      listPath)) {
+                objs.put(obj[ALLOC_ID].toString(), obj);
+            }
+        } catch (Exception e) {
+            LOGGER.error("Failed to read allocation requests", e);
+            objs.clear();
+        } finally {
+            if (rsess != null) {
+                try {
+                    rsess.endSession();
+                } catch (Exception ignore) {
+                    ;
+                }
+            }
+        }
+        return objs;
+    }
+
+    /* From an entry of readAllocations(), or read if there is none */
+    private String getOwner(String path, ConfObject[] obj) throws Exception {
+        if (obj == null) {
+            return getOwner(path);
+        }
+        if (obj[ALLOC_SERVICE] instanceof ConfObjectRef) {
+            ConfObjectRef service = (ConfObjectRef) obj[ALLOC_SERVICE];
+            return new ConfPath(service.getElems()).toString();
         }
+        return "";
+    }
+
+    private String getUsername(String path, ConfObject[] obj)
+        throws Exception {
+        if (obj == null) {
+            return getUsername(path);
+        }
+        return obj[ALLOC_USERNAME] instanceof ConfBuf ?
+            obj[ALLOC_USERNAME].toString() : "";
     }
 
     private void allocateId(Pool p, Set<ToRedeploy> redeps, Request req)
         throws Exception, NavuException {
+        CdbSession wsess = operSession();
         String reqPath = req.path.toString();
         String basePath = String.format("/%s:%s/%s:%s%s/%s%s",
                                         resourceAllocator.prefix,
@@ -632,6 +1342,9 @@ public class IdAllocator implements ApplicationComponent {
                 /* No case set, continue */
                 ;
             }
+            if (confirmReservation(p, req, basePath)) {
+                return;
+            }
             long requestedId = getRequestId(basePath);
             String requestMethod = getRequestMethod(basePath);
             allocateOneId(p, redeps, req, requestedId, requestMethod);
@@ -642,183 +1355,334 @@ public class IdAllocator implements ApplicationComponent {
              * allocation due to processing another element in the
              * sync group
              */
-
-            try {
-                LOGGER.debug(String.format("Is this already processed? %s/%s",
-                                           basePath, idAllocator._response_ ));
-                wsess.getCase(
-                    idAllocator._response_choice_,
-                    String.format("%s/%s", basePath, idAllocator._response_));
+            LOGGER.debug(String.format("Is this already processed? %s/%s",
+                                       basePath, idAllocator._response_ ));
+            if (hasResponse(basePath)) {
                 /* Already processed, return. */
                 return;
-            } catch (ConfException e) {
-                /* No case set, continue */
-                ;
             }
 
             /*
-             * We need to see if there already is an allocation with the
-             * requested id, in which case we should requests the same id in
-             * this pool
+             * Find the pools in the sync group, then lock them all and
+             * allocate. The caller holds the lock of p, let go of it so
+             * that all pools are locked in the same order.
              */
-            Set<SyncGroup> syncGroups = new HashSet<SyncGroup>();
+            SyncRequest sr = findSyncGroup(p, basePath);
+            int held = p.lock.getHoldCount();
+            for (int i = 0; i < held; i++) {
+                p.lock.unlock();
+            }
 
-            long allocatedId = -1L;
-            long requestedId = getRequestId(basePath);
+            List<Pool> locked = null;
+            try {
+                while (true) {
+                    locked = lockPools(sr.pools());
+                    /*
+                     * Another partition may have handled the group, or
+                     * the group may have changed, while we waited.
+                     */
+                    sr = findSyncGroup(p, basePath);
+                    if (locked.containsAll(sr.pools())) {
+                        break;
+                    }
+                    unlockPools(locked);
+                    locked = null;
+                }
 
-            /* We use the default behavior: */
-            String requestMethod = idAllocator._firstfree_;
+                if (hasResponse(basePath)) {
+                    /* Already processed, return. */
+                    return;
+                }
 
-            String allocationId =
-                maapi.getElem(tid, String.format("%s/%s", basePath,
-                                                 idAllocator._id_)).toString();
+                allocateSyncId(p, redeps, req, basePath, sr);
+            } finally {
+                if (locked != null) {
+                    unlockPools(locked);
+                }
+                for (int i = 0; i < held; i++) {
+                    p.lock.lock();
+                }
+            }
+        }
+    }
 
-            syncGroups.add(new SyncGroup(p, basePath));
+    /*
+     * We need to see if there already is an allocation with the
+     * requested id, in which case we should requests the same id in
+     * this pool
+     */
+    private SyncRequest findSyncGroup(Pool p, String basePath)
+        throws Exception {
+        Maapi maapi = readMaapi();
+        int tid = readTid();
+        SyncRequest sr = new SyncRequest();
 
-            for(Pool pool : pools) {
-                if (pool == p) {
-                    continue;
-                }
+        sr.allocatedId = -1L;
+        sr.requestedId = getRequestId(basePath);
 
-                String path = String.format("%s/%s{%s}", pool.path,
-                                            idAllocator._allocation_,
-                                            allocationId);
-                try {
-                    if (maapi.exists(tid, path) && getSync(path) == true) {
-                        LOGGER.debug(String.format("Found sync pool node: %s",
-                                                   pool.path));
-                        syncGroups.add(new SyncGroup(pool, path));
+        /* We use the default behavior: */
+        sr.requestMethod = idAllocator._firstfree_;
 
-                        if (allocatedId == -1) {
-                            allocatedId = getAllocatedId(path);
-                        }
+        String allocationId =
+            maapi.getElem(tid, String.format("%s/%s", basePath,
+                                             idAllocator._id_)).toString();
 
-                        if (requestedId == -1) {
-                            requestedId = getRequestId(path);
-                        } else if (getRequestId(path) != -1 &&
-                                 getRequestId(path) != requestedId) {
-                            /*
-                             * We cannot request two different ids in the
-                             * same group, throw an error
-                             */
-                            String err =
-                                "Conflicting id requests: Requested ID" +
-                                " does not match previous allocation";
-                            throw new AllocationException(err);
-                        }
+        sr.syncGroups.add(new SyncGroup(p, basePath));
 
+        for(Pool pool : pools) {
+            if (pool == p) {
+                continue;
+            }
+
+            String path = String.format("%s/%s{%s}", pool.path,
+                                        idAllocator._allocation_,
+                                        allocationId);
+            try {
+                if (maapi.exists(tid, path) && getSync(path) == true) {
+                    LOGGER.debug(String.format("Found sync pool node: %s",
+                                               pool.path));
+                    sr.syncGroups.add(new SyncGroup(pool, path));
+
+                    if (sr.allocatedId == -1) {
+                        sr.allocatedId = getAllocatedId(path);
+                    }
+
+                    if (sr.requestedId == -1) {
+                        sr.requestedId = getRequestId(path);
+                    } else if (getRequestId(path) != -1 &&
+                             getRequestId(path) != sr.requestedId) {
                         /*
-                         * Get the request method
-                         * roundrobin or firstfree?
+                         * We cannot request two different ids in the
+                         * same group, throw an error
                          */
-                        requestMethod = getRequestMethod(path);
+                        String err =
+                            "Conflicting id requests: Requested ID" +
+                            " does not match previous allocation";
+                        throw new AllocationException(err);
+                    }
+
+                    /*
+                     * Get the request method
+                     * roundrobin or firstfree?
+                     */
+                    sr.requestMethod = getRequestMethod(path);
+
+                }
+            } catch (Exception e) {
+                LOGGER.info(String.format("No sync for path %s", path));
+            }
+        }
+        return sr;
+    }
 
+    private void allocateSyncId(Pool p, Set<ToRedeploy> redeps,
+                                Request req, String basePath,
+                                SyncRequest sr)
+        throws Exception {
+        Set<SyncGroup> syncGroups = sr.syncGroups;
+        long allocatedId = sr.allocatedId;
+        long requestedId = sr.requestedId;
+        String requestMethod = sr.requestMethod;
+
+        /*
+         * We have three special cases
+         * 1. only one node in sync group - allocate as normal
+         */
+        if (syncGroups.size() == 1) {
+            allocateOneId(p, redeps, req, requestedId, requestMethod);
+        } else if (allocatedId != -1) {
+        /*
+         * 2. at least one node has allocation already - try to allocate
+         *    same id for this entry
+         */
+            allocateOneId(p, redeps, req, allocatedId, requestMethod);
+        } else if (requestedId != -1) {
+        /*
+         * 3. at least one node has requested a specific id - try to
+         *    allocate same id for this entry
+         */
+            allocateOneId(p, redeps, req, requestedId, requestMethod);
+        } else {
+        /*
+         * 4. no node has allocation - find the lowest id that is free
+         *    in all pools and allocate it in each of them
+         *
+         *    Starting from the lowest free id in this pool, ask every
+         *    pool for its next free id at or above the candidate. If a
+         *    pool answers with a higher id, that becomes the new
+         *    candidate and we go round again. When a full round leaves
+         *    the candidate unchanged it is free everywhere. Every step
+         *    skips a whole occupied stretch of some pool, so nothing
+         *    is allocated until the answer is known.
+         */
+            long id = p.idPool.nextFree(Long.MIN_VALUE);
+            boolean agreed = false;
+
+            while (id != -1 && !agreed) {
+                agreed = true;
+                for (SyncGroup sg : syncGroups) {
+                    long next = sg.pool.idPool.nextFree(id);
+                    if (next != id) {
+                        id = next;
+                        agreed = false;
+                        break;
                     }
-                } catch (Exception e) {
-                    LOGGER.info(String.format("No sync for path %s", path));
                 }
             }
 
-            /*
-             * We have three special cases
-             * 1. only one node in sync group - allocate as normal
-             */
-            if (syncGroups.size() == 1) {
-                allocateOneId(p, redeps, req, requestedId, requestMethod);
-            } else if (allocatedId != -1) {
-            /*
-             * 2. at least one node has allocation already - try to allocate
-             *    same id for this entry
-             */
-                allocateOneId(p, redeps, req, allocatedId, requestMethod);
-            } else if (requestedId != -1) {
-            /*
-             * 3. at least one node has requested a specific id - try to
-             *    allocate same id for this entry
-             */
-                allocateOneId(p, redeps, req, requestedId, requestMethod);
-            } else {
-            /*
-             * 4. no node has allocation - try finding one id that can be
-             *    allocated in all pools
-             *    The way we do this is by allocating an id from the pool
-             *    and then trying to allocate the same id in all pools:
-             *
-             *     - if this succeeds we are done
-             *     - if this fails, we save the allocated id in a Set and
-             *       attempts to allocate a new id:
-             *       - if this fails, we fail and release all allocations in Set
-             *       - if this succeeds, we try to allocate same id in all pools
-             *         - if this succeeds, we deallocate all failed allocations
-             *           and keep the successful one
-             *         - if it fails, we save the allocation in Set, and try a
-             *           new allocation
-             */
+            if (id == -1) {
+                /* Report all failed. */
+                for (SyncGroup sg : syncGroups) {
+                    reportError(sg.pool, "sync allocation failed", sg.path,
+                                redeps);
+                }
+                return;
+            }
 
-                Set<Allocation> failedCandidates = new HashSet<Allocation>();
+            LOGGER.info(String.format("Allocating sync id %d in %d pools",
+                                      id, syncGroups.size()));
 
-                while(true) {
-                    try {
-                        Allocation a = p.idPool.allocate(
-                            getOwner(basePath));
-                        long id = a.getAllocated();
+            /*
+             * All pools of the group are locked by the caller, so the id
+             * is still free in each of them. Should an allocation fail
+             * anyway, undo the ones already made.
+             */
+            Set<PoolAlloc> poolAllocs = new HashSet<PoolAlloc>();
+            try {
+                for (SyncGroup sg : syncGroups) {
+                    Allocation alloc =
+                        sg.pool.idPool.allocate(getOwner(sg.path), id);
+                    poolAllocs.add(new PoolAlloc(sg.pool, alloc));
+                }
+            } catch (AllocationException ex) {
+                LOGGER.error(String.format("Sync allocation of %d failed",
+                                           id), ex);
+                for (PoolAlloc pa : poolAllocs) {
+                    pa.p.idPool.release(pa.a);
+                }
 
-                        Set<PoolAlloc> poolAllocs = new HashSet<PoolAlloc>();
-                        LOGGER.info(String.format("Checking if alloc-id %d"
-                                                  + " exists elsewhere", id));
-                        try {
-                            for(SyncGroup sg : syncGroups) {
-                                if (sg.pool == p) {
-                                    continue;
-                                }
+                for (SyncGroup sg : syncGroups) {
+                    reportError(sg.pool, "sync allocation failed", sg.path,
+                                redeps);
+                }
+                return;
+            }
 
-                                Allocation alloc =
-                                    sg.pool.idPool.allocate(getOwner(sg.path),
-                                                            id);
+            /* Report all successful allocations. */
+            for (SyncGroup sg : syncGroups) {
+                reportSuccess(sg.pool, id, sg.path, redeps);
+            }
+        }
+    }
 
-                                poolAllocs.add(new PoolAlloc(sg.pool, alloc));
-                            }
+    /*
+     * If idAllocate() reserved an id for the allocation, the service
+     * already uses it: write the response, but there is no need to
+     * redeploy. Returns false if nothing was reserved.
+     */
+    private boolean confirmReservation(Pool p, Request req, String basePath)
+        throws Exception {
+        Reservation r =
+            p.reservations.remove(req.key.elementAt(0).toString());
+        if (r == null) {
+            return false;
+        }
 
-                            /* Success: release failed candidates. */
-                            for(Allocation fa : failedCandidates) {
-                                p.idPool.release(fa);
-                            }
+        LOGGER.debug(String.format("Confirming reserved id %d for %s",
+                                   r.id, basePath));
+        reportSuccess(p, r.id, basePath, new HashSet<ToRedeploy>());
+        return true;
+    }
 
-                            /* Report all successful allocations. */
-                            for(SyncGroup sg : syncGroups) {
-                                reportSuccess(id, sg.path, redeps);
-                            }
+    /*
+     * Give back the ids reserved in the pool by transactions that have
+     * not been committed in time, they have most likely been aborted.
+     * Called with the pool locked.
+     */
+    private void expireReservations(Pool p) {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, Reservation>> it =
+            p.reservations.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Reservation> entry = it.next();
+            if (entry.getValue().expires <= now) {
+                it.remove();
+                releaseReservation(p, entry.getKey(), entry.getValue());
+            }
+        }
+    }
 
-                            break;
+    private void releaseReservation(Pool p, String id, Reservation r) {
+        LOGGER.info(String.format("Releasing id %d reserved for %s in %s",
+                                  r.id, id, p.idPool.getName()));
+        try {
+            p.idPool.release(r.id);
+        } catch (AllocationException e) {
+            LOGGER.error("", e);
+        }
+    }
 
-                        } catch (AllocationException ex) {
-                            /* Failed, release all and try another. */
-                            for(PoolAlloc pa : poolAllocs) {
-                                pa.p.idPool.release(pa.a);
-                            }
+    /*
+     * Reserve an id for allocation id of poolName on behalf of the
+     * service transaction calling idAllocate(), or return the one
+     * already reserved for it.
+     */
+    private ConfUInt32 reserve(String poolName, String id, String owner,
+                               long requestedId)
+        throws ResourceException {
+        if (!isMaster) {
+            throw new ResourceWaitException("Not HA master");
+        }
 
-                            failedCandidates.add(a);
-                        }
+        Pool pool = null;
+        for (Pool p : pools) {
+            if (p.idPool.getName().equals(poolName)) {
+                pool = p;
+                break;
+            }
+        }
 
-                    } catch (AllocationException ex) {
-                        /*
-                         * Failed, release all and report failure
-                         * release failed candidates
-                         */
-                        for(Allocation fa : failedCandidates) {
-                            p.idPool.release(fa);
-                        }
+        if (pool == null) {
+            /* Possibly created in the same transaction. */
+            throw new ResourceWaitException(
+                String.format("Pool %s not loaded", poolName));
+        }
 
-                        /* Report all failed. */
-                        for(SyncGroup sg : syncGroups) {
-                            reportError("sync allocation failed", sg.path,
-                                        redeps);
-                        }
+        pool.lock.lock();
+        try {
+            expireReservations(pool);
 
-                        break;
-                    }
+            Reservation r = pool.reservations.get(id);
+            if (r == null) {
+                Allocation a;
+                if (requestedId < 0) {
+                    a = pool.idPool.allocate(owner, idAllocator._firstfree_);
+                } else {
+                    a = pool.idPool.allocate(owner, requestedId);
                 }
+                r = new Reservation(a.getAllocated());
+                pool.reservations.put(id, r);
+                LOGGER.debug(String.format("Reserved id %d for %s in %s",
+                                           r.id, id, poolName));
             }
+            return new ConfUInt32(r.id);
+        } catch (AllocationException e) {
+            throw new ResourceErrorException(e.toString());
+        } finally {
+            pool.lock.unlock();
+        }
+    }
+
+    private boolean hasResponse(String basePath) throws Exception {
+        CdbSession wsess = operSession();
+        try {
+            wsess.getCase(
+                idAllocator._response_choice_,
+                String.format("%s/%s", basePath, idAllocator._response_));
+            return true;
+        } catch (ConfException e) {
+            /* No case set */
+            return false;
         }
     }
 
@@ -830,10 +1694,59 @@ public class IdAllocator implements ApplicationComponent {
                                ArrayList<Request> reallocReqs,
                                Range range, boolean exclude)
         throws Exception {
+        CdbSession wsess = operSession();
+        buildIndex(pool);
+
+        /*
+         * Only the allocations inside the new exclude, or outside the
+         * new range, need to be reallocated.
+         */
+        TreeMap<Long, String> affected =
+            pool.index.affectedBy(range, exclude);
+
         /*
-         * Loop over all allocations in the pool and reallocate all that
-         * fall outside the new range
+         * Reserved ids that are affected are simply given back, the
+         * commit of the reserving transaction then allocates anew.
          */
+        Iterator<Map.Entry<String, Reservation>> it =
+            pool.reservations.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Reservation> entry = it.next();
+            boolean inRange = range.contains(entry.getValue().id);
+            if (exclude ? inRange : !inRange) {
+                it.remove();
+                releaseReservation(pool, entry.getKey(), entry.getValue());
+            }
+        }
+
+        for (Map.Entry<Long, String> entry : affected.entrySet()) {
+            long id = entry.getKey();
+            String path = entry.getValue();
+
+            LOGGER.debug(String.format("We need to reallocate %d", id));
+            stats.delete(wsess, String.format("%s/%s/%s", path,
+                                       idAllocator._response_,
+                                       idAllocator._id_));
+            pool.idPool.release(id);
+            pool.index.released(id);
+            reallocReqs.add(allocationRequest(path));
+            cleanupResponse(path);
+        }
+    }
+
+    /*
+     * Fill in the id and error indexes of the pool from CDB, unless
+     * that has been done already. From then on they are kept up to
+     * date as responses are written and allocations deleted.
+     */
+    private void buildIndex(Pool pool) throws Exception {
+        if (pool.indexed) {
+            return;
+        }
+
+        Maapi maapi = readMaapi();
+        int tid = readTid();
+        CdbSession wsess = operSession();
 
         NavuContext context     = new NavuContext(maapi, tid);
         NavuContainer base      = new NavuContainer(context);
@@ -846,57 +1759,89 @@ public class IdAllocator implements ApplicationComponent {
             elem(pool.idPool.getName());
         NavuList allocations = idPool.list(idAllocator._allocation_);
 
+        pool.index.clear();
+
         for(NavuContainer alloc : allocations.elements()) {
+            String path = new ConfPath(alloc.getKeyPath()).toString();
             ConfPath cdbAlloc = new ConfPath(alloc.getKeyPath());
             cdbAlloc.append(idAllocator._response_);
 
-            ConfKey allocationKey = alloc.getKey();
-            ConfKey idPoolKey = idPool.getKey();
-            boolean caseOk = false;
+            ConfTag respCase = null;
             try {
-                ConfTag respCase = (ConfTag)this.wsess.getCase(
-                                            idAllocator._response_choice_,
-                                            cdbAlloc);
-                caseOk = respCase.getTagHash() == idAllocator._ok;
+                respCase = (ConfTag)wsess.getCase(
+                                        idAllocator._response_choice_,
+                                        cdbAlloc);
             }
             catch (Exception e) {
-                LOGGER.info("No response case set - strange");
+                LOGGER.debug(String.format("No response yet for %s", path));
+                continue;
             }
 
-            if (caseOk) {
+            if (respCase.getTagHash() == idAllocator._ok) {
                 ConfPath okId = cdbAlloc.copyAppend(idAllocator._id_);
-                long id = ((ConfUInt32) this.wsess.getElem(okId)).longValue();
-                LOGGER.debug(String.format("Checking if %d is in range %s", id, range));
-                LOGGER.debug(String.format("Exclude is %s, range.contains: %s",
-                                           exclude, range.contains(id)));
-                if (exclude && range.contains(id)) {
-                    LOGGER.debug(String.format("We need to reallocate %d", id));
-                    /* Needs to be reallocated */
-                    this.wsess.delete(okId);
-                    pool.idPool.release(id);
-                    Request r = new Request();
-                    r.path = new ConfPath(alloc.getKeyPath());
-                    r.pool = idPoolKey;
-                    r.key = allocationKey;
-                    reallocReqs.add(r);
-                    cleanupResponse(r.path.toString());
-                } else if (!exclude && !range.contains(id)) {
-                    /* needs to be reallocated */
-                    LOGGER.debug(String.format("We need to reallocate %d", id));
-                    this.wsess.delete(okId);
-                    pool.idPool.release(id);
-                    Request r = new Request();
-                    r.path = new ConfPath(alloc.getKeyPath());
-                    r.pool = idPoolKey;
-                    r.key = allocationKey;
-                    reallocReqs.add(r);
-                    cleanupResponse(r.path.toString());
-                }
+                long id = ((ConfUInt32) wsess.getElem(okId)).longValue();
+                pool.index.answered(id, path);
+            } else {
+                pool.index.failed(path);
             }
         }
+
+        pool.indexed = true;
+    }
+
+    /*
+     * The request for the allocation at path, as diff iterate would
+     * have reported its creation.
+     */
+    private Request allocationRequest(String path) throws ConfException {
+        Request r = new Request();
+        r.path = new ConfPath(path);
+        ConfObject[] kp = r.path.getKP();
+        r.pool = (ConfKey) kp[kp.length-3];
+        r.key = (ConfKey) kp[kp.length-5];
+        r.type = Type.ALLOC;
+        r.op = Operation.CREATE;
+        return r;
     }
 
     public void finish() {
+        if (running == this) {
+            running = null;
+        }
+        RESPONSES.clear();
+
+        if (dispatcher != null) {
+            /* What is not handled yet stays in the journal */
+            dispatcher.shutdownNow();
+        }
+
+        if (workers != null) {
+            workers.shutdownNow();
+        }
+
+        /* The snapshot must not see a batch half way */
+        awaitTermination(dispatcher);
+        awaitTermination(workers);
+
+        RedeployService.stop();
+        stats.stop();
+
+        if (journal != null) {
+            journal.close();
+        }
+        if (subSessions != null) {
+            subSessions.close();
+        }
+
+        saveSnapshot();
+
+        synchronized (allWorkerSessions) {
+            for (WorkerSessions ws : allWorkerSessions) {
+                ws.close();
+            }
+            allWorkerSessions.clear();
+        }
+
         try {
             wsess.endSession();
         } catch (ClosedChannelException e) {
@@ -927,17 +1872,106 @@ public class IdAllocator implements ApplicationComponent {
         LOGGER.debug("Finish end");
     }
 
+    /*
+     * Save the pools for the next start, but only if they are known to
+     * be up to date with CDB. If a batch is still being handled, or
+     * failed, the transaction ids differ and the next start reads the
+     * pools from CDB instead.
+     */
+    private static void awaitTermination(ExecutorService executor) {
+        if (executor == null) {
+            return;
+        }
+        try {
+            if (!executor.awaitTermination(BATCH_TIMEOUT,
+                                           TimeUnit.MILLISECONDS)) {
+                LOGGER.warn("Id allocator threads did not stop");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /*
+     * Only called from finish(), so a crash leaves no snapshot and the
+     * next start reads the pools from CDB. Every pool is locked while
+     * the snapshot is taken, so that it is one consistent state even if
+     * a thread is still at it.
+     */
+    private void saveSnapshot() {
+        List<Pool> locked = new ArrayList<Pool>();
+        try {
+            for (Pool p : pools) {
+                if (!p.lock.tryLock()) {
+                    LOGGER.info("Id pools busy, no snapshot saved");
+                    return;
+                }
+                locked.add(p);
+                if (!p.reservations.isEmpty()) {
+                    LOGGER.info("Ids reserved by uncommitted"
+                                + " transactions, no snapshot saved");
+                    return;
+                }
+            }
+
+            String txId = wcdb.getTxId();
+            if (processedTxId == null || !processedTxId.equals(txId)) {
+                LOGGER.info("Id pools not up to date, no snapshot saved");
+                return;
+            }
+
+            PoolSnapshot snapshot = new PoolSnapshot(txId);
+            for (Pool p : pools) {
+                snapshot.addPool(p.idPool.getName(),
+                                 p.idPool.getLastAllocation(),
+                                 p.excludes, p.availables, p.allocations);
+            }
+            snapshot.write(SNAPSHOT_FILE);
+            LOGGER.info(String.format("Saved %d id pools to %s",
+                                      pools.size(), SNAPSHOT_FILE));
+        } catch (Exception e) {
+            LOGGER.error("Could not save id pool snapshot", e);
+        } finally {
+            for (Pool p : locked) {
+                p.lock.unlock();
+            }
+        }
+    }
+
     private void createPool(NavuContainer navuPool)
         throws NavuException, UnknownHostException, ConfException, IOException {
+        createPool(navuPool, null);
+    }
+
+    /*
+     * saved is the state of the pool from a snapshot matching the oper
+     * data, or null to read the pool state from CDB.
+     */
+    private void createPool(NavuContainer navuPool,
+                            PoolSnapshot.PoolState saved)
+        throws NavuException, UnknownHostException, ConfException, IOException {
+        /*
+         * The sets are read with the session of the calling thread, but
+         * their buffered writes are flushed by flushPools() from the
+         * subscriber (or dispatcher) thread, so they are written with
+         * the session set up in init().
+         */
+        CdbSession rsess = operSession();
         RangeSet excludes;
         RangeSet availables;
         AllocationsSet allocations;
 
         String pname = navuPool.leaf("name").value().toString();
         LOGGER.debug(String.format("Creating new pool %s", pname));
-        excludes     = new RangeSet(wsess, pname, idAllocatorOper._exclude_);
-        availables   = new RangeSet(wsess, pname, idAllocatorOper._available_);
-        allocations  = new AllocationsSet(wsess, pname);
+        excludes    = new RangeSet(wsess, rsess, pname,
+                                   idAllocatorOper._exclude_,
+                                   saved == null ? null : saved.excludes);
+        availables  = new RangeSet(wsess, rsess, pname,
+                                   idAllocatorOper._available_,
+                                   saved == null ? null : saved.availables);
+        allocations = new AllocationsSet(wsess, rsess, pname,
+                                         saved == null ? null :
+                                         saved.allocations);
 
         LOGGER.debug(String.format("Creating IDPool: excludes %s, availables %s, allocation %s",
                                    excludes, availables, allocations));
@@ -950,9 +1984,21 @@ public class IdAllocator implements ApplicationComponent {
         LOGGER.debug(String.format("Got %s and %s",
                                    alarmsEnabled, threshold));
 
+        /* Round-robin position saved by a previous run, if any. */
+        Long lastAllocation = null;
+        ConfPath cursorPath = availables.getPoolPath().copyAppend(
+                                  idAllocatorOper._last_allocation_);
+        if (saved != null) {
+            lastAllocation = saved.lastAllocation;
+        } else if (rsess.exists(cursorPath)) {
+            lastAllocation =
+                ((ConfUInt32) rsess.getElem(cursorPath)).longValue();
+        }
+
         IDPool pool  = new IDPool(pname, excludes,
                                   availables, allocations,
-                                  alarmsEnabled, threshold);
+                                  alarmsEnabled, threshold,
+                                  lastAllocation);
 
         /* Configure overall range. */
         NavuContainer poolRange =
@@ -966,9 +2012,6 @@ public class IdAllocator implements ApplicationComponent {
         pool.setRange(new Range(start, end));
 
         /* Compare configured excludes to known excludes and add/remove. */
-        ConfPath cdbExclude = availables.getPoolPath().copyAppend(
-                                    idAllocatorOper._exclude_);
-
         NavuList poolExclude = navuPool.list(idAllocatorOper.prefix,
                                              idAllocatorOper._exclude_);
 
@@ -979,29 +2022,21 @@ public class IdAllocator implements ApplicationComponent {
             end = ((ConfUInt32) exclude.leaf(idAllocatorOper._end_).
                            value()).longValue();
 
-            if (this.wsess.exists("%s{%s %s}", cdbExclude,
-                                  Long.toString(start),
-                                  Long.toString(end)) == false) {
-                pool.addToExcludes(new Range(start, end));
+            Range range = new Range(start, end);
+            if (!excludes.containsRange(range)) {
+                pool.addToExcludes(range);
             }
         }
 
         /* Then remove those that have been removed. */
-        int n = this.wsess.getNumberOfInstances(cdbExclude);
-        if (n > 0) {
-            List<ConfObject[]> objs = this.wsess.getObjects(2, 0, n, cdbExclude);
-
-            for (ConfObject[] obj : objs) {
-                start = ((ConfUInt32) obj[0]).longValue();
-                end = ((ConfUInt32) obj[1]).longValue();
-                String[] strKey = new String[] {Long.toString(start),
-                                                Long.toString(end)};
-                if (poolExclude.elem(strKey) == null) {
-                    try {
-                        pool.removeFromExcludes(new Range(start, end));
-                    } catch (Exception e) {
-                        LOGGER.error("Pool already removed", e);
-                    }
+        for (Range range : new ArrayList<Range>(excludes)) {
+            String[] strKey = new String[] {Long.toString(range.getStart()),
+                                            Long.toString(range.getEnd())};
+            if (poolExclude.elem(strKey) == null) {
+                try {
+                    pool.removeFromExcludes(range);
+                } catch (Exception e) {
+                    LOGGER.error("Pool already removed", e);
                 }
             }
         }
@@ -1011,9 +2046,11 @@ public class IdAllocator implements ApplicationComponent {
         po.excludes = excludes;
         po.availables = availables;
         po.allocations = allocations;
+        po.savedLastAllocation = lastAllocation;
         po.path = navuPool.getKeyPath();
         LOGGER.debug(String.format("Ok adding %s", po));
         pools.add(po);
+        stats.addPool(pool.getName(), pool.getStats());
     }
 
     private void safeclose(Cdb s) {
@@ -1024,12 +2061,202 @@ public class IdAllocator implements ApplicationComponent {
         }
     }
 
+    private static Set<Pool> newPoolSet() {
+        return Collections.newSetFromMap(
+                   new ConcurrentHashMap<Pool, Boolean>());
+    }
+
+    /*
+     * The operational session, MAAPI socket and read transaction to
+     * use from the current thread: the worker's own when called from a
+     * worker, otherwise the ones set up in init().
+     */
+    private CdbSession operSession() throws ConfException, IOException {
+        WorkerSessions ws = currentWorkerSessions();
+        return ws == null ? wsess : ws.wsess;
+    }
+
+    private Maapi readMaapi() throws ConfException, IOException {
+        WorkerSessions ws = currentWorkerSessions();
+        return ws == null ? maapi : ws.maapi;
+    }
+
+    private int readTid() throws ConfException, IOException {
+        WorkerSessions ws = currentWorkerSessions();
+        return ws == null ? tid : ws.tid;
+    }
+
+    private WorkerSessions currentWorkerSessions()
+        throws ConfException, IOException {
+        if (!(Thread.currentThread() instanceof WorkerThread)) {
+            return null;
+        }
+
+        WorkerSessions ws = workerSessions.get();
+        if (ws == null) {
+            ws = new WorkerSessions();
+            workerSessions.set(ws);
+            allWorkerSessions.add(ws);
+        }
+        return ws;
+    }
+
+    private NavuList idPoolList() throws ConfException, IOException {
+        NavuContext context = new NavuContext(readMaapi(), readTid());
+        NavuContainer base  = new NavuContainer(context);
+        NavuContainer root  = base.container(resourceAllocator.hash);
+        NavuContainer resources =
+            root.container(resourceAllocator.prefix,
+                           resourceAllocator._resource_pools_);
+        return resources.list(idAllocator.prefix, idAllocator._id_pool_);
+    }
+
+    /*
+     * Lock a set of pools in name order, so that two sync groups
+     * sharing pools can never wait for each other.
+     */
+    private static List<Pool> lockPools(Set<Pool> toLock) {
+        List<Pool> ordered = new ArrayList<Pool>(toLock);
+        Collections.sort(ordered, new Comparator<Pool>() {
+                public int compare(Pool p1, Pool p2) {
+                    return p1.idPool.getName().compareTo(p2.idPool.getName());
+                }
+            });
+
+        for (Pool pool : ordered) {
+            pool.lock.lock();
+        }
+        return ordered;
+    }
+
+    private static void unlockPools(List<Pool> locked) {
+        for (int i = locked.size() - 1; i >= 0; i--) {
+            locked.get(i).lock.unlock();
+        }
+    }
+
+    private static class WorkerThread extends Thread {
+        WorkerThread(Runnable r, String name) {
+            super(r, name);
+            setDaemon(true);
+        }
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            return new WorkerThread(r, "id-allocator-worker-" +
+                                    count.incrementAndGet());
+        }
+    }
+
+    private class WorkerSessions {
+        Cdb cdb;
+        CdbSession wsess;
+        /* For short running sessions, e.g. readAllocations() */
+        Cdb rcdb;
+        Maapi maapi;
+        int tid;
+
+        WorkerSessions() throws ConfException, IOException {
+            String host = NcsMain.getInstance().getNcsHost();
+            int port = NcsMain.getInstance().getNcsPort();
+
+            cdb = new Cdb("id-allocator-worker", new Socket(host, port));
+            wsess = cdb.startSession(CdbDBType.CDB_OPERATIONAL,
+                                     EnumSet.of(CdbLockType.LOCK_REQUEST,
+                                                CdbLockType.LOCK_WAIT));
+            rcdb = new Cdb("id-allocator-worker-reader",
+                           new Socket(host, port));
+
+            maapi = new Maapi(new Socket(host, port));
+            maapi.startUserSession("",
+                                   maapi.getSocket().getInetAddress(),
+                                   "system",
+                                   new String[] {},
+                                   MaapiUserSessionFlag.PROTO_TCP);
+            tid = maapi.startTrans(Conf.DB_RUNNING, Conf.MODE_READ);
+        }
+
+        void close() {
+            try {
+                wsess.endSession();
+            } catch (Exception ignore) {
+                ;
+            }
+            safeclose(cdb);
+            safeclose(rcdb);
+            try {
+                maapi.finishTrans(tid);
+            } catch (Throwable ignore) {
+                ;
+            }
+            try {
+                maapi.getSocket().close();
+            } catch (Throwable ignore) {
+                ;
+            }
+        }
+    }
+
     private class Pool {
+        /* Held while a request touches this pool. */
+        final ReentrantLock lock = new ReentrantLock();
         IDPool idPool;
         RangeSet excludes;
         RangeSet availables;
         AllocationsSet allocations;
         String path;
+        /* Round-robin position as last written to CDB. */
+        Long savedLastAllocation;
+
+        /* See buildIndex(), only touched with lock held. */
+        AllocationIndex index = new AllocationIndex();
+        boolean indexed = false;
+
+        /* Ids reserved by idAllocate(), by allocation id. */
+        Map<String, Reservation> reservations =
+            new HashMap<String, Reservation>();
+
+        /* Returns the number of writes made */
+        int flushWrites() {
+            int writes = excludes.flush() + availables.flush() +
+                allocations.flush();
+
+            Long last = idPool.getLastAllocation();
+            if (last == null || last.equals(savedLastAllocation)) {
+                return writes;
+            }
+
+            try {
+                wsess.setElem(new ConfUInt32(last),
+                              availables.getPoolPath().copyAppend(
+                                  idAllocatorOper._last_allocation_));
+                savedLastAllocation = last;
+                writes++;
+            } catch (Exception e) {
+                LOGGER.error(String.format("Could not save last-allocation"
+                                           + " of %s", idPool.getName()), e);
+            }
+            return writes;
+        }
+
+        void discardWrites() {
+            excludes.discard();
+            availables.discard();
+            allocations.discard();
+        }
+    }
+
+    private class Reservation {
+        long id;
+        long expires;
+
+        Reservation(long id) {
+            this.id = id;
+            this.expires = System.currentTimeMillis() + RESERVATION_TIMEOUT;
+        }
     }
 
     private class PoolAlloc {
@@ -1052,6 +2279,21 @@ public class IdAllocator implements ApplicationComponent {
         }
     }
 
+    private class SyncRequest {
+        Set<SyncGroup> syncGroups = new HashSet<SyncGroup>();
+        long allocatedId;
+        long requestedId;
+        String requestMethod;
+
+        Set<Pool> pools() {
+            Set<Pool> res = new HashSet<Pool>();
+            for (SyncGroup sg : syncGroups) {
+                res.add(sg.pool);
+            }
+            return res;
+        }
+    }
+
     private enum Operation { CREATE, DELETE, SET };
     private enum Type { ALLOC, RANGE, EXCLUDE, POOL,
                         ALARMS_ENABLED, ALARMS_THRESHOLD};
@@ -1066,6 +2308,10 @@ public class IdAllocator implements ApplicationComponent {
         long range_start;
         long range_end;
         int alarmThreshold;
+        /* Read back from the journal */
+        boolean replayed;
+        /* When it was read, for the request latency */
+        long received = System.nanoTime();
     }
 
     private class Iter implements CdbDiffIterate {
@@ -1126,8 +2372,10 @@ public class IdAllocator implements ApplicationComponent {
                     }
 
                     if (newRequest.type == Type.ALLOC) {
+                        CdbSession osess = subSessions != null ?
+                            subSessions.osess : wsess;
                         ConfValue v =
-                            wsess.getElem(String.format("/%s:%s/%s:%s%s/%s%s/%s/%s",
+                            osess.getElem(String.format("/%s:%s/%s:%s%s/%s%s/%s/%s",
                                           resourceAllocator.prefix, resourceAllocator._resource_pools_,
                                           idAllocator.prefix, idAllocator._id_pool_, newRequest.pool.toString(),
                                           idAllocator._allocation_, newRequest.key.toString(),
@@ -1286,6 +2534,184 @@ public class IdAllocator implements ApplicationComponent {
         idRequest(context, service, poolName, username, id, sync, -1L);
     }
 
+    /**
+     * Create or update a number of id allocation requests in one go.
+     *
+     * Instead of applying the allocation template once per id, the
+     * requests are written directly in the service transaction, so
+     * they are still owned by the service the way template changes
+     * are. The allocator serves the whole batch in one pass, with
+     * consecutive ids where the pool has room, and redeploys the
+     * service once.
+     *
+     * @param context      <code>ServiceContext</code> referencing the
+     *                     requesting context that the service was invoked in.
+     * @param service      <code>NavuNode</code> referencing the requesting
+     *                     service node.
+     * @param poolName     name of pool to request from
+     * @param username     username to use when redeploying the requesting
+     *                     service
+     * @param ids          unique allocation ids
+     * @param sync         sync allocations with these ids across pools
+     * @throws ResourceErrorException if the pool does not exist
+     */
+    public static void idRequestBatch(ServiceContext context,
+                                      NavuNode service,
+                                      String poolName,
+                                      String username,
+                                      String[] ids,
+                                      boolean sync)
+        throws ResourceErrorException
+    {
+        idRequestBatch(service, poolName, username, ids, sync);
+    }
+
+    /**
+     * Create or update a number of id allocation requests in one go.
+     *
+     * @param service      <code>NavuNode</code> referencing the requesting
+     *                     service node.
+     * @param poolName     name of pool to request from
+     * @param username     username to use when redeploying the requesting
+     *                     service
+     * @param ids          unique allocation ids
+     * @param sync         sync allocations with these ids across pools
+     * @throws ResourceErrorException if the pool does not exist
+     * @see #idRequestBatch(ServiceContext, NavuNode, String, String,
+     *                      String[], boolean)
+     */
+    public static void idRequestBatch(NavuNode service,
+                                      String poolName,
+                                      String username,
+                                      String[] ids,
+                                      boolean sync)
+        throws ResourceErrorException
+    {
+        NavuContainer pool;
+        try {
+            pool = new NavuContainer(service.context()).
+                container(resourceAllocator.hash).
+                container(resourceAllocator._resource_pools).
+                list(idAllocator.prefix, idAllocator._id_pool_).
+                elem(poolName);
+        } catch (Exception e) {
+            throw new ResourceErrorException("Unable to create allocation request", e);
+        }
+
+        if (pool == null) {
+            throw new ResourceErrorException("Pool does not exist");
+        }
+
+        try {
+            ConfObjectRef owner =
+                new ConfObjectRef(new ConfPath(service.getKeyPath()));
+            NavuList allocations = pool.list(idAllocator._allocation_);
+
+            for (String id : ids) {
+                NavuContainer alloc = allocations.sharedCreate(id);
+                alloc.leaf(idAllocator._username_).sharedSet(username);
+                alloc.leaf(idAllocator._allocating_service_).
+                    sharedSet(owner);
+                alloc.container(idAllocator._request_).
+                    leaf(idAllocator._sync_).
+                    sharedSet(new ConfBool(sync));
+            }
+        } catch (Exception e) {
+            throw new ResourceErrorException("Unable to create allocation request", e);
+        }
+    }
+
+    /**
+     * Create or update an id allocation request and get the id right
+     * away, from within the service create().
+     *
+     * The id is reserved in the pool of the allocator running in this
+     * VM, so the service does not have to wait to be redeployed. The
+     * reservation is confirmed when the transaction is committed, and
+     * given back if it is not committed within
+     * resource-manager.reservation-timeout milliseconds (ten minutes
+     * by default). If the request has been committed before, its
+     * response is returned as by idRead().
+     *
+     * The allocator is not told when the transaction is aborted, e.g.
+     * on a validation error or after a commit dry-run, which also runs
+     * the service create(). The reserved id is then taken until the
+     * timeout has passed and the pool is next used, by idAllocate() or
+     * by a committed request. Services that are often dry-run should
+     * use idRequest(), or set a shorter timeout.
+     *
+     * Ids synced across pools cannot be allocated this way, use
+     * idRequest() for those.
+     *
+     * @param context      <code>ServiceContext</code> referencing the
+     *                     requesting context that the service was invoked in.
+     * @param service      <code>NavuNode</code> referencing the requesting
+     *                     service node.
+     * @param cdb          a <code>Cdb</code> resource
+     * @param poolName     name of pool to request from
+     * @param username     username to use when redeploying the requesting
+     *                     service
+     * @param id           unique allocation id
+     * @param requestedId  a specific id to be requested
+     * @return the allocated id
+     * @throws ResourceErrorException if the allocation has failed or the
+     *                                pool does not exist
+     * @throws ResourceWaitException if the id cannot be had right away,
+     *         e.g. on an HA slave. The request is then served as if made
+     *         by idRequest().
+     */
+    public static ConfUInt32 idAllocate(ServiceContext context,
+                                        NavuNode service,
+                                        Cdb cdb,
+                                        String poolName,
+                                        String username,
+                                        String id,
+                                        long requestedId)
+        throws ResourceException, IOException, ConfException
+    {
+        idRequest(context, service, poolName, username, id, false,
+                  requestedId);
+        return reserveId(service, cdb, poolName, id, requestedId);
+    }
+
+    /**
+     * Create or update an id allocation request and get the id right
+     * away, from within the service create().
+     *
+     * @see #idAllocate(ServiceContext, NavuNode, Cdb, String, String,
+     *                  String, long)
+     */
+    public static ConfUInt32 idAllocate(NavuNode service,
+                                        Cdb cdb,
+                                        String poolName,
+                                        String username,
+                                        String id,
+                                        long requestedId)
+        throws ResourceException, IOException, ConfException
+    {
+        idRequest(service, poolName, username, id, false, requestedId);
+        return reserveId(service, cdb, poolName, id, requestedId);
+    }
+
+    private static ConfUInt32 reserveId(NavuNode service, Cdb cdb,
+                                        String poolName, String id,
+                                        long requestedId)
+        throws ResourceException, IOException, ConfException {
+        if (readAllocation(cdb, poolName, id) != null) {
+            /* Committed before, so the allocator has seen it. */
+            return idRead(cdb, poolName, id);
+        }
+
+        IdAllocator allocator = running;
+        if (allocator == null) {
+            throw new ResourceWaitException("Id allocator not running");
+        }
+
+        return allocator.reserve(poolName, id,
+                                 new ConfPath(service.getKeyPath()).toString(),
+                                 requestedId);
+    }
+
     public static TemplateVariables getIdRequestTemplateVars(NavuNode service,
                                                              String poolName,
                                                              String id,
@@ -1332,7 +2758,7 @@ public class IdAllocator implements ApplicationComponent {
             throw new ResourceErrorException("Allocation does not exist");
         }
 
-        AllocStatus alloc = cdbAllocation(cdb, poolName, id);
+        AllocStatus alloc = readAllocation(cdb, poolName, id);
         if (alloc == null) {
             return false;
         }
@@ -1358,7 +2784,7 @@ public class IdAllocator implements ApplicationComponent {
      */
     public static ConfUInt32 idRead(Cdb cdb, String poolName, String id)
         throws ResourceException, IOException, ConfException {
-        AllocStatus alloc = cdbAllocation(cdb, poolName, id);
+        AllocStatus alloc = readAllocation(cdb, poolName, id);
         if (alloc == null) {
             throw new ResourceErrorException(String.format("No such allocation: %s", id));
         }
@@ -1372,6 +2798,43 @@ public class IdAllocator implements ApplicationComponent {
         }
     }
 
+    /*
+     * RESPONSES, if it is kept up to date: only while the allocator
+     * runs in this VM as HA master. Otherwise null.
+     */
+    private static ResponseCache<AllocStatus> responseCache() {
+        IdAllocator allocator = running;
+        if (allocator == null || !allocator.isMaster) {
+            return null;
+        }
+        return RESPONSES;
+    }
+
+    /*
+     * The response of an allocation from the cache, or read from CDB
+     * and cached if it is answered.
+     */
+    private static AllocStatus readAllocation(Cdb cdb, String poolName,
+                                              String id)
+        throws ConfException, IOException, ResourceErrorException {
+        ResponseCache<AllocStatus> cache = responseCache();
+        if (cache == null) {
+            return cdbAllocation(cdb, poolName, id);
+        }
+
+        AllocStatus alloc = cache.get(poolName, id);
+        if (alloc != null) {
+            return alloc;
+        }
+
+        long epoch = cache.epoch();
+        alloc = cdbAllocation(cdb, poolName, id);
+        if (alloc != null && (alloc.id != null || alloc.error != null)) {
+            cache.putIfCurrent(poolName, id, alloc, epoch);
+        }
+        return alloc;
+    }
+
     private static AllocStatus cdbAllocation(Cdb cdb, String poolName, String id)
         throws ConfException, IOException, ResourceErrorException
     {
@@ -1430,17 +2893,22 @@ public class IdAllocator implements ApplicationComponent {
     private class RequestThread implements Runnable {
 
         private ArrayList<Request> reqs;
-        private CdbSession wsess;
+        private Set<ToRedeploy> redeps;
 
-        public RequestThread(ArrayList<Request> reqs, CdbSession wsess){
+        /*
+         * reqs all belong to the same pool and are handled in order,
+         * the services to re-deploy are added to redeps.
+         */
+        public RequestThread(ArrayList<Request> reqs,
+                             Set<ToRedeploy> redeps) {
             this.reqs = reqs;
-            this.wsess = wsess;
+            this.redeps = redeps;
         }
 
         @Override
         public void run() {
+            long started = System.nanoTime();
             try {
-                Set<ToRedeploy> redeps = new HashSet<ToRedeploy>();
                 ArrayList<Pool> modifiedPools = new ArrayList<Pool>();
 
                 /*
@@ -1449,7 +2917,8 @@ public class IdAllocator implements ApplicationComponent {
                  * the following call here and not after the for loop
                  * sub.sync(CdbSubscriptionSyncType.DONE_PRIORITY);
                  */
-                for (Request req : reqs) {
+                for (int i = 0; i < reqs.size(); i++) {
+                    Request req = reqs.get(i);
 
                     /* Find proper pool. */
                     Pool pool = null;
@@ -1469,252 +2938,266 @@ public class IdAllocator implements ApplicationComponent {
                         continue;
                     }
 
-                    if (req.type == Type.POOL) {
-                        if (req.op == Operation.CREATE) {
-                            /* A new pool has been added. */
-                            try {
-                                createPool(idpool.elem(req.pool));
-                            } catch (Exception e) {
-                                LOGGER.error("Failed to create pool", e);
-                            }
-                        } else {
-                            /* An existing pool has been removed, cleanup. */
+                    if (pool == null) {
+                        /* A new pool has been added. */
                         try {
-                            LOGGER.debug("Removing ALARMS");
-                            pool.idPool.clearAllAlarms();
-                            pools.remove(pool);
-                            if (wsess.exists(pool.availables.getPoolPath())) {
-                                wsess.delete(pool.availables.getPoolPath());
-                            }
+                            createPool(idPoolList().elem(req.pool));
                         } catch (Exception e) {
-                            LOGGER.error("Failed to delete pool", e);
+                            LOGGER.error("Failed to create pool", e);
                         }
+                        continue;
                     }
-                } else if (req.type == Type.ALARMS_ENABLED) {
-                    if (req.op == Operation.DELETE) {
-                        LOGGER.debug("DISABLE ALARMS!");
-                        pool.idPool.disableAlarms();
-                    } else {
-                        LOGGER.debug("ENABLE ALARMS!");
-                        pool.idPool.enableAlarms();
+
+                    /*
+                     * New allocations that follow each other, e.g. from
+                     * idRequestBatch(), are served together.
+                     */
+                    List<Request> run = new ArrayList<Request>();
+                    for (int j = i; j < reqs.size(); j++) {
+                        Request r = reqs.get(j);
+                        if (r.type != Type.ALLOC ||
+                            r.op != Operation.CREATE) {
+                            break;
+                        }
+                        run.add(r);
                     }
 
-                } else if (req.type == Type.ALARMS_THRESHOLD) {
-                        LOGGER.debug("Update alarm threshold");
-                        pool.idPool.setThreshold(req.alarmThreshold);
-                } else if (req.type == Type.RANGE) {
-                    LOGGER.debug("got range change");
+                    pool.lock.lock();
+                    try {
+                        expireReservations(pool);
+                        if (run.size() > 1) {
+                            allocateIds(pool, redeps, run);
+                            i += run.size() - 1;
+                        } else {
+                            processRequest(pool, req, modifiedPools);
+                        }
+                    } finally {
+                        pool.lock.unlock();
+                    }
+                }
 
-                    modifiedPools.add(pool);
+                for (Pool pool : new LinkedHashSet<Pool>(modifiedPools)) {
+                    /*
+                     * The pool definition was changed, see if some
+                     * previously failed allocation should now be retried
+                     */
+                    pool.lock.lock();
+                    try {
+                        buildIndex(pool);
+                        for (String path : pool.index.errors()) {
+                            LOGGER.debug(String.format("retrying on %s ",
+                                                       path));
+                            pool.index.removed(path);
+                            cleanupResponse(path);
+                            allocateId(pool, redeps,
+                                       allocationRequest(path));
+                        }
+                    } finally {
+                        pool.lock.unlock();
+                    }
+                }
+            } catch (ConfException e) {
+            if (e.getCause() instanceof java.io.EOFException) {
+                /* Silence here, normal close (redeploy/reload package). */
+                LOGGER.error("", e);
+            } else {
+                LOGGER.error("", e);
+            }
+        } catch (SocketException e) {
+            /* Silence here, normal close (redeploy/reload package). */
+            LOGGER.error("", e);
+        } catch (ClosedChannelException e) {
+            /* Silence here, normal close (redeploy/reload package). */
+            LOGGER.error("", e);
+        } catch (Exception e) {
+            LOGGER.error("", e);
+            } finally {
+                stats.workerDone(started);
+            }
+        }
 
-                        ConfPath cdbRange =
-                            pool.availables.getPoolPath().copyAppend(
-                                                       idAllocatorOper._range_);
+        /*
+         * Handle one request, called with the pool locked.
+         */
+        private void processRequest(Pool pool, Request req,
+                                    ArrayList<Pool> modifiedPools)
+            throws Exception {
+            if (req.type == Type.POOL) {
+                if (req.op == Operation.CREATE) {
+                    /* Pool already known, nothing to do. */
+                    return;
+                }
 
-                        long start = req.range_start;
-                        long end = req.range_end;
-                        Range range = new Range(start, end);
+                /* An existing pool has been removed, cleanup. */
+                try {
+                    LOGGER.debug("Removing ALARMS");
+                    pool.idPool.clearAllAlarms();
+                    pools.remove(pool);
+                    stats.removePool(pool.idPool.getName());
+                    RESPONSES.removePool(pool.idPool.getName());
+                    pool.discardWrites();
+                    CdbSession wsess = operSession();
+                    if (wsess.exists(pool.availables.getPoolPath())) {
+                        wsess.delete(pool.availables.getPoolPath());
+                    }
+                } catch (Exception e) {
+                    LOGGER.error("Failed to delete pool", e);
+                }
+            } else if (req.type == Type.ALARMS_ENABLED) {
+                if (req.op == Operation.DELETE) {
+                    LOGGER.debug("DISABLE ALARMS!");
+                    pool.idPool.disableAlarms();
+                } else {
+                    LOGGER.debug("ENABLE ALARMS!");
+                    pool.idPool.enableAlarms();
+                }
 
-                        /*
-                         * The range has been modified Remove all
-                         * allocations that are outside the new range,
-                         * allocate ids, and re-deploy all services.
-                         */
+            } else if (req.type == Type.ALARMS_THRESHOLD) {
+                LOGGER.debug("Update alarm threshold");
+                pool.idPool.setThreshold(req.alarmThreshold);
+            } else if (req.type == Type.RANGE) {
+                LOGGER.debug("got range change");
 
-                        ArrayList<Request> reallocReqs =
-                            new ArrayList<Request>();
+                modifiedPools.add(pool);
 
-                        reallocateIds(pool, cdbRange, reallocReqs,
-                                      range, false);
+                ConfPath cdbRange =
+                    pool.availables.getPoolPath().copyAppend(
+                                               idAllocatorOper._range_);
 
-                        /*
-                         * Now all ids should have been released
-                         * and we can modify the range
-                         */
+                long start = req.range_start;
+                long end = req.range_end;
+                Range range = new Range(start, end);
 
-                        LOGGER.debug(String.format("Setting new range: %s",
-                                                   range));
-                        pool.idPool.setRange(range);
+                /*
+                 * The range has been modified Remove all
+                 * allocations that are outside the new range,
+                 * allocate ids, and re-deploy all services.
+                 */
 
-                        for(Request reallocReq : reallocReqs) {
-                            allocateId(pool, redeps, reallocReq);
-                        }
+                ArrayList<Request> reallocReqs =
+                    new ArrayList<Request>();
 
-                } else if (req.type == Type.EXCLUDE) {
-
-                    modifiedPools.add(pool);
-
-                        ConfPath cdbExclude =
-                            pool.availables.getPoolPath().copyAppend(
-                                                     idAllocatorOper._exclude_);
-                        ConfPath cdbRange =
-                            pool.availables.getPoolPath().copyAppend(
-                                                       idAllocatorOper._range_);
-
-                        long start =
-                            ((ConfUInt32) req.key.elementAt(0)).longValue();
-                        long end =
-                            ((ConfUInt32) req.key.elementAt(1)).longValue();
-                        String[] key = new String[] {
-                            Long.toString(start), Long.toString(end)};
-                        Range range = new Range(start, end);
-
-                        if (req.op == Operation.DELETE) {
-                            /* An exclusion has been removed from the pool. */
-                            if (this.wsess.exists("%s{%s %s}", cdbExclude,
-                                                  key[0], key[1])) {
-                                pool.idPool.removeFromExcludes(range);
-                            } else {
-                                LOGGER.debug(
-                                    String.format("Got DELETE, but already" +
-                                                  " removed: %s",
-                                                  Arrays.toString(key)));
-                            }
-                        } else {
-                            /* A new exclusion has been added to the pool. */
-                            if (this.wsess.exists("%s{%s %s}", cdbExclude,
-                                                  key[0], key[1]) == false) {
-                                LOGGER.debug("new exclusion");
+                reallocateIds(pool, cdbRange, reallocReqs,
+                              range, false);
 
-                                /*
-                                 * Remove all allocations that
-                                 * belong to this range, allocate new
-                                 * ids, and re-deploy all services.
-                                 */
-                                ArrayList<Request> reallocReqs =
-                                    new ArrayList<Request>();
+                /*
+                 * Now all ids should have been released
+                 * and we can modify the range
+                 */
 
-                                reallocateIds(pool, cdbRange, reallocReqs,
-                                              range, true);
+                LOGGER.debug(String.format("Setting new range: %s",
+                                           range));
+                pool.idPool.setRange(range);
 
-                                /*
-                                 * Now all ids in the new excluded section
-                                 * should have been released
-                                 * and we can add the new range exclusion
-                                 */
+                for(Request reallocReq : reallocReqs) {
+                    allocateId(pool, redeps, reallocReq);
+                }
 
-                                try {
-                                    pool.idPool.addToExcludes(range);
-                                } catch (Exception e) {
-                                    LOGGER.error("Exclude range already exists",
-                                                 e);
-                                }
+            } else if (req.type == Type.EXCLUDE) {
 
-                                for(Request reallocReq : reallocReqs) {
-                                    allocateId(pool, redeps, reallocReq);
-                                }
+                modifiedPools.add(pool);
 
-                            } else {
-                                LOGGER.debug(String.format("already" +
-                                                 " removed: %s",
-                                                 Arrays.toString(key)));
-                            }
-                        }
-                } else if (req.type == Type.ALLOC) {
-                    if (req.op == Operation.CREATE) {
-                        allocateId(pool, redeps, req);
+                ConfPath cdbRange =
+                    pool.availables.getPoolPath().copyAppend(
+                                               idAllocatorOper._range_);
+
+                long start =
+                    ((ConfUInt32) req.key.elementAt(0)).longValue();
+                long end =
+                    ((ConfUInt32) req.key.elementAt(1)).longValue();
+                String[] key = new String[] {
+                    Long.toString(start), Long.toString(end)};
+                Range range = new Range(start, end);
+
+                if (req.op == Operation.DELETE) {
+                    /* An exclusion has been removed from the pool. */
+                    if (pool.excludes.containsRange(range)) {
+                        pool.idPool.removeFromExcludes(range);
                     } else {
-                        /* Delete: clean up oper data, and de-allocate. */
-                        try {
-                            if (req.val != null) {
-                                    long id =
-                                        ((ConfUInt32) req.val).longValue();
-                                    pool.idPool.release(id);
-                            }
-                            String basePath =
-                                String.format("/%s:%s/%s:%s%s/%s%s",
-                                             resourceAllocator.prefix,
-                                             resourceAllocator._resource_pools_,
-                                             idAllocator.prefix,
-                                             idAllocator._id_pool_,
-                                             req.pool.toString(),
-                                             idAllocator._allocation_,
-                                             req.key.toString());
-
-                            cleanupResponse(basePath);
-                        }
-                        catch (Exception e) {
-                            LOGGER.error("Error deleting allocation", e);
-                        }
+                        LOGGER.debug(
+                            String.format("Got DELETE, but already" +
+                                          " removed: %s",
+                                          Arrays.toString(key)));
                     }
-                }
-            }
-
-            NavuContext context = new NavuContext(maapi, tid);
-            NavuContainer base  = new NavuContainer(context);
-            NavuContainer root  = base.container(resourceAllocator.hash);
-                NavuContainer resources
-                    = root.container(resourceAllocator.prefix,
-                                     resourceAllocator._resource_pools_);
+                } else {
+                    /* A new exclusion has been added to the pool. */
+                    if (!pool.excludes.containsRange(range)) {
+                        LOGGER.debug("new exclusion");
 
-                for (Pool pool : modifiedPools) {
-                    /*
-                     * The pool definition was changed, see if some
-                     * previously failed allocation should now be retried
-                     */
-                    NavuContainer idPool =
-                        resources.list(idAllocator.prefix,
-                                       idAllocator._id_pool_).elem(pool.idPool.getName());
-                    NavuList allocations =
-                        idPool.list(idAllocator._allocation_);
+                        /*
+                         * Remove all allocations that
+                         * belong to this range, allocate new
+                         * ids, and re-deploy all services.
+                         */
+                        ArrayList<Request> reallocReqs =
+                            new ArrayList<Request>();
 
-                    for(NavuContainer alloc : allocations.elements()) {
-                        String cdbAllocPath =
-                            new ConfPath(alloc.getKeyPath()).toString();
-                        String responsePath =
-                            cdbAllocPath+"/"+idAllocator._response_;
+                        reallocateIds(pool, cdbRange, reallocReqs,
+                                      range, true);
 
-                        ConfTag selectedCase = null;
+                        /*
+                         * Now all ids in the new excluded section
+                         * should have been released
+                         * and we can add the new range exclusion
+                         */
 
                         try {
-                            selectedCase =
-                                ((ConfTag) wsess.getCase(
-                                               idAllocator._response_choice_,
-                                               responsePath));
-                        } catch (ConfException e) {
-                            /*
-                             * No case selected. Ignore for now since we
-                             * will set this later on.
-                             */
-                            LOGGER.debug("NO RESPONSE CHOICE NOW");
-                            continue;
+                            pool.idPool.addToExcludes(range);
+                        } catch (Exception e) {
+                            LOGGER.error("Exclude range already exists",
+                                         e);
                         }
 
-                        if (selectedCase.getTag().equals(idAllocator._error_)) {
-                            /* Previously failed allocation, retry. */
-                            LOGGER.debug("ERROR RESPONSE RETRYING");
-                            Request r = new Request();
-                            r.path = new ConfPath(alloc.getKeyPath());
-                            r.key = alloc.getKey();
-                            r.pool = idPool.getKey();
-                            LOGGER.debug(String.format("retrying on %s ",
-                                                       r.path.toString()));
-                            cleanupResponse(r.path.toString());
-                            allocateId(pool, redeps, r);
+                        for(Request reallocReq : reallocReqs) {
+                            allocateId(pool, redeps, reallocReq);
                         }
+
+                    } else {
+                        LOGGER.debug(String.format("already" +
+                                         " removed: %s",
+                                         Arrays.toString(key)));
                     }
                 }
+            } else if (req.type == Type.ALLOC) {
+                if (req.op == Operation.CREATE) {
+                    allocateId(pool, redeps, req);
+                } else {
+                    /* Delete: clean up oper data, and de-allocate. */
+                    try {
+                        String basePath =
+                            String.format("/%s:%s/%s:%s%s/%s%s",
+                                         resourceAllocator.prefix,
+                                         resourceAllocator._resource_pools_,
+                                         idAllocator.prefix,
+                                         idAllocator._id_pool_,
+                                         req.pool.toString(),
+                                         idAllocator._allocation_,
+                                         req.key.toString());
+                        if (req.val != null) {
+                            long id =
+                                ((ConfUInt32) req.val).longValue();
+                            if (req.replayed &&
+                                !basePath.equals(pool.index.pathOf(id))) {
+                                /*
+                                 * Given back on start already, and
+                                 * maybe handed out again since.
+                                 */
+                                LOGGER.debug(String.format(
+                                    "Id %d of %s already released",
+                                    id, basePath));
+                            } else {
+                                pool.idPool.release(id);
+                                pool.index.released(id);
+                            }
+                        }
 
-                LOGGER.debug("REDEPLOYING....");
-
-                /* Invoke redeploy */
-                NSOUtil.redeploy(redeps);
-
-                } catch (ConfException e) {
-            if (e.getCause() instanceof java.io.EOFException) {
-                /* Silence here, normal close (redeploy/reload package). */
-                LOGGER.error("", e);
-            } else {
-                LOGGER.error("", e);
-            }
-        } catch (SocketException e) {
-            /* Silence here, normal close (redeploy/reload package). */
-            LOGGER.error("", e);
-        } catch (ClosedChannelException e) {
-            /* Silence here, normal close (redeploy/reload package). */
-            LOGGER.error("", e);
-        } catch (Exception e) {
-            LOGGER.error("", e);
+                        pool.index.removed(basePath);
+                        cleanupResponse(basePath);
+                    }
+                    catch (Exception e) {
+                        LOGGER.error("Error deleting allocation", e);
+                    }
+                }
             }
         }
     }
@@ -0,0 +1,245 @@
+package com.tailf.pkg.idallocator;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import org.apache.log4j.Logger;
+
+import com.tailf.pkg.idpool.Allocation;
+import com.tailf.pkg.idpool.Range;
+
+/**
+ * PoolSnapshot
+ *
+ * The state of all id pools as mirrored in the oper data, together with
+ * the CDB transaction id it corresponds to. IdAllocator saves one when
+ * it is stopped with every change handled, and uses it on the next start
+ * instead of reading the pools back from CDB, provided CDB is still at
+ * the same transaction.
+ *
+ * File layout, big endian: magic, version, transaction id, number of
+ * pools, then per pool its name, last allocation, excludes, availables
+ * and allocated ids, and finally a CRC32 of everything before it.
+ * Strings are a length followed by UTF-8 bytes.
+ */
+public class PoolSnapshot {
+
+    private static Logger LOGGER = Logger.getLogger(PoolSnapshot.class);
+
+    private static final int MAGIC = 0x49445053;    /* "IDPS" */
+    private static final int VERSION = 1;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    public static class PoolState {
+        public final String name;
+        public final Long lastAllocation;
+        public final List<Range> excludes;
+        public final List<Range> availables;
+        public final List<Allocation> allocations;
+
+        PoolState(String name, Long lastAllocation, List<Range> excludes,
+                  List<Range> availables, List<Allocation> allocations) {
+            this.name = name;
+            this.lastAllocation = lastAllocation;
+            this.excludes = excludes;
+            this.availables = availables;
+            this.allocations = allocations;
+        }
+    }
+
+    private String txId;
+    private Map<String, PoolState> pools =
+        new LinkedHashMap<String, PoolState>();
+
+    public PoolSnapshot(String txId) {
+        this.txId = txId;
+    }
+
+    public String getTxId() {
+        return txId;
+    }
+
+    public void addPool(String name, Long lastAllocation,
+                        Collection<Range> excludes,
+                        Collection<Range> availables,
+                        Collection<Allocation> allocations) {
+        pools.put(name, new PoolState(name, lastAllocation,
+                                      new ArrayList<Range>(excludes),
+                                      new ArrayList<Range>(availables),
+                                      new ArrayList<Allocation>(allocations)));
+    }
+
+    /**
+     * Returns the saved state of the pool, or null if it is not in the
+     * snapshot.
+     */
+    public PoolState getPool(String name) {
+        return pools.get(name);
+    }
+
+    /**
+     * Write the snapshot to a temporary file next to file and move it
+     * into place, so that a reader sees either the old or the new one.
+     */
+    public void write(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        CRC32 crc = new CRC32();
+        DataOutputStream out = new DataOutputStream(
+            new CheckedOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)), crc));
+
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeString(out, txId);
+            out.writeInt(pools.size());
+
+            for (PoolState pool : pools.values()) {
+                writeString(out, pool.name);
+                out.writeBoolean(pool.lastAllocation != null);
+                out.writeLong(pool.lastAllocation != null
+                              ? pool.lastAllocation : 0);
+                writeRanges(out, pool.excludes);
+                writeRanges(out, pool.availables);
+                out.writeInt(pool.allocations.size());
+                for (Allocation a : pool.allocations) {
+                    out.writeLong(a.getAllocated());
+                }
+            }
+
+            /* Taken before it is written, it covers everything else. */
+            out.writeLong(crc.getValue());
+        } finally {
+            out.close();
+        }
+
+        Files.move(tmp.toPath(), file.toPath(),
+                   StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Read a snapshot written by write(). Returns null if there is no
+     * such file or if it is truncated, of another version or fails the
+     * checksum.
+     */
+    public static PoolSnapshot read(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            MappedByteBuffer buf =
+                channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return parse(buf);
+        } catch (Exception e) {
+            LOGGER.warn(String.format("Ignoring id pool snapshot %s", file),
+                        e);
+            return null;
+        } finally {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignore) {
+                    ;
+                }
+            }
+        }
+    }
+
+    private static PoolSnapshot parse(ByteBuffer buf) throws IOException {
+        int size = buf.limit();
+        if (size < 16) {
+            throw new IOException("Snapshot truncated");
+        }
+
+        ByteBuffer body = buf.duplicate();
+        body.limit(size - 8);
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        if (crc.getValue() != buf.getLong(size - 8)) {
+            throw new IOException("Snapshot checksum mismatch");
+        }
+
+        if (buf.getInt() != MAGIC) {
+            throw new IOException("Not an id pool snapshot");
+        }
+        int version = buf.getInt();
+        if (version != VERSION) {
+            throw new IOException(
+                String.format("Unsupported snapshot version %d", version));
+        }
+
+        PoolSnapshot snapshot = new PoolSnapshot(readString(buf));
+        int n = buf.getInt();
+        for (int i = 0; i < n; i++) {
+            String name = readString(buf);
+            boolean hasLast = buf.get() != 0;
+            long last = buf.getLong();
+            List<Range> excludes = readRanges(buf);
+            List<Range> availables = readRanges(buf);
+            int count = buf.getInt();
+            List<Allocation> allocations = new ArrayList<Allocation>(count);
+            for (int j = 0; j < count; j++) {
+                allocations.add(new Allocation(buf.getLong()));
+            }
+
+            snapshot.pools.put(name,
+                               new PoolState(name, hasLast ? last : null,
+                                             excludes, availables,
+                                             allocations));
+        }
+
+        return snapshot;
+    }
+
+    private static void writeString(DataOutputStream out, String s)
+        throws IOException {
+        byte[] bytes = s.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.getInt()];
+        buf.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    private static void writeRanges(DataOutputStream out, List<Range> ranges)
+        throws IOException {
+        out.writeInt(ranges.size());
+        for (Range r : ranges) {
+            out.writeLong(r.getStart());
+            out.writeLong(r.getEnd());
+        }
+    }
+
+    private static List<Range> readRanges(ByteBuffer buf) {
+        int count = buf.getInt();
+        List<Range> ranges = new ArrayList<Range>(count);
+        for (int i = 0; i < count; i++) {
+            ranges.add(new Range(buf.getLong(), buf.getLong()));
+        }
+        return ranges;
+    }
+}
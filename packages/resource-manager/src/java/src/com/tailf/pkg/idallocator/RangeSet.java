@@ -1,5 +1,6 @@
 package com.tailf.pkg.idallocator;
 
+import java.util.Collection;
 import java.util.TreeSet;
 import java.util.List;
 
@@ -7,6 +8,7 @@ import org.apache.log4j.Logger;
 
 import com.tailf.pkg.idallocator.namespaces.idAllocatorOper;
 import com.tailf.pkg.idpool.Range;
+import com.tailf.pkg.nsoutil.WriteBehindBuffer;
 import com.tailf.cdb.CdbSession;
 import com.tailf.conf.ConfUInt32;
 import com.tailf.conf.ConfObject;
@@ -15,6 +17,8 @@ import com.tailf.conf.ConfPath;
 /**
  * RangeSet
  *
+ * The excluded or available id ranges of a pool, as kept under
+ * location in the oper data of the pool.
  */
 public class RangeSet extends TreeSet<Range> {
 
@@ -24,8 +28,21 @@ public class RangeSet extends TreeSet<Range> {
     private ConfPath poolPath;
     private ConfPath locationPath;
     private CdbSession wsess;
+    private WriteBehindBuffer writes;
 
     public RangeSet(CdbSession wsess, String poolName, String location) {
+        this(wsess, wsess, poolName, location, null);
+    }
+
+    /**
+     * See WriteBehindBuffer about wsess and rsess.
+     *
+     * @param saved  The ranges as saved in a PoolSnapshot that matches
+     *               the oper data, used instead of reading them from
+     *               CDB, or null to read them.
+     */
+    public RangeSet(CdbSession wsess, CdbSession rsess, String poolName,
+                    String location, Collection<Range> saved) {
         super();
 
         this.wsess = wsess;
@@ -38,20 +55,28 @@ public class RangeSet extends TreeSet<Range> {
                     idAllocatorOper._pool_, poolName);
 
             /* We have configured a pool but it isn't set up in oper data yet. */
-            if (wsess.exists(poolPath) == false) {
+            if (rsess.exists(poolPath) == false) {
                 LOGGER.debug(String.format(
                             "Operational pool %s missing, creating.",
                             poolName));
-                wsess.create(poolPath);
+                rsess.create(poolPath);
             }
 
             locationPath = poolPath.copyAppend(location);
+            writes = new WriteBehindBuffer(wsess, locationPath.toString());
 
             LOGGER.debug("Adding existing range");
 
-            int n = wsess.getNumberOfInstances(locationPath);
+            if (saved != null) {
+                for (Range res : saved) {
+                    super.add(res);
+                }
+                return;
+            }
+
+            int n = rsess.getNumberOfInstances(locationPath);
             if (n > 0) {
-                List<ConfObject[]> objs = wsess.getObjects(2, 0, n, locationPath);
+                List<ConfObject[]> objs = rsess.getObjects(2, 0, n, locationPath);
 
                 for (ConfObject[] obj : objs) {
                     long start = ((ConfUInt32) obj[0]).longValue();
@@ -70,23 +95,20 @@ public class RangeSet extends TreeSet<Range> {
         return this.poolPath;
     }
 
+    /**
+     * Returns true if exactly this range is in the set, contains()
+     * only compares the start of the ranges.
+     */
+    public boolean containsRange(Range ren) {
+        Range r = floor(ren);
+        return r != null && r.equals(ren);
+    }
+
     public boolean add(Range ren) {
         boolean res = super.add(ren);
 
-        try {
-            String p = String.format("%s{%s %s}",
-                    this.locationPath,
-                    Long.toString(ren.getStart()),
-                    Long.toString(ren.getEnd()));
-
-            if (this.wsess.exists(p) == false) {
-                this.wsess.create(p);
-            }
-        } catch (Exception e) {
-            if(res) {
-                /* Only an error if the range really was added to the set */
-                LOGGER.error(String.format("Could not add range %s", ren), e);
-            }
+        if (res) {
+            writes.create(rangePath(ren));
         }
 
         return res;
@@ -94,35 +116,37 @@ public class RangeSet extends TreeSet<Range> {
 
     public boolean remove(Object o) {
         boolean res = super.remove(o);
-        Range ren = (Range) o;
 
-        try {
-            String p = String.format("%s{%s %s}",
-                    this.locationPath,
-                    Long.toString(ren.getStart()),
-                    Long.toString(ren.getEnd()));
-
-            if (this.wsess.exists(p)) {
-                this.wsess.delete(p);
-            }
-        } catch (Exception e) {
-            if (res) {
-                /* Only an error if the range really was removed from the set */
-                LOGGER.error("Could not remove range", e);
-            }
+        if (res) {
+            writes.delete(rangePath((Range) o));
         }
+
         return res;
     }
 
     public void clear() {
         super.clear();
+        writes.clear();
+    }
 
-        try {
-            if (this.wsess.exists(this.locationPath)) {
-                this.wsess.delete(this.locationPath);
-            }
-        } catch (Exception ex ) {
-            LOGGER.error("Failed to clear", ex);
-        }
+    /**
+     * Write buffered changes to CDB, returning the number of writes.
+     */
+    public int flush() {
+        return writes.flush();
+    }
+
+    /**
+     * Drop buffered changes, used when the pool is deleted.
+     */
+    public void discard() {
+        writes.discard();
+    }
+
+    private String rangePath(Range ren) {
+        return String.format("%s{%s %s}",
+                             this.locationPath,
+                             Long.toString(ren.getStart()),
+                             Long.toString(ren.getEnd()));
     }
 }
@@ -61,4 +61,6 @@ public class idAllocatorOper extends ConfNamespace {
     public static final String _start_ = "start";
     public static final int    _allocation = 1779434013;
     public static final String _allocation_ = "allocation";
+    public static final int    _last_allocation = 59588199;
+    public static final String _last_allocation_ = "last-allocation";
 }
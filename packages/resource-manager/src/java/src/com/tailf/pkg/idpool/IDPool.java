@@ -1,7 +1,13 @@
 package com.tailf.pkg.idpool;
 
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
 import com.tailf.conf.ConfIdentityRef;
 import com.tailf.pkg.idallocator.IdAllocator;
@@ -22,17 +28,61 @@ public class IDPool extends Pool {
     private Set<Range> availables;
     private Set<Allocation> allocations;
     private Long lastAllocation;
-    private Long max;
-    private Long min;
 
     private Range poolRange = new Range(0,1);
 
+    /*
+     * Ordered index over the free ranges in availables, keyed on
+     * Range.start. Every change to availables goes through addFree()
+     * and removeFree() so the two are always in step, which lets us
+     * do floor/ceiling lookups instead of walking the whole set.
+     */
+    private TreeMap<Long, Range> freeIndex = new TreeMap<Long, Range>();
+    private long numberOfAvailables = 0;
+
+    /*
+     * The starts of the free ranges by range size, kept with freeIndex,
+     * so that allocateRun() only looks at the ranges large enough.
+     */
+    private TreeMap<Long, TreeSet<Long>> freeBySize =
+        new TreeMap<Long, TreeSet<Long>>();
+
+    /*
+     * Allocated ids in order, so that the free ranges of any stretch
+     * of the pool can be worked out without looking at allocations
+     * outside it.
+     */
+    private TreeSet<Long> allocatedIds = new TreeSet<Long>();
+
+    /*
+     * The first setRange() reconciles the free ranges read from CDB
+     * with the configuration. After that range and exclude changes
+     * only touch the part of the pool they cover.
+     */
+    private boolean rangeConfigured = false;
+
     public IDPool(String name,
                   Set<Range> excludes,
                   Set<Range> availables,
                   Set<Allocation> allocations,
                   boolean alarmsEnabled,
                   int threshold) {
+        this(name, excludes, availables, allocations, alarmsEnabled,
+             threshold, null);
+    }
+
+    /**
+     * @param lastAllocation  Where round-robin allocation left off, as
+     *                        saved with the pool, or null to continue
+     *                        after the highest allocated id.
+     */
+    public IDPool(String name,
+                  Set<Range> excludes,
+                  Set<Range> availables,
+                  Set<Allocation> allocations,
+                  boolean alarmsEnabled,
+                  int threshold,
+                  Long lastAllocation) {
 
         super(name, new ConfIdentityRef(idAllocator.hash,
                                     idAllocator._id_pool_exhausted),
@@ -43,7 +93,15 @@ public class IDPool extends Pool {
         this.excludes = excludes;
         this.availables = availables;
         this.allocations = allocations;
-        setupMinMaxAllocs();
+        for (Allocation a : allocations) {
+            allocatedIds.add(a.getAllocated());
+        }
+        rebuildFreeIndex();
+
+        if (lastAllocation == null && !allocatedIds.isEmpty()) {
+            lastAllocation = allocatedIds.last();
+        }
+        this.lastAllocation = lastAllocation;
     }
 
     public void setName(String name) {
@@ -60,12 +118,20 @@ public class IDPool extends Pool {
 
     public synchronized void addToExcludes(Range range) {
         excludes.add(range);
-        recalculateRanges();
+        if (rangeConfigured) {
+            refreshFree(range.getStart(), range.getEnd());
+        } else {
+            recalculateRanges();
+        }
     }
 
     public synchronized void removeFromExcludes(Range range) {
         excludes.remove(range);
-        recalculateRanges();
+        if (rangeConfigured) {
+            refreshFree(range.getStart(), range.getEnd());
+        } else {
+            recalculateRanges();
+        }
     }
 
     public Set<Range> getAvailables() {
@@ -78,10 +144,12 @@ public class IDPool extends Pool {
 
     public synchronized void addAllocation(Allocation a) {
         this.allocations.add(a);
+        allocatedIds.add(a.getAllocated());
     }
 
     public synchronized void clearAllocation() {
         this.allocations.clear();
+        allocatedIds.clear();
     }
 
     public Range getPoolRange() {
@@ -90,314 +158,434 @@ public class IDPool extends Pool {
 
     public synchronized Allocation allocate(String occupant)
         throws AllocationException {
-        LOGGER.debug(String.format("Trying to allocate from availables %s", availables));
-        if (availables.isEmpty()) {
-            throw new PoolExhaustedException(
-                          String.format("ID pool %s exhausted", name));
-        }
-
-        Range range = availables.iterator().next();
-        long result = range.getStart();
-        availables.remove(range);
+        long t = stats.enter();
+        try {
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug(String.format("Trying to allocate from"
+                                           + " availables %s", availables));
+            }
+            if (availables.isEmpty()) {
+                throw new PoolExhaustedException(
+                              String.format("ID pool %s exhausted", name));
+            }
 
-        if (range.getStart() != range.getEnd()) {
-            /* Otherwise it's a range with one element, which is now
-             * allocated. */
-            range = new Range(result+1, range.getEnd());
-            if (range.getStart() <= range.getEnd()) {
-                /* Range is not exhausted, add it to availables. */
-                availables.add(range);
+            Range range = freeIndex.firstEntry().getValue();
+            long result = range.getStart();
+            removeFree(range);
+
+            if (range.getStart() != range.getEnd()) {
+                /* Otherwise it's a range with one element, which is now
+                 * allocated. */
+                range = new Range(result+1, range.getEnd());
+                if (range.getStart() <= range.getEnd()) {
+                    /* Range is not exhausted, add it to availables. */
+                    addFree(range);
+                }
             }
-        }
 
-        reviewAlarms();
+            reviewAlarms();
 
-        Allocation allocation = new Allocation(result);
-        allocations.add(allocation);
-        return allocation;
+            Allocation allocation = new Allocation(result);
+            allocations.add(allocation);
+            allocatedIds.add(result);
+            return allocation;
+        } finally {
+            stats.exit(t);
+        }
     }
 
-    public synchronized Allocation allocate(String occupant, String requestMethod)
+    /**
+     * Allocates count ids at once. If some free range holds count ids
+     * they are taken consecutively from the lowest such range, otherwise
+     * the count lowest free ids are used. Fewer than count allocations
+     * are returned if the pool runs out.
+     */
+    public synchronized List<Allocation> allocateRun(String occupant,
+                                                     int count)
         throws AllocationException {
-        if (requestMethod.equals(idAllocator._firstfree_)) {
-            return allocate(occupant);
-        } else if(requestMethod.equals(idAllocator._roundrobin_)) {
-            if (availables.isEmpty()) {
-                throw new PoolExhaustedException(
-                              String.format("ID pool %s exhausted", name));
+        long t = stats.enter();
+        try {
+            List<Allocation> result = new ArrayList<Allocation>(count);
+
+            /* The lowest of the first ranges of each size that fits */
+            Range fit = null;
+            for (TreeSet<Long> starts :
+                     freeBySize.tailMap((long) count, true).values()) {
+                if (fit == null || starts.first() < fit.getStart()) {
+                    fit = freeIndex.get(starts.first());
+                }
             }
 
-            Long requested;
-            if (this.lastAllocation == null) {
-                requested = this.min;
-            } else {
-                requested = this.lastAllocation + 1;
+            if (fit == null) {
+                while (result.size() < count && !freeIndex.isEmpty()) {
+                    result.add(allocate(occupant));
+                }
+                return result;
+            }
+
+            long start = fit.getStart();
+            removeFree(fit);
+            if (start + count <= fit.getEnd()) {
+                addFree(new Range(start + count, fit.getEnd()));
             }
-            Allocation returnAlloc = null;
-            while (requested != this.lastAllocation) {
-                if (requested > this.max) { // Try from start again
-                    requested = this.min;
+
+            for (long id = start; id < start + count; id++) {
+                Allocation allocation = new Allocation(id);
+                allocations.add(allocation);
+                allocatedIds.add(id);
+                result.add(allocation);
+            }
+
+            reviewAlarms();
+            return result;
+        } finally {
+            stats.exit(t);
+        }
+    }
+
+    public synchronized Allocation allocate(String occupant, String requestMethod)
+        throws AllocationException {
+        long t = stats.enter();
+        try {
+            if (requestMethod.equals(idAllocator._firstfree_)) {
+                return allocate(occupant);
+            } else if(requestMethod.equals(idAllocator._roundrobin_)) {
+                if (availables.isEmpty()) {
+                    throw new PoolExhaustedException(
+                                  String.format("ID pool %s exhausted", name));
                 }
-                try {
-                    returnAlloc = allocate(occupant, requested);
-                    break;
+
+                /* Continue after the last allocation, wrapping around to
+                 * the lowest free id at the end of the pool. */
+                long requested = -1;
+                if (this.lastAllocation != null) {
+                    requested = nextFree(this.lastAllocation + 1);
                 }
-                catch (AllocationException e) {
-                    this.lastAllocation = requested;
-                    requested += 1;
+                if (requested == -1) {
+                    requested = nextFree(Long.MIN_VALUE);
                 }
+                return allocate(occupant, requested);
             }
-            reviewAlarms();
-            return returnAlloc;
+            throw new AllocationException("Unknown request method");
+        } finally {
+            stats.exit(t);
         }
-        throw new AllocationException("Unknown request method");
     }
 
     public synchronized Allocation allocate(String occupant, long requested)
         throws AllocationException {
-        if (availables.isEmpty()) {
-            throw new PoolExhaustedException(
-                          String.format("ID pool %s exhausted", name));
-        }
-        for(Range range : availables) {
-            if (range.getStart() <= requested && range.getEnd() >= requested) {
-                availables.remove(range);
+        long t = stats.enter();
+        try {
+            if (availables.isEmpty()) {
+                throw new PoolExhaustedException(
+                              String.format("ID pool %s exhausted", name));
+            }
+            Range range = findFree(requested);
+            if (range != null) {
+                removeFree(range);
 
                 if (range.getStart() <= requested - 1) {
                     Range before = new Range(range.getStart(), requested-1);
-                    availables.add(before);
+                    addFree(before);
                 }
 
                 if (requested+1 <= range.getEnd()) {
                     Range after = new Range(requested+1, range.getEnd());
-                    availables.add(after);
+                    addFree(after);
                 }
 
                 Allocation allocation = new Allocation(requested);
                 allocations.add(allocation);
+                allocatedIds.add(requested);
                 this.lastAllocation = allocation.getAllocated();
                 reviewAlarms();
                 return allocation;
             }
-        }
-        String err = String.format("Requested id (%d) not available in pool %s",
-                                   requested, name);
+            String err = String.format("Requested id (%d) not available"
+                                       + " in pool %s", requested, name);
 
-        throw new PoolExhaustedException(err);
+            throw new PoolExhaustedException(err);
+        } finally {
+            stats.exit(t);
+        }
     }
 
     public synchronized void setRange(Range range) {
-        long start = range.getStart();
-        long end = range.getEnd();
-        poolRange = new Range(start,end);
-
-        recalculateRanges();
+        Range old = poolRange;
+        poolRange = new Range(range.getStart(), range.getEnd());
+
+        if (rangeConfigured) {
+            /* Only the stretches between the old and the new start, and
+             * between the old and the new end, can have changed. */
+            refreshFree(Math.min(old.getStart(), poolRange.getStart()),
+                        Math.max(old.getStart(), poolRange.getStart()) - 1);
+            refreshFree(Math.min(old.getEnd(), poolRange.getEnd()) + 1,
+                        Math.max(old.getEnd(), poolRange.getEnd()));
+        } else {
+            rangeConfigured = true;
+            recalculateRanges();
+        }
 
         reviewAlarms();
     }
 
+    /**
+     * Rebuilds the free ranges of the whole pool and brings availables
+     * in line with them, leaving ranges that are already right alone.
+     */
     private void recalculateRanges() {
-        Set<Range> tmp = new HashSet<Range>();
-
-        tmp.add(poolRange);
-        excludeRanges(tmp);
-        for (Allocation id : allocations) {
-            long idInt = id.getAllocated();
-            Set<Range> oldAvailables = new HashSet<Range>(tmp);
-            for (Range availableRange : oldAvailables) {
-                if (!availableRange.contains(idInt)) {
-                    continue;
-                }
-
-                tmp.remove(availableRange);
-                if (availableRange.getStart() == availableRange.getEnd()) {
-                } else if (availableRange.getEnd() == idInt) {
-                    tmp.add(new Range(availableRange.getStart(), idInt - 1));
-                } else if (availableRange.getStart() == idInt) {
-                    tmp.add(new Range(idInt + 1, availableRange.getEnd()));
-                } else if (availableRange.getStart() < idInt) {
-                    tmp.add(new Range(availableRange.getStart(), idInt - 1));
-                    tmp.add(new Range(idInt + 1, availableRange.getEnd()));
-                }
-                break;
-            }
+        Map<Long, Range> fresh = new HashMap<Long, Range>();
+        for (Range r : freeSpans(poolRange.getStart(), poolRange.getEnd())) {
+            fresh.put(r.getStart(), r);
         }
 
-        /* First remove all that are the same from tmp, and removed
+        /* First remove all that are the same from fresh, and removed
          * from availables. */
-        Set<Range> toRemove = new HashSet<Range>();
-        for (Range r: availables) {
-            if (tmp.contains(r)) {
-                tmp.remove(r);
+        for (Range r : new ArrayList<Range>(freeIndex.values())) {
+            if (r.equals(fresh.get(r.getStart()))) {
+                fresh.remove(r.getStart());
             } else {
-                toRemove.add(r);
+                removeFree(r);
             }
         }
 
-        for (Range r: toRemove) {
-            availables.remove(r);
+        /* Then add all new. */
+        for (Range r : fresh.values()) {
+            addFree(r);
         }
+    }
 
-        /* Then add all new. */
-        for (Range r: tmp) {
-            availables.add(r);
+    /**
+     * Recomputes the free ranges between start and end, inclusive,
+     * after the range, the excludes or the allocations covering that
+     * stretch have changed. Free ranges reaching outside it are split
+     * and joined as needed, the rest of the pool is not looked at.
+     */
+    private void refreshFree(long start, long end) {
+        if (start > end) {
+            return;
+        }
+
+        subtractFree(start, end);
+
+        for (Range r : freeSpans(Math.max(start, poolRange.getStart()),
+                                 Math.min(end, poolRange.getEnd()))) {
+            insertFree(r.getStart(), r.getEnd());
         }
-        setupMinMaxAllocs();
     }
 
     /**
-     * Excludes reserved id ranges from the list of available ranges
+     * Returns the ids between start and end, inclusive, that are
+     * neither excluded nor allocated, as ranges in ascending order.
      */
-    private void excludeRanges(Set<Range> poolRange) {
-        for (Range reserved : excludes) {
-            Set<Range> oldAvailables = new HashSet<Range>(poolRange);
-            for (Range availableRange : oldAvailables) {
-                if (reserved.isDisjoint(availableRange)) {
-                    continue;
-                }
+    private List<Range> freeSpans(long start, long end) {
+        List<Range> spans = new ArrayList<Range>();
+        if (start > end) {
+            return spans;
+        }
 
-                /*
-                 * Now we *know* they overlap. Remove the available range.
-                 * If the exclude and availableRange is exactly the same,
-                 * nothing is added later.
-                 */
-                poolRange.remove(availableRange);
+        List<Range> reserved = new ArrayList<Range>();
+        for (Range r : excludes) {
+            if (r.getEnd() >= start && r.getStart() <= end) {
+                reserved.add(r);
+            }
+        }
+        Collections.sort(reserved);
 
-                if (availableRange.getStart() < reserved.getStart()) {
-                    poolRange.add(new Range(availableRange.getStart(),
-                                            reserved.getStart() - 1));
-                }
+        long next = start;
+        for (Range r : reserved) {
+            if (r.getStart() > next) {
+                unallocatedSpans(next, Math.min(r.getStart() - 1, end),
+                                 spans);
+            }
+            next = Math.max(next, r.getEnd() + 1);
+            if (next > end) {
+                return spans;
+            }
+        }
+        unallocatedSpans(next, end, spans);
 
-                if (availableRange.getEnd() > reserved.getEnd()) {
-                    poolRange.add(new Range(reserved.getEnd() + 1,
-                                            availableRange.getEnd()));
-                }
-                break;
+        return spans;
+    }
+
+    private void unallocatedSpans(long start, long end, List<Range> spans) {
+        long next = start;
+        for (long id : allocatedIds.subSet(start, true, end, true)) {
+            if (id > next) {
+                spans.add(new Range(next, id - 1));
             }
+            next = id + 1;
+        }
+        if (next <= end) {
+            spans.add(new Range(next, end));
         }
     }
 
-    private void compact(Range range) {
+    /**
+     * Removes the ids between start and end, inclusive, from the free
+     * ranges, keeping the parts of overlapping ranges outside it.
+     */
+    private void subtractFree(long start, long end) {
+        if (start > end) {
+            return;
+        }
 
-        Set<Range> oldAvailables = new HashSet<Range>(availables);
-        for (Range arange: oldAvailables) {
-            if (arange.equals(range)) {
-                /* Skip myself. */
-                continue;
-            }
+        Map.Entry<Long, Range> entry = freeIndex.floorEntry(start);
+        if (entry == null || entry.getValue().getEnd() < start) {
+            entry = freeIndex.higherEntry(start);
+        }
 
-            if (arange.getStart() == range.getEnd()+1) {
-                availables.remove(range);
-                availables.remove(arange);
-                Range merged = new Range(range.getStart(), arange.getEnd());
-                availables.add(merged);
-                compact(merged);
-                return;
-            } else if (arange.getEnd() == range.getStart()-1) {
-                availables.remove(range);
-                availables.remove(arange);
-                Range merged = new Range(arange.getStart(), range.getEnd());
-                availables.add(merged);
-                return;
+        while (entry != null && entry.getKey() <= end) {
+            Range r = entry.getValue();
+            removeFree(r);
+            if (r.getStart() < start) {
+                addFree(new Range(r.getStart(), start - 1));
             }
+            if (r.getEnd() > end) {
+                addFree(new Range(end + 1, r.getEnd()));
+            }
+            entry = freeIndex.higherEntry(r.getEnd());
         }
     }
 
+    /**
+     * Adds start to end, inclusive, to the free ranges, joining it with
+     * the free ranges directly below and above, if any, so that
+     * availables never holds two adjacent ranges.
+     */
+    private void insertFree(long start, long end) {
+        Map.Entry<Long, Range> below = freeIndex.lowerEntry(start);
+        if (below != null && below.getValue().getEnd() == start-1) {
+            start = below.getValue().getStart();
+            removeFree(below.getValue());
+        }
+
+        Range above = freeIndex.get(end+1);
+        if (above != null) {
+            end = above.getEnd();
+            removeFree(above);
+        }
+
+        addFree(new Range(start, end));
+    }
+
     public synchronized void release(long id) throws AllocationException {
-        for(Allocation alloc: allocations) {
-            if (alloc.getAllocated() == id) {
-                release(alloc);
-                return;
-            }
+        Allocation alloc = new Allocation(id);
+        if (allocations.contains(alloc)) {
+            release(alloc);
         }
     }
 
     public synchronized void release(Allocation allocation)
         throws AllocationException {
-        if (!allocations.contains(allocation)) {
-            String err = String.format("allocation %s is not allocated" +
-                                       " from the pool %s", allocation, name);
-            throw new AllocationException(err);
-        }
-
-        allocations.remove(allocation);
-        long id = allocation.getAllocated();
-
-        Set<Range> oldAvailables = new HashSet<Range>(availables);
-        for (Range range : oldAvailables) {
-            if (range.getStart() == id+1) {
-                availables.remove(range);
-                Range newr = new Range(id, range.getEnd());
-                availables.add(newr);
-                compact(newr);
-                return;
-            } else if (range.getEnd() == id-1) {
-                availables.remove(range);
-                Range newr = new Range(range.getStart(),id);
-                availables.add(newr);
-                compact(newr);
-                return;
+        long t = stats.enter();
+        try {
+            if (!allocations.contains(allocation)) {
+                String err = String.format("allocation %s is not allocated"
+                                           + " from the pool %s",
+                                           allocation, name);
+                throw new AllocationException(err);
             }
+
+            allocations.remove(allocation);
+            long id = allocation.getAllocated();
+            allocatedIds.remove(id);
+
+            insertFree(id, id);
+        } finally {
+            stats.exit(t);
         }
-        availables.add(new Range(id, id));
     }
 
-    public boolean isAvailable(long id) {
-        for (Range range : availables) {
-            if (id >= range.getStart() && id <= range.getEnd()) {
-                return true;
-            }
-        }
-        return false;
+    public synchronized boolean isAvailable(long id) {
+        return findFree(id) != null;
     }
 
-    private void setupMinMaxAllocs() {
-        /* For rr scheme, find the highest allocated id, min and max */
-        Long min = null, max = null, current = null, lastAlloc = null;
-        for(Range range: excludes) {
-            current = range.getStart();
-            if (min == null || current <= min) {
-                min = current;
-            }
-            current = range.getEnd();
-            if (max == null || current >= max) {
-                max = current;
-            }
+    /**
+     * Returns the lowest free id greater than or equal to from, or -1
+     * if there is none. Nothing is allocated.
+     */
+    public synchronized long nextFree(long from) {
+        if (findFree(from) != null) {
+            return from;
         }
-        for(Range range: availables) {
-            current = range.getStart();
-            if (min == null || current <= min) {
-                min = current;
-            }
-            current = range.getEnd();
-            if (max == null || current >= max) {
-                max = current;
-            }
+
+        Map.Entry<Long, Range> next = freeIndex.higherEntry(from);
+        if (next == null) {
+            return -1;
+        }
+        return next.getKey();
+    }
+
+    /**
+     * Returns the free range containing id, or null if id is not free.
+     */
+    private Range findFree(long id) {
+        Map.Entry<Long, Range> floor = freeIndex.floorEntry(id);
+        if (floor != null && floor.getValue().contains(id)) {
+            return floor.getValue();
         }
-        for(Allocation alloc : allocations) {
-            current = alloc.getAllocated();
-            if (lastAlloc == null || current >= lastAlloc) {
-                lastAlloc = current;
+        return null;
+    }
+
+    private void addFree(Range range) {
+        availables.add(range);
+        indexFree(range);
+        stats.setFreeBlocks(freeIndex.size());
+    }
+
+    private void removeFree(Range range) {
+        long size = range.getEnd() - range.getStart() + 1;
+        availables.remove(range);
+        freeIndex.remove(range.getStart());
+        numberOfAvailables -= size;
+
+        TreeSet<Long> starts = freeBySize.get(size);
+        if (starts != null) {
+            starts.remove(range.getStart());
+            if (starts.isEmpty()) {
+                freeBySize.remove(size);
             }
         }
-        this.lastAllocation = lastAlloc;
-        if (max != null) {
-            this.max = max;
+        stats.setFreeBlocks(freeIndex.size());
+    }
+
+    private void rebuildFreeIndex() {
+        freeIndex.clear();
+        freeBySize.clear();
+        numberOfAvailables = 0;
+        for (Range range : availables) {
+            indexFree(range);
         }
-        if (min != null) {
-            this.min = min;
+        stats.setFreeBlocks(freeIndex.size());
+    }
+
+    private void indexFree(Range range) {
+        long size = range.getEnd() - range.getStart() + 1;
+        freeIndex.put(range.getStart(), range);
+        numberOfAvailables += size;
+
+        TreeSet<Long> starts = freeBySize.get(size);
+        if (starts == null) {
+            starts = new TreeSet<Long>();
+            freeBySize.put(size, starts);
         }
+        starts.add(range.getStart());
     }
 
     public boolean isEmpty() {
-        return availables.isEmpty();
+        return freeIndex.isEmpty();
+    }
+
+    /**
+     * Returns the id round-robin allocation continues after, or null
+     * if nothing has been allocated yet.
+     */
+    public synchronized Long getLastAllocation() {
+        return lastAllocation;
     }
 
     public long getNumberOfAvailables() {
-        long numberOfAvailables = 0;
-        for (Range range : availables) {
-            numberOfAvailables += range.getEnd() - range.getStart() + 1;
-        }
         return numberOfAvailables;
     }
 
@@ -1,21 +1,31 @@
 package com.tailf.pkg.ipaddressallocator;
 
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.log4j.Logger;
 
 import com.tailf.pkg.ipaddressallocator.namespaces.ipaddressAllocatorOper;
 import com.tailf.pkg.ipam.Allocation;
 import com.tailf.pkg.ipam.Subnet;
+import com.tailf.pkg.nsoutil.WriteBehindBuffer;
 import com.tailf.cdb.CdbSession;
 import com.tailf.conf.ConfBuf;
 import com.tailf.conf.ConfIP;
 import com.tailf.conf.ConfObject;
 import com.tailf.conf.ConfPath;
 import com.tailf.conf.ConfUInt8;
+import com.tailf.conf.ConfValue;
 
 
+/**
+ * AllocationsSet
+ *
+ * The allocated subnets of an IP pool with their owners, written to
+ * the oper data on flush().
+ */
 public class AllocationsSet extends HashSet<Allocation> {
 
     private static final long serialVersionUID = 0;
@@ -26,8 +36,17 @@ public class AllocationsSet extends HashSet<Allocation> {
     public String poolPath;
 
     private ConfPath allocPath;
+    private WriteBehindBuffer writes;
 
     public AllocationsSet(CdbSession wsess, String poolName) {
+        this(wsess, wsess, poolName);
+    }
+
+    /**
+     * See WriteBehindBuffer about wsess and rsess.
+     */
+    public AllocationsSet(CdbSession wsess, CdbSession rsess,
+                          String poolName) {
         super();
 
         this.wsess = wsess;
@@ -43,16 +62,18 @@ public class AllocationsSet extends HashSet<Allocation> {
                   poolName);
 
           /* We have configured a pool but it isn't set up in oper data yet. */
-          if (wsess.exists(this.allocPath) == false) {
+          if (rsess.exists(this.allocPath) == false) {
               LOGGER.debug("Operational pool missing, creating.");
-              wsess.create(this.allocPath);
+              rsess.create(this.allocPath);
           }
 
           this.allocPath.append(ipaddressAllocatorOper._allocation_);
+          this.writes = new WriteBehindBuffer(wsess,
+                                              this.allocPath.toString());
 
-          int n = wsess.getNumberOfInstances(this.allocPath);
+          int n = rsess.getNumberOfInstances(this.allocPath);
           if (n > 0) {
-              List<ConfObject[]> objs = wsess.getObjects(5, 0, n, this.allocPath);
+              List<ConfObject[]> objs = rsess.getObjects(5, 0, n, this.allocPath);
 
               for (ConfObject[] obj : objs) {
                   String address = ((ConfIP)obj[0]).toString();
@@ -78,25 +99,15 @@ public class AllocationsSet extends HashSet<Allocation> {
         boolean res = super.add(e);
 
         if (res) {
-            try {
-                Subnet sub = e.getAllocated();
-                String x = String.format("%s{%s %s}",
-                        this.allocPath.toString(),
-                        sub.getAddress().getHostAddress(),
-                        Integer.toString(sub.getCIDRMask()));
-                this.wsess.create(x);
-                this.wsess.setElem(new ConfBuf(e.getOccupant()),
-                              new ConfPath(x + "/" +
-                                           ipaddressAllocatorOper._owner_));
-                this.wsess.setElem(new ConfBuf(e.getUsername()),
-                              new ConfPath(x + "/" +
-                                           ipaddressAllocatorOper._username_));
-                this.wsess.setElem(new ConfBuf(e.getRequestId()),
-                              new ConfPath(x + "/" +
-                                           ipaddressAllocatorOper._request_id_));
-            } catch (Exception ex) {
-                LOGGER.error("Error adding allocation to pool", ex);
-            }
+            Map<String, ConfValue> leaves =
+                new LinkedHashMap<String, ConfValue>();
+            leaves.put(ipaddressAllocatorOper._owner_,
+                       new ConfBuf(e.getOccupant()));
+            leaves.put(ipaddressAllocatorOper._username_,
+                       new ConfBuf(e.getUsername()));
+            leaves.put(ipaddressAllocatorOper._request_id_,
+                       new ConfBuf(e.getRequestId()));
+            writes.create(allocationPath(e), leaves);
         }
         return res;
     }
@@ -104,20 +115,8 @@ public class AllocationsSet extends HashSet<Allocation> {
     public boolean remove(Object o) {
         boolean res = super.remove(o);
 
-        Allocation e = (Allocation) o;
-
         if (res) {
-            try {
-                Subnet sub = e.getAllocated();
-                String x = String.format("%s{%s %s}",
-                        this.allocPath.toString(),
-                        sub.getAddress().getHostAddress(),
-                        Integer.toString(sub.getCIDRMask()));
-                this.wsess.delete(x);
-            } catch (Exception ex ) {
-                LOGGER.error("Error removing allocation from pool", ex);
-            }
-
+            writes.delete(allocationPath((Allocation) o));
         }
 
         return res;
@@ -125,13 +124,28 @@ public class AllocationsSet extends HashSet<Allocation> {
 
     public void clear() {
         super.clear();
+        writes.clear();
+    }
 
-        try {
-            if (this.wsess.exists(this.allocPath)) {
-                this.wsess.delete(this.allocPath);
-            }
-        } catch (Exception ex ) {
-            LOGGER.error("Error clearing pool", ex);
-        }
+    /**
+     * Write buffered changes to CDB, returning the number of writes.
+     */
+    public int flush() {
+        return writes.flush();
+    }
+
+    /**
+     * Drop buffered changes, used when the pool is deleted.
+     */
+    public void discard() {
+        writes.discard();
+    }
+
+    private String allocationPath(Allocation e) {
+        Subnet sub = e.getAllocated();
+        return String.format("%s{%s %s}",
+                             this.allocPath.toString(),
+                             sub.getAddress().getHostAddress(),
+                             Integer.toString(sub.getCIDRMask()));
     }
 }
@@ -8,6 +8,7 @@ import org.apache.log4j.Logger;
 
 import com.tailf.pkg.ipaddressallocator.namespaces.ipaddressAllocatorOper;
 import com.tailf.pkg.ipam.Subnet;
+import com.tailf.pkg.nsoutil.WriteBehindBuffer;
 import com.tailf.cdb.CdbSession;
 import com.tailf.conf.ConfIP;
 import com.tailf.conf.ConfObject;
@@ -15,6 +16,12 @@ import com.tailf.conf.ConfPath;
 import com.tailf.conf.ConfUInt8;
 
 
+/**
+ * AvailablesSet
+ *
+ * The free subnets of an IP pool, mirrored to the available list of
+ * the pool in the oper data through a WriteBehindBuffer.
+ */
 public class AvailablesSet extends TreeSet<Subnet> {
 
     private static final long serialVersionUID = 0;
@@ -25,10 +32,21 @@ public class AvailablesSet extends TreeSet<Subnet> {
     public String poolPath;
 
     private ConfPath availPath;
+    private WriteBehindBuffer writes;
 
     public AvailablesSet(CdbSession wsess,
                          String poolName,
                          Comparator<Subnet> comp) {
+        this(wsess, wsess, poolName, comp);
+    }
+
+    /**
+     * See WriteBehindBuffer about wsess and rsess.
+     */
+    public AvailablesSet(CdbSession wsess,
+                         CdbSession rsess,
+                         String poolName,
+                         Comparator<Subnet> comp) {
         super(comp);
         this.wsess = wsess;
         this.poolName = poolName;
@@ -40,16 +58,18 @@ public class AvailablesSet extends TreeSet<Subnet> {
                   ipaddressAllocatorOper._pool_,
                   poolName);
 
-          if (wsess.exists(this.availPath) == false) {
+          if (rsess.exists(this.availPath) == false) {
               LOGGER.debug("Operational pool missing, creating.");
-              wsess.create(this.availPath);
+              rsess.create(this.availPath);
           }
 
           this.availPath.append(ipaddressAllocatorOper._available_);
+          this.writes = new WriteBehindBuffer(wsess,
+                                              this.availPath.toString());
 
-          int n = wsess.getNumberOfInstances(this.availPath);
+          int n = rsess.getNumberOfInstances(this.availPath);
           if (n > 0) {
-              List<ConfObject[]> objs = wsess.getObjects(2, 0, n, this.availPath);
+              List<ConfObject[]> objs = rsess.getObjects(2, 0, n, this.availPath);
 
               for (ConfObject[] obj : objs) {
                   String address = ((ConfIP)obj[0]).toString();
@@ -71,17 +91,7 @@ public class AvailablesSet extends TreeSet<Subnet> {
         boolean res = super.add(sub);
 
         if (res) {
-            try {
-              String address = sub.getAddress().getHostAddress();
-              String mask = Integer.toString(sub.getCIDRMask());
-              String x = String.format("%s{%s %s}",
-                      this.availPath.toString(),
-                      address,
-                      mask);
-              this.wsess.create(x);
-            } catch (Exception ex) {
-                LOGGER.error("Error adding to AvailablesSet", ex);
-            }
+            writes.create(subnetPath(sub));
         }
 
         return res;
@@ -89,34 +99,46 @@ public class AvailablesSet extends TreeSet<Subnet> {
 
     public boolean remove(Object o) {
         boolean res = super.remove(o);
-        Subnet sub = (Subnet) o;
 
         if (res) {
-            try {
-              String address = sub.getAddress().getHostAddress();
-              String mask = Integer.toString(sub.getCIDRMask());
-              String x = String.format("%s{%s %s}",
-                      this.availPath.toString(),
-                      address,
-                      mask);
-              this.wsess.delete(x);
-            } catch (Exception ex ) {
-                LOGGER.error("Error removing from AvailablesSet", ex);
-            }
+            writes.delete(subnetPath((Subnet) o));
         }
 
         return res;
     }
 
     public void clear() {
+        /*
+         * The pool clears and refills the set when it rewrites a layout
+         * left by an older version, so record each entry as deleted
+         * rather than the whole list. The subnets that are added back
+         * then cancel out in the buffer and only the real difference
+         * reaches CDB.
+         */
+        for (Subnet sub : this) {
+            writes.delete(subnetPath(sub));
+        }
         super.clear();
+    }
 
-        try {
-            if (this.wsess.exists(this.availPath)) {
-                this.wsess.delete(this.availPath);
-            }
-        } catch (Exception ex ) {
-            LOGGER.error("Error clearing AvailablesSet", ex);
-        }
+    /**
+     * Write buffered changes to CDB, returning the number of writes.
+     */
+    public int flush() {
+        return writes.flush();
+    }
+
+    /**
+     * Drop buffered changes, used when the pool is deleted.
+     */
+    public void discard() {
+        writes.discard();
+    }
+
+    private String subnetPath(Subnet sub) {
+        return String.format("%s{%s %s}",
+                             this.availPath.toString(),
+                             sub.getAddress().getHostAddress(),
+                             Integer.toString(sub.getCIDRMask()));
     }
 }
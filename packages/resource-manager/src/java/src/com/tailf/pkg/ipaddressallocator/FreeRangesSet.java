@@ -0,0 +1,128 @@
+package com.tailf.pkg.ipaddressallocator;
+
+import java.net.InetAddress;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.apache.log4j.Logger;
+
+import com.tailf.pkg.ipaddressallocator.namespaces.ipaddressAllocatorOper;
+import com.tailf.pkg.ipam.util.InetAddressRange;
+import com.tailf.pkg.nsoutil.WriteBehindBuffer;
+import com.tailf.cdb.CdbSession;
+import com.tailf.conf.ConfIP;
+import com.tailf.conf.ConfObject;
+import com.tailf.conf.ConfPath;
+
+
+/**
+ * FreeRangesSet
+ *
+ * The free addresses of a pool in host-bitmap mode, as address ranges
+ * kept in the free-range list of the pool in the oper data. Changes
+ * go through a WriteBehindBuffer.
+ */
+public class FreeRangesSet extends TreeSet<InetAddressRange> {
+
+    private static final long serialVersionUID = 0;
+    private static Logger LOGGER = Logger.getLogger(FreeRangesSet.class);
+
+    private CdbSession wsess;
+    public String poolName;
+
+    private ConfPath rangesPath;
+    private WriteBehindBuffer writes;
+
+    public FreeRangesSet(CdbSession wsess, String poolName) {
+        this(wsess, wsess, poolName);
+    }
+
+    /**
+     * See WriteBehindBuffer about wsess and rsess.
+     */
+    public FreeRangesSet(CdbSession wsess, CdbSession rsess,
+                         String poolName) {
+        this.wsess = wsess;
+        this.poolName = poolName;
+
+        try {
+          this.rangesPath = new ConfPath("/%s:%s/%s{%s}",
+                  ipaddressAllocatorOper.prefix,
+                  ipaddressAllocatorOper._ip_allocator_,
+                  ipaddressAllocatorOper._pool_,
+                  poolName);
+
+          if (rsess.exists(this.rangesPath) == false) {
+              LOGGER.debug("Operational pool missing, creating.");
+              rsess.create(this.rangesPath);
+          }
+
+          this.rangesPath.append(ipaddressAllocatorOper._free_range_);
+          this.writes = new WriteBehindBuffer(wsess,
+                                              this.rangesPath.toString());
+
+          int n = rsess.getNumberOfInstances(this.rangesPath);
+          if (n > 0) {
+              List<ConfObject[]> objs =
+                  rsess.getObjects(2, 0, n, this.rangesPath);
+
+              for (ConfObject[] obj : objs) {
+                  InetAddress from = ((ConfIP) obj[0]).getAddress();
+                  InetAddress to = ((ConfIP) obj[1]).getAddress();
+                  super.add(new InetAddressRange(from, to));
+              }
+          }
+        } catch (Exception e) {
+            LOGGER.error("Failed to setup freeRangesSet", e);
+        }
+    }
+
+    public boolean add(InetAddressRange range) {
+        boolean res = super.add(range);
+
+        if (res) {
+            writes.create(rangePath(range));
+        }
+
+        return res;
+    }
+
+    public boolean remove(Object o) {
+        boolean res = super.remove(o);
+
+        if (res) {
+            writes.delete(rangePath((InetAddressRange) o));
+        }
+
+        return res;
+    }
+
+    public void clear() {
+        /* Used when a pool leaves host-bitmap mode, see AvailablesSet */
+        for (InetAddressRange range : this) {
+            writes.delete(rangePath(range));
+        }
+        super.clear();
+    }
+
+    /**
+     * Write buffered changes to CDB, returning the number of writes.
+     */
+    public int flush() {
+        return writes.flush();
+    }
+
+    /**
+     * Drop buffered changes, used when the pool is deleted.
+     */
+    public void discard() {
+        writes.discard();
+    }
+
+    private String rangePath(InetAddressRange range) {
+        return String.format("%s{%s %s}",
+                             this.rangesPath.toString(),
+                             range.getStart().getHostAddress(),
+                             range.getEnd().getHostAddress());
+    }
+}
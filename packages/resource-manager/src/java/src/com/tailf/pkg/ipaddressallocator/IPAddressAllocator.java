@@ -1,5 +1,6 @@
 package com.tailf.pkg.ipaddressallocator;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.UnknownHostException;
 import org.apache.log4j.Logger;
@@ -20,7 +21,13 @@ import com.tailf.pkg.ipaddressallocator.namespaces.ipaddressAllocator;
 import com.tailf.pkg.ipam.*;
 import com.tailf.pkg.ipam.util.InetAddressRange;
 import com.tailf.pkg.ipam.exceptions.*;
+import com.tailf.pkg.nsoutil.AllocatorStats;
 import com.tailf.pkg.nsoutil.NSOUtil;
+import com.tailf.pkg.nsoutil.ParallelLoad;
+import com.tailf.pkg.nsoutil.RedeployService;
+import com.tailf.pkg.nsoutil.RequestJournal;
+import com.tailf.pkg.nsoutil.ResponseCache;
+import com.tailf.pkg.nsoutil.SubscriberSessions;
 import com.tailf.pkg.nsoutil.ToRedeploy;
 import com.tailf.dp.services.ServiceContext;
 
@@ -31,14 +38,18 @@ import java.net.SocketException;
 import java.nio.channels.ClosedChannelException;
 import java.util.Arrays;
 import java.util.ArrayList;
-import java.util.Comparator;
+import java.util.Collections;
 import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import com.tailf.navu.*;
 
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -49,7 +60,49 @@ public class IPAddressAllocator implements ApplicationComponent {
     private CdbSubscription sub = null;
     private CdbSession wsess, isess;
 
-    private Set<Pool> pools = new HashSet<Pool>();
+    private Set<Pool> pools = newPoolSet();
+
+    /*
+     * The allocator running in this VM, used by subnetAllocate() to
+     * reserve subnets from within a service transaction. A reservation
+     * that is not confirmed by the commit of that transaction in time
+     * is given back.
+     */
+    private static volatile IPAddressAllocator running;
+
+    private static final long RESERVATION_TIMEOUT =
+        Long.getLong("resource-manager.reservation-timeout", 600000L);
+
+    /*
+     * The responses written by the running allocator, read by
+     * responseReady(), subnetRead() and fromRead() instead of CDB, see
+     * responseCache().
+     */
+    private static final ResponseCache<AllocStatus> RESPONSES =
+        new ResponseCache<AllocStatus>();
+
+    /*
+     * With resource-manager.async-requests set the subscription is
+     * synced as soon as the requests of a notification are in the
+     * journal, and the dispatcher thread handles them afterwards with
+     * the sessions below. The subscriber thread then reads with
+     * subSessions. Batches left in the journal are handled on the next
+     * start, whatever the mode.
+     */
+    private static final boolean ASYNC =
+        Boolean.getBoolean("resource-manager.async-requests");
+    private static final File JOURNAL_FILE =
+        new File(System.getProperty("resource-manager.snapshot-dir",
+                                    "state"),
+                 "ipaddress-allocator.journal");
+
+    private RequestJournal journal;
+    private ExecutorService dispatcher;
+    private SubscriberSessions subSessions;
+
+    /* Published under /ralloc:resource-pools/statistics */
+    private final AllocatorStats stats =
+        new AllocatorStats("ipaddress-allocator");
 
     public IPAddressAllocator() {}
 
@@ -71,13 +124,18 @@ public class IPAddressAllocator implements ApplicationComponent {
 
     private int tid;
     private int subIdAlloc, subIdSubnet, subIdRange, subIdPool,
-        subIdExclude, alarms_enabled_subid, alarms_threshold_subid;;
+        subIdExclude, alarms_enabled_subid, alarms_threshold_subid,
+        subIdHostBitmap;
 
     /* Used as a memory variable to find out when a node has become master. */
-    private boolean isMaster = true;
+    private volatile boolean isMaster = true;
 
     public void init() {
         try {
+            /* Shared with the other allocator, see NSOUtil.redeploy() */
+            RedeployService.start();
+            stats.start();
+
             EnumSet<CdbLockType> flags =
                 EnumSet.<CdbLockType>of(CdbLockType.LOCK_REQUEST,
                                         CdbLockType.LOCK_WAIT);
@@ -97,6 +155,13 @@ public class IPAddressAllocator implements ApplicationComponent {
 
             tid = maapi.startTrans(Conf.DB_RUNNING, Conf.MODE_READ);
 
+            journal = new RequestJournal(JOURNAL_FILE);
+            if (ASYNC) {
+                subSessions =
+                    new SubscriberSessions("ip-address-allocator-subscriber");
+                dispatcher = Executors.newSingleThreadExecutor();
+            }
+
             sub = cdb.newSubscription();
 
             /* Create subscriptions */
@@ -156,6 +221,15 @@ public class IPAddressAllocator implements ApplicationComponent {
                      ipaddressAllocator._alarms_ + "/" +
                      ipaddressAllocator._low_threshold_alarm_);
 
+            subIdHostBitmap = sub.subscribe(
+                     2, new resourceAllocator(),
+                     "/"+
+                     resourceAllocator.prefix + ":" +
+                     resourceAllocator._resource_pools_ + "/" +
+                     ipaddressAllocator.prefix + ":" +
+                     ipaddressAllocator._ip_address_pool_ + "/" +
+                     ipaddressAllocator._host_bitmap_);
+
             subIdPool = sub.subscribe(
                      1, new resourceAllocator(),
                      "/"+
@@ -168,7 +242,10 @@ public class IPAddressAllocator implements ApplicationComponent {
             sub.subscribeDone();
 
             loadState();
+            replayJournal();
 
+            RESPONSES.clear();
+            running = this;
         }
         catch (Throwable e) {
             LOGGER.error("", e);
@@ -181,7 +258,7 @@ public class IPAddressAllocator implements ApplicationComponent {
                                     AddressPoolException,
                                     InvalidNetmaskException {
 
-        pools = new HashSet<Pool>();
+        pools = newPoolSet();
 
         /* Read existing config and create existing pools */
 
@@ -193,10 +270,164 @@ public class IPAddressAllocator implements ApplicationComponent {
         NavuList ipaddressPool =
             resources.list(ipaddressAllocator.prefix, ipaddressAllocator._ip_address_pool_);
 
-        /* Create IP address pools */
+        /*
+         * Create IP address pools. The pools are independent of each
+         * other, so they are read and built by a few loader threads,
+         * each with its own CDB sessions. Their oper data changes are
+         * buffered and written from here once all are done.
+         */
+        List<PoolLoader> loading = new ArrayList<PoolLoader>();
         for (NavuContainer pool : ipaddressPool.elements()) {
-            createPool(pool);
+            String name =
+                pool.leaf(ipaddressAllocator._name).value().toString();
+            loading.add(new PoolLoader(name, pool.getKeyPath()));
+        }
+
+        new ParallelLoad<LoaderSessions>("ip-address-allocator-loader",
+                                         NUM_LOADERS) {
+            protected LoaderSessions open() throws Exception {
+                return new LoaderSessions();
+            }
+
+            protected void close(LoaderSessions ls) {
+                ls.close();
+            }
+        }.run(loading);
+
+        LOGGER.info(String.format("Loaded %d pools", pools.size()));
+
+        flushPools();
+    }
+
+    private static final int NUM_LOADERS = 4;
+
+    /* The CDB sessions of a loader thread. */
+    private static class LoaderSessions {
+        Cdb rcdb;
+        CdbSession rsess;
+        Cdb ocdb;
+        CdbSession osess;
+
+        LoaderSessions() throws ConfException, IOException {
+            String host = NcsMain.getInstance().getNcsHost();
+            int port = NcsMain.getInstance().getNcsPort();
+
+            rcdb = new Cdb("ip-address-allocator-loader",
+                           new Socket(host, port));
+            rsess = rcdb.startSession(CdbDBType.CDB_RUNNING);
+            ocdb = new Cdb("ip-address-allocator-loader",
+                           new Socket(host, port));
+            osess = ocdb.startSession(CdbDBType.CDB_OPERATIONAL,
+                                      EnumSet.of(CdbLockType.LOCK_REQUEST,
+                                                 CdbLockType.LOCK_WAIT));
+        }
+
+        void close() {
+            try {
+                rsess.endSession();
+                osess.endSession();
+            } catch (Exception ignore) {
+                ;
+            }
+            try {
+                rcdb.close();
+                ocdb.close();
+            } catch (Exception ignore) {
+                ;
+            }
+        }
+    }
+
+    /* Read, build and reconcile one pool, on a loader thread. */
+    private class PoolLoader extends ParallelLoad.Task<LoaderSessions> {
+        private final String path;
+
+        PoolLoader(String name, String path) {
+            super(name);
+            this.path = path;
+        }
+
+        public void load(LoaderSessions ls) throws Exception {
+            PoolConfig config =
+                readConfig(ls.rsess, ls.osess, getName(), path);
+            Pool pool = createPool(config, ls.osess);
+            reconcileAllocations(pool.ipPool, config.responses);
+        }
+    }
+
+    /**
+     * Give back the allocations of ipPool without a matching response
+     * under poolPath in CDB, such as a subnet reserved by
+     * subnetAllocate() for a transaction that had not been committed
+     * when the allocator stopped. The responses are read with osess,
+     * a session to the operational datastore.
+     */
+    public static void reconcileAllocations(IPAddressPool ipPool,
+                                            String poolPath,
+                                            CdbSession osess)
+        throws IOException, ConfException, UnknownHostException,
+               InvalidNetmaskException {
+        reconcileAllocations(ipPool, readResponses(osess, poolPath));
+    }
+
+    private static void reconcileAllocations(IPAddressPool ipPool,
+                                             Map<String, Subnet> responses) {
+        for (Allocation a :
+                 new ArrayList<Allocation>(ipPool.getAllocations())) {
+            if (a.getAllocated().equals(responses.get(a.getRequestId()))) {
+                continue;
+            }
+
+            LOGGER.info(String.format("Releasing unanswered allocation %s"
+                                      + " in %s", a, ipPool.getName()));
+            try {
+                ipPool.release(a);
+            } catch (AddressPoolException e) {
+                LOGGER.error("", e);
+            }
+        }
+    }
+
+    /*
+     * The subnets the allocations of the pool at poolPath were answered
+     * with, by allocation id, read from the oper data some entries at a
+     * time rather than one leaf at a time.
+     */
+    private static Map<String, Subnet> readResponses(CdbSession osess,
+                                                     String poolPath)
+        throws IOException, ConfException, UnknownHostException,
+               InvalidNetmaskException {
+        String path = poolPath + "/" + ipaddressAllocator._allocation_;
+        Map<String, Subnet> responses = new HashMap<String, Subnet>();
+
+        int n = osess.getNumberOfInstances(path);
+        for (int first = 0; first < n; first += RESPONSE_CHUNK) {
+            int chunk = Math.min(RESPONSE_CHUNK, n - first);
+            for (ConfObject[] obj :
+                     osess.getObjects(ALLOC_VALUES, first, chunk, path)) {
+                ConfObject respCase = obj[ALLOC_RESPONSE_CASE];
+                boolean ok = respCase instanceof ConfTag &&
+                    ((ConfTag) respCase).getTagHash() ==
+                    ipaddressAllocator._ok;
+                if (!ok || obj[ALLOC_SUBNET] instanceof ConfNoExists) {
+                    continue;
+                }
+                responses.put(obj[ALLOC_ID].toString(),
+                              new Subnet(obj[ALLOC_SUBNET].toString()));
+            }
+        }
+        return responses;
+    }
+
+    /* Allocation entries read at a time by readResponses() */
+    private static final int RESPONSE_CHUNK = 1000;
+
+    private void flushPools() {
+        int writes = 0;
+        for (Pool pool : pools) {
+            writes += pool.flushWrites();
         }
+        stats.operWrites(writes);
     }
 
     public void run() {
@@ -224,15 +455,24 @@ public class IPAddressAllocator implements ApplicationComponent {
             }
 
             try {
-                if (NSOUtil.isHaEnabled(maapi, tid)) {
+                Maapi haMaapi = subSessions != null ? subSessions.maapi : maapi;
+                int haTid = subSessions != null ? subSessions.tid : tid;
+                if (NSOUtil.isHaEnabled(haMaapi, haTid)) {
                     /* Needed to determine if this node just became master. */
-                    boolean updatedIsMaster = NSOUtil.isMaster(maapi, tid);
+                    boolean updatedIsMaster =
+                        NSOUtil.isMaster(haMaapi, haTid);
                     if (updatedIsMaster && !isMaster) {
                         /* This node just became master, re-read our state. */
+                        awaitDispatcher();
                         loadState();
                     }
                     /* Remember new isMaster. */
+                    boolean changed = updatedIsMaster != isMaster;
                     isMaster = updatedIsMaster;
+                    if (changed) {
+                        /* Responses are now written by another node */
+                        RESPONSES.clear();
+                    }
                     if (!updatedIsMaster) {
                         /* This node is not the master node, it should sync. */
                         sub.sync(CdbSubscriptionSyncType.DONE_PRIORITY);
@@ -243,15 +483,14 @@ public class IPAddressAllocator implements ApplicationComponent {
             } catch (Exception e) {
                 LOGGER.error("Failed reading HA mode:", e);
             }
-            ExecutorService executor =
-                Executors.newSingleThreadExecutor();
+            ArrayList<Request> reqs = new ArrayList<Request>();
 
             try {
-                isess = icdb.startSession(CdbDBType.CDB_RUNNING,
+                Cdb rcdb = subSessions != null ? subSessions.rcdb : icdb;
+                isess = rcdb.startSession(CdbDBType.CDB_RUNNING,
                                           EnumSet.of(CdbLockType.LOCK_SESSION,
                                                      CdbLockType.LOCK_WAIT));
 
-                ArrayList<Request> reqs = new ArrayList<Request>();
                 EnumSet<DiffIterateFlags> enumSet =
                     EnumSet.<DiffIterateFlags>of(
                                     DiffIterateFlags.ITER_WANT_PREV,
@@ -276,6 +515,8 @@ public class IPAddressAllocator implements ApplicationComponent {
                         subType = Type.ALARMS_ENABLED;
                     } else if (points[i] == alarms_threshold_subid) {
                         subType = Type.ALARMS_THRESHOLD;
+                    } else if (points[i] == subIdHostBitmap) {
+                        subType = Type.HOST_BITMAP;
                     } else {
                         continue;
                     }
@@ -290,9 +531,6 @@ public class IPAddressAllocator implements ApplicationComponent {
                 }
 
                 isess.endSession();
-                RequestThread IterWorkItems = new RequestThread(reqs, wsess);
-
-                executor.execute(IterWorkItems);
             } catch (Exception e) {
                 LOGGER.error("", e);
             } catch (Throwable e) {
@@ -300,18 +538,6 @@ public class IPAddressAllocator implements ApplicationComponent {
             }
 
             try {
-                executor.shutdown();
-                /*
-                 * We need to wait for a while, otherwise the sync
-                 * lock might be released before we have updated the
-                 * resource pool status.
-                */
-                if (!executor.awaitTermination(300000, TimeUnit.MILLISECONDS)) {
-                    LOGGER.warn("Timeout waiting for ip address pool" +
-                                " update!");
-                    executor.shutdownNow();
-                }
-
                 /*
                  * It's important that we return as early as possible here,
                  * This is a common technique, gather the work to do, tell
@@ -322,7 +548,16 @@ public class IPAddressAllocator implements ApplicationComponent {
                  * If we are calling an external allocator we should do
                  * the following call here and not after the for loop
                  * sub.sync(CdbSubscriptionSyncType.DONE_PRIORITY);
+                 *
+                 * In async mode we do, once the requests are in the
+                 * journal. Otherwise we need to wait for them, or the
+                 * sync lock might be released before we have updated
+                 * the resource pool status.
                  */
+                if (subSessions == null || reqs == null || !dispatch(reqs)) {
+                    handleRequests(reqs);
+                }
+
                 /*
                  * NOTE: if you are calling an external algorithm you must
                  * do the below call earlier
@@ -334,14 +569,254 @@ public class IPAddressAllocator implements ApplicationComponent {
         }
     }
 
-    private void allocateAddress(HashSet<ToRedeploy> redeps,
-                                 Request req,
-                                 boolean reAlloc)
-        throws IOException, ConfException, NavuException {
+    /**
+     * Handle the requests of one notification, write the pool changes
+     * and redeploy the services that got a response. Returns false if
+     * that did not finish in time.
+     */
+    private boolean handleRequests(ArrayList<Request> reqs)
+        throws InterruptedException {
+        ExecutorService executor =
+            Executors.newSingleThreadExecutor();
+        HashSet<ToRedeploy> redeps = new HashSet<ToRedeploy>();
+
+        executor.execute(new RequestThread(reqs, wsess, redeps));
+        executor.shutdown();
+        if (!executor.awaitTermination(300000, TimeUnit.MILLISECONDS)) {
+            LOGGER.warn("Timeout waiting for ip address pool" +
+                        " update!");
+            executor.shutdownNow();
+            return false;
+        }
+
+        /* Write the pool changes buffered during this batch */
+        flushPools();
+
+        for (int i = 0; i < reqs.size(); i++) {
+            Request req = reqs.get(i);
+            if (req.type == Type.ALLOC) {
+                stats.requestDone(req.received);
+            }
+        }
+
+        /*
+         * Only now that the pools are written, so that a re-deployed
+         * service reads them up to date
+         */
+        LOGGER.debug("REDEPLOYING....");
+        NSOUtil.redeploy(redeps);
+        return true;
+    }
+
+    /**
+     * Async mode: write the requests to the journal and queue them for
+     * the dispatcher. Returns false if the journal could not be
+     * written, the caller then handles them before syncing.
+     */
+    private boolean dispatch(final ArrayList<Request> reqs) {
+        if (reqs.isEmpty()) {
+            return true;
+        }
+
+        final RequestJournal.Batch batch;
+        try {
+            batch = journal.append(encode(reqs));
+        } catch (Exception e) {
+            LOGGER.error("Failed to journal requests, handling them now", e);
+            return false;
+        }
+
+        dispatcher.execute(new Runnable() {
+                public void run() {
+                    try {
+                        if (handleRequests(reqs)) {
+                            batchDone(batch);
+                        }
+                    } catch (InterruptedException e) {
+                        /* Stopped, the batch stays in the journal */
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        return true;
+    }
+
+    private void batchDone(RequestJournal.Batch batch) {
+        try {
+            journal.done(batch);
+        } catch (IOException e) {
+            LOGGER.error("Failed to update request journal", e);
+        }
+    }
+
+    /*
+     * Wait for the dispatcher to handle what has been queued, e.g.
+     * before the pools are read again.
+     */
+    private void awaitDispatcher() {
+        if (dispatcher == null) {
+            return;
+        }
+        try {
+            dispatcher.submit(new Runnable() {
+                    public void run() {
+                        ;
+                    }
+                }).get(300000, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            LOGGER.warn("Failed waiting for queued requests", e);
+        }
+    }
+
+    /*
+     * Handle the batches left in the journal by the last run, after
+     * the pools have been read from CDB and reconciled.
+     */
+    private void replayJournal() throws InterruptedException {
+        for (RequestJournal.Batch batch : journal.getPending()) {
+            LOGGER.info(String.format("Handling %d requests left in %s",
+                                      batch.getRecords().size(),
+                                      JOURNAL_FILE));
+            ArrayList<Request> reqs = new ArrayList<Request>();
+            Set<String> cleared = new HashSet<String>();
+            for (String[] record : batch.getRecords()) {
+                try {
+                    Request r = decode(record);
+                    if (stillToDo(r, cleared)) {
+                        reqs.add(r);
+                    }
+                } catch (Exception e) {
+                    LOGGER.error(String.format("Dropping journaled request %s",
+                                               Arrays.toString(record)), e);
+                }
+            }
+            if (handleRequests(reqs)) {
+                batchDone(batch);
+            }
+        }
+    }
+
+    /*
+     * Allocation requests may have been handled before the last run
+     * stopped, and the allocations may have changed since. A delete is
+     * only done again if the pool still has the subnet it released for
+     * that request, reconcileAllocations() has given back the others.
+     * A create is only done again if the allocation is still there
+     * without a response, or the response goes with a delete above.
+     * Other requests check for themselves whether they are done.
+     */
+    private boolean stillToDo(Request r, Set<String> cleared)
+        throws Exception {
+        if (r.type != Type.ALLOC) {
+            return true;
+        }
+
+        String path = r.path.toString();
+        if (r.op == Operation.DELETE) {
+            if (r.response == null) {
+                return false;
+            }
+            Subnet subnet = new Subnet(r.response.toString());
+            String requestId = r.subnetKey.elementAt(0).toString();
+            for (Pool pool : pools) {
+                if (!pool.ipPool.getName().equals(
+                        r.poolKey.elementAt(0).toString())) {
+                    continue;
+                }
+                for (Allocation a :
+                         pool.ipPool.getOverlappingAllocations(subnet)) {
+                    if (a.getAllocated().equals(subnet) &&
+                        requestId.equals(a.getRequestId())) {
+                        cleared.add(path);
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        if (cleared.contains(path)) {
+            return true;
+        }
+        if (!maapi.exists(tid, path)) {
+            return false;
+        }
+        try {
+            wsess.getCase(ipaddressAllocator._response_choice_,
+                          path + "/" + ipaddressAllocator._response_);
+            return false;
+        } catch (ConfException e) {
+            /* No response yet */
+            return true;
+        }
+    }
+
+    /*
+     * A request as a journal record. Pool and subnet keys are not
+     * kept, decode() takes them from the path.
+     */
+    private List<String[]> encode(List<Request> reqs) {
+        List<String[]> records = new ArrayList<String[]>(reqs.size());
+        for (Request r : reqs) {
+            records.add(new String[] {
+                    r.type.name(),
+                    r.op.name(),
+                    r.path.toString(),
+                    r.response == null ? null : r.response.toString(),
+                    Integer.toString(r.alarmThreshold)
+                });
+        }
+        return records;
+    }
 
+    private Request decode(String[] record) throws ConfException {
+        Request r = new Request();
+        r.type = Type.valueOf(record[0]);
+        r.op = Operation.valueOf(record[1]);
+        r.path = new ConfPath(record[2]);
+
+        ConfObject[] kp = r.path.getKP();
+        r.poolKey = (ConfKey) kp[kp.length-3];
+        if (r.type != Type.ALARMS_ENABLED &&
+            r.type != Type.ALARMS_THRESHOLD && kp.length >= 5) {
+            r.subnetKey = (ConfKey) kp[kp.length-5];
+        }
+
+        if (record[3] != null) {
+            r.response = new ConfBuf(record[3]);
+        }
+        r.alarmThreshold = Integer.parseInt(record[4]);
+        return r;
+    }
+
+    /* The fields of an allocation request, as needed to serve it. */
+    private static class AllocRequest {
+        Request req;
         String owner = "";
-        String requestId = "";
-        String username = "";
+        String username;
+        String requestId;
+        int cidr4, cidr6;
+
+        void setSubnetSize(int subnetSize, boolean invertSubnetSize) {
+            if (invertSubnetSize) {
+                cidr4 = (32 - subnetSize) < 0 ? 0 : (32 - subnetSize);
+                cidr6 = (128 - subnetSize) < 0 ? 0 : (128 - subnetSize);
+            } else {
+                cidr4 = cidr6 = subnetSize;
+            }
+        }
+
+        /* True if both may be served by the same allocateRun() call */
+        boolean sameRun(AllocRequest other) {
+            return cidr4 == other.cidr4 && cidr6 == other.cidr6 &&
+                owner.equals(other.owner) && username.equals(other.username);
+        }
+    }
+
+    private AllocRequest readAllocRequest(Request req)
+        throws IOException, ConfException {
+        AllocRequest ar = new AllocRequest();
+        ar.req = req;
 
         String allocSPath = req.path + "/" + ipaddressAllocator._allocating_service_;
         String usernamePath = req.path + "/" + ipaddressAllocator._username_;
@@ -349,12 +824,11 @@ public class IPAddressAllocator implements ApplicationComponent {
 
         if (maapi.exists(tid, allocSPath)) {
             ConfObjectRef v = (ConfObjectRef) maapi.getElem(tid, allocSPath);
-            owner = new ConfPath(v.getElems()).toString();
+            ar.owner = new ConfPath(v.getElems()).toString();
         }
 
-        username = maapi.getElem(tid, usernamePath).toString();
-        requestId = maapi.getElem(tid, idPath).toString();
-
+        ar.username = maapi.getElem(tid, usernamePath).toString();
+        ar.requestId = maapi.getElem(tid, idPath).toString();
 
         int subnetSize = (int) ((ConfUInt8)
                 maapi.
@@ -370,81 +844,90 @@ public class IPAddressAllocator implements ApplicationComponent {
                 req.path + "/" +
                 ipaddressAllocator._request_ + "/" +
                 ipaddressAllocator._invert_subnet_size_);
+        ar.setSubnetSize(subnetSize, invertSubnetSize);
+        return ar;
+    }
 
-        int cidr4, cidr6;
-        if (invertSubnetSize) {
-            cidr4 = (32 - subnetSize) < 0 ? 0 : (32 - subnetSize);
-            cidr6 = (128 - subnetSize) < 0 ? 0 : (128 - subnetSize);
-        } else {
-            cidr4 = cidr6 = subnetSize;
+    /*
+     * Positions of the values of an allocation entry read by
+     * getObjects(). A choice takes a position of its own, holding the
+     * selected case or ConfNoExists, before the leaves of its cases.
+     * Only the operational datastore has the response, the running one
+     * has ConfNoExists for all of it.
+     */
+    private static final int ALLOC_ID = 0;
+    private static final int ALLOC_USERNAME = 1;
+    private static final int ALLOC_SERVICE = 2;
+    private static final int ALLOC_SUBNET_SIZE = 3;
+    private static final int ALLOC_INVERT_SUBNET_SIZE = 4;
+    private static final int ALLOC_RESPONSE_CASE = 5;
+    private static final int ALLOC_ERROR = 6;
+    private static final int ALLOC_SUBNET = 7;
+    private static final int ALLOC_FROM = 8;
+    /* Number of values up to the end of the request, and in all */
+    private static final int ALLOC_REQUEST_VALUES =
+        ALLOC_INVERT_SUBNET_SIZE + 1;
+    private static final int ALLOC_VALUES = ALLOC_FROM + 1;
+
+    /* An allocation request from an entry read by getObjects(). */
+    private static AllocRequest readAllocRequest(Request req,
+                                                 ConfObject[] obj) {
+        AllocRequest ar = new AllocRequest();
+        ar.req = req;
+        ar.requestId = obj[ALLOC_ID].toString();
+        ar.username = obj[ALLOC_USERNAME].toString();
+        if (obj[ALLOC_SERVICE] instanceof ConfObjectRef) {
+            ConfObjectRef service = (ConfObjectRef) obj[ALLOC_SERVICE];
+            ar.owner = new ConfPath(service.getElems()).toString();
         }
+        ar.setSubnetSize(
+            (int) ((ConfUInt8) obj[ALLOC_SUBNET_SIZE]).longValue(),
+            !(obj[ALLOC_INVERT_SUBNET_SIZE] instanceof ConfNoExists));
+        return ar;
+    }
 
-        Allocation a = null;
-        try {
-            a = req.pool.ipPool.allocate(cidr4, cidr6, owner, username, requestId);
-
-            /* Write the result and redeploy */
-            Subnet net = a.getAllocated();
+    private void allocateAddress(HashSet<ToRedeploy> redeps,
+                                 Request req,
+                                 boolean reAlloc)
+        throws IOException, ConfException, NavuException {
+        allocateAddress(redeps, readAllocRequest(req), reAlloc);
+    }
 
-            Subnet fromNet = null;
+    private void allocateAddress(HashSet<ToRedeploy> redeps,
+                                 AllocRequest ar,
+                                 boolean reAlloc)
+        throws IOException, ConfException, NavuException {
+        Request req = ar.req;
 
-            for (Subnet sub : req.pool.subnets) {
-                if (sub.contains(net)) {
-                    fromNet = sub;
-                    break;
-                }
-            }
+        /*
+         * A subnet reserved by subnetAllocate() in the transaction that
+         * created the request is already used by the service.
+         */
+        Reservation reserved = req.pool.takeReservation(ar.requestId);
 
-            if (a.getAllocated().getAddress() instanceof Inet6Address) {
-                wsess.setElem(new ConfIPv6Prefix(net.toString()),
-                              req.path+"/"+
-                              ipaddressAllocator._response_+"/"+
-                              ipaddressAllocator._subnet_);
+        Allocation a = null;
+        try {
+            if (reserved != null) {
+                LOGGER.debug(String.format("Confirming reserved %s",
+                                           reserved.allocation));
+                a = reserved.allocation;
             } else {
-                wsess.setElem(new ConfIPv4Prefix(net.toString()),
-                              req.path+"/"+
-                              ipaddressAllocator._response_+"/"+
-                              ipaddressAllocator._subnet_);
-            }
-
-            if (fromNet != null &&
-                fromNet.getAddress() instanceof Inet6Address) {
-                wsess.setElem(new ConfIPv6Prefix(fromNet.toString()),
-                              req.path+"/"+
-                              ipaddressAllocator._response_+"/"+
-                              ipaddressAllocator._from_);
-            } else if (fromNet != null) {
-                wsess.setElem(new ConfIPv4Prefix(fromNet.toString()),
-                              req.path+"/"+
-                              ipaddressAllocator._response_+"/"+
-                              ipaddressAllocator._from_);
+                a = req.pool.ipPool.allocate(ar.cidr4, ar.cidr6, ar.owner,
+                                             ar.username, ar.requestId);
             }
-            /* We need to setCase after setElem due to a bug in NCS */
-            wsess.setCase(ipaddressAllocator.
-                          _response_choice_,
-                          ipaddressAllocator._ok_,
-                          req.path+"/"+
-                          ipaddressAllocator._response_);
 
+            /* Write the result and redeploy */
+            writeResponse(req.pool, req.path, a.getAllocated());
         } catch (AddressPoolException ex) {
-            wsess.setElem(new ConfBuf(ex.toString()),
-                          req.path + "/"+
-                          ipaddressAllocator._response_+"/"+
-                          ipaddressAllocator._error_);
-            /* We need to setCase after setElem due to a bug in NCS */
-            wsess.setCase(ipaddressAllocator.
-                          _response_choice_,
-                          ipaddressAllocator._error_,
-                          req.path+"/"+
-                          ipaddressAllocator._response_);
+            writeError(req.path, ex);
         }
 
-        if (owner != "") {
+        if (!ar.owner.isEmpty() && reserved == null) {
             /*
              * Redeploy the service that consumes this
              * data, runs in separate thread
              */
-            ToRedeploy t = new ToRedeploy(owner, username);
+            ToRedeploy t = new ToRedeploy(ar.owner, ar.username);
             boolean autoReDeploy = getAutoReDeploy(req.pool.path);
 
             if (!redeps.contains(t)) {
@@ -455,6 +938,211 @@ public class IPAddressAllocator implements ApplicationComponent {
         }
     }
 
+    /*
+     * Serve a run of new allocation requests for the same pool, such as
+     * the ones created by subnetRequestBatch(). The requests are read
+     * with one getObjects() when they are close together in the
+     * allocation list, and those of the same size and owner get their
+     * subnets from one allocateRun() call, one after the other when the
+     * pool has room for that. Reserved ones are confirmed as usual.
+     */
+    private void allocateAddresses(HashSet<ToRedeploy> redeps, Pool pool,
+                                   List<Request> run)
+        throws IOException, ConfException, NavuException {
+        Map<String, ConfObject[]> objs = readAllocations(pool, run);
+        List<AllocRequest> plain = new ArrayList<AllocRequest>();
+
+        for (Request req : run) {
+            req.pool = pool;
+            ConfObject[] obj = objs.get(req.subnetKey.elementAt(0).toString());
+            AllocRequest ar = obj != null ? readAllocRequest(req, obj)
+                                          : readAllocRequest(req);
+
+            if (pool.hasReservation(ar.requestId)) {
+                allocateAddress(redeps, ar, false);
+                continue;
+            }
+            if (!plain.isEmpty() && !plain.get(0).sameRun(ar)) {
+                allocateRun(redeps, plain);
+                plain = new ArrayList<AllocRequest>();
+            }
+            plain.add(ar);
+        }
+
+        if (!plain.isEmpty()) {
+            allocateRun(redeps, plain);
+        }
+    }
+
+    private void allocateRun(HashSet<ToRedeploy> redeps,
+                             List<AllocRequest> plain)
+        throws IOException, ConfException, NavuException {
+        AllocRequest first = plain.get(0);
+        Pool pool = first.req.pool;
+        List<String> requestIds = new ArrayList<String>(plain.size());
+        for (AllocRequest ar : plain) {
+            requestIds.add(ar.requestId);
+        }
+
+        LOGGER.debug(String.format("Allocating %d subnets from %s",
+                                   plain.size(), pool.ipPool.getName()));
+
+        List<Allocation> allocs =
+            pool.ipPool.allocateRun(first.cidr4, first.cidr6, first.owner,
+                                    first.username, requestIds);
+
+        for (int i = 0; i < plain.size(); i++) {
+            AllocRequest ar = plain.get(i);
+            if (i < allocs.size()) {
+                writeResponse(pool, ar.req.path,
+                              allocs.get(i).getAllocated());
+            } else {
+                /* Out of room, report it the usual way. */
+                allocateAddress(redeps, ar, false);
+            }
+        }
+
+        if (!first.owner.isEmpty()) {
+            redeps.add(new ToRedeploy(first.owner, first.username));
+        }
+    }
+
+    /*
+     * The entries of a run of requests, by id, read in one go if they
+     * are not spread out too far over the allocation list. Requests not
+     * in the result are read one by one.
+     */
+    private Map<String, ConfObject[]> readAllocations(Pool pool,
+                                                      List<Request> run) {
+        Map<String, ConfObject[]> objs = new HashMap<String, ConfObject[]>();
+        CdbSession rsess = null;
+        try {
+            /*
+             * The subscriber thread waits for this one to finish, so its
+             * socket is free to read with.
+             */
+            rsess = icdb.startSession(CdbDBType.CDB_RUNNING);
+
+            /* The diff is iterated in schema order, i.e. by id */
+            int first = rsess.index(run.get(0).path.toString());
+            int last = rsess.index(run.get(run.size() - 1).path.toString());
+            int n = last - first + 1;
+            if (first < 0 || n < run.size() || n > 4 * run.size()) {
+                return objs;
+            }
+
+            for (ConfObject[] obj :
+                     rsess.getObjects(ALLOC_REQUEST_VALUES, first, n,
+                                      pool.path + "/" +
+                                      ipaddressAllocator._allocation_)) {
+                objs.put(obj[ALLOC_ID].toString(), obj);
+            }
+        } catch (Exception e) {
+            LOGGER.error("Failed to read allocation requests", e);
+            objs.clear();
+        } finally {
+            if (rsess != null) {
+                try {
+                    rsess.endSession();
+                } catch (Exception ignore) {
+                    ;
+                }
+            }
+        }
+        return objs;
+    }
+
+    private void writeResponse(Pool pool, ConfPath path, Subnet net)
+        throws IOException, ConfException {
+        Subnet fromNet = null;
+
+        for (Subnet sub : pool.subnets) {
+            if (sub.contains(net)) {
+                fromNet = sub;
+                break;
+            }
+        }
+
+        AllocStatus status = new AllocStatus();
+        status.subnet = prefix(net);
+        stats.setElem(wsess, status.subnet,
+                      path+"/"+
+                      ipaddressAllocator._response_+"/"+
+                      ipaddressAllocator._subnet_);
+
+        if (fromNet != null) {
+            status.from = prefix(fromNet);
+            stats.setElem(wsess, status.from,
+                          path+"/"+
+                          ipaddressAllocator._response_+"/"+
+                          ipaddressAllocator._from_);
+        }
+        /* We need to setCase after setElem due to a bug in NCS */
+        stats.setCase(wsess, ipaddressAllocator.
+                      _response_choice_,
+                      ipaddressAllocator._ok_,
+                      path+"/"+
+                      ipaddressAllocator._response_);
+        cacheResponse(path, status);
+    }
+
+    private static ConfIPPrefix prefix(Subnet net) throws ConfException {
+        if (net.getAddress() instanceof Inet6Address) {
+            return new ConfIPv6Prefix(net.toString());
+        }
+        return new ConfIPv4Prefix(net.toString());
+    }
+
+    private void writeError(ConfPath path, AddressPoolException ex)
+        throws IOException, ConfException {
+        stats.setElem(wsess, new ConfBuf(ex.toString()),
+                      path + "/"+
+                      ipaddressAllocator._response_+"/"+
+                      ipaddressAllocator._error_);
+        /* We need to setCase after setElem due to a bug in NCS */
+        stats.setCase(wsess, ipaddressAllocator.
+                      _response_choice_,
+                      ipaddressAllocator._error_,
+                      path+"/"+
+                      ipaddressAllocator._response_);
+
+        AllocStatus status = new AllocStatus();
+        status.error = new ConfBuf(ex.toString());
+        cacheResponse(path, status);
+    }
+
+    /*
+     * Pool name and allocation id of the allocation at path, as keys
+     * of RESPONSES.
+     */
+    private static String[] responseKey(ConfPath path) throws ConfException {
+        ConfObject[] kp = path.getKP();
+        return new String[] {
+            ((ConfKey) kp[kp.length-3]).elementAt(0).toString(),
+            ((ConfKey) kp[kp.length-5]).elementAt(0).toString()
+        };
+    }
+
+    private void cacheResponse(ConfPath path, AllocStatus status) {
+        try {
+            String[] key = responseKey(path);
+            RESPONSES.put(key[0], key[1], status);
+        } catch (ConfException e) {
+            LOGGER.debug(String.format("Not caching response of %s", path),
+                         e);
+        }
+    }
+
+    private void uncacheResponse(ConfPath path) {
+        try {
+            String[] key = responseKey(path);
+            RESPONSES.remove(key[0], key[1]);
+        } catch (ConfException e) {
+            /* Can't tell which one, so none of them can be trusted */
+            RESPONSES.clear();
+        }
+    }
+
     /**
      * Loop over all allocations in the pool and reallocate all that
      * belong to the <class>Subnet</class> sub.
@@ -476,48 +1164,60 @@ public class IPAddressAllocator implements ApplicationComponent {
 
         LOGGER.info(String.format("reallocSubnets: %s", subnet));
 
-        NavuContext context = new NavuContext(maapi, tid);
-        NavuContainer base = new NavuContainer(context);
-        NavuContainer root = base.container(resourceAllocator.hash);
-        NavuContainer resources =
-            root.container(resourceAllocator.prefix, resourceAllocator._resource_pools_);
-        NavuContainer ipaddressPool =
-            resources.list(ipaddressAllocator.prefix, ipaddressAllocator._ip_address_pool_).
-            elem(pool.ipPool.getName());
-        NavuList allocations =
-            ipaddressPool.list(ipaddressAllocator._allocation_);
-
-        for (NavuContainer alloc : allocations.elements()) {
-            String cdbAllocPath = new ConfPath(alloc.getKeyPath()).toString();
-            String responsePath = cdbAllocPath + "/" +
-                                  ipaddressAllocator._response_;
-
-            if (((ConfTag) wsess.getCase(ipaddressAllocator.
-                                         _response_choice_,responsePath)).
-                getTag().equals(ipaddressAllocator._ok_) &&
-                wsess.getElem(responsePath + "/" + ipaddressAllocator._subnet_)
-                              != null) {
-                Subnet allocatedSubnet =
-                    new Subnet(wsess.getElem(responsePath + "/" +
-                                             ipaddressAllocator._subnet_)
-                               .toString());
-                if (subnet.contains(allocatedSubnet) ||
-                    //allocatedSubnet.contains(allocatedSubnet) || //{ // This seems weird...
-                    allocatedSubnet.contains(subnet)) {
-
-                    /* Needs to be reallocated */
-                    wsess.delete(responsePath + "/" + ipaddressAllocator._subnet_);
-                    pool.ipPool.release(allocatedSubnet.getAddress());
-                    Request r = new Request();
-                    r.path = new ConfPath(alloc.getKeyPath());
-                    r.pool = pool;
-                    reallocReqs.add(r);
-                }
+        /*
+         * Reserved subnets are simply given back, the commit of the
+         * reserving transaction then allocates anew.
+         */
+        pool.releaseReservations(subnet);
+
+        /*
+         * Only the allocations the pool has within or around the subnet
+         * need to be looked at in CDB.
+         */
+        for (Allocation a :
+                 pool.ipPool.getOverlappingAllocations(subnet)) {
+            String cdbAllocPath =
+                String.format("%s/%s%s", pool.path,
+                              ipaddressAllocator._allocation_,
+                              new ConfKey(new ConfBuf(a.getRequestId())));
+            String subnetPath = cdbAllocPath + "/" +
+                                ipaddressAllocator._response_ + "/" +
+                                ipaddressAllocator._subnet_;
+
+            if (wsess.exists(subnetPath)) {
+                /* Needs to be reallocated */
+                wsess.delete(subnetPath);
+                RESPONSES.remove(pool.ipPool.getName(), a.getRequestId());
+                pool.ipPool.release(a);
+                Request r = new Request();
+                r.path = new ConfPath(cdbAllocPath);
+                r.pool = pool;
+                reallocReqs.add(r);
             }
         }
     }
 
     public void finish() {
+        if (running == this) {
+            running = null;
+        }
+        RESPONSES.clear();
+
+        if (dispatcher != null) {
+            /* Queued batches are handled on the next start */
+            dispatcher.shutdownNow();
+        }
+
+        RedeployService.stop();
+        stats.stop();
+
+        if (journal != null) {
+            journal.close();
+        }
+        if (subSessions != null) {
+            subSessions.close();
+        }
+
         try {
             wsess.endSession();
         } catch (ClosedChannelException e) {
@@ -551,167 +1251,280 @@ public class IPAddressAllocator implements ApplicationComponent {
                     tid, path+"/auto-redeploy")).booleanValue();
     }
 
-    private void createPool(NavuContainer pool)
-        throws ConfException, UnknownHostException, AddressPoolException,
-               InvalidNetmaskException, IOException {
-        AllocationsSet allocations;
-        AvailablesSet availables;
+    /* The configuration of a pool, as needed to create it. */
+    private static class PoolConfig {
+        String name;
+        String path;
+        boolean hostBitmap;
         Set<Subnet> subnets = new HashSet<Subnet>();
         Set<Subnet> excludes = new HashSet<Subnet>();
+        /* Answered subnets by allocation id, only read at startup */
+        Map<String, Subnet> responses;
+    }
 
-        String pname = pool.leaf(ipaddressAllocator._name).value().toString();
-
-        availables = new AvailablesSet(wsess, pname, new SubnetComparator());
-        allocations = new AllocationsSet(wsess, pname);
-
-        /* Compare configured subnets to known subnets and add/remove */
-        String cdbSubnetPath = availables.getAvailablesPath()
-                               + "/../" + ipaddressAllocator._subnet_;
+    private PoolConfig readConfig(NavuContainer pool)
+        throws ConfException, UnknownHostException, InvalidNetmaskException {
+        PoolConfig config = new PoolConfig();
+        config.name = pool.leaf(ipaddressAllocator._name).value().toString();
+        config.path = pool.getKeyPath();
+        config.hostBitmap =
+            pool.leaf(ipaddressAllocator._host_bitmap_).exists();
+
+        for (NavuContainer subnet :
+                 pool.list(ipaddressAllocator.prefix,
+                           ipaddressAllocator._subnet_).elements()) {
+            config.subnets.add(navuSubnet(subnet));
+        }
+        for (NavuContainer exclude :
+                 pool.list(ipaddressAllocator.prefix,
+                           ipaddressAllocator._exclude_).elements()) {
+            config.excludes.add(navuSubnet(exclude));
+        }
+        return config;
+    }
 
-        NavuList poolSubnet = pool.list(ipaddressAllocator.prefix,
-                                        ipaddressAllocator._subnet_);
-
-            /* First add those that are new */
-            for (NavuContainer subnet : poolSubnet.elements()) {
-                String address = subnet.leaf(ipaddressAllocator._address_).
-                    value().toString();
-                String mask = subnet.leaf(ipaddressAllocator._cidrmask_).
-                    value().toString();
-
-                int imask =
-                    (int) ((ConfUInt8) subnet.
-                           leaf(ipaddressAllocator._cidrmask_).
-                           value()).longValue();
-                Subnet snet = new Subnet(address, imask);
-                subnets.add(snet);
-            }
+    private static Subnet navuSubnet(NavuContainer subnet)
+        throws ConfException, UnknownHostException, InvalidNetmaskException {
+        String address =
+            subnet.leaf(ipaddressAllocator._address_).value().toString();
+        int mask = (int) ((ConfUInt8) subnet.
+                          leaf(ipaddressAllocator._cidrmask_).
+                          value()).longValue();
+        return new Subnet(address, mask);
+    }
 
-            IPAddressPool ipPool = new IPAddressPool(pname, availables,
-                                                     allocations, subnets);
+    /*
+     * Read the configuration of a pool, and with osess the responses
+     * to its allocations, from CDB in a few bulk reads, for loading
+     * many pools at startup.
+     */
+    private static PoolConfig readConfig(CdbSession rsess, CdbSession osess,
+                                         String name, String path)
+        throws ConfException, IOException, UnknownHostException,
+               InvalidNetmaskException {
+        PoolConfig config = new PoolConfig();
+        config.name = name;
+        config.path = path;
+        config.hostBitmap =
+            rsess.exists(path + "/" + ipaddressAllocator._host_bitmap_);
+        readSubnets(rsess, path + "/" + ipaddressAllocator._subnet_,
+                    config.subnets);
+        readSubnets(rsess, path + "/" + ipaddressAllocator._exclude_,
+                    config.excludes);
+        config.responses = readResponses(osess, path);
+        return config;
+    }
 
-            for (NavuContainer subnet : poolSubnet.elements()) {
-                String address = subnet.leaf(ipaddressAllocator._address_).
-                    value().toString();
-                String mask = subnet.leaf(ipaddressAllocator._cidrmask_).
-                    value().toString();
+    /* Read a list keyed by address and cidrmask into subnets. */
+    private static void readSubnets(CdbSession sess, String path,
+                                    Set<Subnet> subnets)
+        throws ConfException, IOException, InvalidNetmaskException {
+        int n = sess.getNumberOfInstances(path);
+        if (n == 0) {
+            return;
+        }
+        for (ConfObject[] obj : sess.getObjects(2, 0, n, path)) {
+            subnets.add(new Subnet(((ConfIP) obj[0]).getAddress(),
+                                   (int) ((ConfUInt8) obj[1]).longValue()));
+        }
+    }
 
-                int imask =
-                    (int) ((ConfUInt8) subnet.
-                           leaf(ipaddressAllocator._cidrmask_).
-                           value()).longValue();
-                Subnet snet = new Subnet(address, imask);
+    private Pool createPool(NavuContainer pool)
+        throws ConfException, UnknownHostException, AddressPoolException,
+               InvalidNetmaskException, IOException {
+        return createPool(readConfig(pool), wsess);
+    }
 
-                String subnetPath = cdbSubnetPath+"{"+address+" "+mask+"}";
+    /*
+     * Create a pool from its configuration and its oper data. rsess is
+     * used for reading and writing oper data while the pool is created,
+     * so that pools can be created by several threads, each with its
+     * own session. Later changes are buffered and written with wsess.
+     */
+    private Pool createPool(PoolConfig config, CdbSession rsess)
+        throws ConfException, UnknownHostException, AddressPoolException,
+               InvalidNetmaskException, IOException {
+        String pname = config.name;
+        boolean hostBitmap = config.hostBitmap;
+        Set<Subnet> subnets = config.subnets;
 
-                if (!wsess.exists(subnetPath)) {
-                    ipPool.addToAvailable(snet);
-                    wsess.create(subnetPath);
-                }
-            }
+        AvailablesSet availables =
+            new AvailablesSet(wsess, rsess, pname, new SubnetComparator());
+        FreeRangesSet freeRanges = new FreeRangesSet(wsess, rsess, pname);
+        AllocationsSet allocations = new AllocationsSet(wsess, rsess, pname);
 
-            /* Then remove those that have been removed */
-            Set<String> toDelete = new HashSet<String>();
+        /*
+         * The oper data keeps a copy of the subnets and excludes the
+         * pool was last created or changed with, compare them to the
+         * configured ones to see what has changed since.
+         */
+        String cdbSubnetPath = availables.getAvailablesPath()
+                               + "/../" + ipaddressAllocator._subnet_;
+        String cdbExcludePath = availables.getAvailablesPath()
+                                + "/../" + ipaddressAllocator._exclude_;
+        Set<Subnet> knownSubnets = new HashSet<Subnet>();
+        Set<Subnet> knownExcludes = new HashSet<Subnet>();
+        readSubnets(rsess, cdbSubnetPath, knownSubnets);
+        readSubnets(rsess, cdbExcludePath, knownExcludes);
 
-            for (NavuContainer subnet : poolSubnet.elements()) {
-                String address = subnet.leaf(ipaddressAllocator._address_).
-                        value().toString();
-                String mask = subnet.leaf(ipaddressAllocator._cidrmask_).
-                        value().toString();
+        IPAddressPool ipPool;
+        if (hostBitmap) {
+            ipPool = new HostBitmapPool(pname, freeRanges, allocations,
+                                        subnets);
+        } else {
+            ipPool = new IPAddressPool(pname, availables, allocations,
+                                       subnets);
+        }
 
-                if (poolSubnet.elem(new String[] {address,mask}) == null) {
-                    int imask =
-                            (int) ((ConfUInt8) subnet.
-                                   leaf(ipaddressAllocator._cidrmask_).
-                                   value()).longValue();
-                    try {
-                        ipPool.removeFromAvailable(new Subnet(address, imask));
-                    } catch (Exception e) {
-                        LOGGER.error("", e);
-                    }
-                    toDelete.add(cdbSubnetPath+"{"+address+" "+mask+"}");
-                }
+        /* First add the subnets that are new */
+        for (Subnet snet : subnets) {
+            if (!knownSubnets.contains(snet)) {
+                ipPool.addToAvailable(snet);
+                rsess.create(entryPath(cdbSubnetPath, snet));
             }
+        }
 
-            for (String subnetPath : toDelete) {
-                wsess.delete(subnetPath);
+        /* Then remove those that have been removed */
+        for (Subnet snet : knownSubnets) {
+            if (!subnets.contains(snet)) {
+                try {
+                    ipPool.removeFromAvailable(snet);
+                } catch (Exception e) {
+                    LOGGER.error("", e);
+                }
+                rsess.delete(entryPath(cdbSubnetPath, snet));
             }
+        }
 
-            /* Compare configured excludess to known excludes and add/remove */
-            String cdbExcludePath = availables.getAvailablesPath()
-                                    + "/../" + ipaddressAllocator._exclude_;
-
-            NavuList poolExclude = pool.list(ipaddressAllocator.prefix,
-                                             ipaddressAllocator._exclude_);
-
-            /* First add those that are new */
-            for (NavuContainer exclude : poolExclude.elements()) {
-                String address = exclude.leaf(ipaddressAllocator._address_).
-                    value().toString();
-                String mask = exclude.leaf(ipaddressAllocator._cidrmask_).
-                    value().toString();
-
-                int imask =
-                    (int) ((ConfUInt8) exclude.
-                           leaf(ipaddressAllocator._cidrmask_).
-                           value()).longValue();
-                Subnet excludedSubnet = new Subnet(address, imask);
-                excludes.add(excludedSubnet);
-
-                String exPath = cdbExcludePath+"{"+address+" "+mask+"}";
-                if (!wsess.exists(exPath)) {
-                    for (Subnet subnet : subnets) {
-                        if (subnet.contains(excludedSubnet)) {
-                            try {
-                                ipPool.removeFromAvailable(excludedSubnet);
-                            } catch (Exception e) {
-                                LOGGER.error("", e);
-                            }
+        /* The same for excludes, first those that are new */
+        for (Subnet excludedSubnet : config.excludes) {
+            if (!knownExcludes.contains(excludedSubnet)) {
+                for (Subnet subnet : subnets) {
+                    if (subnet.contains(excludedSubnet)) {
+                        try {
+                            ipPool.removeFromAvailable(excludedSubnet);
+                        } catch (Exception e) {
+                            LOGGER.error("", e);
                         }
                     }
-                    wsess.create(exPath);
                 }
+                rsess.create(entryPath(cdbExcludePath, excludedSubnet));
             }
+        }
 
-            toDelete = new HashSet<String>();
-
-            /* Then remove those that have been removed */
-            for (NavuContainer exclude : poolExclude.elements()) {
-                String address = exclude.leaf(ipaddressAllocator._address_).
-                    value().toString();
-                String mask = exclude.leaf(ipaddressAllocator._cidrmask_).
-                    value().toString();
-
-                if (poolExclude.elem(new String[] {address,mask}) == null) {
-                    int imask =
-                        (int) ((ConfUInt8) exclude.leaf(ipaddressAllocator._cidrmask_)
-                                                  .value()).longValue();
-
-                    Subnet excludeSnet = new Subnet(address, imask);
-                    for (Subnet osub : subnets) {
-                        if (osub.contains(excludeSnet)) {
-                            try {
-                                 ipPool.addToAvailable(excludeSnet);
-                            } catch (Exception e) {
-                                LOGGER.error("", e);
-                            }
-                        }
+        /* Then those that have been removed */
+        for (Subnet excludeSnet : knownExcludes) {
+            if (!config.excludes.contains(excludeSnet)) {
+                for (Subnet osub : subnets) {
+                    if (osub.contains(excludeSnet)) {
+                        ipPool.addToAvailable(excludeSnet);
                     }
-                    toDelete.add(cdbExcludePath+"{"+address+" "+mask+"}");
+                }
+                rsess.delete(entryPath(cdbExcludePath, excludeSnet));
+            }
+        }
+
+        /*
+         * The free addresses are kept as available subnets or, in
+         * host-bitmap mode, as free ranges. Move them over if the pool
+         * was last run in the other mode.
+         */
+        if (hostBitmap && !availables.isEmpty()) {
+            LOGGER.info(String.format("Converting %s to host-bitmap", pname));
+            for (Subnet avail : availables) {
+                ipPool.addToAvailable(avail);
+            }
+            availables.clear();
+        } else if (!hostBitmap && !freeRanges.isEmpty()) {
+            LOGGER.info(String.format("Converting %s from host-bitmap",
+                                      pname));
+            for (InetAddressRange range : freeRanges) {
+                for (Subnet avail : range.subnets()) {
+                    ipPool.addToAvailable(avail);
                 }
             }
+            freeRanges.clear();
 
-            for (String subnetPath : toDelete) {
-              wsess.delete(subnetPath);
+            /* The network and broadcast addresses were never free */
+            for (Subnet subnet : config.subnets) {
+                if (subnet.getAddress() instanceof Inet6Address ||
+                    subnet.getCIDRMask() > 30) {
+                    continue;
+                }
+                for (InetAddress a : new InetAddress[] {
+                         subnet.getAddress(), subnet.getBroadcast() }) {
+                    Subnet host = new Subnet(a, 32);
+                    boolean excluded = false;
+                    for (Subnet exclude : config.excludes) {
+                        excluded |= exclude.contains(host);
+                    }
+                    if (!excluded &&
+                        ipPool.getOverlappingAllocations(host).isEmpty()) {
+                        ipPool.addToAvailable(host);
+                    }
+                }
             }
+        }
 
         Pool po = new Pool();
         po.ipPool = ipPool;
         po.availables = availables;
+        po.freeRanges = freeRanges;
+        po.allocations = allocations;
         po.subnets = subnets;
-        po.excludes = excludes;
-        po.path = pool.getKeyPath();
+        po.excludes = config.excludes;
+        po.path = config.path;
 
         pools.add(po);
+        stats.addPool(ipPool.getName(), ipPool.getStats());
+        return po;
+    }
+
+    private static String entryPath(String listPath, Subnet subnet) {
+        return String.format("%s{%s %d}", listPath,
+                             subnet.getAddress().getHostAddress(),
+                             subnet.getCIDRMask());
+    }
+
+    private NavuContainer poolConfig(ConfKey poolKey) throws NavuException {
+        NavuContext context = new NavuContext(maapi, tid);
+        NavuContainer base = new NavuContainer(context);
+        NavuContainer root = base.container(resourceAllocator.hash);
+        NavuContainer resources =
+            root.container(resourceAllocator.prefix,
+                           resourceAllocator._resource_pools_);
+        NavuList ipaddressPool =
+            resources.list(ipaddressAllocator.prefix,
+                           ipaddressAllocator._ip_address_pool_);
+        return ipaddressPool.elem(poolKey);
+    }
+
+    /*
+     * Recreate a pool after host-bitmap has been set or deleted, which
+     * has createPool() move its free addresses over from the oper data
+     * of the old mode. Reservations are kept, with their allocations
+     * looked up in the new pool.
+     */
+    private void switchMode(Pool pool, NavuContainer config)
+        throws ConfException, IOException, AddressPoolException,
+               InvalidNetmaskException {
+        synchronized (pool) {
+            pools.remove(pool);
+            pool.flushWrites();
+            Pool po = createPool(config);
+
+            for (Map.Entry<String, Reservation> entry :
+                     pool.reservations.entrySet()) {
+                Reservation r = entry.getValue();
+                for (Allocation a : po.ipPool.getOverlappingAllocations(
+                         r.allocation.getAllocated())) {
+                    if (entry.getKey().equals(a.getRequestId())) {
+                        r.allocation = a;
+                        po.reservations.put(entry.getKey(), r);
+                    }
+                }
+            }
+        }
     }
 
     private void safeclose(Cdb s) {
@@ -722,17 +1535,108 @@ public class IPAddressAllocator implements ApplicationComponent {
         }
     }
 
+    private static Set<Pool> newPoolSet() {
+        return Collections.newSetFromMap(
+                   new ConcurrentHashMap<Pool, Boolean>());
+    }
+
+    /*
+     * A subnet handed out by subnetAllocate() ahead of the commit of
+     * the transaction that created the allocation request.
+     */
+    private static class Reservation {
+        Allocation allocation;
+        long expires;
+
+        Reservation(Allocation allocation) {
+            this.allocation = allocation;
+            this.expires = System.currentTimeMillis() + RESERVATION_TIMEOUT;
+        }
+    }
+
     private class Pool {
         IPAddressPool ipPool;
         AvailablesSet availables;
+        FreeRangesSet freeRanges;
+        AllocationsSet allocations;
         Set<Subnet> subnets;
         Set<Subnet> excludes;
         String path;
+
+        /*
+         * Subnets reserved by subnetAllocate(), by allocation id. Only
+         * touched with the pool monitor held, since reservations are
+         * made from service threads.
+         */
+        Map<String, Reservation> reservations =
+            new HashMap<String, Reservation>();
+
+        synchronized Reservation takeReservation(String id) {
+            return reservations.remove(id);
+        }
+
+        synchronized boolean hasReservation(String id) {
+            return reservations.containsKey(id);
+        }
+
+        /*
+         * Give back subnets reserved by transactions that have not been
+         * committed in time, they have most likely been aborted.
+         */
+        synchronized void expireReservations() {
+            long now = System.currentTimeMillis();
+            Iterator<Map.Entry<String, Reservation>> it =
+                reservations.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, Reservation> entry = it.next();
+                if (entry.getValue().expires <= now) {
+                    it.remove();
+                    releaseReservation(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+
+        /* Give back reserved subnets overlapping subnet. */
+        synchronized void releaseReservations(Subnet subnet) {
+            Iterator<Map.Entry<String, Reservation>> it =
+                reservations.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, Reservation> entry = it.next();
+                Subnet reserved = entry.getValue().allocation.getAllocated();
+                if (subnet.contains(reserved) || reserved.contains(subnet)) {
+                    it.remove();
+                    releaseReservation(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+
+        void releaseReservation(String id, Reservation r) {
+            LOGGER.info(String.format("Releasing %s reserved for %s in %s",
+                                      r.allocation.getAllocated(), id,
+                                      ipPool.getName()));
+            try {
+                ipPool.release(r.allocation);
+            } catch (AddressPoolException e) {
+                LOGGER.error("", e);
+            }
+        }
+
+        /* Returns the number of writes made */
+        int flushWrites() {
+            return availables.flush() + freeRanges.flush() +
+                allocations.flush();
+        }
+
+        void discardWrites() {
+            availables.discard();
+            freeRanges.discard();
+            allocations.discard();
+        }
     }
 
     private enum Operation { CREATE, DELETE };
     private enum Type { ALLOC, SUBNET, RANGE, EXCLUDE, POOL,
-                        ALARMS_ENABLED, ALARMS_THRESHOLD};
+                        ALARMS_ENABLED, ALARMS_THRESHOLD, HOST_BITMAP};
 
     private class Request {
         Pool pool;
@@ -743,6 +1647,8 @@ public class IPAddressAllocator implements ApplicationComponent {
         ConfPath path;
         ConfValue response;
         int alarmThreshold;
+        /* When it was read, for the request latency */
+        long received = System.nanoTime();
 
         public String getAddress() {
             return subnetKey.elementAt(0).toString();
@@ -762,19 +1668,17 @@ public class IPAddressAllocator implements ApplicationComponent {
          * Return all subnets covered by this request.
          * Can only be more than one if the request type is RANGE
          */
-        public List<Subnet> getSubnets() throws UnknownHostException, InvalidNetmaskException {
-            List<Subnet> subnets;
+        public Iterable<Subnet> getSubnets() throws UnknownHostException, InvalidNetmaskException {
             if (type == Type.SUBNET) {
                 Subnet sub = new Subnet(getAddress(), getMaskLength());
-                subnets = new ArrayList<Subnet>();
-                subnets.add(sub);
+                return Collections.singletonList(sub);
             } else {
                 InetAddress addr1 = InetAddress.getByName(getAddress());
                 InetAddress addr2 = InetAddress.getByName(getAddress2());
                 InetAddressRange range = new InetAddressRange(addr1, addr2);
-                subnets = range.getSubnets();
+                /* Worked out while iterated over */
+                return range.subnets();
             }
-            return subnets;
         }
     }
 
@@ -785,6 +1689,11 @@ public class IPAddressAllocator implements ApplicationComponent {
             this.itype = itype;
         }
 
+        /* The oper session of the subscriber thread */
+        private CdbSession iterOper() {
+            return subSessions != null ? subSessions.osess : wsess;
+        }
+
         public DiffIterateResultFlag iterate(
             ConfObject[] kp,
             DiffIterateOperFlag op,
@@ -849,7 +1758,7 @@ public class IPAddressAllocator implements ApplicationComponent {
                     if (r.type == Type.ALLOC && kp.length <= 5) {
                         LOGGER.debug("ALLOC");
                         ConfValue v =
-                            wsess.getElem(r.path+"/"+
+                            iterOper().getElem(r.path+"/"+
                                           ipaddressAllocator._response_ + "/"
                                           +ipaddressAllocator._subnet_);
                         r.response = v;
@@ -860,11 +1769,12 @@ public class IPAddressAllocator implements ApplicationComponent {
                            itype == Type.ALLOC &&
                            kp.length == 7) {
                     ConfPath requestp = new ConfPath(Arrays.copyOfRange(kp,2,kp.length));
-                    if (wsess.exists(requestp+"/"+ipaddressAllocator._response_+ "/"
+                    CdbSession osess = iterOper();
+                    if (osess.exists(requestp+"/"+ipaddressAllocator._response_+ "/"
                                      +ipaddressAllocator._subnet_)) {
                         LOGGER.debug("An allocation already exists, removing old");
                         ConfValue v =
-                            wsess.getElem(requestp+"/"+
+                            osess.getElem(requestp+"/"+
                                           ipaddressAllocator._response_ + "/"
                                           +ipaddressAllocator._subnet_);
                         r.response = v;
@@ -910,24 +1820,6 @@ public class IPAddressAllocator implements ApplicationComponent {
         }
     }
 
-    private static class SubnetComparator implements Comparator<Subnet> {
-        public int compare(Subnet o1, Subnet o2) {
-            /* Order first by mask */
-            if (o1.getCIDRMask() == o2.getCIDRMask()) {
-                /* Order by address next */
-                byte[] bo1 = o1.getAddress().getAddress();
-                byte[] bo2 = o2.getAddress().getAddress();
-                for (int i = 0; i < bo1.length; i++) {
-                    if (bo1[i] != bo2[i]) {
-                        return (bo1[i] & 0xff) - (bo2[i] & 0xff);
-                    }
-                }
-            }
-            /* Order subnets from narrowest to widest */
-            return o2.getCIDRMask() - o1.getCIDRMask();
-        }
-    }
-
     public static void subnetRequest(NavuNode service,
                                      String poolName,
                                      String username,
@@ -1040,6 +1932,261 @@ public class IPAddressAllocator implements ApplicationComponent {
         }
     }
 
+    /**
+     * Create or update a number of IP subnet allocation requests of the
+     * same size in one go.
+     *
+     * Instead of applying the allocation template once per id, the
+     * requests are written directly in the service transaction, so
+     * they are still owned by the service the way template changes
+     * are. The allocator serves the whole batch in one pass, with
+     * adjacent subnets where the pool has room, and redeploys the
+     * service once.
+     *
+     * @param context     <code>ServiceContext</code> referencing the
+     *                    requesting context that the service was invoked in.
+     * @param service     <code>NavuNode</code> referencing the requesting
+     *                    service node
+     * @param poolName    name of pool to request from
+     * @param username    username to use when redeploying the requesting
+     *                    service
+     * @param cidrmask    CIDR mask length of the requested subnets
+     * @param ids         unique allocation ids
+     * @param invertCidr  take cidrmask as the number of host bits
+     * @throws ResourceErrorException if the pool does not exist
+     */
+    public static void subnetRequestBatch(ServiceContext context,
+                                          NavuNode service,
+                                          String poolName,
+                                          String username,
+                                          int cidrmask,
+                                          String[] ids,
+                                          boolean invertCidr)
+        throws ResourceErrorException {
+        subnetRequestBatch(service, poolName, username, cidrmask, ids,
+                           invertCidr);
+    }
+
+    /**
+     * Create or update a number of IP subnet allocation requests of the
+     * same size in one go.
+     *
+     * @param service     <code>NavuNode</code> referencing the requesting
+     *                    service node. Make sure that this is the node you
+     *                    get in your service create!
+     * @param poolName    name of pool to request from
+     * @param username    username to use when redeploying the requesting
+     *                    service
+     * @param cidrmask    CIDR mask length of the requested subnets
+     * @param ids         unique allocation ids
+     * @param invertCidr  take cidrmask as the number of host bits
+     * @throws ResourceErrorException if the pool does not exist
+     * @see #subnetRequestBatch(ServiceContext, NavuNode, String, String,
+     *                          int, String[], boolean)
+     */
+    public static void subnetRequestBatch(NavuNode service,
+                                          String poolName,
+                                          String username,
+                                          int cidrmask,
+                                          String[] ids,
+                                          boolean invertCidr)
+        throws ResourceErrorException {
+        NavuContainer pool;
+        try {
+            pool = new NavuContainer(service.context()).
+                container(resourceAllocator.hash).
+                container(resourceAllocator._resource_pools).
+                list(ipaddressAllocator.prefix,
+                     ipaddressAllocator._ip_address_pool_).
+                elem(poolName);
+        } catch (Exception e) {
+            throw new ResourceErrorException("Unable to create allocation" +
+                                             " request", e);
+        }
+
+        if (pool == null) {
+            throw new ResourceErrorException("Pool does not exist");
+        }
+
+        try {
+            ConfObjectRef owner =
+                new ConfObjectRef(new ConfPath(service.getKeyPath()));
+            NavuList allocations =
+                pool.list(ipaddressAllocator._allocation_);
+
+            for (String id : ids) {
+                NavuContainer alloc = allocations.sharedCreate(id);
+                alloc.leaf(ipaddressAllocator._username_).sharedSet(username);
+                alloc.leaf(ipaddressAllocator._allocating_service_).
+                    sharedSet(owner);
+                NavuContainer request =
+                    alloc.container(ipaddressAllocator._request_);
+                request.leaf(ipaddressAllocator._subnet_size_).
+                    sharedSet(new ConfUInt8(cidrmask));
+                if (invertCidr) {
+                    request.leaf(ipaddressAllocator._invert_subnet_size_).
+                        sharedCreate();
+                }
+            }
+        } catch (Exception e) {
+            throw new ResourceErrorException("Unable to create allocation" +
+                                             " request", e);
+        }
+    }
+
+    /**
+     * Create an IP subnet allocation request and get the subnet right
+     * away, from within the service create().
+     *
+     * The subnet is reserved in the pool of the allocator running in
+     * this VM, so the service does not have to wait to be redeployed.
+     * The reservation is confirmed when the transaction is committed,
+     * and given back if it is not committed within
+     * resource-manager.reservation-timeout milliseconds (ten minutes by
+     * default). If the request has been committed before with the same
+     * size, its response is returned as by subnetRead().
+     *
+     * The allocator is not told when the transaction is aborted, e.g.
+     * on a validation error or after a commit dry-run, which also runs
+     * the service create(). The reserved subnet is then taken until the
+     * timeout has passed and the pool is next used, by subnetAllocate()
+     * or by a committed request. Services that are often dry-run should
+     * use subnetRequest(), or set a shorter timeout.
+     *
+     * @param context   <code>ServiceContext</code> referencing the requesting
+     *                  context that the service was invoked in.
+     * @param service   <code>NavuNode</code> referencing the requesting
+     *                  service node
+     * @param cdb       a <code>Cdb</code> resource
+     * @param poolName  name of pool to request from
+     * @param username  username to use when redeploying the requesting service
+     * @param cidrmask  CIDR mask length of requested subnet
+     * @param id        unique allocation id
+     * @return          the allocated subnet
+     * @throws ResourceErrorException if the allocation has failed or the
+     *                                pool does not exist
+     * @throws ResourceWaitException if the subnet cannot be had right
+     *         away, e.g. on an HA slave. The request is then served as if
+     *         made by subnetRequest().
+     */
+    public static ConfIPPrefix subnetAllocate(ServiceContext context,
+                                              NavuNode service,
+                                              Cdb cdb,
+                                              String poolName,
+                                              String username,
+                                              int cidrmask,
+                                              String id)
+        throws ResourceException, ConfException, IOException {
+        subnetRequest(context, service, poolName, username, cidrmask, id);
+        return reserveSubnet(service, cdb, poolName, username, cidrmask, id);
+    }
+
+    /**
+     * Create an IP subnet allocation request and get the subnet right
+     * away, from within the service create().
+     *
+     * @see #subnetAllocate(ServiceContext, NavuNode, Cdb, String, String,
+     *                      int, String)
+     */
+    public static ConfIPPrefix subnetAllocate(NavuNode service,
+                                              Cdb cdb,
+                                              String poolName,
+                                              String username,
+                                              int cidrmask,
+                                              String id)
+        throws ResourceException, ConfException, IOException {
+        subnetRequest(service, poolName, username, cidrmask, id);
+        return reserveSubnet(service, cdb, poolName, username, cidrmask, id);
+    }
+
+    private static ConfIPPrefix reserveSubnet(NavuNode service, Cdb cdb,
+                                              String poolName,
+                                              String username,
+                                              int cidrmask, String id)
+        throws ResourceException, ConfException, IOException {
+        AllocStatus alloc = readAllocation(cdb, poolName, id);
+        if (alloc != null) {
+            /* Committed before, so the allocator has seen it. */
+            if (alloc.subnet == null) {
+                return subnetRead(cdb, poolName, id);
+            }
+            if (((ConfIPPrefix) alloc.subnet).getMaskLength() == cidrmask) {
+                return (ConfIPPrefix) alloc.subnet;
+            }
+            /* The size is changed in this transaction, reserve anew. */
+        }
+
+        IPAddressAllocator allocator = running;
+        if (allocator == null) {
+            throw new ResourceWaitException("IP address allocator not"
+                                            + " running");
+        }
+
+        return allocator.reserve(poolName, id,
+                                 new ConfPath(service.getKeyPath()).toString(),
+                                 username, cidrmask);
+    }
+
+    /*
+     * Reserve a subnet for allocation id of poolName on behalf of the
+     * service transaction calling subnetAllocate(), or return the one
+     * already reserved for it.
+     */
+    private ConfIPPrefix reserve(String poolName, String id, String owner,
+                                 String username, int cidrmask)
+        throws ResourceException, ConfException {
+        if (!isMaster) {
+            throw new ResourceWaitException("Not HA master");
+        }
+
+        Pool pool = null;
+        for (Pool p : pools) {
+            if (p.ipPool.getName().equals(poolName)) {
+                pool = p;
+                break;
+            }
+        }
+
+        if (pool == null) {
+            /* Possibly created in the same transaction. */
+            throw new ResourceWaitException(
+                String.format("Pool %s not loaded", poolName));
+        }
+
+        synchronized (pool) {
+            pool.expireReservations();
+
+            Reservation r = pool.reservations.get(id);
+            if (r != null &&
+                r.allocation.getAllocated().getCIDRMask() != cidrmask) {
+                pool.reservations.remove(id);
+                pool.releaseReservation(id, r);
+                r = null;
+            }
+
+            if (r == null) {
+                try {
+                    r = new Reservation(
+                            pool.ipPool.allocate(cidrmask, owner, username,
+                                                 id));
+                } catch (AddressPoolException e) {
+                    throw new ResourceErrorException(e.toString());
+                }
+                pool.reservations.put(id, r);
+                LOGGER.debug(String.format("Reserved %s for %s in %s",
+                                           r.allocation.getAllocated(), id,
+                                           poolName));
+            }
+
+            Subnet net = r.allocation.getAllocated();
+            if (net.getAddress() instanceof Inet6Address) {
+                return new ConfIPv6Prefix(net.toString());
+            } else {
+                return new ConfIPv4Prefix(net.toString());
+            }
+        }
+    }
+
     /**
      * Check if response is ready
      *
@@ -1088,7 +2235,7 @@ public class IPAddressAllocator implements ApplicationComponent {
         int requestedSize = (int) ((ConfUInt32)transSize.value()).longValue();
 
         /* Get allocation response oper data */
-        AllocStatus alloc = cdbAllocation(cdb, poolName, id);
+        AllocStatus alloc = readAllocation(cdb, poolName, id);
 
         if (alloc == null) {
             return false;
@@ -1123,7 +2270,7 @@ public class IPAddressAllocator implements ApplicationComponent {
     public static ConfIPPrefix subnetRead(Cdb cdb, String poolName, String id)
         throws ResourceException, NavuException, ConfException, IOException {
 
-        AllocStatus alloc = cdbAllocation(cdb, poolName, id);
+        AllocStatus alloc = readAllocation(cdb, poolName, id);
 
         if (alloc == null) {
             throw new ResourceErrorException(String.format("No such" +
@@ -1152,7 +2299,7 @@ public class IPAddressAllocator implements ApplicationComponent {
     public static ConfIPPrefix fromRead(Cdb cdb, String poolName, String id)
         throws ResourceException, NavuException, ConfException, IOException {
 
-        AllocStatus alloc = cdbAllocation(cdb, poolName, id);
+        AllocStatus alloc = readAllocation(cdb, poolName, id);
 
         if (alloc == null) {
             throw new ResourceErrorException(
@@ -1167,6 +2314,44 @@ public class IPAddressAllocator implements ApplicationComponent {
         }
     }
 
+    /*
+     * RESPONSES, if it is kept up to date: only while the allocator
+     * runs in this VM as HA master. Otherwise null.
+     */
+    private static ResponseCache<AllocStatus> responseCache() {
+        IPAddressAllocator allocator = running;
+        if (allocator == null || !allocator.isMaster) {
+            return null;
+        }
+        return RESPONSES;
+    }
+
+    /*
+     * The response of an allocation from the cache, or read from CDB
+     * and cached if it is answered.
+     */
+    private static AllocStatus readAllocation(Cdb cdb, String poolName,
+                                              String id)
+        throws NavuException, ResourceErrorException, ConfException,
+               IOException {
+        ResponseCache<AllocStatus> cache = responseCache();
+        if (cache == null) {
+            return cdbAllocation(cdb, poolName, id);
+        }
+
+        AllocStatus alloc = cache.get(poolName, id);
+        if (alloc != null) {
+            return alloc;
+        }
+
+        long epoch = cache.epoch();
+        alloc = cdbAllocation(cdb, poolName, id);
+        if (alloc != null && (alloc.subnet != null || alloc.error != null)) {
+            cache.putIfCurrent(poolName, id, alloc, epoch);
+        }
+        return alloc;
+    }
+
     private static AllocStatus cdbAllocation(Cdb cdb, String poolName,
                                              String id)
         throws NavuException, ResourceErrorException, ConfException, IOException
@@ -1247,19 +2432,27 @@ public class IPAddressAllocator implements ApplicationComponent {
 
         private ArrayList<Request> reqs;
         private CdbSession wsess;
+        /* Filled in with the services to redeploy after the flush */
+        private HashSet<ToRedeploy> redeps;
 
-        public RequestThread(ArrayList<Request> reqs, CdbSession wsess){
+        public RequestThread(ArrayList<Request> reqs, CdbSession wsess,
+                             HashSet<ToRedeploy> redeps) {
             this.reqs = reqs;
             this.wsess = wsess;
+            this.redeps = redeps;
         }
 
         @Override
         public void run() {
+            long started = System.nanoTime();
             try {
-                HashSet<ToRedeploy> redeps = new HashSet<ToRedeploy>();
                 ArrayList<Pool> modifiedPools = new ArrayList<Pool>();
                 ArrayList<Request> reallocReqs = new ArrayList<Request>();
 
+                for (Pool p : pools) {
+                    p.expireReservations();
+                }
+
                 /*
                  * Order to do process operations
                  *
@@ -1302,7 +2495,7 @@ public class IPAddressAllocator implements ApplicationComponent {
                         pool.availables.getAvailablesPath() + "/../" +
                         ipaddressAllocator._subnet_;
 
-                    List<Subnet> subnets = req.getSubnets();
+                    Iterable<Subnet> subnets = req.getSubnets();
 
                     for (Subnet sub : subnets) {
                         String subnetPath = String.format("%s{%s %d}",
@@ -1369,6 +2562,10 @@ public class IPAddressAllocator implements ApplicationComponent {
                         }
                     }
 
+                    if (pool == null && req.type == Type.HOST_BITMAP) {
+                        /* Created or deleted along with the pool */
+                        continue;
+                    }
                     if (pool == null &&
                         !(req.type == Type.POOL &&
                           req.op == Operation.CREATE)) {
@@ -1381,19 +2578,7 @@ public class IPAddressAllocator implements ApplicationComponent {
                     if (req.type == Type.POOL) {
                         if (req.op == Operation.CREATE) {
                             try {
-                                NavuContext context =
-                                    new NavuContext(maapi, tid);
-                                NavuContainer base =
-                                    new NavuContainer(context);
-                                NavuContainer root =
-                                    base.container(resourceAllocator.hash);
-                                NavuContainer resources =
-                                    root.container(resourceAllocator.prefix,
-                                        resourceAllocator._resource_pools_);
-                                NavuList ipaddressPool =
-                                    resources.list(ipaddressAllocator.prefix,
-                                        ipaddressAllocator._ip_address_pool_);
-                                createPool(ipaddressPool.elem(req.poolKey));
+                                createPool(poolConfig(req.poolKey));
                             } catch (Exception e) {
                                 LOGGER.error("Failed to create pool", e);
                             }
@@ -1402,6 +2587,9 @@ public class IPAddressAllocator implements ApplicationComponent {
                             try {
                                 pool.ipPool.clearAllAlarms();
                                 pools.remove(pool);
+                                stats.removePool(pool.ipPool.getName());
+                                RESPONSES.removePool(pool.ipPool.getName());
+                                pool.discardWrites();
                                 /* Delete CDB oper structures for pool */
                                 wsess.delete(pool.availables.getAvailablesPath()
                                              + "/..");
@@ -1417,7 +2605,7 @@ public class IPAddressAllocator implements ApplicationComponent {
                             pool.availables.getAvailablesPath() + "/../" +
                             ipaddressAllocator._subnet_;
 
-                        List<Subnet> subnets = req.getSubnets();
+                        Iterable<Subnet> subnets = req.getSubnets();
                         for (Subnet sub : subnets) {
                             String subnetPath =
                                 String.format("%s{%s %d}", cdbSubnetPath,
@@ -1543,13 +2731,14 @@ public class IPAddressAllocator implements ApplicationComponent {
                              * Delete:
                              * Clean up oper data, and de-allocate
                              */
+                            uncacheResponse(req.path);
                             try {
                                 try {
-                                    wsess.setCase(
+                                    stats.setCase(wsess,
                                         ipaddressAllocator._response_choice_,
                                         null, req.path+"/"+ipaddressAllocator.
                                         _response_);
-                                    wsess.delete(
+                                    stats.delete(wsess,
                                         req.path + "/"+ipaddressAllocator.
                                         _response_+"/"+ipaddressAllocator.
                                         _subnet_);
@@ -1562,7 +2751,7 @@ public class IPAddressAllocator implements ApplicationComponent {
                                 }
 
                                 try {
-                                    wsess.delete(
+                                    stats.delete(wsess,
                                         req.path + "/"+ipaddressAllocator.
                                         _response_+"/"+ipaddressAllocator.
                                         _error_);
@@ -1600,6 +2789,18 @@ public class IPAddressAllocator implements ApplicationComponent {
                     } else if (req.type == Type.ALARMS_THRESHOLD) {
                         LOGGER.debug("Update alarm threshold");
                         pool.ipPool.setThreshold(req.alarmThreshold);
+                    } else if (req.type == Type.HOST_BITMAP) {
+                        boolean hostBitmap = req.op == Operation.CREATE;
+                        if (hostBitmap ==
+                            (pool.ipPool instanceof HostBitmapPool)) {
+                            /* The pool was created in this mode */
+                            continue;
+                        }
+                        try {
+                            switchMode(pool, poolConfig(req.poolKey));
+                        } catch (Exception e) {
+                            LOGGER.error("Failed to change pool mode", e);
+                        }
                     }
                 }
 
@@ -1611,7 +2812,8 @@ public class IPAddressAllocator implements ApplicationComponent {
 
                 /* Finally do all new allocations */
 
-                for (Request req : reqs) {
+                for (int i = 0; i < reqs.size(); i++) {
+                    Request req = reqs.get(i);
 
                     if (req.type == Type.ALLOC && req.op == Operation.CREATE) {
                         Pool pool = null;
@@ -1629,8 +2831,29 @@ public class IPAddressAllocator implements ApplicationComponent {
                             continue;
                         }
 
-                        req.pool = pool;
-                        allocateAddress(redeps, req, false);
+                        /*
+                         * New allocations in the same pool that follow
+                         * each other, e.g. from subnetRequestBatch(), are
+                         * served together.
+                         */
+                        List<Request> run = new ArrayList<Request>();
+                        for (int j = i; j < reqs.size(); j++) {
+                            Request r = reqs.get(j);
+                            if (r.type != Type.ALLOC ||
+                                r.op != Operation.CREATE ||
+                                !r.poolKey.equals(req.poolKey)) {
+                                break;
+                            }
+                            run.add(r);
+                        }
+
+                        if (run.size() > 1) {
+                            allocateAddresses(redeps, pool, run);
+                            i += run.size() - 1;
+                        } else {
+                            req.pool = pool;
+                            allocateAddress(redeps, req, false);
+                        }
                     } else {
                         continue;
                     }
@@ -1691,12 +2914,6 @@ public class IPAddressAllocator implements ApplicationComponent {
                             }
                         }
                     }
-
-                    LOGGER.debug("REDEPLOYING....");
-
-                    /* invoke redeploy */
-                    NSOUtil.redeploy(redeps);
-
             }
             catch (ConfException e) {
                 if (e.getCause() instanceof java.io.EOFException) {
@@ -1715,6 +2932,8 @@ public class IPAddressAllocator implements ApplicationComponent {
                 LOGGER.error("", e);
             } catch (Throwable e) {
                 LOGGER.error("", e);
+            } finally {
+                stats.workerDone(started);
             }
         }
     }
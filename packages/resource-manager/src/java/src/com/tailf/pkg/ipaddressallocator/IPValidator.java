@@ -4,6 +4,7 @@ import com.tailf.pkg.ipaddressallocator.namespaces.ipaddressAllocator;
 import com.tailf.pkg.ipam.Subnet;
 import com.tailf.pkg.ipam.exceptions.InvalidNetmaskException;
 import com.tailf.pkg.ipam.util.InetAddressRange;
+import com.tailf.pkg.ipam.util.IntervalIndex;
 import com.tailf.pkg.resourcemanager.namespaces.resourceAllocator;
 import com.tailf.conf.*;
 import com.tailf.ncs.annotations.*;
@@ -15,20 +16,31 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.Hashtable;
-import java.util.Vector;
 
 import org.apache.log4j.Logger;
 
 public class IPValidator {
     private static final Logger LOGGER = Logger.getLogger(IPValidator.class);
 
-    private Hashtable<ConfKey, Vector<Entry>> subnetCache;
-    private Hashtable<ConfKey, Vector<Entry>> excludeCache;
-    private Hashtable<ConfKey, Vector<Entry>> rangeCache;
+    private static final String SUBNET_PATH =
+        "/resource-pools/ip-address-pool{%x}/subnet";
+    private static final String EXCLUDE_PATH =
+        "/resource-pools/ip-address-pool{%x}/exclude";
+    private static final String RANGE_PATH =
+        "/resource-pools/ip-address-pool{%x}/range";
 
-    private class Entry {
-        Subnet subnet;
-        ConfKey key;
+    /*
+     * The subnets, excludes and ranges of each pool validated in the
+     * transaction, by key. Each list is read the first time it is
+     * needed and then used for every entry validated after that, as
+     * the transaction does not change while it is being validated.
+     */
+    private Hashtable<ConfKey, PoolCache> cache;
+
+    private class PoolCache {
+        IntervalIndex<ConfKey> subnets;
+        IntervalIndex<ConfKey> excludes;
+        IntervalIndex<ConfKey> ranges;
     }
 
     @Resource(type=ResourceType.MAAPI, scope=Scope.INSTANCE,
@@ -48,9 +60,7 @@ public class IPValidator {
             int th = trans.getTransaction();
             maapi.attach(th, 0, trans.getUserInfo().getUserId());
 
-            subnetCache = new Hashtable<ConfKey, Vector<Entry>>();
-            excludeCache = new Hashtable<ConfKey, Vector<Entry>>();
-            rangeCache = new Hashtable<ConfKey, Vector<Entry>>();
+            cache = new Hashtable<ConfKey, PoolCache>();
             LOGGER.info("init");
         } catch (Exception e) { // IOException, MaapiException
             throw new DpCallbackException("Failed to attach via maapi", e);
@@ -67,60 +77,81 @@ public class IPValidator {
         }
     }
 
-    void addSubnetsToCache(Hashtable<ConfKey,Vector<Entry>> cache,
-                           ConfKey pool,
-                           String path,
-                           int th)
-        throws IOException, ConfException, InvalidNetmaskException {
+    IntervalIndex<ConfKey> readSubnets(ConfKey pool, String path, int th)
+        throws IOException, ConfException, InvalidNetmaskException,
+               UnknownHostException {
         MaapiCursor mc;
         ConfKey idx;
-        Vector<Entry> subnet = new Vector<Entry>();
+        IntervalIndex<ConfKey> subnets = new IntervalIndex<ConfKey>();
         mc = maapi.newCursor(th, path, pool);
         while ( (idx = maapi.getNext(mc)) != null) {
-            String addr = idx.elementAt(0).toString();
-            String mask = idx.elementAt(1).toString();
-            Subnet sub = new Subnet(addr, mask);
+            Subnet sub = keySubnet(idx);
             LOGGER.debug(String.format("Found %s subnet: %s", idx, sub));
-            Entry e = new Entry();
-            e.subnet = sub;
-            e.key = idx;
-            subnet.add(e);
+            subnets.add(sub, idx);
         }
-        cache.put(pool, subnet);
+        return subnets;
     }
 
-    void addRangeToCache(Hashtable<ConfKey, Vector<Entry>> cache,
-                         ConfKey pool,
-                         String path,
-                         int th)
-        throws IOException, ConfException, InvalidNetmaskException, UnknownHostException {
+    IntervalIndex<ConfKey> readRanges(ConfKey pool, String path, int th)
+        throws IOException, ConfException {
         MaapiCursor mc;
         ConfKey idx;
-        Vector<Entry> subnet = new Vector<Entry>();
+        IntervalIndex<ConfKey> ranges = new IntervalIndex<ConfKey>();
         mc = maapi.newCursor(th, path, pool);
         while ( (idx = maapi.getNext(mc)) != null) {
-            InetAddress addr1 = InetAddress.getByName(idx.elementAt(0).toString());
-            InetAddress addr2 = InetAddress.getByName(idx.elementAt(1).toString());
-            InetAddressRange range = new InetAddressRange(addr1, addr2);
-            for (Subnet s : range.getSubnets()) {
-                Entry e = new Entry();
-                e.subnet = s;
-                e.key = idx;
-                subnet.add(e);
-            }
+            ranges.add(keyRange(idx), idx);
         }
-        cache.put(pool, subnet);
+        return ranges;
     }
 
-    void buildCache(ConfKey pool, int th) {
-        LOGGER.debug(String.format("buildCache for pool %s", pool));
-        try {
-            addSubnetsToCache(subnetCache, pool, "/resource-pools/ip-address-pool{%x}/subnet", th);
-            addSubnetsToCache(excludeCache, pool, "/resource-pools/ip-address-pool{%x}/exclude", th);
-            addRangeToCache(rangeCache, pool, "/resource-pools/ip-address-pool{%x}/range", th);
-        } catch (Exception e) {
-            LOGGER.error("Error building cache", e);
+    private static Subnet keySubnet(ConfKey key)
+        throws UnknownHostException, InvalidNetmaskException {
+        return new Subnet(key.elementAt(0).toString(),
+                          key.elementAt(1).toString());
+    }
+
+    private static InetAddressRange keyRange(ConfKey key)
+        throws UnknownHostException {
+        InetAddress addr1 = InetAddress.getByName(key.elementAt(0).toString());
+        InetAddress addr2 = InetAddress.getByName(key.elementAt(1).toString());
+        return new InetAddressRange(addr1, addr2);
+    }
+
+    private PoolCache poolCache(ConfKey pool) {
+        PoolCache pc = cache.get(pool);
+        if (pc == null) {
+            LOGGER.debug(String.format("New cache for pool %s", pool));
+            pc = new PoolCache();
+            cache.put(pool, pc);
+        }
+        return pc;
+    }
+
+    IntervalIndex<ConfKey> subnets(ConfKey pool, int th)
+        throws IOException, ConfException, InvalidNetmaskException {
+        PoolCache pc = poolCache(pool);
+        if (pc.subnets == null) {
+            pc.subnets = readSubnets(pool, SUBNET_PATH, th);
+        }
+        return pc.subnets;
+    }
+
+    IntervalIndex<ConfKey> excludes(ConfKey pool, int th)
+        throws IOException, ConfException, InvalidNetmaskException {
+        PoolCache pc = poolCache(pool);
+        if (pc.excludes == null) {
+            pc.excludes = readSubnets(pool, EXCLUDE_PATH, th);
+        }
+        return pc.excludes;
+    }
+
+    IntervalIndex<ConfKey> ranges(ConfKey pool, int th)
+        throws IOException, ConfException {
+        PoolCache pc = poolCache(pool);
+        if (pc.ranges == null) {
+            pc.ranges = readRanges(pool, RANGE_PATH, th);
         }
+        return pc.ranges;
     }
 
     @ValidateCallback(callPoint = "ipa_validate",
@@ -142,13 +173,6 @@ public class IPValidator {
             if (tag.getTagHash() == ipaddressAllocator._ip_address_pool) {
                 pool = (ConfKey) kp[idx--];
                 tag = (ConfTag) kp[idx--];
-                if (! subnetCache.containsKey(pool)) {
-                    buildCache(pool, th);
-                }
-                Vector<Entry> subnetEntries = subnetCache.get(pool);
-                Vector<Entry> excludeEntries = excludeCache.get(pool);
-                Vector<Entry> rangeEntries = rangeCache.get(pool);
-                Subnet overlap = null;
 
                 switch (tag.getTagHash()) {
                     /*
@@ -160,34 +184,24 @@ public class IPValidator {
                     ConfKey exclude = (ConfKey) kp[idx--];
                     addr = exclude.elementAt(0).toString();
                     mask = exclude.elementAt(1).toString();
-                    boolean match = false;
 
                     try {
                         Subnet excl = new Subnet(addr, mask);
 
                         /* Make sure this exclusion is contained by some subnet */
-                        for (Entry e : subnetEntries) {
-                            if (e.subnet.contains(excl)) {
-                                match = true;
-                                break;
-                            }
-                        }
-                        if (match == false) {
+                        if (subnets(pool, th).findContaining(excl) == null) {
                             String s =
                                 String.format("No subnet contains exclusion %s in ip pool", excl);
                             throw new DpCallbackException(s);
                         }
 
                         /* Make sure this exclusion does not overlap any other exclusion */
-                        for (Entry e : excludeEntries) {
-                            if (e.key.equals(exclude)) {
-                                continue;
-                            }
-                            if (excl.overlaps(e.subnet)) {
-                                String s =
-                                    String.format("Exclusions %s and %s overlap", excl, e.subnet);
-                                throw new DpCallbackException(s);
-                            }
+                        ConfKey other =
+                            excludes(pool, th).findOverlapping(excl, exclude);
+                        if (other != null) {
+                            String s =
+                                String.format("Exclusions %s and %s overlap", excl, keySubnet(other));
+                            throw new DpCallbackException(s);
                         }
 
                     } catch (UnknownHostException e) {
@@ -196,6 +210,10 @@ public class IPValidator {
                     } catch (InvalidNetmaskException e) {
                         /* Can't happen, already checked in yang */
                         LOGGER.error("", e);
+                    } catch (IOException e) {
+                        throw new DpCallbackException("Failed to read pool", e);
+                    } catch (ConfException e) {
+                        throw new DpCallbackException("Failed to read pool", e);
                     }
                     return;
                 case ipaddressAllocator._subnet:
@@ -206,24 +224,20 @@ public class IPValidator {
                         Subnet subnet = new Subnet(addr, mask);
 
                         /* Make sure this subnet does not overlap any other subnet */
-                        for (Entry e : subnetEntries) {
-                            if (e.key.equals(subn)) {
-                                continue;
-                            }
-                            if (subnet.overlaps(e.subnet)) {
-                                String s =
-                                    String.format("Subnets %s and %s overlap", subnet, e.subnet);
-                                throw new DpCallbackException(s);
-                            }
+                        ConfKey other =
+                            subnets(pool, th).findOverlapping(subnet, subn);
+                        if (other != null) {
+                            String s =
+                                String.format("Subnets %s and %s overlap", subnet, keySubnet(other));
+                            throw new DpCallbackException(s);
                         }
 
                         /* Make sure this subnet does not overlap any range */
-                        for (Entry e : rangeEntries) {
-                            if (subnet.overlaps(e.subnet)) {
-                                String s = String.format("Subnet %s overlaps range %s",
-                                                         subnet, e.key);
-                                throw new DpCallbackException(s);
-                            }
+                        other = ranges(pool, th).findOverlapping(subnet, null);
+                        if (other != null) {
+                            String s = String.format("Subnet %s overlaps range %s",
+                                                     subnet, other);
+                            throw new DpCallbackException(s);
                         }
 
                     } catch (UnknownHostException e) {
@@ -232,38 +246,43 @@ public class IPValidator {
                     } catch (InvalidNetmaskException e) {
                         /* Can't happen, already checked in yang */
                         LOGGER.error("", e);
+                    } catch (IOException e) {
+                        throw new DpCallbackException("Failed to read pool", e);
+                    } catch (ConfException e) {
+                        throw new DpCallbackException("Failed to read pool", e);
                     }
                     return;
                 case ipaddressAllocator._range:
                     ConfKey rangeKey = (ConfKey) kp[idx--];
                     try {
-                        InetAddress addr1 = InetAddress.getByName(rangeKey.elementAt(0).toString());
-                        InetAddress addr2 = InetAddress.getByName(rangeKey.elementAt(1).toString());
-                        InetAddressRange range = new InetAddressRange(addr1, addr2);
-                        for (Subnet subnet : range.getSubnets()) {
-                            /* Make sure this part of the range does not overlap any subnet */
-                            for (Entry e : subnetEntries) {
-                                if (subnet.overlaps(e.subnet)) {
-                                    String s = String.format("Range %s overlaps subnet %s",
-                                                             rangeKey, e.subnet);
-                                throw new DpCallbackException(s);
-                                }
-                            }
-                            /* Make sure this part of the range does not overlap any other range */
-                            for (Entry e : rangeEntries) {
-                                if (e.key.equals(rangeKey)) {
-                                    continue;
-                                }
-                                if (subnet.overlaps(e.subnet)) {
-                                    String s = String.format("Range %s overlaps range %s",
-                                                             rangeKey, e.key);
-                                    throw new DpCallbackException(s);
-                                }
-                            }
+                        InetAddressRange range = keyRange(rangeKey);
+
+                        /* Make sure the range does not overlap any subnet */
+                        ConfKey other =
+                            subnets(pool, th).findOverlapping(range, null);
+                        if (other != null) {
+                            String s = String.format("Range %s overlaps subnet %s",
+                                                     rangeKey, keySubnet(other));
+                            throw new DpCallbackException(s);
+                        }
+
+                        /* Make sure the range does not overlap any other range */
+                        other = ranges(pool, th).findOverlapping(range, rangeKey);
+                        if (other != null) {
+                            String s = String.format("Range %s overlaps range %s",
+                                                     rangeKey, other);
+                            throw new DpCallbackException(s);
                         }
                     } catch (UnknownHostException e) {
                         /* Can't happen as we are only dealing with ip addresses */
                         LOGGER.error("", e);
+                    } catch (InvalidNetmaskException e) {
+                        /* Can't happen, already checked in yang */
+                        LOGGER.error("", e);
+                    } catch (IOException e) {
+                        throw new DpCallbackException("Failed to read pool", e);
+                    } catch (ConfException e) {
+                        throw new DpCallbackException("Failed to read pool", e);
                     }
                     return;
                 }
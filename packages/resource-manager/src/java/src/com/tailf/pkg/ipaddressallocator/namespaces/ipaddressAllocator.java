@@ -95,5 +95,7 @@ public class ipaddressAllocator extends ConfNamespace {
     public static final String _low_threshold_alarm_ = "low-threshold-alarm";
     public static final int    _allocation = 1779434013;
     public static final String _allocation_ = "allocation";
+    public static final int    _host_bitmap = 1657746596;
+    public static final String _host_bitmap_ = "host-bitmap";
     public static final String validate_ipa_validate = "ipa_validate";
 }
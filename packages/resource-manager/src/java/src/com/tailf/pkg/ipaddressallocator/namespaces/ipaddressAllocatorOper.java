@@ -65,4 +65,10 @@ public class ipaddressAllocatorOper extends ConfNamespace {
     public static final String _pool_ = "pool";
     public static final int    _allocation = 1779434013;
     public static final String _allocation_ = "allocation";
+    public static final int    _free_range = 1140941795;
+    public static final String _free_range_ = "free-range";
+    public static final int    _from = 261037251;
+    public static final String _from_ = "from";
+    public static final int    _to = 809436769;
+    public static final String _to_ = "to";
 }
@@ -0,0 +1,378 @@
+package com.tailf.pkg.ipam;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import com.tailf.pkg.ipam.exceptions.AddressPoolEmptyException;
+import com.tailf.pkg.ipam.exceptions.AddressPoolException;
+import com.tailf.pkg.ipam.exceptions.AddressPoolMaskInvalidException;
+import com.tailf.pkg.ipam.exceptions.AddressRequestNotAvailableException;
+import com.tailf.pkg.ipam.exceptions.InvalidNetmaskException;
+import com.tailf.pkg.ipam.util.HostBitmap;
+import com.tailf.pkg.ipam.util.InetAddressRange;
+import com.tailf.pkg.ipam.util.InetAddressValue;
+
+import org.apache.log4j.Logger;
+
+/**
+ * An IPv4 pool handing out single addresses only, for pools of many
+ * hosts where the subnets of IPAddressPool would end up as thousands of
+ * /32 to /25 availables.
+ *
+ * Taken addresses are kept in one HostBitmap per /8 with a free
+ * address, so finding the first free address does not depend on how
+ * fragmented the pool is. A pool may span any number of /8s; a /8 whose
+ * addresses are all taken has no bitmap until one is freed again.
+ * The network and broadcast addresses of the configured subnets are
+ * taken from the start. The free addresses are also kept as ranges,
+ * which is what goes into the operational data.
+ */
+public class HostBitmapPool extends IPAddressPool {
+
+    private static Logger LOGGER = Logger.getLogger(HostBitmapPool.class);
+
+    private static final long serialVersionUID = 0;
+
+    private static final int BLOCK_BITS = 24;   /* Addresses in a /8 */
+    private static final long MAX_ADDRESS = 0xffffffffL;
+
+    private NavigableSet<InetAddressRange> freeRanges;
+    private Set<Subnet> subnets;
+    private transient TreeMap<Integer, HostBitmap> bitmaps;
+
+    /**
+     * @param freeRanges  The free addresses, as non-adjacent ranges
+     *                    ordered by start address
+     */
+    public HostBitmapPool(String name,
+                          NavigableSet<InetAddressRange> freeRanges,
+                          Set<Allocation> allocations,
+                          Set<Subnet> subnets) {
+        super(name, new TreeSet<Subnet>(new SubnetComparator()),
+              allocations, subnets);
+        this.freeRanges = freeRanges;
+        this.subnets = subnets;
+    }
+
+    /* The bitmaps, one per /8 with a free address, set where taken. */
+    private TreeMap<Integer, HostBitmap> bitmaps() {
+        if (bitmaps == null) {
+            bitmaps = new TreeMap<Integer, HostBitmap>();
+            for (InetAddressRange r : freeRanges) {
+                changeBits(r.getStartValue().getLow(),
+                           r.getEndValue().getLow(), false);
+            }
+        }
+        return bitmaps;
+    }
+
+    /* Set (take) or clear (free) the bits of addresses from to to. */
+    private void changeBits(long from, long to, boolean taken) {
+        long pos = from;
+        while (pos <= to) {
+            int block = (int) (pos >>> BLOCK_BITS);
+            long blockEnd = ((long) (block + 1) << BLOCK_BITS) - 1;
+            long end = Math.min(to, blockEnd);
+
+            HostBitmap bitmap = bitmaps.get(block);
+            if (bitmap == null) {
+                if (taken) {
+                    pos = end + 1;
+                    continue;
+                }
+                bitmap = new HostBitmap(1 << BLOCK_BITS, true);
+                bitmaps.put(block, bitmap);
+            }
+
+            int fromIndex = (int) (pos - ((long) block << BLOCK_BITS));
+            int toIndex = (int) (end - ((long) block << BLOCK_BITS)) + 1;
+            if (taken) {
+                bitmap.set(fromIndex, toIndex);
+                if (bitmap.freeCount() == 0) {
+                    bitmaps.remove(block);
+                }
+            } else {
+                bitmap.clear(fromIndex, toIndex);
+            }
+            pos = end + 1;
+        }
+    }
+
+    private static InetAddressRange range(long from, long to) {
+        return new InetAddressRange(InetAddressValue.ipv4(from),
+                                    InetAddressValue.ipv4(to));
+    }
+
+    private static long start(InetAddressRange r) {
+        return r.getStartValue().getLow();
+    }
+
+    private static long end(InetAddressRange r) {
+        return r.getEndValue().getLow();
+    }
+
+    /* Add from to to to the free ranges, merging with neighbours. */
+    private void addFreeRange(long from, long to) {
+        InetAddressRange before = freeRanges.floor(range(from, MAX_ADDRESS));
+        if (before != null && end(before) + 1 >= from) {
+            if (end(before) >= to) {
+                return;
+            }
+            freeRanges.remove(before);
+            from = start(before);
+        }
+
+        InetAddressRange after;
+        while ((after = freeRanges.ceiling(range(from, from))) != null &&
+               start(after) <= to + 1) {
+            freeRanges.remove(after);
+            to = Math.max(to, end(after));
+        }
+
+        freeRanges.add(range(from, to));
+    }
+
+    /* Remove from to to from the free ranges, splitting at the ends. */
+    private void removeFreeRange(long from, long to) {
+        InetAddressRange before = freeRanges.floor(range(from, MAX_ADDRESS));
+        if (before != null && end(before) >= from) {
+            freeRanges.remove(before);
+            if (start(before) < from) {
+                freeRanges.add(range(start(before), from - 1));
+            }
+            if (end(before) > to) {
+                freeRanges.add(range(to + 1, end(before)));
+            }
+        }
+
+        InetAddressRange after;
+        while ((after = freeRanges.ceiling(range(from, from))) != null &&
+               start(after) <= to) {
+            freeRanges.remove(after);
+            if (end(after) > to) {
+                freeRanges.add(range(to + 1, end(after)));
+            }
+        }
+    }
+
+    private void free(long from, long to) {
+        changeBits(from, to, false);
+        addFreeRange(from, to);
+        stats.setFreeBlocks(freeRanges.size());
+    }
+
+    private void take(long from, long to) {
+        changeBits(from, to, true);
+        removeFreeRange(from, to);
+        stats.setFreeBlocks(freeRanges.size());
+    }
+
+    /*
+     * Take the network and broadcast addresses of the configured
+     * subnets between from and to, the same ones IPAddressPool avoids
+     * handing out.
+     */
+    private void reserveNetworkBroadcast(long from, long to) {
+        if (from == to) {
+            /* A released address, don't go through all subnets */
+            if (isNetworkBroadcast(from)) {
+                take(from, from);
+            }
+            return;
+        }
+
+        for (Subnet sub : subnets) {
+            InetAddressValue network = sub.getValue();
+            if (network.isIPv6() || sub.getCIDRMask() > 30) {
+                continue;
+            }
+            long na = network.getLow();
+            long ba = network.broadcast(sub.getCIDRMask()).getLow();
+            if (na >= from && na <= to) {
+                take(na, na);
+            }
+            if (ba >= from && ba <= to) {
+                take(ba, ba);
+            }
+        }
+    }
+
+    /*
+     * Whether address is the network or broadcast address of a
+     * configured subnet of /30 or wider. It can only be that for a
+     * subnet whose host bits in address are all clear or all set, so
+     * only those few subnets are looked up, and none for most
+     * addresses.
+     */
+    private boolean isNetworkBroadcast(long address) {
+        int zeros = Long.numberOfTrailingZeros(address | (1L << 32));
+        int ones = Long.numberOfTrailingZeros(~address);
+        for (int bits = 2; bits <= Math.max(zeros, ones); bits++) {
+            long network = address & ~((1L << bits) - 1);
+            try {
+                if (subnets.contains(
+                        new Subnet(InetAddressValue.ipv4(network),
+                                   InetAddressValue.WIDTH4 - bits))) {
+                    return true;
+                }
+            } catch (InvalidNetmaskException e) {
+                throw new Error(e); // Can't happen, /0 to /30 are valid
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public synchronized Allocation allocate(int cidr4,
+                                            int cidr6,
+                                            String owner,
+                                            String username,
+                                            String requestId)
+        throws AddressPoolException {
+        long t = stats.enter();
+        try {
+            if (cidr4 != InetAddressValue.WIDTH4) {
+                throw new AddressPoolMaskInvalidException(
+                    String.format("Pool %s only hands out single IPv4"
+                                  + " addresses", getName()));
+            }
+
+            for (Map.Entry<Integer, HostBitmap> entry : bitmaps().entrySet()) {
+                int pos = entry.getValue().firstClear();
+                long address = ((long) entry.getKey() << BLOCK_BITS) + pos;
+                take(address, address);
+
+                Allocation a;
+                try {
+                    Subnet host = new Subnet(InetAddressValue.ipv4(address),
+                                             InetAddressValue.WIDTH4);
+                    a = new Allocation(host, owner, username, requestId);
+                } catch (InvalidNetmaskException e) {
+                    throw new Error(e); // Can't happen, /32 is always valid
+                }
+                addAllocation(a);
+                reviewAlarms();
+                return a;
+            }
+
+            LOGGER.debug("Availables is empty!");
+            reviewAlarms();
+            throw new AddressPoolEmptyException();
+        } finally {
+            stats.exit(t);
+        }
+    }
+
+    /*
+     * Addresses are handed out lowest first, so a run is contiguous
+     * whenever the free addresses are.
+     */
+    @Override
+    public synchronized List<Allocation> allocateRun(int cidr4,
+                                                     int cidr6,
+                                                     String owner,
+                                                     String username,
+                                                     List<String> requestIds) {
+        long t = stats.enter();
+        try {
+            List<Allocation> result =
+                new ArrayList<Allocation>(requestIds.size());
+            if (cidr4 != InetAddressValue.WIDTH4) {
+                /* allocate() reports it to each of them */
+                return result;
+            }
+            try {
+                while (result.size() < requestIds.size()) {
+                    result.add(allocate(cidr4, cidr6, owner, username,
+                                        requestIds.get(result.size())));
+                }
+            } catch (AddressPoolEmptyException e) {
+                /* Fewer than asked for, the rest get the error */
+                ;
+            } catch (AddressPoolException e) {
+                throw new Error(e); // Can't happen, the mask is checked
+            }
+            return result;
+        } finally {
+            stats.exit(t);
+        }
+    }
+
+    @Override
+    public synchronized void addToAvailable(Subnet subnet) {
+        if (subnet == null) {
+            return;
+        }
+        InetAddressValue network = subnet.getValue();
+        if (network.isIPv6()) {
+            LOGGER.error(String.format("Ignoring IPv6 subnet %s in %s",
+                                       subnet, getName()));
+            return;
+        }
+
+        long from = network.getLow();
+        long to = network.broadcast(subnet.getCIDRMask()).getLow();
+        bitmaps();
+        free(from, to);
+        reserveNetworkBroadcast(from, to);
+    }
+
+    @Override
+    public synchronized void removeFromAvailable(Subnet subnet)
+        throws AddressPoolException {
+        if (subnet == null) {
+            return;
+        }
+        InetAddressValue network = subnet.getValue();
+        if (network.isIPv6()) {
+            return;
+        }
+        if (!getOverlappingAllocations(subnet).isEmpty()) {
+            String err =
+                String.format("Address %s is not an available subnet defined by the pool", subnet);
+            throw new AddressRequestNotAvailableException(err);
+        }
+
+        bitmaps();
+        take(network.getLow(),
+             network.broadcast(subnet.getCIDRMask()).getLow());
+    }
+
+    /**
+     * The free addresses, as the fewest subnets covering them.
+     */
+    @Override
+    public synchronized Collection<Subnet> getAvailables() {
+        List<Subnet> res = new ArrayList<Subnet>();
+        for (InetAddressRange r : freeRanges) {
+            for (Subnet subnet : r.subnets()) {
+                res.add(subnet);
+            }
+        }
+        return res;
+    }
+
+    public Collection<InetAddressRange> getFreeRanges() {
+        return freeRanges;
+    }
+
+    @Override
+    public synchronized boolean isEmpty() {
+        return getNumberOfAvailables() == 0;
+    }
+
+    @Override
+    public synchronized long getNumberOfAvailables() {
+        long n = 0;
+        for (HostBitmap bitmap : bitmaps().values()) {
+            n += bitmap.freeCount();
+        }
+        return n;
+    }
+}
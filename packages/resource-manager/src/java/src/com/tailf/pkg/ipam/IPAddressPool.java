@@ -4,8 +4,14 @@ import java.io.Serializable;
 import java.net.InetAddress;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 
 import com.tailf.conf.ConfIdentityRef;
 import com.tailf.pkg.ipam.exceptions.AddressNotAllocatedException;
@@ -14,7 +20,8 @@ import com.tailf.pkg.ipam.exceptions.AddressPoolException;
 import com.tailf.pkg.ipam.exceptions.AddressPoolMaskInvalidException;
 import com.tailf.pkg.ipam.exceptions.AddressRequestNotAvailableException;
 import com.tailf.pkg.ipam.exceptions.InvalidNetmaskException;
-import com.tailf.pkg.ipam.util.InetAddressRangeSet;
+import com.tailf.pkg.ipam.util.InetAddressValue;
+import com.tailf.pkg.ipam.util.SubnetWalk;
 
 import com.tailf.pkg.ipaddressallocator.namespaces.ipaddressAllocator;
 import com.tailf.pkg.nsoutil.Pool;
@@ -26,6 +33,23 @@ public class IPAddressPool extends Pool implements Serializable {
     private static Logger LOGGER = Logger.getLogger(IPAddressPool.class);
 
     private static final long serialVersionUID = 0;
+
+    private static final SubnetComparator SUBNET_ORDER =
+        new SubnetComparator();
+
+    /* By address family, IPv4 first, and then by address */
+    private static final Comparator<Subnet> ADDRESS_ORDER =
+        new Comparator<Subnet>() {
+            public int compare(Subnet o1, Subnet o2) {
+                InetAddressValue v1 = o1.getValue();
+                InetAddressValue v2 = o2.getValue();
+                if (v1.isIPv6() != v2.isIPv6()) {
+                    return v1.isIPv6() ? 1 : -1;
+                }
+                return v1.compareTo(v2);
+            }
+        };
+
     private Set<Subnet> subnets; /*
                                   * Original Subnets, avoid handing out
                                   * /32 and /128 network and broadcast
@@ -33,6 +57,8 @@ public class IPAddressPool extends Pool implements Serializable {
                                   */
     private Set<Subnet> availables;
     private Set<Allocation> allocations;
+    private transient FreeLists freeLists;
+    private transient AllocationIndex allocationIndex;
 
     private String name;
 
@@ -50,6 +76,207 @@ public class IPAddressPool extends Pool implements Serializable {
         this.availables = availables;
         this.allocations = allocations;
         this.subnets = subnets;
+
+        /*
+         * Older versions left free space split into more subnets than
+         * needed, which the buddy merging in addToAvailable() relies on
+         * not being the case.
+         */
+        if (!freeLists().isMinimal()) {
+            normalizeAvailables();
+        }
+    }
+
+    /**
+     * The available subnets, one free list per prefix length and address
+     * family, each ordered by address.
+     *
+     * It holds the same subnets as availables, which are always the
+     * fewest CIDR blocks covering the free addresses. So a free block can
+     * only grow by merging with its buddy, the other half of its parent,
+     * and allocating or releasing touches at most one block per prefix
+     * length.
+     */
+    private static class FreeLists {
+        private final List<TreeMap<InetAddressValue, Subnet>> ipv4 =
+            newLevels(InetAddressValue.WIDTH4);
+        private final List<TreeMap<InetAddressValue, Subnet>> ipv6 =
+            newLevels(InetAddressValue.WIDTH6);
+
+        private static List<TreeMap<InetAddressValue, Subnet>>
+            newLevels(int width) {
+            List<TreeMap<InetAddressValue, Subnet>> levels =
+                new ArrayList<TreeMap<InetAddressValue, Subnet>>(width + 1);
+            for (int i = 0; i <= width; i++) {
+                levels.add(new TreeMap<InetAddressValue, Subnet>());
+            }
+            return levels;
+        }
+
+        TreeMap<InetAddressValue, Subnet> level(boolean isIpv6, int prefix) {
+            return isIpv6 ? ipv6.get(prefix) : ipv4.get(prefix);
+        }
+
+        void add(Subnet s) {
+            level(s.getValue().isIPv6(), s.getCIDRMask()).put(s.getValue(), s);
+        }
+
+        void remove(Subnet s) {
+            level(s.getValue().isIPv6(), s.getCIDRMask()).remove(s.getValue());
+        }
+
+        Subnet get(InetAddressValue network, int prefix) {
+            return level(network.isIPv6(), prefix).get(network);
+        }
+
+        /**
+         * The free block containing a subnet, or null.
+         */
+        Subnet containing(InetAddressValue network, int prefix) {
+            for (int p = prefix; p >= 0; p--) {
+                Subnet s = get(network.network(p), p);
+                if (s != null) {
+                    return s;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * True if no two free blocks are buddies.
+         */
+        boolean isMinimal() {
+            return isMinimal(ipv4) && isMinimal(ipv6);
+        }
+
+        private static boolean isMinimal(
+            List<TreeMap<InetAddressValue, Subnet>> levels) {
+            for (int p = 1; p < levels.size(); p++) {
+                TreeMap<InetAddressValue, Subnet> level = levels.get(p);
+                for (InetAddressValue v : level.keySet()) {
+                    if (level.containsKey(buddy(v, p))) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        void clear() {
+            for (Map<InetAddressValue, Subnet> level : ipv4) {
+                level.clear();
+            }
+            for (Map<InetAddressValue, Subnet> level : ipv6) {
+                level.clear();
+            }
+        }
+    }
+
+    /**
+     * The allocations by network address, one map per address family.
+     * Allocations never overlap, so at most one of them can start below
+     * a subnet and still overlap it.
+     */
+    private static class AllocationIndex {
+        private final TreeMap<InetAddressValue, Allocation> ipv4 =
+            new TreeMap<InetAddressValue, Allocation>();
+        private final TreeMap<InetAddressValue, Allocation> ipv6 =
+            new TreeMap<InetAddressValue, Allocation>();
+
+        private TreeMap<InetAddressValue, Allocation> map(
+            InetAddressValue v) {
+            return v.isIPv6() ? ipv6 : ipv4;
+        }
+
+        void add(Allocation a) {
+            InetAddressValue v = a.getAllocated().getValue();
+            map(v).put(v, a);
+        }
+
+        void remove(Allocation a) {
+            InetAddressValue v = a.getAllocated().getValue();
+            if (map(v).get(v) == a) {
+                map(v).remove(v);
+            }
+        }
+
+        Allocation get(InetAddressValue v) {
+            return map(v).get(v);
+        }
+
+        List<Allocation> overlapping(Subnet subnet) {
+            InetAddressValue network = subnet.getValue();
+            TreeMap<InetAddressValue, Allocation> map = map(network);
+            List<Allocation> res = new ArrayList<Allocation>();
+
+            Map.Entry<InetAddressValue, Allocation> below =
+                map.lowerEntry(network);
+            if (below != null &&
+                below.getValue().getAllocated().contains(subnet)) {
+                res.add(below.getValue());
+            }
+
+            res.addAll(map.subMap(network, true,
+                                  network.broadcast(subnet.getCIDRMask()),
+                                  true).values());
+            return res;
+        }
+
+        void clear() {
+            ipv4.clear();
+            ipv6.clear();
+        }
+    }
+
+    /**
+     * The other half of the parent of the block at network/prefix.
+     */
+    private static InetAddressValue buddy(InetAddressValue network,
+                                          int prefix) {
+        InetAddressValue parent = network.network(prefix - 1);
+        return parent.equals(network) ? network.setBit(prefix - 1) : parent;
+    }
+
+    private FreeLists freeLists() {
+        if (freeLists == null) {
+            freeLists = new FreeLists();
+            for (Subnet s : availables) {
+                freeLists.add(s);
+            }
+        }
+        return freeLists;
+    }
+
+    private AllocationIndex allocationIndex() {
+        if (allocationIndex == null) {
+            allocationIndex = new AllocationIndex();
+            for (Allocation a : allocations) {
+                allocationIndex.add(a);
+            }
+        }
+        return allocationIndex;
+    }
+
+    private void addAllocated(Allocation a) {
+        allocations.add(a);
+        allocationIndex().add(a);
+    }
+
+    private void removeAllocated(Allocation a) {
+        allocations.remove(a);
+        allocationIndex().remove(a);
+    }
+
+    private void addAvailable(Subnet s) {
+        availables.add(s);
+        freeLists().add(s);
+        stats.setFreeBlocks(availables.size());
+    }
+
+    private void removeAvailable(Subnet s) {
+        availables.remove(s);
+        freeLists().remove(s);
+        stats.setFreeBlocks(availables.size());
     }
 
     public String getName() {
@@ -74,51 +301,114 @@ public class IPAddressPool extends Pool implements Serializable {
                                             String username,
                                             String requestId)
         throws AddressPoolException {
-        /*
-         * Iterate through available subnets. The set is ordered from
-         * narrowest to widest so we will choose the narrowest subnet
-         * that fits the requested size.
-         */
-        for (Subnet availableSubnet : availables) {
-            int cidr;
-
-            InetAddress address = availableSubnet.getAddress();
-            if (address instanceof Inet4Address) {
-                cidr = cidr4;
-            } else if (address instanceof Inet6Address) {
-                cidr = cidr6;
-            } else {
-                throw new Error("Unsupported IP version");
+        long t = stats.enter();
+        try {
+            /*
+             * Take the narrowest available subnet that fits the requested size,
+             * the one with the lowest address if there are several, and the
+             * one first in SubnetComparator order if both address families
+             * have one.
+             */
+            Subnet source4 = findFree(false, cidr4);
+            Subnet source6 = findFree(true, cidr6);
+            Subnet source = source4;
+            if (source == null ||
+                (source6 != null && SUBNET_ORDER.compare(source6, source4) < 0)) {
+                source = source6;
+            }
+
+            if (source != null) {
+                return allocateFrom(source, source == source4 ? cidr4 : cidr6,
+                                    owner, username, requestId);
             }
 
-            if (availableSubnet.getCIDRMask() == cidr &&
-                notNetworkBroadcast(availableSubnet, cidr)) {
-                availables.remove(availableSubnet);
-                allocations.add(new Allocation(availableSubnet, owner, username, requestId));
+            /* If we get here, then there is no room in the pool for the requested subnet */
+
+            StringBuffer availMasks = new StringBuffer();
+            for (Subnet availSubnet : availables) {
+                int msk = availSubnet.getCIDRMask();
+                if ((msk != 30) && (msk != 31) && (msk != 32)) {
+                    availMasks.append(msk + " ");
+                }
+            }
+            if (availMasks.length() == 0) { // Empty pool
+                LOGGER.debug("Availables is empty!");
                 reviewAlarms();
-                return new Allocation(availableSubnet, owner, username, requestId);
-            } else if (availableSubnet.getCIDRMask() < cidr) {
-                return allocateFrom(availableSubnet, cidr, owner, username, requestId);
+                throw new AddressPoolEmptyException();
+            } else {
+                String err = String.format("Requested subnet is too big. Available prefix lengths: %s",
+                                           availMasks.toString());
+                throw new AddressPoolMaskInvalidException(err);
             }
+        } finally {
+            stats.exit(t);
         }
+    }
 
-        /* If we get here, then there is no room in the pool for the requested subnet */
+    /**
+     * Allocates a subnet for each of requestIds at once. If some free
+     * block can hold them all they are taken one after the other from
+     * it, the narrowest such block with the lowest address, otherwise
+     * they are allocated one by one as by allocate(). Fewer allocations
+     * than requestIds are returned if the pool cannot hold them all.
+     */
+    public synchronized List<Allocation> allocateRun(int cidr4,
+                                                     int cidr6,
+                                                     String owner,
+                                                     String username,
+                                                     List<String> requestIds) {
+        long t = stats.enter();
+        try {
+            List<Allocation> result =
+                new ArrayList<Allocation>(requestIds.size());
 
-        StringBuffer availMasks = new StringBuffer();
-        for (Subnet availSubnet : availables) {
-            int msk = availSubnet.getCIDRMask();
-            if ((msk != 30) && (msk != 31) && (msk != 32)) {
-                availMasks.append(msk + " ");
+            /* The prefix length of a block holding all of them */
+            int bits = 0;
+            while ((1L << bits) < requestIds.size()) {
+                bits++;
             }
-        }
-        if (availMasks.length() == 0) { // Empty pool
-            LOGGER.debug("Availables is empty!");
-            reviewAlarms();
-            throw new AddressPoolEmptyException();
-        } else {
-            String err = String.format("Requested subnet is too big. Available prefix lengths: %s",
-                                       availMasks.toString());
-            throw new AddressPoolMaskInvalidException(err);
+
+            Subnet source4 = findFree(false, cidr4 - bits);
+            Subnet source6 = findFree(true, cidr6 - bits);
+            Subnet source = source4;
+            if (source == null ||
+                (source6 != null && SUBNET_ORDER.compare(source6, source4) < 0)) {
+                source = source6;
+            }
+
+            if (source != null) {
+                int cidr = source == source4 ? cidr4 : cidr6;
+                InetAddressValue next = source.getValue();
+                while (result.size() < requestIds.size()) {
+                    /*
+                     * Allocating from a block leaves the rest of it free
+                     * as blocks starting right after the allocated subnet.
+                     */
+                    Subnet block = freeLists().containing(next, cidr);
+                    if (block == null || !block.getValue().equals(next) ||
+                        (block.getCIDRMask() == cidr &&
+                         !notNetworkBroadcast(block, cidr))) {
+                        break;
+                    }
+                    Allocation a = allocateFrom(block, cidr, owner, username,
+                                                requestIds.get(result.size()));
+                    result.add(a);
+                    next = a.getAllocated().getValue()
+                        .broadcast(cidr).addOne();
+                }
+            }
+
+            while (result.size() < requestIds.size()) {
+                try {
+                    result.add(allocate(cidr4, cidr6, owner, username,
+                                        requestIds.get(result.size())));
+                } catch (AddressPoolException e) {
+                    break;
+                }
+            }
+            return result;
+        } finally {
+            stats.exit(t);
         }
     }
 
@@ -153,63 +443,75 @@ public class IPAddressPool extends Pool implements Serializable {
         return true;
     }
 
+    /**
+     * The free block to allocate a subnet of the given prefix length from,
+     * or null if there is none.
+     */
+    private Subnet findFree(boolean isIpv6, int cidr) {
+        int width = isIpv6 ? InetAddressValue.WIDTH6 : InetAddressValue.WIDTH4;
+        if (cidr < 0 || cidr > width) {
+            return null;
+        }
+
+        /* An exact fit, unless it is a network or broadcast address */
+        for (Subnet s : freeLists().level(isIpv6, cidr).values()) {
+            if (notNetworkBroadcast(s, cidr)) {
+                return s;
+            }
+        }
+
+        for (int p = cidr - 1; p >= 0; p--) {
+            TreeMap<InetAddressValue, Subnet> level =
+                freeLists().level(isIpv6, p);
+            if (!level.isEmpty()) {
+                return level.firstEntry().getValue();
+            }
+        }
+        return null;
+    }
+
     private Allocation allocateFrom(Subnet source, int request,
                                     String owner, String username, String requestId) {
 
         assert(source.getCIDRMask() <= request);
         /* In any case, source subnet will no longer be available */
-        availables.remove(source);
-        if (source.getCIDRMask() == request) {
-            Allocation a = new Allocation(source, owner, username, requestId);
-            allocations.add(a);
-            reviewAlarms();
-            return a;
-        }
-        /* Split source, make the two halves available, and recurse on the first half. */
-        try {
-            Subnet[] subs = source.split();
-
-            /* Special case here to handle subnet of just two addresses, ie /31. */
-            boolean isIpv6 = source.getAddress() instanceof Inet6Address;
-
-            if ((!isIpv6 && subs.length == 4 && request == 31 ) ||
-                ( isIpv6 && subs.length == 4 && request == 127)) {
-                /*
-                 * Split the four into two twos instead.
-                 * Add add 3rd and 4th to available as a /31
-                 * instead of two single /32, to allow for
-                 * sequential allocation.
-                 */
-
-                availables.add(new Subnet(subs[2].getAddress(), request));
-                /* Allocate as a 2-address "Subnet". */
-                Allocation a = new Allocation(new Subnet(subs[0].getAddress(), request),
-                                              owner, username, requestId);
-                allocations.add(a);
-                reviewAlarms();
-                return a;
-            } else {
-                for (int i = 0; i < subs.length; i++) {
-                    availables.add(subs[i]);
-                }
-
-                int Sub0CIDR = subs[0].getCIDRMask();
+        removeAvailable(source);
 
-                if ((!isIpv6 && request == 32 &&  Sub0CIDR == 32) ||
-                    ( isIpv6 && request == 128 && Sub0CIDR == 128)) {
-
-                    if (notNetworkBroadcast(subs[0], request)) {
-                        return allocateFrom(subs[0], request, owner, username, requestId);
-                    } else {
-                        return allocateFrom(subs[1], request, owner, username, requestId);
-                    }
+        /*
+         * Halve the source until it is of the requested size, keeping the
+         * lower half and making the upper one available. A request for a
+         * single address may take the upper half of the last two, so as
+         * not to hand out the network or broadcast address of a subnet.
+         *
+         * This also covers a /31 (/127) request, which takes half of a
+         * /30 and leaves the other two addresses available as a /31 rather
+         * than as single addresses, to allow for sequential allocation.
+         */
+        int width = source.getSingleHostPrefix();
+        Subnet block = source;
+        try {
+            while (block.getCIDRMask() < request) {
+                int half = block.getCIDRMask() + 1;
+                InetAddressValue network = block.getValue();
+                Subnet lower = new Subnet(network, half);
+                Subnet upper = new Subnet(network.setBit(half - 1), half);
+
+                if (half == width && !notNetworkBroadcast(lower, request)) {
+                    addAvailable(lower);
+                    block = upper;
                 } else {
-                    return allocateFrom(subs[0], request, owner, username, requestId);
+                    addAvailable(upper);
+                    block = lower;
                 }
             }
         } catch (InvalidNetmaskException e) {
             throw new Error("Internal error, allocation failed", e);
         }
+
+        Allocation a = new Allocation(block, owner, username, requestId);
+        addAllocated(a);
+        reviewAlarms();
+        return a;
     }
 
     public synchronized void addToAvailable(Subnet subnet) {
@@ -219,37 +521,103 @@ public class IPAddressPool extends Pool implements Serializable {
             return;
         }
 
-        availables.add(subnet);
-
         /*
          * With IP Address Reservation we now have the situation where
          * the user may allocate subnets and then free portions of the
-         * subnets.  The original code (commented out below) did not
-         * handle this situation correctly.  For example if the
-         * available subnets were 10.1.0.0/32, 10.1.0.1/32,
-         * 10.1.0.2/31, 10.1.0.4/30, 10.1.0.8/29, 10.1.0.16/28,
-         * 10.1.0.32/27, 10.1.0.64/26 and 10.1.0.128/25, and subnet
-         * 10.1.0.0/25 was added to the available pool, it would merge
-         * 10.1.0.18/25 and 10.1.0.0/25 into 10.1.0.0/24, without
-         * removing the others, so many subnets would be in the
-         * available list twice.  Then when for instance 10.1.0.16/28
-         * was reserved and removed, 10.1.0.0/24 would still be there,
-         * and 10.1.0.0/24 includes 10.1.0.16/28
+         * subnets, so the subnet may overlap what is already available.
+         * For example if the available subnets were 10.1.0.0/32,
+         * 10.1.0.1/32, 10.1.0.2/31, 10.1.0.4/30, 10.1.0.8/29,
+         * 10.1.0.16/28, 10.1.0.32/27, 10.1.0.64/26 and 10.1.0.128/25,
+         * and subnet 10.1.0.0/25 was added to the available pool, the
+         * subnets within 10.1.0.0/25 must go and 10.1.0.0/25 be merged
+         * with 10.1.0.128/25 into 10.1.0.0/24.
+         *
+         * Since availables are kept as the fewest subnets covering the
+         * free addresses, only the subnets within the added one and its
+         * buddies on the way up can be affected.
          */
+        InetAddressValue network = subnet.getValue();
+        int prefix = subnet.getCIDRMask();
 
-        /* Put all available addresses into a RangeSet. */
-        InetAddressRangeSet rangeSet = new InetAddressRangeSet(availables);
+        if (freeLists().containing(network, prefix) != null) {
+            /* Already available */
+            return;
+        }
 
-        /* Now copy them into available as subnets. */
-        availables.clear();
+        InetAddressValue broadcast = network.broadcast(prefix);
+        for (int p = prefix + 1; p <= network.width(); p++) {
+            TreeMap<InetAddressValue, Subnet> level =
+                freeLists().level(network.isIPv6(), p);
+            if (level.isEmpty()) {
+                continue;
+            }
+            for (Subnet inside : new ArrayList<Subnet>(
+                     level.subMap(network, true, broadcast, true).values())) {
+                removeAvailable(inside);
+            }
+        }
+
+        while (prefix > 0) {
+            Subnet buddy = freeLists().get(buddy(network, prefix), prefix);
+            if (buddy == null) {
+                break;
+            }
+            removeAvailable(buddy);
+            prefix--;
+            network = network.network(prefix);
+        }
 
         try {
-            for (Subnet eachSubnet : rangeSet.asSubnetSet()) {
-                assert(eachSubnet instanceof Subnet);
-                availables.add(eachSubnet);
+            addAvailable(prefix == subnet.getCIDRMask() ? subnet
+                         : new Subnet(network, prefix));
+        } catch (InvalidNetmaskException e) {
+            throw new Error(e); // Can't happen, the prefix only got shorter
+        }
+    }
+
+    /**
+     * Rewrite availables as the fewest subnets covering the same
+     * addresses. Unlike InetAddressRangeSet.asSubnetSet() this keeps
+     * two free addresses that make up a /31 (/127) together, as the
+     * buddy merging expects.
+     */
+    private void normalizeAvailables() {
+        /* Go through them by address, joining up the ones that touch */
+        List<Subnet> sorted = new ArrayList<Subnet>(availables);
+        Collections.sort(sorted, ADDRESS_ORDER);
+
+        availables.clear();
+        freeLists().clear();
+        stats.setFreeBlocks(0);
+
+        InetAddressValue first = null;
+        InetAddressValue last = null;
+        for (Subnet s : sorted) {
+            InetAddressValue network = s.getValue();
+            InetAddressValue broadcast = network.broadcast(s.getCIDRMask());
+            if (first != null && network.isIPv6() == first.isIPv6() &&
+                (network.compareTo(last) <= 0 ||
+                 network.equals(last.addOne()))) {
+                if (broadcast.compareTo(last) > 0) {
+                    last = broadcast;
+                }
+                continue;
+            }
+            if (first != null) {
+                addAvailable(first, last);
             }
-        } catch (InvalidNetmaskException e1) {
-            throw new Error(e1); // Should not happen
+            first = network;
+            last = broadcast;
+        }
+        if (first != null) {
+            addAvailable(first, last);
+        }
+    }
+
+    /* Make first to last available, as the fewest subnets covering it */
+    private void addAvailable(InetAddressValue first, InetAddressValue last) {
+        for (SubnetWalk walk = new SubnetWalk(first, last); walk.hasNext(); ) {
+            addAvailable(walk.next());
         }
     }
 
@@ -262,97 +630,63 @@ public class IPAddressPool extends Pool implements Serializable {
         }
 
 
-        /*
-         * If the subnet to remove is a two-address subnet we need to split it and
-         * remove each address separately (as that is how they are stored in the
-         * availables set).
-         */
-        if (subnet.size() == 0) {
-            try {
-                Subnet[] subs = subnet.split();
-                removeFromAvailable(subs[0]);
-                removeFromAvailable(subs[1]);
-                return;
-            } catch (InvalidNetmaskException e) {
-                throw new Error(e); // Can not happen when subnet.size() is 0
-            }
-        }
-
         /* Must exactly match an available subnet or be contained in another subnet. */
-        if (availables.contains(subnet)) {
-            availables.remove(subnet);
-        } else {
-            /*
-             * We did not find an exact match, look for subnet
-             * that contains the desired subnet, split and call
-             * recursively
-             */
-            for (Subnet source : availables) {
-                if (source.contains(subnet)) {
-                    /* Split subnet and remove the part we are looking for */
-                    availables.remove(source);
-                    assert(source.getCIDRMask() < subnet.getCIDRMask());
-                    /*
-                     * Split source and put the two halves on the available list
-                     * recurse on the half that contains the subnet
-                     */
-                    try {
-                        Subnet[] subs = source.split();
-
-                        if (subs.length == 4 && subnet.size() == 0) {
-                            /* Split the four into two twos instead. */
-                            Subnet[] newSubs = source.split4into2();
-                            if (newSubs[0].contains(subnet)) {
-                                /* Add 3rd and 4th to available */
-                                availables.add(subs[2]);
-                                availables.add(subs[3]);
-                            } else {
-                                /* Add 1st and 2nd to availables */
-                                availables.add(subs[0]);
-                                availables.add(subs[1]);
-                            }
-
-                            return;
-                        } else {
-                            for (Subnet s : subs) {
-                                availables.add(s);
-                            }
-                            removeFromAvailable(subnet);
-                            return;
-                        }
-                    } catch (InvalidNetmaskException e) {
-                        String err = String
-                            .format("Address %s is not an available subnet defined by the pool",
-                                    subnet);
-                        throw new AddressRequestNotAvailableException(err);
-                    }
-                }
-            }
-
-            /* No subnet found, throw error */
+        InetAddressValue network = subnet.getValue();
+        int prefix = subnet.getCIDRMask();
+        Subnet source = freeLists().containing(network, prefix);
+        if (source == null) {
             String err =
                 String.format("Address %s is not an available subnet defined by the pool", subnet);
             throw new AddressRequestNotAvailableException(err);
         }
+
+        /*
+         * Split the containing subnet and put the half without the subnet
+         * on the available list, until we are down to the subnet itself.
+         */
+        removeAvailable(source);
+        Subnet block = source;
+        try {
+            while (block.getCIDRMask() < prefix) {
+                int half = block.getCIDRMask() + 1;
+                Subnet lower = new Subnet(block.getValue(), half);
+                Subnet upper = new Subnet(block.getValue().setBit(half - 1),
+                                          half);
+                if (upper.getValue().samePrefix(network, half)) {
+                    addAvailable(lower);
+                    block = upper;
+                } else {
+                    addAvailable(upper);
+                    block = lower;
+                }
+            }
+        } catch (InvalidNetmaskException e) {
+            throw new Error(e); // Can't happen, the prefix is that of subnet
+        }
     }
 
     public synchronized void release(Allocation allocation) throws AddressPoolException {
-        if (!allocations.contains(allocation)) {
-            String err = String.format("Allocation %s was not allocated from the pool", allocation);
-            throw new AddressNotAllocatedException(err);
+        long t = stats.enter();
+        try {
+            if (!allocations.contains(allocation)) {
+                String err = String.format("Allocation %s was not allocated from the pool", allocation);
+                throw new AddressNotAllocatedException(err);
+            }
+            removeAllocated(allocation);
+            addToAvailable(allocation.getAllocated());
+            reviewAlarms();
+        } finally {
+            stats.exit(t);
         }
-        allocations.remove(allocation);
-        addToAvailable(allocation.getAllocated());
-        reviewAlarms();
     }
 
     public synchronized void release(InetAddress addr) throws AddressPoolException {
         /* Need to find allocated with this network address. */
-        for (Allocation allocated : allocations) {
-            if (allocated.getAllocated().getAddress().equals(addr)) {
-                release(allocated);
-                return;
-            }
+        Allocation allocated =
+            allocationIndex().get(InetAddressValue.of(addr));
+        if (allocated != null) {
+            release(allocated);
+            return;
         }
         /* If we make it here, then the address wasn't found */
         String err = String.format("Address %s was not allocated from the pool", addr);
@@ -364,9 +698,19 @@ public class IPAddressPool extends Pool implements Serializable {
             addToAvailable(a.getAllocated());
         }
         allocations.clear();
+        allocationIndex().clear();
         reviewAlarms();
     }
 
+    /**
+     * Returns the allocations that overlap a subnet, that is the ones
+     * within it and the one containing it, if any.
+     */
+    public synchronized List<Allocation> getOverlappingAllocations(
+        Subnet subnet) {
+        return allocationIndex().overlapping(subnet);
+    }
+
     public Collection<Subnet> getAvailables() {
         return availables;
     }
@@ -376,11 +720,12 @@ public class IPAddressPool extends Pool implements Serializable {
     }
 
     public synchronized void addAllocation(Allocation a) {
-        this.allocations.add(a);
+        addAllocated(a);
     }
 
     public synchronized void clearAllocations() {
         this.allocations.clear();
+        allocationIndex().clear();
     }
 
     public boolean isEmpty() {
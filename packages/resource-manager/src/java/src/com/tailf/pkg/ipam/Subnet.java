@@ -1,6 +1,5 @@
 package com.tailf.pkg.ipam;
 
-import java.math.BigInteger;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
 import java.net.InetAddress;
@@ -9,7 +8,9 @@ import java.nio.ByteBuffer;
 import java.util.Iterator;
 
 import com.tailf.pkg.ipam.exceptions.InvalidNetmaskException;
-import com.tailf.pkg.ipam.util.BitString;
+import com.tailf.pkg.ipam.util.AddressCursor;
+import com.tailf.pkg.ipam.util.AddressVisitor;
+import com.tailf.pkg.ipam.util.InetAddressValue;
 
 /**
  * Used to represent an IP Subnet in the same spirit as the
@@ -49,6 +50,7 @@ public class Subnet implements java.io.Serializable {
     private int                   cidrmask;
 
     private transient InetAddress mask, broadcast;
+    private transient InetAddressValue value;
 
     public static final Subnet ANY;
     /* Possible improvement: define "any" subnet for ipv6 */
@@ -154,6 +156,26 @@ public class Subnet implements java.io.Serializable {
         this(InetAddress.getByName(address), mask);
     }
 
+    /**
+     * creates a subnet with the specified network address and mask.
+     *
+     * @param address network address
+     * @param mask netmask in CIDR form
+     *
+     * @throws InvalidNetmaskException if the mask is not valid
+     */
+    public Subnet(InetAddressValue address, int mask)
+        throws InvalidNetmaskException {
+        if (address.isIPv6()) {
+            checkPrefix6(mask);
+        } else {
+            checkPrefix4(mask);
+        }
+        this.value        = address.network(mask);
+        this.address      = value.toInetAddress();
+        this.cidrmask     = mask;
+    }
+
     private static int parseMask(String smask)
         throws InvalidNetmaskException {
         try {
@@ -266,25 +288,10 @@ public class Subnet implements java.io.Serializable {
      * @return InetAddress a binary ANDed with a netmask of length prefix
      */
     public static InetAddress networkOf(InetAddress a, int prefix) {
-        try {
-            byte[] baddr = a.getAddress();
-            int tmpPrefix = prefix;
-            for (int i = 0; i < baddr.length; i++) {
-                if (tmpPrefix >= BITS_PER_BYTE) {
-                    tmpPrefix -= BITS_PER_BYTE;
-                } else if (tmpPrefix > 0) {
-                    int shiftWidth = tmpPrefix;
-                    tmpPrefix = 0;
-                    baddr[i] &= (-1 << (BITS_PER_BYTE - shiftWidth));
-                } else {
-                    baddr[i] = 0;
-                }
-            }
-            return InetAddress.getByAddress(baddr);
-        } catch (UnknownHostException e) {
-            /* Can't happen since the built address is based on an already valid one */
-            throw new Error(e);
-        }
+        InetAddressValue v = InetAddressValue.of(a);
+        InetAddressValue network = v.network(prefix);
+        /* Most addresses handed to us already are network addresses */
+        return network.equals(v) ? a : network.toInetAddress();
     }
 
     /**
@@ -296,6 +303,21 @@ public class Subnet implements java.io.Serializable {
         return address;
     }
 
+    /**
+     * Returns the network address of the Subnet as a number.
+     *
+     * @return network address
+     */
+    public InetAddressValue getValue() {
+        /* Computed at most a few times, the value itself is immutable */
+        InetAddressValue v = value;
+        if (v == null) {
+            v = InetAddressValue.of(address);
+            value = v;
+        }
+        return v;
+    }
+
     /**
      * Returns the Subnet's netmask in dotquad notation.
      *
@@ -333,17 +355,7 @@ public class Subnet implements java.io.Serializable {
      */
     public synchronized InetAddress getBroadcast() {
         if (broadcast == null) {
-            try {
-                /* Binary OR the address with the complement of the netmask */
-                byte[] bmask = getMask().getAddress();
-                byte[] baddr = address.getAddress();
-                for (int i = 0; i < baddr.length; i++) {
-                    baddr[i] |= (~ bmask[i]);
-                }
-                broadcast = InetAddress.getByAddress(baddr);
-            } catch (UnknownHostException e) {
-                throw new Error(e); // The broadcast address can never be invalid
-            }
+            broadcast = getValue().broadcast(cidrmask).toInetAddress();
         }
         return broadcast;
     }
@@ -360,7 +372,7 @@ public class Subnet implements java.io.Serializable {
         if (cidrmask > other.cidrmask) {
             return false;
         }
-        return networkOf(other.getAddress(), cidrmask).equals(address);
+        return getValue().samePrefix(other.getValue(), cidrmask);
     }
 
     /**
@@ -371,7 +383,7 @@ public class Subnet implements java.io.Serializable {
      * @return true if the address is contained in the subnet.
      */
     public boolean contains(InetAddress a) {
-        return networkOf(a, cidrmask).equals(address);
+        return getValue().samePrefix(InetAddressValue.of(a), cidrmask);
     }
 
     /**
@@ -418,11 +430,11 @@ public class Subnet implements java.io.Serializable {
      * @return an Iterator iterating the InetAddresses of the subnet
      */
     public Iterator<InetAddress> iterator() {
-        return new SubnetIterator();
+        return new CursorIterator(cursor());
     }
 
     public Iterator<InetAddress> iterator(boolean reverse) {
-        return new SubnetIterator(reverse);
+        return new CursorIterator(cursor(reverse));
     }
 
     /**
@@ -443,7 +455,60 @@ public class Subnet implements java.io.Serializable {
                                   a.getHostAddress(), this));
         }
 
-        return new SubnetIterator(a);
+        return new CursorIterator(cursor(a));
+    }
+
+    /**
+     * A cursor on the same addresses as iterator(), which does not
+     * create an InetAddress for each of them.
+     */
+    public AddressCursor cursor() {
+        return cursor(false);
+    }
+
+    public AddressCursor cursor(boolean reverse) {
+        InetAddressValue first = getValue();
+        InetAddressValue last = first.broadcast(cidrmask);
+        if (!isSingleHost()) {
+            /* Skip the network and broadcast addresses */
+            first = first.addOne();
+            last = last.subtractOne();
+        }
+        return reverse ? new AddressCursor(last, first, true) :
+            new AddressCursor(first, last, false);
+    }
+
+    /**
+     * A cursor on the same addresses as iterator(a).
+     *
+     * @throws IllegalArgumentException if address a is not part of this subnet
+     */
+    public AddressCursor cursor(InetAddress a) {
+        if (!contains(a)) {
+            throw new IllegalArgumentException(
+                    String.format("Address %s is not part of the %s subnet.",
+                                  a.getHostAddress(), this));
+        }
+
+        InetAddressValue first = InetAddressValue.of(a);
+        InetAddressValue last = getValue().broadcast(cidrmask);
+        if (!isSingleHost()) {
+            if (a.equals(address)) {
+                first = first.addOne();
+            }
+            last = last.subtractOne();
+        }
+        return new AddressCursor(first, last, false);
+    }
+
+    /**
+     * Calls visitor with each address of cursor(), as a pair of longs,
+     * until it returns false.
+     *
+     * @return false if the visitor stopped early
+     */
+    public boolean visitAddresses(AddressVisitor visitor) {
+        return cursor().forEach(visitor);
     }
 
     public int getSingleHostPrefix() {
@@ -480,15 +545,11 @@ public class Subnet implements java.io.Serializable {
             } else if (address instanceof Inet6Address) {
                 shiftWidth = MAX_PREFIX6 - cidrmask;
             }
-            BigInteger res = BigInteger.ONE.shiftLeft(shiftWidth).
-                subtract(BigInteger.ONE).
-                subtract(BigInteger.ONE);
-            BigInteger max = new BigInteger(Long.toString(Long.MAX_VALUE));
-            if (res.compareTo(max) > 0) {
+            if (shiftWidth >= Long.SIZE) {
                 return Long.MAX_VALUE; // Return plenty
-            } else {
-                return res.longValue();
             }
+            /* 2^63 - 2 still fits, as the wrapped-around value */
+            return (1L << shiftWidth) - 2;
         }
     }
 
@@ -529,93 +590,24 @@ public class Subnet implements java.io.Serializable {
         return sb.toString();
     }
 
-    /**
-     * Iterator capable of iterating addresses in a subnet.
-     * Can travel forwards and backwards, depending onboolean reverse.
-     * However, only in one of these directions.
+    /*
+     * The Iterator API on top of an AddressCursor, which is what spends
+     * the time.
      */
-    private class SubnetIterator implements Iterator<InetAddress> {
-        private BigInteger i;
-        private BigInteger max;
-        private BigInteger min;
-        boolean reverse = false;
-
-        private SubnetIterator() {
-            this(address, false);
-        }
+    private static class CursorIterator implements Iterator<InetAddress> {
+        private final AddressCursor cursor;
 
-        private SubnetIterator(boolean reverse) {
-            this(address, reverse);
-        }
-
-        private SubnetIterator(InetAddress a) {
-            this(a, false);
-        }
-
-        private SubnetIterator(InetAddress a, boolean reverse) {
-            this.reverse = reverse;
-            min = new BigInteger(1, a.getAddress());
-            max = new BigInteger(1, getBroadcast().getAddress());
-            i = reverse ? max : min;
-
-            /*
-             * Special case, there is a single valid address
-             * in the Subnet. In other cases we must make sure
-             * to skip the first address in the subnet.
-             */
-            if ((! isSingleHost()) && a.equals(address)) {
-                if (reverse) {
-                    i = i.subtract(BigInteger.ONE);
-                } else {
-                    i = i.add(BigInteger.ONE);
-                }
-            }
+        CursorIterator(AddressCursor cursor) {
+            this.cursor = cursor;
         }
 
         public boolean hasNext() {
-            if (isSingleHost()) {
-                return i.equals(max);
-            } else if (reverse) {
-                return i.compareTo(min) > 0;
-            } else {
-                return i.compareTo(max) < 0;
-            }
+            return cursor.hasNext();
         }
 
         public InetAddress next() {
-            byte[] naddr = null;
-            int targetSize =
-                (address instanceof Inet4Address) ? SIZEOF_INET4 :
-                (address instanceof Inet6Address) ? SIZEOF_INET6 :
-                0; // Can't happen
-            byte[] baddr = i.toByteArray();
-            if (baddr.length == targetSize) {
-                naddr = baddr;
-            } else if (baddr.length < targetSize) {
-                /* Big int is smaller than what we need */
-                naddr = new byte[targetSize];
-                System.arraycopy(baddr, 0, naddr,
-                                 targetSize - baddr.length,
-                                 baddr.length);
-            } else {
-                /* First byte is 0 (sign bit) and should be ignored */
-                assert((baddr[0] == 0) &&
-                       (baddr.length == targetSize + 1));
-                naddr = new byte[targetSize];
-                System.arraycopy(baddr, 1, naddr, 0, naddr.length);
-            }
-            InetAddress nextAddress = null;
-            try {
-                nextAddress = InetAddress.getByAddress(naddr);
-            } catch (UnknownHostException e) {
-                throw new Error(e); // The next address can never be invalid
-            }
-            if (reverse) {
-                i = i.subtract(BigInteger.ONE);
-            } else {
-                i = i.add(BigInteger.ONE);
-            }
-            return nextAddress;
+            cursor.next();
+            return cursor.toInetAddress();
         }
 
         public void remove() {
@@ -628,16 +620,7 @@ public class Subnet implements java.io.Serializable {
          * The given address ANDed with the subnet's broadcast address
          * equal to the subnet's broadcast address
          */
-        InetAddress broadcast = getBroadcast();
-
-        byte[] bbcast = broadcast.getAddress();
-        byte[] baddr  = addr.getAddress().getAddress();
-        for (int i = 0; i < baddr.length; i++) {
-            if (!(bbcast[i] == (baddr[i] & bbcast[i]))) {
-                return false;
-            }
-        }
-        return true;
+        return getValue().broadcast(cidrmask).isCoveredBy(addr.getValue());
     }
 
     /**
@@ -660,17 +643,9 @@ public class Subnet implements java.io.Serializable {
         }
 
         Subnet[] result = new Subnet[2];
-        InetAddress network = getAddress();
-        try {
-            result[0] = new Subnet(network, cidrmask + 1);
-            BitString addr = new BitString(network.getAddress());
-            addr.setBit(cidrmask, 1);
-            result[1] = new Subnet(InetAddress.getByAddress(addr.getData()),
-                                   cidrmask + 1);
-        } catch (UnknownHostException e) {
-            /* Flipping bits in an IP address can not cause UnknownHostException */
-            throw new Error(e);
-        }
+        InetAddressValue network = getValue();
+        result[0] = new Subnet(network, cidrmask + 1);
+        result[1] = new Subnet(network.setBit(cidrmask), cidrmask + 1);
         return result;
     }
 
@@ -688,47 +663,32 @@ public class Subnet implements java.io.Serializable {
          * Four-address Subnet (smallest REAL subnet).size() == 2.
          * Eight-address Subnet.size() == 6 and so on.
          */
-        boolean isIpv6 = (address instanceof Inet6Address);
-        try {
-            if (size() > 1 || size() == 0) {
-                if (size() > 2) {
-                    Subnet[] result = new Subnet[2];
-                    InetAddress network = getAddress();
-
-                    /* First subnet has the same network address with a wider mask */
-                    result[0] = new Subnet(network, cidrmask + 1);
-
-                    /* Second subnet has the last bit of the wider mask set */
-                    BitString addr = new BitString(network.getAddress());
-                    addr.setBit(cidrmask, 1);
-                    result[1] = new Subnet(InetAddress.getByAddress(addr.getData()),
-                                           cidrmask + 1);
-                    return result;
-                } else if (size() == 0) {
-                    int prefix = isIpv6 ? 128 : 32;
-                    /* Split two-address "Subnet" into 2 /32 or /128 addresses. */
-                    Subnet[] result = new Subnet[2];
-                    InetAddress network = getAddress();
-                    byte[] addr = network.getAddress();
-                    result[0] = new Subnet(InetAddress.getByAddress(addr), prefix);
-                    addr[addr.length-1]++;
-                    result[1] = new Subnet(InetAddress.getByAddress(addr), prefix);
-                    return result;
-                }
-                /* Must split the subnet into 4 /32 or /128 addresses at this point */
-                int prefix = isIpv6 ? 128 : 32;
-                Subnet[] result = new Subnet[4];
-                InetAddress network = getAddress();
-                byte[] addr = network.getAddress();
-                for (int i = 0; i < result.length; i++) {
-                    result[i] = new Subnet(InetAddress.getByAddress(addr), prefix);
-                    addr[addr.length-1]++;
-                }
+        if (size() > 1 || size() == 0) {
+            InetAddressValue network = getValue();
+            int prefix = getSingleHostPrefix();
+            if (size() > 2) {
+                Subnet[] result = new Subnet[2];
+
+                /* First subnet has the same network address with a wider mask */
+                result[0] = new Subnet(network, cidrmask + 1);
+
+                /* Second subnet has the last bit of the wider mask set */
+                result[1] = new Subnet(network.setBit(cidrmask), cidrmask + 1);
+                return result;
+            } else if (size() == 0) {
+                /* Split two-address "Subnet" into 2 /32 or /128 addresses. */
+                Subnet[] result = new Subnet[2];
+                result[0] = new Subnet(network, prefix);
+                result[1] = new Subnet(network.addOne(), prefix);
                 return result;
             }
-        } catch (UnknownHostException e) {
-            /* Splitting a subnet can not reasonably cause an UnknownHostException */
-            throw new Error(e);
+            /* Must split the subnet into 4 /32 or /128 addresses at this point */
+            Subnet[] result = new Subnet[4];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = new Subnet(network, prefix);
+                network = network.addOne();
+            }
+            return result;
         }
         throw new InvalidNetmaskException("Can't split subnet further");
     }
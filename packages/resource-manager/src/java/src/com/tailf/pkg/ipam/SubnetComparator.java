@@ -2,20 +2,34 @@ package com.tailf.pkg.ipam;
 
 import java.util.Comparator;
 
+import com.tailf.pkg.ipam.util.InetAddressValue;
+
 public class SubnetComparator implements Comparator<Subnet> {
     public int compare(Subnet o1, Subnet o2) {
         /* Order first by mask */
         if (o1.getCIDRMask() == o2.getCIDRMask()) {
             /* Order by address next */
-            byte[] bo1 = o1.getAddress().getAddress();
-            byte[] bo2 = o2.getAddress().getAddress();
-            for (int i = 0; i < bo1.length; i++) {
-                if (bo1[i] != bo2[i]) {
-                    return (bo1[i] & 0xff) - (bo2[i] & 0xff);
-                }
+            InetAddressValue v1 = o1.getValue();
+            InetAddressValue v2 = o2.getValue();
+            if (v1.isIPv6() == v2.isIPv6()) {
+                return v1.compareTo(v2);
+            }
+            /*
+             * Mixed families compare on the leading four bytes, the way
+             * they always have, and IPv4 goes first if those are equal.
+             */
+            long l1 = lead(v1);
+            long l2 = lead(v2);
+            if (l1 != l2) {
+                return l1 < l2 ? -1 : 1;
             }
+            return v1.isIPv6() ? 1 : -1;
         }
         /* Order subnets from narrowest to widest */
         return o2.getCIDRMask() - o1.getCIDRMask();
     }
+
+    private static long lead(InetAddressValue v) {
+        return v.isIPv6() ? v.getHigh() >>> 32 : v.getLow();
+    }
 }
@@ -0,0 +1,123 @@
+package com.tailf.pkg.ipam.util;
+
+import java.net.InetAddress;
+
+/**
+ * Steps through the addresses from first to last, both included,
+ * keeping the current one as two longs the way InetAddressValue does.
+ * Nothing is allocated per address unless the caller asks for it as
+ * an InetAddressValue or InetAddress, so large subnets can be scanned
+ * without creating garbage:
+ *
+ * <pre>
+ *     AddressCursor c = subnet.cursor();
+ *     while (c.hasNext()) {
+ *         c.next();
+ *         ... c.getLow() ...
+ *     }
+ * </pre>
+ *
+ * Like the Subnet iterators, next() does not check hasNext(). Past the
+ * last address it goes on with the following ones.
+ */
+public final class AddressCursor {
+
+    private static final long MASK32 = 0xffffffffL;
+
+    private final boolean ipv6;
+    private final boolean reverse;
+    private final long lastHi;
+    private final long lastLo;
+
+    private long nextHi;
+    private long nextLo;
+    private long hi;
+    private long lo;
+    private boolean done;
+
+    /**
+     * @param first    the first address to step to
+     * @param last     the last address, of the same family as first
+     * @param reverse  step downwards, first is then the highest address
+     */
+    public AddressCursor(InetAddressValue first, InetAddressValue last,
+                         boolean reverse) {
+        this.ipv6 = first.isIPv6();
+        this.reverse = reverse;
+        this.nextHi = first.getHigh();
+        this.nextLo = first.getLow();
+        this.lastHi = last.getHigh();
+        this.lastLo = last.getLow();
+
+        int c = first.compareTo(last);
+        this.done = reverse ? c < 0 : c > 0;
+    }
+
+    public boolean hasNext() {
+        return !done;
+    }
+
+    /**
+     * Moves to the next address.
+     */
+    public void next() {
+        hi = nextHi;
+        lo = nextLo;
+        if (hi == lastHi && lo == lastLo) {
+            done = true;
+        }
+
+        if (!ipv6) {
+            nextLo = (reverse ? lo - 1 : lo + 1) & MASK32;
+        } else if (reverse) {
+            nextHi = lo == 0 ? hi - 1 : hi;
+            nextLo = lo - 1;
+        } else {
+            nextHi = lo == -1L ? hi + 1 : hi;
+            nextLo = lo + 1;
+        }
+    }
+
+    public boolean isIPv6() {
+        return ipv6;
+    }
+
+    /**
+     * Upper 64 bits of the current address, zero for IPv4.
+     */
+    public long getHigh() {
+        return hi;
+    }
+
+    /**
+     * Lower 64 bits of the current address, or the IPv4 address.
+     */
+    public long getLow() {
+        return lo;
+    }
+
+    public InetAddressValue getValue() {
+        return ipv6 ? InetAddressValue.ipv6(hi, lo) :
+            InetAddressValue.ipv4(lo);
+    }
+
+    public InetAddress toInetAddress() {
+        return getValue().toInetAddress();
+    }
+
+    /**
+     * Calls visitor with each of the remaining addresses, until it
+     * returns false.
+     *
+     * @return false if the visitor stopped early
+     */
+    public boolean forEach(AddressVisitor visitor) {
+        while (!done) {
+            next();
+            if (!visitor.visit(hi, lo)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,15 @@
+package com.tailf.pkg.ipam.util;
+
+/**
+ * Gets called for each address of a subnet or range, see
+ * AddressCursor.forEach().
+ */
+public interface AddressVisitor {
+
+    /**
+     * @param high  upper 64 bits of an IPv6 address, zero for IPv4
+     * @param low   lower 64 bits of an IPv6 address, or the IPv4 address
+     * @return false to stop, true to go on with the next address
+     */
+    boolean visit(long high, long low);
+}
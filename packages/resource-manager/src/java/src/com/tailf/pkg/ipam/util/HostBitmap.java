@@ -0,0 +1,272 @@
+package com.tailf.pkg.ipam.util;
+
+/**
+ * A bitmap for keeping track of taken host addresses in a large block,
+ * such as an IPv4 /8, where a set bit is a taken address.
+ *
+ * The bits are kept in pages of PAGE_BITS bits, each with a count of
+ * set bits. A page that is all clear or all set has no words, so a
+ * mostly empty or mostly full block takes little memory, and finding a
+ * clear bit skips full pages on their count alone. The lowest page
+ * that may have a clear bit is remembered, which makes taking the
+ * first free address over and over O(1) amortised.
+ *
+ * Like BitString.nextClearBit(), the search methods return -1 when
+ * there is no such bit.
+ */
+public class HostBitmap {
+
+    public static final int PAGE_BITS = 4096;
+
+    private static final int PAGE_SHIFT = 12;
+    private static final int WORDS = PAGE_BITS / 64;
+
+    private final int size;
+    private final long[][] pages;
+    private final int[] used;       /* Set bits per page */
+    private long setCount;
+    private int firstFreePage;      /* No clear bits in pages before */
+
+    /**
+     * @param size  Number of bits
+     * @param set   Initial value of all bits
+     */
+    public HostBitmap(int size, boolean set) {
+        if (size < 0) {
+            throw new IllegalArgumentException("size < 0: " + size);
+        }
+        this.size = size;
+        int npages = (size + PAGE_BITS - 1) >>> PAGE_SHIFT;
+        this.pages = new long[npages][];
+        this.used = new int[npages];
+        if (set) {
+            for (int p = 0; p < npages; p++) {
+                used[p] = pageBits(p);
+            }
+            setCount = size;
+        }
+        this.firstFreePage = set ? npages : 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Number of set bits.
+     */
+    public long cardinality() {
+        return setCount;
+    }
+
+    /**
+     * Number of clear bits.
+     */
+    public long freeCount() {
+        return size - setCount;
+    }
+
+    private int pageBits(int p) {
+        return p < pages.length - 1 ? PAGE_BITS : size - (p << PAGE_SHIFT);
+    }
+
+    private boolean isFull(int p) {
+        return used[p] == pageBits(p);
+    }
+
+    /* The words of page p, created as needed to change single bits. */
+    private long[] words(int p) {
+        long[] w = pages[p];
+        if (w == null) {
+            w = new long[WORDS];
+            if (used[p] != 0) {
+                int bits = pageBits(p);
+                for (int i = 0; i < bits >>> 6; i++) {
+                    w[i] = -1L;
+                }
+                if ((bits & 63) != 0) {
+                    w[bits >>> 6] = (1L << (bits & 63)) - 1;
+                }
+            }
+            pages[p] = w;
+        }
+        return w;
+    }
+
+    /* Drop the words of a page that has become uniform. */
+    private void compact(int p) {
+        if (used[p] == 0 || isFull(p)) {
+            pages[p] = null;
+        }
+    }
+
+    private void checkIndex(int pos) {
+        if (pos < 0 || pos >= size) {
+            throw new IndexOutOfBoundsException("pos: " + pos);
+        }
+    }
+
+    public boolean get(int pos) {
+        checkIndex(pos);
+        int p = pos >>> PAGE_SHIFT;
+        long[] w = pages[p];
+        if (w == null) {
+            return used[p] != 0;
+        }
+        int bit = pos & (PAGE_BITS - 1);
+        return (w[bit >>> 6] & (1L << (bit & 63))) != 0;
+    }
+
+    /**
+     * Set a bit, returns false if it already was set.
+     */
+    public boolean set(int pos) {
+        checkIndex(pos);
+        int p = pos >>> PAGE_SHIFT;
+        if (isFull(p)) {
+            return false;
+        }
+        long[] w = words(p);
+        int bit = pos & (PAGE_BITS - 1);
+        long m = 1L << (bit & 63);
+        if ((w[bit >>> 6] & m) != 0) {
+            return false;
+        }
+        w[bit >>> 6] |= m;
+        used[p]++;
+        setCount++;
+        compact(p);
+        return true;
+    }
+
+    /**
+     * Clear a bit, returns false if it already was clear.
+     */
+    public boolean clear(int pos) {
+        checkIndex(pos);
+        int p = pos >>> PAGE_SHIFT;
+        if (used[p] == 0) {
+            return false;
+        }
+        long[] w = words(p);
+        int bit = pos & (PAGE_BITS - 1);
+        long m = 1L << (bit & 63);
+        if ((w[bit >>> 6] & m) == 0) {
+            return false;
+        }
+        w[bit >>> 6] &= ~m;
+        used[p]--;
+        setCount--;
+        compact(p);
+        if (p < firstFreePage) {
+            firstFreePage = p;
+        }
+        return true;
+    }
+
+    /**
+     * Set the bits from fromIndex (inclusive) to toIndex (exclusive),
+     * whole pages at a time where possible.
+     */
+    public void set(int fromIndex, int toIndex) {
+        change(fromIndex, toIndex, true);
+    }
+
+    /**
+     * Clear the bits from fromIndex (inclusive) to toIndex (exclusive).
+     */
+    public void clear(int fromIndex, int toIndex) {
+        change(fromIndex, toIndex, false);
+    }
+
+    private void change(int fromIndex, int toIndex, boolean value) {
+        if (fromIndex < 0 || toIndex > size || fromIndex > toIndex) {
+            throw new IndexOutOfBoundsException(
+                String.format("fromIndex: %d, toIndex: %d",
+                              fromIndex, toIndex));
+        }
+        int pos = fromIndex;
+        while (pos < toIndex) {
+            int p = pos >>> PAGE_SHIFT;
+            int pageStart = p << PAGE_SHIFT;
+            int pageEnd = pageStart + pageBits(p);
+            if (pos == pageStart && toIndex >= pageEnd) {
+                int now = value ? pageBits(p) : 0;
+                setCount += now - used[p];
+                used[p] = now;
+                pages[p] = null;
+            } else {
+                int end = Math.min(toIndex, pageEnd);
+                for (int i = pos; i < end; i++) {
+                    if (value) {
+                        set(i);
+                    } else {
+                        clear(i);
+                    }
+                }
+            }
+            if (!value && p < firstFreePage) {
+                firstFreePage = p;
+            }
+            pos = pageEnd;
+        }
+    }
+
+    /**
+     * Index of the first clear bit, or -1 if all bits are set.
+     */
+    public int firstClear() {
+        while (firstFreePage < pages.length && isFull(firstFreePage)) {
+            firstFreePage++;
+        }
+        if (firstFreePage == pages.length) {
+            return -1;
+        }
+        return nextClear(firstFreePage << PAGE_SHIFT);
+    }
+
+    /**
+     * Index of the first clear bit at or after fromIndex, or -1 if
+     * there is none.
+     */
+    public int nextClear(int fromIndex) {
+        return next(fromIndex, false);
+    }
+
+    /**
+     * Index of the first set bit at or after fromIndex, or -1 if there
+     * is none.
+     */
+    public int nextSet(int fromIndex) {
+        return next(fromIndex, true);
+    }
+
+    private int next(int fromIndex, boolean value) {
+        if (fromIndex < 0) {
+            throw new IndexOutOfBoundsException("fromIndex < 0: " + fromIndex);
+        }
+        for (int p = fromIndex >>> PAGE_SHIFT; p < pages.length; p++) {
+            int pageStart = p << PAGE_SHIFT;
+            int start = Math.max(fromIndex, pageStart) - pageStart;
+            long[] w = pages[p];
+            if (w == null) {
+                if ((used[p] != 0) == value) {
+                    return pageStart + start;
+                }
+                continue;
+            }
+            int bits = pageBits(p);
+            for (int i = start >>> 6; i < WORDS; i++) {
+                long word = value ? w[i] : ~w[i];
+                if (i == start >>> 6) {
+                    word &= -1L << (start & 63);
+                }
+                if (word != 0) {
+                    int bit = (i << 6) + Long.numberOfTrailingZeros(word);
+                    return bit < bits ? pageStart + bit : -1;
+                }
+            }
+        }
+        return -1;
+    }
+}
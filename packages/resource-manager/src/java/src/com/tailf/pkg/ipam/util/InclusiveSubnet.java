@@ -5,7 +5,6 @@ import java.net.Inet4Address;
 import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.util.Iterator;
 
 import com.tailf.pkg.ipam.Subnet;
 import com.tailf.pkg.ipam.exceptions.InvalidNetmaskException;
@@ -110,42 +109,29 @@ public class InclusiveSubnet extends Subnet {
     }
 
     /**
-     * Retrieve an Iterator on the addresses contained in the set.
-     * The first and last address are NOT discarded, because this
-     * isn't really a Subnet at all but a block of addresses.
-     *
-     * @return an InclusiveSubnet iterator.
+     * A cursor on the addresses contained in the set. The first and
+     * last address are NOT discarded, because this isn't really a
+     * Subnet at all but a block of addresses. The iterator() calls of
+     * Subnet run on this cursor, so they include them too.
      */
     @Override
-    public Iterator<InetAddress> iterator() {
-        return new InclusiveSubnetIterator();
-    }
-
-    @Override
-    public Iterator<InetAddress> iterator(boolean reverse) {
-        return new InclusiveSubnetIterator(reverse);
+    public AddressCursor cursor(boolean reverse) {
+        InetAddressValue first = getValue();
+        InetAddressValue last = first.broadcast(getCIDRMask());
+        return reverse ? new AddressCursor(last, first, true) :
+            new AddressCursor(first, last, false);
     }
 
-    /**
-     * get an iterator positioned on the specified address a. The first call to
-     * next on the iterator will return the next address following a that is
-     * inside the subnet.
-     *
-     * @param a DOCUMENT ME!
-     *
-     * @return Iterator starting at a.
-     *
-     * @throws IllegalArgumentException
-     */
     @Override
-    public Iterator<InetAddress> iterator(InetAddress a) {
+    public AddressCursor cursor(InetAddress a) {
         if (!contains(a)) {
             String err = String.format("Address %s is not part of the %s subnet",
                                        a.getHostAddress(), this);
             throw new IllegalArgumentException(err);
         }
 
-        return new InclusiveSubnetIterator(a);
+        return new AddressCursor(InetAddressValue.of(a),
+                                 getValue().broadcast(getCIDRMask()), false);
     }
 
     /**
@@ -182,75 +168,6 @@ public class InclusiveSubnet extends Subnet {
         }
     }
 
-    private class InclusiveSubnetIterator implements Iterator<InetAddress> {
-        BigInteger i;
-        BigInteger max;
-        BigInteger min;
-        boolean reverse = false;
-
-        InclusiveSubnetIterator() {
-            this(getAddress());
-        }
-
-        InclusiveSubnetIterator(boolean reverse) {
-            this(getAddress());
-            this.reverse = reverse;
-        }
-
-        InclusiveSubnetIterator(InetAddress a) {
-            min = new BigInteger(1, a.getAddress());
-            max = new BigInteger(1, getBroadcast().getAddress());
-
-            // For Inclusive, we include the "Broadcast Address".
-            max = max.add(BigInteger.ONE);
-            i = reverse ? max : min;
-        }
-
-        public boolean hasNext() {
-            return
-                reverse ?
-                i.compareTo(min) > 0 :
-                i.compareTo(max) < 0;
-        }
-
-        public InetAddress next() {
-            try {
-                byte[] naddr = null;
-                int targetSize =
-                    (getAddress() instanceof Inet4Address) ? SIZEOF_INET4 :
-                    (getAddress() instanceof Inet6Address) ? SIZEOF_INET6 :
-                    0; // can't happen
-                byte[] baddr = i.toByteArray();
-                if (baddr.length == targetSize) {
-                    naddr = baddr;
-                } else if (baddr.length < targetSize) {
-                    // big int is smaller than what we need
-                    naddr = new byte[targetSize];
-                    System.arraycopy(baddr, 0, naddr,
-                                     targetSize - baddr.length,
-                                     baddr.length);
-                } else {
-                    // first byte is 0 (sign bit) and should be ignored
-                    assert((baddr[0] == 0) &&
-                           (baddr.length == targetSize + 1));
-                    naddr = new byte[targetSize];
-                    System.arraycopy(baddr, 1, naddr, 0, naddr.length);
-                }
-                InetAddress nextAddress = InetAddress.getByAddress(naddr);
-                i = reverse ? i.subtract(BigInteger.ONE) :
-                    i.add(BigInteger.ONE);
-                return nextAddress;
-            } catch (UnknownHostException uhe) {
-                assert(false);
-                return null;
-            }
-        }
-
-        public void remove() {
-            throw new UnsupportedOperationException();
-        }
-    }
-
     public InclusiveSubnet[] split()
         throws InvalidNetmaskException {
         if (size() > 1) {
@@ -16,8 +16,8 @@ public class InetAddressComparator implements Comparator<InetAddress> {
     /**
      * For our purposes we define IP Address comparison as follows:
      *
-     * First, make sure both are IPv4 or IPv6.  If not, convert the
-     * IPv4 address to IPv6.
+     * First, make sure both are IPv4 or IPv6.  If not, treat the
+     * IPv4 address as the IPv6 address ::a.b.c.d.
      *
      * Now getAddress() for each returns an array of byte (4 bytes for IPv4,
      * 16 bytes for IPv16).
@@ -28,21 +28,9 @@ public class InetAddressComparator implements Comparator<InetAddress> {
      *
      */
     public int compare(InetAddress addr1, InetAddress addr2) {
-        // Turn the addresses into byte arrays.
-        byte[] bytes1 = addr1.getAddress();
-        byte[] bytes2 = addr2.getAddress();
-
-        // They must both be IPv4 or IPv6.  If they do not match,
-        // convert the shorter to IPv6.
-
-        if (bytes1.length < bytes2.length){
-            bytes1 = ipv4ToIpv6(addr1).getAddress();
-        } else if (bytes2.length < bytes1.length) {
-            bytes2 = ipv4ToIpv6(addr2).getAddress();
-        }
-        // Now compare.
-        return (unsignedBytesToBigInteger(bytes1).compareTo(
-                              unsignedBytesToBigInteger(bytes2)));
+        // Comparing as numbers puts IPv4 addresses where their
+        // IPv4-compatible IPv6 counterparts are.
+        return InetAddressValue.of(addr1).compareTo(InetAddressValue.of(addr2));
     }
 
     /**
@@ -78,45 +78,23 @@ public class InetAddressRangeSet {
      */
     public Collection<Subnet> asSubnetSet()
         throws InvalidNetmaskException {
-        Collection<InclusiveSubnet> someSubnets =
-            new ArrayList<InclusiveSubnet>();
-
-        // Copy this InetAddressRangeSet.  We are going to remove
-        // address ranges from it until it is empty.
-        InetAddressRangeSet workSet =
-            new InetAddressRangeSet(this.asInetAddressRangeSet());
-
-        while (!workSet.isEmpty()) {
-            // Get the lowest range in the set.
-            InetAddressRange lowestRange = workSet.lowestRange();
-
-            // Calculate the largest subnet that starts at that range.
-            int cidr = lowestRange.cidrForStartAddr();
-            InclusiveSubnet largestSubnet =
-                new InclusiveSubnet(lowestRange.getStart(), cidr);
-
-            // If that subnet fits, remove it.  Otherwise split the
-            // subnet and try with both parts.
-            removeSubnetFromWorkset(someSubnets, workSet, largestSubnet);
-        }
-
-        // Return ordinary subnets, not inclusive subnets.
         Collection<Subnet> result = new ArrayList<Subnet>();
-        for (InclusiveSubnet eachSubnet: someSubnets) {
-            // If it's a two-address InclusiveSubnet, split into two.
-            if (eachSubnet.size() == 2) {
-                Subnet[] singles = eachSubnet.split();
-                result.add(new Subnet(singles[0].getAddress(),
-                                      singles[0].getMask()));
-                result.add(new Subnet(singles[1].getAddress(),
-                                      singles[1].getMask()));
-            } else {
-                result.add(new Subnet(eachSubnet.getAddress(),
-                                      eachSubnet.getMask()));
+
+        for (InetAddressRange eachRange : itsInnerSet) {
+            for (Subnet eachSubnet : eachRange.subnets()) {
+                // A two-address block is returned as two single
+                // addresses, since such a Subnet has no usable address.
+                int single = eachSubnet.getSingleHostPrefix();
+                if (eachSubnet.getCIDRMask() == single - 1) {
+                    InetAddressValue network = eachSubnet.getValue();
+                    result.add(new Subnet(network, single));
+                    result.add(new Subnet(network.addOne(), single));
+                } else {
+                    result.add(eachSubnet);
+                }
             }
         }
         return result;
-
     }
 
     /**
@@ -229,44 +207,6 @@ public class InetAddressRangeSet {
         this.itsInnerSet = newSet;
     }
 
-    private static void removeSubnetFromWorkset(
-                                       Collection<InclusiveSubnet> newSubnets,
-                                       InetAddressRangeSet workSet,
-                                       InclusiveSubnet subnet) {
-        if (workSet.isEmpty()) {
-            return;
-        }
-
-        // If the subnet fits, remove it.
-        // Otherwise split the subnet and remove both.
-        // Stop when we get a subnet that can't be split:
-        // i.e. invalidNetmaskException.
-        InetAddressRange rangeToRemove =
-            new InetAddressRange(subnet);
-        InetAddressRange lowestRange = workSet.lowestRange();
-        // No overlap?  Can't remove.
-        if (!(rangeToRemove.overlaps(lowestRange))) {
-            return;
-        }
-
-        if (lowestRange.containsAll(rangeToRemove)) {
-            // If it fits entirely, add to collection
-            // and remove from workSet.
-            newSubnets.add(subnet);
-            workSet.remove(rangeToRemove);
-        } else {
-            // Split subnet into 2 and remove both.
-            try {
-                InclusiveSubnet[] subnets = subnet.split();
-                for (int i = 0; i < subnets.length; i++) {
-                    removeSubnetFromWorkset(newSubnets, workSet, subnets[i]);
-                }
-            } catch (InvalidNetmaskException e) {
-                // Can't split further; done.
-            }
-        }
-    }
-
     /**
      * If this InetAddressRangeSet already contains any address
      * in the given InetAddressRange, return true, else false.
@@ -0,0 +1,300 @@
+package com.tailf.pkg.ipam.util;
+
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * An IP address as an unsigned number, for doing address arithmetic
+ * without going through byte arrays and BigInteger.
+ *
+ * IPv4 addresses are kept in the low 32 bits of lo, with hi zero.
+ * IPv6 addresses use hi for the upper and lo for the lower 64 bits.
+ * Subnet and InetAddressRange keep their addresses in this form and
+ * only create InetAddress objects when they hand them out.
+ *
+ * Comparison is by numeric value only, so an IPv4 address compares
+ * equal to the IPv4-compatible IPv6 address ::a.b.c.d, the same way
+ * InetAddressComparator has always compared them. equals() also
+ * takes the address family into account.
+ *
+ * This is an immutable object.
+ */
+public final class InetAddressValue
+    implements Comparable<InetAddressValue>, java.io.Serializable {
+    private static final long serialVersionUID = -3107240458452710863L;
+
+    public static final int WIDTH4 = 32;
+    public static final int WIDTH6 = 128;
+
+    private static final long MASK32 = 0xffffffffL;
+
+    private final long hi;
+    private final long lo;
+    private final boolean ipv6;
+
+    private InetAddressValue(long hi, long lo, boolean ipv6) {
+        this.hi = hi;
+        this.lo = lo;
+        this.ipv6 = ipv6;
+    }
+
+    public static InetAddressValue of(InetAddress address) {
+        return of(address.getAddress());
+    }
+
+    /**
+     * @param bytes  4 or 16 bytes in network order, as returned by
+     *               InetAddress.getAddress()
+     */
+    public static InetAddressValue of(byte[] bytes) {
+        if (bytes.length == 4) {
+            return new InetAddressValue(0, toLong(bytes, 0, 4), false);
+        } else if (bytes.length == 16) {
+            return new InetAddressValue(toLong(bytes, 0, 8),
+                                        toLong(bytes, 8, 8), true);
+        }
+        throw new IllegalArgumentException(
+            String.format("Invalid address length %d", bytes.length));
+    }
+
+    public static InetAddressValue ipv4(long address) {
+        return new InetAddressValue(0, address & MASK32, false);
+    }
+
+    public static InetAddressValue ipv6(long hi, long lo) {
+        return new InetAddressValue(hi, lo, true);
+    }
+
+    private static long toLong(byte[] bytes, int offset, int length) {
+        long res = 0;
+        for (int i = offset; i < offset + length; i++) {
+            res = (res << 8) | (bytes[i] & 0xff);
+        }
+        return res;
+    }
+
+    public boolean isIPv6() {
+        return ipv6;
+    }
+
+    /**
+     * Number of bits in the address, 32 or 128.
+     */
+    public int width() {
+        return ipv6 ? WIDTH6 : WIDTH4;
+    }
+
+    /**
+     * Upper 64 bits of an IPv6 address, zero for IPv4.
+     */
+    public long getHigh() {
+        return hi;
+    }
+
+    /**
+     * Lower 64 bits of an IPv6 address, or the IPv4 address.
+     */
+    public long getLow() {
+        return lo;
+    }
+
+    public byte[] toBytes() {
+        byte[] bytes = new byte[ipv6 ? 16 : 4];
+        if (ipv6) {
+            fromLong(bytes, 0, hi);
+            fromLong(bytes, 8, lo);
+        } else {
+            for (int i = 0; i < 4; i++) {
+                bytes[i] = (byte) (lo >>> (24 - 8 * i));
+            }
+        }
+        return bytes;
+    }
+
+    private static void fromLong(byte[] bytes, int offset, long value) {
+        for (int i = 0; i < 8; i++) {
+            bytes[offset + i] = (byte) (value >>> (56 - 8 * i));
+        }
+    }
+
+    public InetAddress toInetAddress() {
+        try {
+            return InetAddress.getByAddress(toBytes());
+        } catch (UnknownHostException e) {
+            /* Can't happen, the length is always valid. */
+            throw new Error(e);
+        }
+    }
+
+    public BigInteger toBigInteger() {
+        if (!ipv6) {
+            return BigInteger.valueOf(lo);
+        }
+        return new BigInteger(1, toBytes());
+    }
+
+    /**
+     * The address with all but the first prefix bits cleared.
+     */
+    public InetAddressValue network(int prefix) {
+        if (ipv6) {
+            return new InetAddressValue(hi & highMask(prefix),
+                                        lo & lowMask(prefix), true);
+        }
+        return new InetAddressValue(0, lo & mask4(prefix), false);
+    }
+
+    /**
+     * The address with all but the first prefix bits set.
+     */
+    public InetAddressValue broadcast(int prefix) {
+        if (ipv6) {
+            return new InetAddressValue(hi | ~highMask(prefix),
+                                        lo | ~lowMask(prefix), true);
+        }
+        return new InetAddressValue(0, lo | (~mask4(prefix) & MASK32),
+                                    false);
+    }
+
+    /**
+     * True if other is of the same family and has the same first
+     * prefix bits, i.e. is in the subnet of this address and prefix.
+     */
+    public boolean samePrefix(InetAddressValue other, int prefix) {
+        if (ipv6 != other.ipv6) {
+            return false;
+        }
+        if (ipv6) {
+            long hm = highMask(prefix);
+            long lm = lowMask(prefix);
+            return ((hi ^ other.hi) & hm) == 0 && ((lo ^ other.lo) & lm) == 0;
+        }
+        return ((lo ^ other.lo) & mask4(prefix)) == 0;
+    }
+
+    /**
+     * True if every bit set in this address is also set in other.
+     */
+    public boolean isCoveredBy(InetAddressValue other) {
+        return (other.hi & hi) == hi && (other.lo & lo) == lo;
+    }
+
+    /**
+     * The address with a bit set, counting from the most significant
+     * bit as 0.
+     */
+    public InetAddressValue setBit(int bit) {
+        if (!ipv6) {
+            return new InetAddressValue(0, lo | (1L << (WIDTH4 - 1 - bit)),
+                                        false);
+        } else if (bit < 64) {
+            return new InetAddressValue(hi | (1L << (63 - bit)), lo, true);
+        }
+        return new InetAddressValue(hi, lo | (1L << (127 - bit)), true);
+    }
+
+    /**
+     * One greater, wrapping around at the top of the address space.
+     */
+    public InetAddressValue addOne() {
+        if (!ipv6) {
+            return new InetAddressValue(0, (lo + 1) & MASK32, false);
+        }
+        return new InetAddressValue(lo == -1L ? hi + 1 : hi, lo + 1, true);
+    }
+
+    /**
+     * One less, wrapping around at the bottom of the address space.
+     */
+    public InetAddressValue subtractOne() {
+        if (!ipv6) {
+            return new InetAddressValue(0, (lo - 1) & MASK32, false);
+        }
+        return new InetAddressValue(lo == 0 ? hi - 1 : hi, lo - 1, true);
+    }
+
+    /**
+     * The size of the block starting at this address and ending with
+     * the address one below next, i.e. next minus this.
+     */
+    public BigInteger distanceTo(InetAddressValue next) {
+        if (!ipv6 && !next.ipv6) {
+            return BigInteger.valueOf(next.lo - lo);
+        }
+        long dlo = next.lo - lo;
+        long dhi = next.hi - hi - (unsignedLess(next.lo, lo) ? 1 : 0);
+        if (dhi == 0 && dlo >= 0) {
+            return BigInteger.valueOf(dlo);
+        }
+        return ipv6(dhi, dlo).toBigInteger();
+    }
+
+    /**
+     * Number of trailing zero bits, the address width if all are zero.
+     */
+    public int trailingZeros() {
+        if (lo != 0) {
+            return Long.numberOfTrailingZeros(lo);
+        }
+        if (ipv6 && hi != 0) {
+            return 64 + Long.numberOfTrailingZeros(hi);
+        }
+        return width();
+    }
+
+    private static long mask4(int prefix) {
+        return prefix == 0 ? 0 : (MASK32 << (WIDTH4 - prefix)) & MASK32;
+    }
+
+    private static long highMask(int prefix) {
+        if (prefix <= 0) {
+            return 0;
+        }
+        return prefix >= 64 ? -1L : -1L << (64 - prefix);
+    }
+
+    private static long lowMask(int prefix) {
+        if (prefix <= 64) {
+            return 0;
+        }
+        return -1L << (WIDTH6 - prefix);
+    }
+
+    private static boolean unsignedLess(long a, long b) {
+        return (a + Long.MIN_VALUE) < (b + Long.MIN_VALUE);
+    }
+
+    public int compareTo(InetAddressValue other) {
+        if (hi != other.hi) {
+            return unsignedLess(hi, other.hi) ? -1 : 1;
+        }
+        if (lo != other.lo) {
+            return unsignedLess(lo, other.lo) ? -1 : 1;
+        }
+        return 0;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof InetAddressValue)) {
+            return false;
+        }
+        InetAddressValue other = (InetAddressValue) o;
+        return hi == other.hi && lo == other.lo && ipv6 == other.ipv6;
+    }
+
+    @Override
+    public int hashCode() {
+        long h = hi * 31 + lo;
+        return (int) (h ^ (h >>> 32)) ^ (ipv6 ? 1 : 0);
+    }
+
+    @Override
+    public String toString() {
+        return toInetAddress().getHostAddress();
+    }
+}
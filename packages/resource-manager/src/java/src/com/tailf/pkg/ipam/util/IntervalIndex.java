@@ -0,0 +1,165 @@
+package com.tailf.pkg.ipam.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import com.tailf.pkg.ipam.Subnet;
+
+/**
+ * A set of address intervals, each with a value, that may overlap each
+ * other, for finding the ones overlapping or containing a given
+ * interval without going through them all.
+ *
+ * The intervals are kept sorted by start address, as an implicit
+ * balanced search tree where every node also knows the highest end
+ * address below it. A search skips the subtrees that end before the
+ * interval looked for, and those that start after it, so it takes
+ * O(log n) steps per interval found.
+ *
+ * Intervals are added one at a time, and the tree is rebuilt on the
+ * next search after an add. Intervals of different address families
+ * never match each other.
+ */
+public class IntervalIndex<T> {
+
+    private static class Interval<T> {
+        final InetAddressValue start;
+        final InetAddressValue end;
+        final T value;
+
+        Interval(InetAddressValue start, InetAddressValue end, T value) {
+            this.start = start;
+            this.end = end;
+            this.value = value;
+        }
+    }
+
+    private static final Comparator<Interval<?>> START_ORDER =
+        new Comparator<Interval<?>>() {
+            public int compare(Interval<?> a, Interval<?> b) {
+                return a.start.compareTo(b.start);
+            }
+        };
+
+    private List<Interval<T>> intervals = new ArrayList<Interval<T>>();
+    private InetAddressValue[] maxEnds;     /* Null when out of date */
+
+    public void add(InetAddressValue start, InetAddressValue end, T value) {
+        intervals.add(new Interval<T>(start, end, value));
+        maxEnds = null;
+    }
+
+    public void add(Subnet subnet, T value) {
+        add(subnet.getValue(),
+            subnet.getValue().broadcast(subnet.getCIDRMask()), value);
+    }
+
+    public void add(InetAddressRange range, T value) {
+        add(range.getStartValue(), range.getEndValue(), value);
+    }
+
+    public int size() {
+        return intervals.size();
+    }
+
+    private void build() {
+        if (maxEnds == null) {
+            Collections.sort(intervals, START_ORDER);
+            maxEnds = new InetAddressValue[intervals.size()];
+            build(0, intervals.size() - 1);
+        }
+    }
+
+    private InetAddressValue build(int lo, int hi) {
+        if (lo > hi) {
+            return null;
+        }
+        int mid = (lo + hi) >>> 1;
+        InetAddressValue max = intervals.get(mid).end;
+        InetAddressValue left = build(lo, mid - 1);
+        InetAddressValue right = build(mid + 1, hi);
+        if (left != null && left.compareTo(max) > 0) {
+            max = left;
+        }
+        if (right != null && right.compareTo(max) > 0) {
+            max = right;
+        }
+        maxEnds[mid] = max;
+        return max;
+    }
+
+    /**
+     * Returns the value of an interval overlapping start to end, other
+     * than one whose value equals skip, or null if there is none.
+     */
+    public T findOverlapping(InetAddressValue start, InetAddressValue end,
+                             T skip) {
+        build();
+        Interval<T> i = search(0, intervals.size() - 1, start, end,
+                               start.isIPv6(), skip);
+        return i == null ? null : i.value;
+    }
+
+    /**
+     * Returns the value of an interval containing all of start to end,
+     * or null if there is none.
+     */
+    public T findContaining(InetAddressValue start, InetAddressValue end) {
+        build();
+        /* It must start at or before start and end at or after end */
+        Interval<T> i = search(0, intervals.size() - 1, end, start,
+                               start.isIPv6(), null);
+        return i == null ? null : i.value;
+    }
+
+    public T findOverlapping(Subnet subnet, T skip) {
+        return findOverlapping(subnet.getValue(),
+                               subnet.getValue().broadcast(
+                                   subnet.getCIDRMask()), skip);
+    }
+
+    public T findOverlapping(InetAddressRange range, T skip) {
+        return findOverlapping(range.getStartValue(), range.getEndValue(),
+                               skip);
+    }
+
+    public T findContaining(Subnet subnet) {
+        return findContaining(subnet.getValue(),
+                              subnet.getValue().broadcast(
+                                  subnet.getCIDRMask()));
+    }
+
+    /*
+     * The first interval, in start order, ending at or after minEnd and
+     * starting at or before maxStart, of the given family.
+     */
+    private Interval<T> search(int lo, int hi,
+                               InetAddressValue minEnd,
+                               InetAddressValue maxStart,
+                               boolean ipv6, T skip) {
+        if (lo > hi) {
+            return null;
+        }
+        int mid = (lo + hi) >>> 1;
+        if (maxEnds[mid].compareTo(minEnd) < 0) {
+            return null;
+        }
+        Interval<T> res = search(lo, mid - 1, minEnd, maxStart, ipv6, skip);
+        if (res != null) {
+            return res;
+        }
+        Interval<T> i = intervals.get(mid);
+        if (i.start.compareTo(maxStart) > 0) {
+            /* Neither does anything to the right */
+            return null;
+        }
+        if (i.end.compareTo(minEnd) >= 0 &&
+            i.start.isIPv6() == ipv6 &&
+            (skip == null || !skip.equals(i.value))) {
+            return i;
+        }
+        return search(mid + 1, hi, minEnd, maxStart, ipv6, skip);
+    }
+}
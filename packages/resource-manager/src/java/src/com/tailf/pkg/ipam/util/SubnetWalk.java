@@ -0,0 +1,132 @@
+package com.tailf.pkg.ipam.util;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import com.tailf.pkg.ipam.Subnet;
+import com.tailf.pkg.ipam.exceptions.InvalidNetmaskException;
+
+/**
+ * The fewest CIDR blocks covering a range of addresses, lowest first,
+ * worked out one at a time as they are asked for.
+ *
+ * Each block is the largest one that starts at the first address not
+ * yet covered, is aligned there, i.e. no larger than its trailing zero
+ * bits allow, and does not reach past the end of the range. All of it
+ * is done on the two longs of InetAddressValue, without recursion or
+ * BigInteger.
+ */
+public class SubnetWalk implements Iterator<Subnet> {
+
+    private final boolean ipv6;
+    private final int width;
+    private final long lastHi;
+    private final long lastLo;
+
+    private long hi;
+    private long lo;
+    private boolean done;
+
+    /**
+     * @param first  the first address of the range
+     * @param last   the last address of the range, of the same family
+     */
+    public SubnetWalk(InetAddressValue first, InetAddressValue last) {
+        this.ipv6 = first.isIPv6();
+        this.width = first.width();
+        this.hi = first.getHigh();
+        this.lo = first.getLow();
+        this.lastHi = last.getHigh();
+        this.lastLo = last.getLow();
+        this.done = first.compareTo(last) > 0;
+    }
+
+    public boolean hasNext() {
+        return !done;
+    }
+
+    /**
+     * The prefix length of the next block.
+     */
+    private int nextPrefix() {
+        /* Host bits the start address is aligned to */
+        int aligned;
+        if (!ipv6) {
+            aligned = lo == 0 ? 32 : Long.numberOfTrailingZeros(lo);
+        } else if (lo != 0) {
+            aligned = Long.numberOfTrailingZeros(lo);
+        } else {
+            aligned = hi == 0 ? 128 : 64 + Long.numberOfTrailingZeros(hi);
+        }
+
+        /* Host bits that fit in what is left, floor(log2(last - start + 1)) */
+        int fits;
+        long dLo = lastLo - lo;
+        long dHi = lastHi - hi - (ult(lastLo, lo) ? 1 : 0);
+        if (!ipv6) {
+            fits = 63 - Long.numberOfLeadingZeros(dLo + 1);
+        } else {
+            /* Add one to the 128-bit difference */
+            dLo += 1;
+            if (dLo == 0) {
+                dHi += 1;
+            }
+            if (dHi == 0 && dLo == 0) {
+                /* The whole address space */
+                fits = 128;
+            } else if (dHi != 0) {
+                fits = 127 - Long.numberOfLeadingZeros(dHi);
+            } else {
+                fits = 63 - Long.numberOfLeadingZeros(dLo);
+            }
+        }
+
+        return width - Math.min(aligned, fits);
+    }
+
+    /* Unsigned a < b */
+    private static boolean ult(long a, long b) {
+        return (a + Long.MIN_VALUE) < (b + Long.MIN_VALUE);
+    }
+
+    public Subnet next() {
+        if (done) {
+            throw new NoSuchElementException();
+        }
+
+        int prefix = nextPrefix();
+        InetAddressValue network = ipv6 ? InetAddressValue.ipv6(hi, lo) :
+            InetAddressValue.ipv4(lo);
+        Subnet subnet;
+        try {
+            subnet = new Subnet(network, prefix);
+        } catch (InvalidNetmaskException e) {
+            throw new Error(e); // Can't happen, 0 <= prefix <= width
+        }
+
+        /* Move on to the address after the block */
+        int hostBits = width - prefix;
+        long endHi = hi;
+        long endLo = lo;
+        if (hostBits >= 64) {
+            endLo = -1L;
+            endHi |= hostBits == 128 ? -1L : (1L << (hostBits - 64)) - 1;
+        } else {
+            endLo |= (1L << hostBits) - 1;
+        }
+
+        if (endHi == lastHi && endLo == lastLo) {
+            done = true;
+        } else if (!ipv6) {
+            lo = endLo + 1;
+        } else {
+            lo = endLo + 1;
+            hi = lo == 0 ? endHi + 1 : endHi;
+        }
+        return subnet;
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,379 @@
+package com.tailf.pkg.nsoutil;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+import com.tailf.cdb.Cdb;
+import com.tailf.cdb.CdbDBType;
+import com.tailf.cdb.CdbSession;
+import com.tailf.conf.ConfException;
+import com.tailf.conf.ConfUInt64;
+import com.tailf.conf.ConfValue;
+import com.tailf.ncs.NcsMain;
+import com.tailf.pkg.resourcemanager.namespaces.resourceAllocator;
+
+/**
+ * AllocatorStats
+ *
+ * Figures about how an allocator is doing: the latency of its requests
+ * from the subscription to the response, the time its workers spend on
+ * a batch, how many oper data writes it makes, and the PoolStats of
+ * each of its pools. They are recorded without locks from the request
+ * path.
+ *
+ * Between start() and stop() the figures are published as MXBeans
+ * under com.tailf.pkg.resourcemanager, and written every few seconds
+ * to /ralloc:resource-pools/statistics/allocator{name}. How often is
+ * set in ms with the system property
+ * resource-manager.statistics-interval (5000).
+ */
+public class AllocatorStats implements AllocatorStatsMXBean {
+    private static final Logger LOGGER =
+        Logger.getLogger(AllocatorStats.class);
+
+    static final String DOMAIN = "com.tailf.pkg.resourcemanager";
+
+    private static final long INTERVAL =
+        Math.max(100, Long.getLong("resource-manager.statistics-interval",
+                                   5000L));
+
+    private final String name;
+    private final LatencyHistogram requestLatency = new LatencyHistogram();
+    private final LatencyHistogram workerTime = new LatencyHistogram();
+    private final AtomicLong operWrites = new AtomicLong();
+    private final Map<String, PoolStats> pools =
+        new ConcurrentHashMap<String, PoolStats>();
+
+    private ScheduledExecutorService timer;
+
+    /* Used by the timer thread only */
+    private Cdb cdb;
+    private final Set<String> writtenPools = new HashSet<String>();
+
+    /**
+     * @param name  The allocator, e.g. "id-allocator"
+     */
+    public AllocatorStats(String name) {
+        this.name = name;
+    }
+
+    /**
+     * A request has been answered.
+     *
+     * @param received  When it was read, a System.nanoTime()
+     */
+    public void requestDone(long received) {
+        requestLatency.recordSince(received);
+    }
+
+    /**
+     * A worker is done with its requests.
+     *
+     * @param started  When it started, a System.nanoTime()
+     */
+    public void workerDone(long started) {
+        workerTime.recordSince(started);
+    }
+
+    /**
+     * Writes made by flushing the WriteBehindBuffer of a pool.
+     */
+    public void operWrites(long n) {
+        operWrites.addAndGet(n);
+    }
+
+    /*
+     * Writes to the oper data made directly, e.g. of the responses,
+     * counted as they are made.
+     */
+
+    public void setElem(CdbSession sess, ConfValue value, String fmt,
+                        Object... args)
+        throws IOException, ConfException {
+        sess.setElem(value, fmt, args);
+        operWrites.incrementAndGet();
+    }
+
+    public void setCase(CdbSession sess, String choice, String caseName,
+                        String fmt, Object... args)
+        throws IOException, ConfException {
+        sess.setCase(choice, caseName, fmt, args);
+        operWrites.incrementAndGet();
+    }
+
+    public void delete(CdbSession sess, String fmt, Object... args)
+        throws IOException, ConfException {
+        sess.delete(fmt, args);
+        operWrites.incrementAndGet();
+    }
+
+    /**
+     * Include a pool, replacing one of the same name.
+     */
+    public synchronized void addPool(String pool, PoolStats stats) {
+        pools.put(pool, stats);
+        if (timer != null) {
+            register(poolName(pool), stats);
+        }
+    }
+
+    public synchronized void removePool(String pool) {
+        if (pools.remove(pool) != null && timer != null) {
+            unregister(poolName(pool));
+        }
+    }
+
+    public synchronized void start() {
+        if (timer != null) {
+            return;
+        }
+
+        register(allocatorName(), this);
+        for (Map.Entry<String, PoolStats> entry : pools.entrySet()) {
+            register(poolName(entry.getKey()), entry.getValue());
+        }
+
+        timer = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, name + "-statistics");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        timer.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    write();
+                }
+            }, INTERVAL, INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops publishing, taking the MXBeans and the oper data away.
+     */
+    public void stop() {
+        ScheduledExecutorService t;
+        synchronized (this) {
+            t = timer;
+            timer = null;
+            if (t == null) {
+                return;
+            }
+            unregister(allocatorName());
+            for (String pool : pools.keySet()) {
+                unregister(poolName(pool));
+            }
+        }
+
+        t.shutdownNow();
+        try {
+            t.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        CdbSession sess = null;
+        try {
+            sess = session();
+            if (sess.exists(path())) {
+                sess.delete(path());
+            }
+        } catch (Exception e) {
+            LOGGER.debug("Failed to remove allocator statistics", e);
+        } finally {
+            end(sess);
+            closeCdb();
+        }
+    }
+
+    public long getRequests() {
+        return requestLatency.getCount();
+    }
+
+    public long getOperWrites() {
+        return operWrites.get();
+    }
+
+    public double getOperWritesPerRequest() {
+        long requests = getRequests();
+        return requests == 0 ? 0 : (double) getOperWrites() / requests;
+    }
+
+    public LatencyHistogram.Summary getRequestLatency() {
+        return requestLatency.summary();
+    }
+
+    public LatencyHistogram.Summary getWorkerTime() {
+        return workerTime.summary();
+    }
+
+    private String path() {
+        return String.format("/%s:%s/%s/%s{%s}",
+                             resourceAllocator.prefix,
+                             resourceAllocator._resource_pools_,
+                             resourceAllocator._statistics_,
+                             resourceAllocator._allocator_, name);
+    }
+
+    /*
+     * Writes the figures to the oper data, removing the pools that are
+     * gone since the last time.
+     */
+    private void write() {
+        String path = path();
+        CdbSession sess = null;
+        try {
+            sess = session();
+            if (!sess.exists(path)) {
+                sess.create(path);
+                writtenPools.clear();
+            }
+            sess.setElem(new ConfUInt64(getRequests()), "%s/%s", path,
+                         resourceAllocator._requests_);
+            sess.setElem(new ConfUInt64(getOperWrites()), "%s/%s", path,
+                         resourceAllocator._oper_writes_);
+            write(sess, path + "/" + resourceAllocator._request_latency_,
+                  getRequestLatency());
+            write(sess, path + "/" + resourceAllocator._worker_time_,
+                  getWorkerTime());
+
+            for (Iterator<String> it = writtenPools.iterator();
+                 it.hasNext();) {
+                String pool = it.next();
+                if (!pools.containsKey(pool)) {
+                    sess.delete("%s/%s{%s}", path,
+                                resourceAllocator._pool_, pool);
+                    it.remove();
+                }
+            }
+
+            for (Map.Entry<String, PoolStats> entry : pools.entrySet()) {
+                String poolPath = String.format("%s/%s{%s}", path,
+                                                resourceAllocator._pool_,
+                                                entry.getKey());
+                PoolStats stats = entry.getValue();
+                if (writtenPools.add(entry.getKey())) {
+                    if (!sess.exists(poolPath)) {
+                        sess.create(poolPath);
+                    }
+                }
+                sess.setElem(new ConfUInt64(stats.getFreeBlocks()),
+                             "%s/%s", poolPath,
+                             resourceAllocator._free_blocks_);
+                write(sess, poolPath + "/" +
+                      resourceAllocator._lock_hold_time_,
+                      stats.getLockHoldTime());
+            }
+        } catch (Exception e) {
+            LOGGER.debug("Failed to write allocator statistics", e);
+            writtenPools.clear();
+            closeCdb();
+        } finally {
+            end(sess);
+        }
+    }
+
+    private static void write(CdbSession sess, String path,
+                              LatencyHistogram.Summary s)
+        throws Exception {
+        sess.setElem(new ConfUInt64(s.getCount()), "%s/%s", path,
+                     resourceAllocator._count_);
+        sess.setElem(new ConfUInt64(s.getAverage()), "%s/%s", path,
+                     resourceAllocator._average_);
+        sess.setElem(new ConfUInt64(s.getMedian()), "%s/%s", path,
+                     resourceAllocator._median_);
+        sess.setElem(new ConfUInt64(s.getP90()), "%s/%s", path,
+                     resourceAllocator._p90_);
+        sess.setElem(new ConfUInt64(s.getP99()), "%s/%s", path,
+                     resourceAllocator._p99_);
+        sess.setElem(new ConfUInt64(s.getMax()), "%s/%s", path,
+                     resourceAllocator._max_);
+    }
+
+    private CdbSession session() throws Exception {
+        if (cdb == null) {
+            cdb = new Cdb(name + "-statistics",
+                          new Socket(NcsMain.getInstance().getNcsHost(),
+                                     NcsMain.getInstance().getNcsPort()));
+        }
+        return cdb.startSession(CdbDBType.CDB_OPERATIONAL);
+    }
+
+    private static void end(CdbSession sess) {
+        if (sess != null) {
+            try {
+                sess.endSession();
+            } catch (Exception ignore) {
+                ;
+            }
+        }
+    }
+
+    private void closeCdb() {
+        if (cdb != null) {
+            try {
+                cdb.close();
+            } catch (Exception ignore) {
+                ;
+            }
+            cdb = null;
+        }
+    }
+
+    private String allocatorName() {
+        return String.format("%s:type=Allocator,name=%s", DOMAIN,
+                             ObjectName.quote(name));
+    }
+
+    private String poolName(String pool) {
+        return String.format("%s:type=Pool,allocator=%s,name=%s", DOMAIN,
+                             ObjectName.quote(name), ObjectName.quote(pool));
+    }
+
+    /*
+     * Register an MXBean, replacing one left behind by an earlier
+     * instance of the package.
+     */
+    static void register(String objectName, Object bean) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName on = new ObjectName(objectName);
+            if (server.isRegistered(on)) {
+                server.unregisterMBean(on);
+            }
+            server.registerMBean(bean, on);
+        } catch (Exception e) {
+            LOGGER.warn(String.format("Failed to register %s", objectName),
+                        e);
+        }
+    }
+
+    static void unregister(String objectName) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName on = new ObjectName(objectName);
+            if (server.isRegistered(on)) {
+                server.unregisterMBean(on);
+            }
+        } catch (Exception e) {
+            LOGGER.warn(String.format("Failed to unregister %s", objectName),
+                        e);
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.tailf.pkg.nsoutil;
+
+/**
+ * AllocatorStatsMXBean
+ *
+ * The figures of AllocatorStats as seen over JMX. Durations are in
+ * microseconds.
+ */
+public interface AllocatorStatsMXBean {
+
+    long getRequests();
+
+    long getOperWrites();
+
+    double getOperWritesPerRequest();
+
+    LatencyHistogram.Summary getRequestLatency();
+
+    LatencyHistogram.Summary getWorkerTime();
+}
@@ -0,0 +1,144 @@
+package com.tailf.pkg.nsoutil;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * LatencyHistogram
+ *
+ * Durations counted in buckets of powers of two microseconds, bucket i
+ * holding those of at least 2^(i-1) and less than 2^i microseconds, with
+ * the total and the longest kept alongside. Recording takes a few
+ * atomic updates and neither locks nor allocates, so it can be left on
+ * in the request path. Readers get a Summary, which is consistent
+ * enough for monitoring but not an atomic snapshot.
+ */
+public class LatencyHistogram {
+
+    /* The last bucket takes everything from 2^38 us, about three days */
+    private static final int BUCKETS = 40;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a duration, in nanoseconds.
+     */
+    public void record(long nanos) {
+        long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+        int bucket = Math.min(BUCKETS - 1,
+                              64 - Long.numberOfLeadingZeros(micros));
+        buckets.incrementAndGet(bucket);
+        count.incrementAndGet();
+        sum.addAndGet(micros);
+
+        long m = max.get();
+        while (micros > m && !max.compareAndSet(m, micros)) {
+            m = max.get();
+        }
+    }
+
+    /**
+     * Records the time since start, a System.nanoTime().
+     */
+    public void recordSince(long start) {
+        record(System.nanoTime() - start);
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public Summary summary() {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        long n = count.get();
+        long longest = max.get();
+
+        return new Summary(n,
+                           n == 0 ? 0 : sum.get() / n,
+                           percentile(counts, total, 0.5, longest),
+                           percentile(counts, total, 0.9, longest),
+                           percentile(counts, total, 0.99, longest),
+                           longest);
+    }
+
+    /*
+     * The upper bound of the bucket the percentile falls in, which is
+     * at most twice the real value, capped by the longest one seen.
+     */
+    private static long percentile(long[] counts, long total, double p,
+                                   long longest) {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * p);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(longest, i == 0 ? 0 : (1L << i) - 1);
+            }
+        }
+        return longest;
+    }
+
+    /**
+     * The recorded durations summed up, in microseconds.
+     */
+    public static class Summary {
+        private final long count;
+        private final long average;
+        private final long median;
+        private final long p90;
+        private final long p99;
+        private final long max;
+
+        Summary(long count, long average, long median, long p90, long p99,
+                long max) {
+            this.count = count;
+            this.average = average;
+            this.median = median;
+            this.p90 = p90;
+            this.p99 = p99;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getAverage() {
+            return average;
+        }
+
+        public long getMedian() {
+            return median;
+        }
+
+        public long getP90() {
+            return p90;
+        }
+
+        public long getP99() {
+            return p99;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public String toString() {
+            return String.format("count %d avg %dus p50 %dus p90 %dus"
+                                 + " p99 %dus max %dus",
+                                 count, average, median, p90, p99, max);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.tailf.pkg.nsoutil;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * ParallelLoad
+ *
+ * Runs independent load tasks, such as reading one pool each, on a few
+ * threads. Every thread opens its own sessions, of type S, the first
+ * time it runs a task and uses them for all tasks it runs after that;
+ * they are all closed when the load is done. A task that fails is
+ * logged and does not stop the others.
+ */
+public abstract class ParallelLoad<S> {
+
+    private static Logger LOGGER = Logger.getLogger(ParallelLoad.class);
+
+    public abstract static class Task<S> {
+        private final String name;
+
+        protected Task(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public abstract void load(S sessions) throws Exception;
+    }
+
+    private final String threadName;
+    private final int threads;
+
+    protected ParallelLoad(String threadName, int threads) {
+        this.threadName = threadName;
+        this.threads = threads;
+    }
+
+    /* Open the sessions of one loader thread. */
+    protected abstract S open() throws Exception;
+
+    protected abstract void close(S sessions);
+
+    /**
+     * Run the tasks and wait for them. Returns the number of tasks that
+     * failed or were not run because the calling thread was interrupted.
+     */
+    public int run(List<? extends Task<S>> tasks) {
+        final List<S> opened = Collections.synchronizedList(new ArrayList<S>());
+        final ThreadLocal<S> local = new ThreadLocal<S>();
+        final AtomicInteger count = new AtomicInteger();
+
+        ExecutorService loaders =
+            Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, threadName + "-" +
+                                          count.incrementAndGet());
+                    }
+                });
+        List<Future<Void>> loading = new ArrayList<Future<Void>>();
+        int failed = 0;
+        try {
+            for (final Task<S> task : tasks) {
+                loading.add(loaders.submit(new Callable<Void>() {
+                        public Void call() throws Exception {
+                            S sessions = local.get();
+                            if (sessions == null) {
+                                sessions = open();
+                                local.set(sessions);
+                                opened.add(sessions);
+                            }
+                            task.load(sessions);
+                            return null;
+                        }
+                    }));
+            }
+
+            for (int i = 0; i < loading.size(); i++) {
+                try {
+                    loading.get(i).get();
+                } catch (ExecutionException e) {
+                    LOGGER.error(String.format("Failed to load %s",
+                                               tasks.get(i).getName()),
+                                 e.getCause());
+                    failed++;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    failed += loading.size() - i;
+                    break;
+                }
+            }
+        } finally {
+            loaders.shutdownNow();
+            synchronized (opened) {
+                for (S sessions : opened) {
+                    close(sessions);
+                }
+            }
+        }
+        return failed;
+    }
+}
@@ -0,0 +1,41 @@
+package com.tailf.pkg.nsoutil;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Partitions
+ *
+ * Splits the requests of a notification into partitions that can be
+ * handled by separate workers, one partition per key such as the pool
+ * name. The partitions come in the order their keys first appear, and
+ * each keeps the order of its requests, so the requests on one pool
+ * are still handled one at a time and in the order they were made.
+ */
+public class Partitions {
+
+    public interface Key<T> {
+        String of(T item);
+    }
+
+    private Partitions() {
+    }
+
+    public static <T> List<ArrayList<T>> byKey(List<T> items, Key<T> key) {
+        Map<String, ArrayList<T>> partitions =
+            new LinkedHashMap<String, ArrayList<T>>();
+
+        for (T item : items) {
+            String k = key.of(item);
+            ArrayList<T> partition = partitions.get(k);
+            if (partition == null) {
+                partition = new ArrayList<T>();
+                partitions.put(k, partition);
+            }
+            partition.add(item);
+        }
+        return new ArrayList<ArrayList<T>>(partitions.values());
+    }
+}
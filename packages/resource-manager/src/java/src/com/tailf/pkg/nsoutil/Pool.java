@@ -24,6 +24,9 @@ public abstract class Pool {
 
     protected int threshold;
 
+    /* Lock hold times and fragmentation, kept up to date by the pool */
+    protected final PoolStats stats = new PoolStats();
+
     public Pool (String pool, ConfIdentityRef emptyAlarm,
                  ConfIdentityRef lowThresholdAlarm,
                  boolean alarmsEnabled,
@@ -78,6 +81,10 @@ public abstract class Pool {
         }
     }
 
+    public PoolStats getStats() {
+        return stats;
+    }
+
     public void enableAlarms() {
         this.alarmsEnabled = true;
         if (isEmpty()) {
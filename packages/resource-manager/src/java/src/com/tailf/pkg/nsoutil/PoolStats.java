@@ -0,0 +1,47 @@
+package com.tailf.pkg.nsoutil;
+
+/**
+ * PoolStats
+ *
+ * Figures kept by a pool about itself: how long its allocations and
+ * releases hold it locked, and how many blocks its free space is split
+ * into, a measure of fragmentation.
+ *
+ * enter() and exit() are called with the pool locked, around the
+ * outermost of possibly nested locked calls. The other fields are
+ * written by the pool and read by any thread.
+ */
+public class PoolStats implements PoolStatsMXBean {
+
+    private final LatencyHistogram lockHold = new LatencyHistogram();
+    private volatile long freeBlocks;
+
+    /* Guarded by the pool */
+    private int depth;
+
+    /**
+     * Called on taking the pool lock, returns the start time to hand
+     * to exit().
+     */
+    public long enter() {
+        return depth++ == 0 ? System.nanoTime() : 0;
+    }
+
+    public void exit(long start) {
+        if (--depth == 0) {
+            lockHold.recordSince(start);
+        }
+    }
+
+    public void setFreeBlocks(long freeBlocks) {
+        this.freeBlocks = freeBlocks;
+    }
+
+    public long getFreeBlocks() {
+        return freeBlocks;
+    }
+
+    public LatencyHistogram.Summary getLockHoldTime() {
+        return lockHold.summary();
+    }
+}
@@ -0,0 +1,20 @@
+package com.tailf.pkg.nsoutil;
+
+/**
+ * PoolStatsMXBean
+ *
+ * The figures of PoolStats as seen over JMX.
+ */
+public interface PoolStatsMXBean {
+
+    /**
+     * Free ranges or subnets the pool's free space is split into.
+     */
+    long getFreeBlocks();
+
+    /**
+     * How long allocations and releases hold the pool locked, in
+     * microseconds.
+     */
+    LatencyHistogram.Summary getLockHoldTime();
+}
@@ -0,0 +1,668 @@
+package com.tailf.pkg.nsoutil;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import com.tailf.cdb.Cdb;
+import com.tailf.cdb.CdbDBType;
+import com.tailf.cdb.CdbSession;
+import com.tailf.conf.Conf;
+import com.tailf.conf.ConfUInt32;
+import com.tailf.conf.ConfUInt64;
+import com.tailf.conf.ConfXMLParam;
+import com.tailf.maapi.Maapi;
+import com.tailf.maapi.MaapiUserSessionFlag;
+import com.tailf.ncs.NcsMain;
+import com.tailf.pkg.resourcemanager.namespaces.resourceAllocator;
+
+/**
+ * RedeployService
+ *
+ * Re-deploys the services that allocations were made for, on a fixed
+ * set of worker threads shared by all allocators in the VM.
+ *
+ * Services handed to submit() are queued per user. The same service
+ * queued by several subscription batches is only re-deployed once.
+ * The queue is handed to the workers when the coalescing window after
+ * the first submit() has passed, so that the services of batches
+ * arriving close together go out together. A service queued while it
+ * is being re-deployed is re-deployed once more afterwards, since it
+ * may then see allocations the running re-deploy did not.
+ *
+ * At most the configured number of jobs run at the same time for one
+ * user, the queued services of a user being split evenly between them.
+ * Each job uses a MAAPI connection with a session for its user, kept
+ * for the next job of that user until it has been idle for a while.
+ *
+ * The queue depth, the number of re-deploys and their latency, from
+ * the first submit() of a service until it is re-deployed, are written
+ * to /ralloc:redeploy-status, and published as an MXBean.
+ *
+ * Services queued when the service is stopped are still re-deployed:
+ * a job finishing after the workers have been shut down goes on with
+ * the services queued for its user in the meantime.
+ *
+ * Configured with the system properties:
+ * <ul>
+ * <li>resource-manager.redeploy-workers, worker threads (4)</li>
+ * <li>resource-manager.redeploy-per-user, jobs per user (1)</li>
+ * <li>resource-manager.redeploy-window, coalescing window in ms (50)</li>
+ * <li>resource-manager.redeploy-idle-timeout, ms before an idle
+ *     connection is closed (60000)</li>
+ * </ul>
+ */
+public class RedeployService implements RedeployServiceMXBean {
+    private static final Logger LOGGER =
+        Logger.getLogger(RedeployService.class);
+
+    private static final int WORKERS =
+        Math.max(1, Integer.getInteger("resource-manager.redeploy-workers",
+                                       4));
+    private static final int PER_USER =
+        Math.max(1, Integer.getInteger("resource-manager.redeploy-per-user",
+                                       1));
+    private static final long WINDOW =
+        Long.getLong("resource-manager.redeploy-window", 50L);
+    private static final long IDLE_TIMEOUT =
+        Long.getLong("resource-manager.redeploy-idle-timeout", 60000L);
+
+    private static final String MXBEAN =
+        AllocatorStats.DOMAIN + ":type=RedeployService";
+
+    /* How often the status is written, if it has changed */
+    private static final long STATUS_INTERVAL = 1000;
+
+    private static RedeployService instance;
+    private static int users;
+
+    private final ExecutorService workers;
+    private final ScheduledExecutorService timer;
+    private final String actionFmt;
+    private final boolean trans;
+    private final int perUser;
+    private final long window;
+    /* null for the shared service, which uses MAAPI */
+    private final Redeployer redeployer;
+
+    /* The rest is guarded by this */
+    private final Map<String, UserQueue> queues =
+        new LinkedHashMap<String, UserQueue>();
+    private boolean dispatchScheduled = false;
+    private boolean stopped = false;
+    private int queued;
+    private int running;
+    private long redeployed;
+    private long failed;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private int connections;
+    private boolean statusChanged = true;
+
+    /* Used by the timer thread only */
+    private Cdb statusCdb;
+
+    /**
+     * Takes the service into use, starting it if needed. Each call
+     * must be paired with a call to stop().
+     */
+    public static synchronized void start() {
+        users++;
+        getInstance();
+    }
+
+    /**
+     * Lets go of the service. When the last user lets go, what is
+     * queued is dispatched at once, and the service is shut down when
+     * the running jobs are done.
+     */
+    public static void stop() {
+        RedeployService stopping = null;
+        synchronized (RedeployService.class) {
+            if (users > 0) {
+                users--;
+            }
+            if (users == 0 && instance != null) {
+                /* Before a new instance can register it */
+                AllocatorStats.unregister(MXBEAN);
+                stopping = instance;
+                instance = null;
+            }
+        }
+
+        /* Not holding the class lock, getInstance() is not kept waiting */
+        if (stopping != null) {
+            stopping.shutdown();
+        }
+    }
+
+    /**
+     * The running service. If nothing has called start() it is
+     * started here, for callers of NSOUtil.redeploy() outside of the
+     * allocators.
+     */
+    public static synchronized RedeployService getInstance() {
+        if (instance == null) {
+            instance = new RedeployService(WORKERS, PER_USER, WINDOW, null);
+            AllocatorStats.register(MXBEAN, instance);
+        }
+        return instance;
+    }
+
+    /**
+     * Re-deploys the services of one user. A job hands it its batch.
+     */
+    public interface Redeployer {
+        void redeploy(String user, Collection<String> services)
+            throws Exception;
+    }
+
+    /**
+     * A service of its own, with the given number of worker threads,
+     * jobs per user and coalescing window, that hands the services to
+     * redeployer instead of re-deploying them through MAAPI. It writes
+     * no status and is not published as an MXBean. Stopped with
+     * shutdown().
+     */
+    public RedeployService(int workers, int perUser, long window,
+                           Redeployer redeployer) {
+        this.perUser = Math.max(1, perUser);
+        this.window = window;
+        this.redeployer = redeployer;
+
+        /* set up action depending on NSO version */
+        if (Conf.LIBVSN >= 0x06020000) {
+            actionFmt = "%s/touch";
+            trans = true;
+        }
+        else if (Conf.LIBVSN >= 0x06010000) {
+            actionFmt = "%s/reactive-re-deploy";
+            trans = false;
+        }
+        else {
+            actionFmt = "%s/re-deploy";
+            trans = false;
+        }
+
+        this.workers = Executors.newFixedThreadPool(Math.max(1, workers),
+                      new RedeployThreadFactory("resource-manager-redeploy"));
+        timer = Executors.newSingleThreadScheduledExecutor(
+                      new RedeployThreadFactory("resource-manager-redeploy-timer"));
+        timer.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    closeIdleConnections();
+                    if (RedeployService.this.redeployer == null) {
+                        writeStatus();
+                    }
+                }
+            }, STATUS_INTERVAL, STATUS_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized int getQueued() {
+        return queued;
+    }
+
+    public synchronized int getRunning() {
+        return running;
+    }
+
+    public synchronized long getRedeployed() {
+        return redeployed;
+    }
+
+    public synchronized long getFailed() {
+        return failed;
+    }
+
+    public LatencyHistogram.Summary getLatency() {
+        return latency.summary();
+    }
+
+    /**
+     * Queues services to be re-deployed. Safe to call from a CDB
+     * subscriber, nothing is done in the calling thread.
+     */
+    public synchronized void submit(Set<ToRedeploy> toRedeploy) {
+        long now = System.currentTimeMillis();
+
+        for (ToRedeploy item : toRedeploy) {
+            UserQueue q = queues.get(item.getUsername());
+            if (q == null) {
+                q = new UserQueue(item.getUsername());
+                queues.put(q.user, q);
+            }
+            String path = item.getAllocatingService();
+            if (!q.pending.containsKey(path)) {
+                q.pending.put(path, now);
+                queued++;
+                statusChanged = true;
+            }
+        }
+
+        if (stopped) {
+            dispatch();
+        } else if (!dispatchScheduled && queued > 0) {
+            dispatchScheduled = true;
+            if (window <= 0) {
+                dispatch();
+            } else {
+                timer.schedule(new Runnable() {
+                        public void run() {
+                            dispatch();
+                        }
+                    }, window, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Hands the queued services to the workers, as many jobs per user
+     * as the user has free.
+     */
+    private synchronized void dispatch() {
+        dispatchScheduled = false;
+
+        if (workers.isShutdown()) {
+            /* Those of users with a job running are taken by that job */
+            int dropped = 0;
+            for (UserQueue q : queues.values()) {
+                if (q.running == 0) {
+                    dropped += q.pending.size();
+                    q.pending.clear();
+                }
+            }
+            if (dropped > 0) {
+                LOGGER.warn(String.format("%d re-deploys submitted after"
+                                          + " stop", dropped));
+                queued -= dropped;
+                failed += dropped;
+                statusChanged = true;
+            }
+            return;
+        }
+
+        for (UserQueue q : queues.values()) {
+            while (q.running < perUser && !q.pending.isEmpty()) {
+                int jobs = perUser - q.running;
+                int n = (q.pending.size() + jobs - 1) / jobs;
+                q.running++;
+                workers.execute(new Job(q, takeBatch(q, n)));
+            }
+        }
+    }
+
+    /*
+     * The first n queued services of q, counted as running.
+     */
+    private Map<String, Long> takeBatch(UserQueue q, int n) {
+        Map<String, Long> batch = new LinkedHashMap<String, Long>();
+        Iterator<Map.Entry<String, Long>> it =
+            q.pending.entrySet().iterator();
+        while (batch.size() < n) {
+            Map.Entry<String, Long> e = it.next();
+            batch.put(e.getKey(), e.getValue());
+            it.remove();
+        }
+
+        queued -= batch.size();
+        running += batch.size();
+        statusChanged = true;
+        return batch;
+    }
+
+    /*
+     * Returns what the job is to re-deploy next, if the workers have
+     * been shut down and more services were queued for its user.
+     */
+    private synchronized Map<String, Long> jobDone(UserQueue q,
+                                                   Map<String, Long> batch,
+                                                   UserConnection conn,
+                                                   boolean ok) {
+        long now = System.currentTimeMillis();
+
+        q.running--;
+        running -= batch.size();
+        if (ok) {
+            redeployed += batch.size();
+            for (long queuedAt : batch.values()) {
+                latency.record(TimeUnit.MILLISECONDS.toNanos(now - queuedAt));
+            }
+        } else {
+            failed += batch.size();
+        }
+        statusChanged = true;
+
+        if (conn != null) {
+            if (ok && !stopped) {
+                conn.lastUsed = now;
+                q.idle.push(conn);
+            } else {
+                connections--;
+                conn.close();
+            }
+        }
+
+        if (!q.pending.isEmpty()) {
+            /* Queued while running, wait for the window if not stopped */
+            if (stopped && workers.isShutdown()) {
+                /* No new jobs are taken, this one goes on */
+                q.running++;
+                return takeBatch(q, q.pending.size());
+            } else if (stopped) {
+                dispatch();
+            } else if (!dispatchScheduled) {
+                dispatchScheduled = true;
+                timer.schedule(new Runnable() {
+                        public void run() {
+                            dispatch();
+                        }
+                    }, Math.max(window, 0), TimeUnit.MILLISECONDS);
+            }
+        }
+        return null;
+    }
+
+    private UserConnection takeConnection(UserQueue q)
+        throws Exception {
+        synchronized (this) {
+            if (!q.idle.isEmpty()) {
+                return q.idle.pop();
+            }
+            connections++;
+            statusChanged = true;
+        }
+
+        try {
+            return new UserConnection(q.user);
+        } catch (Exception e) {
+            synchronized (this) {
+                connections--;
+            }
+            throw e;
+        }
+    }
+
+    private synchronized void closeIdleConnections() {
+        long now = System.currentTimeMillis();
+
+        for (Iterator<UserQueue> it = queues.values().iterator();
+             it.hasNext();) {
+            UserQueue q = it.next();
+            /* Oldest at the bottom of the stack */
+            while (!q.idle.isEmpty() &&
+                   now - q.idle.peekLast().lastUsed >= IDLE_TIMEOUT) {
+                q.idle.removeLast().close();
+                connections--;
+                statusChanged = true;
+            }
+            if (q.idle.isEmpty() && q.pending.isEmpty() && q.running == 0) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Dispatches what is queued and waits for the jobs to finish. Only
+     * to be called for a service created with the public constructor,
+     * the shared one is shut down by stop().
+     */
+    public void shutdown() {
+        synchronized (this) {
+            stopped = true;
+            dispatch();
+        }
+
+        workers.shutdown();
+        try {
+            if (!workers.awaitTermination(60, TimeUnit.SECONDS)) {
+                LOGGER.warn("Re-deploys still running at shutdown");
+                workers.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            workers.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+
+        timer.shutdownNow();
+        try {
+            timer.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (this) {
+            for (UserQueue q : queues.values()) {
+                for (UserConnection conn : q.idle) {
+                    conn.close();
+                }
+                q.idle.clear();
+            }
+            queues.clear();
+            connections = 0;
+        }
+
+        if (statusCdb != null) {
+            try {
+                statusCdb.close();
+            } catch (Exception ignore) {
+                ;
+            }
+            statusCdb = null;
+        }
+    }
+
+    /**
+     * Writes the counters to /ralloc:redeploy-status, if anything
+     * changed since the last time.
+     */
+    private void writeStatus() {
+        long[] v;
+        synchronized (this) {
+            if (!statusChanged) {
+                return;
+            }
+            statusChanged = false;
+            LatencyHistogram.Summary s = latency.summary();
+            v = new long[] { queued, running, connections, redeployed,
+                             failed,
+                             TimeUnit.MICROSECONDS.toMillis(s.getAverage()),
+                             TimeUnit.MICROSECONDS.toMillis(s.getMax()) };
+        }
+
+        String path = String.format("/%s:%s", resourceAllocator.prefix,
+                                    resourceAllocator._redeploy_status_);
+        CdbSession sess = null;
+        try {
+            if (statusCdb == null) {
+                statusCdb = new Cdb("resource-manager-redeploy-status",
+                                    new Socket(NcsMain.getInstance().getNcsHost(),
+                                               NcsMain.getInstance().getNcsPort()));
+            }
+            sess = statusCdb.startSession(CdbDBType.CDB_OPERATIONAL);
+            sess.setElem(new ConfUInt32(v[0]), "%s/%s", path,
+                         resourceAllocator._queued_);
+            sess.setElem(new ConfUInt32(v[1]), "%s/%s", path,
+                         resourceAllocator._running_);
+            sess.setElem(new ConfUInt32(v[2]), "%s/%s", path,
+                         resourceAllocator._connections_);
+            sess.setElem(new ConfUInt64(v[3]), "%s/%s", path,
+                         resourceAllocator._redeployed_);
+            sess.setElem(new ConfUInt64(v[4]), "%s/%s", path,
+                         resourceAllocator._failed_);
+            sess.setElem(new ConfUInt64(v[5]), "%s/%s", path,
+                         resourceAllocator._average_latency_);
+            sess.setElem(new ConfUInt64(v[6]), "%s/%s", path,
+                         resourceAllocator._max_latency_);
+        } catch (Exception e) {
+            LOGGER.debug("Failed to write re-deploy status", e);
+            synchronized (this) {
+                statusChanged = true;
+            }
+            if (statusCdb != null) {
+                try {
+                    statusCdb.close();
+                } catch (Exception ignore) {
+                    ;
+                }
+                statusCdb = null;
+            }
+            sess = null;
+        } finally {
+            if (sess != null) {
+                try {
+                    sess.endSession();
+                } catch (Exception ignore) {
+                    ;
+                }
+            }
+        }
+    }
+
+    private static class UserQueue {
+        final String user;
+        /* Service path -> when it was first queued */
+        final LinkedHashMap<String, Long> pending =
+            new LinkedHashMap<String, Long>();
+        /* Most recently used first */
+        final Deque<UserConnection> idle = new ArrayDeque<UserConnection>();
+        int running;
+
+        UserQueue(String user) {
+            this.user = user;
+        }
+    }
+
+    /**
+     * A MAAPI connection with a user session for one user.
+     */
+    private static class UserConnection {
+        final Maapi maapi;
+        long lastUsed;
+
+        UserConnection(String user) throws Exception {
+            Socket sock = new Socket(NcsMain.getInstance().getNcsHost(),
+                                     NcsMain.getInstance().getNcsPort());
+            try {
+                maapi = new Maapi(sock);
+                maapi.startUserSession(user,
+                                       maapi.getSocket().getInetAddress(),
+                                       "system",
+                                       new String[] {},
+                                       MaapiUserSessionFlag.PROTO_TCP);
+            } catch (Exception e) {
+                sock.close();
+                throw e;
+            }
+        }
+
+        void close() {
+            try {
+                maapi.endUserSession();
+            } catch (Exception ignore) {
+                ;
+            }
+            try {
+                maapi.getSocket().close();
+            } catch (IOException ignore) {
+                ;
+            }
+        }
+    }
+
+    private class Job implements Runnable {
+        private final UserQueue q;
+        private final Map<String, Long> batch;
+
+        Job(UserQueue q, Map<String, Long> batch) {
+            this.q = q;
+            this.batch = batch;
+        }
+
+        public void run() {
+            Map<String, Long> next = batch;
+            while (next != null) {
+                next = run(next);
+            }
+        }
+
+        private Map<String, Long> run(Map<String, Long> batch) {
+            UserConnection conn = null;
+            boolean ok = false;
+            Map<String, Long> next = null;
+            try {
+                if (redeployer != null) {
+                    redeployer.redeploy(q.user, batch.keySet());
+                } else {
+                    conn = takeConnection(q);
+                    redeploy(conn.maapi, batch);
+                }
+                ok = true;
+            } catch (Exception e) {
+                LOGGER.error(String.format("error in re-deploy as user %s",
+                                           q.user), e);
+            } finally {
+                next = jobDone(q, batch, conn, ok);
+            }
+            return next;
+        }
+
+        private void redeploy(Maapi maapi, Map<String, Long> batch)
+            throws Exception {
+            int tid = -1;
+
+            if (trans) {
+                tid = maapi.startTrans(Conf.DB_RUNNING, Conf.MODE_READ_WRITE);
+            }
+
+            try {
+                for (String path : batch.keySet()) {
+                    LOGGER.debug(String.format("re-deploying %s as user %s",
+                                               path, q.user));
+                    if (tid != -1) {
+                        maapi.requestActionTh(tid, new ConfXMLParam[] {},
+                                              String.format(actionFmt, path));
+                    } else {
+                        maapi.requestAction(new ConfXMLParam[] {},
+                                            String.format(actionFmt, path));
+                    }
+                }
+
+                if (tid != -1) {
+                    maapi.applyTrans(tid, false);
+                }
+            } finally {
+                if (tid != -1) {
+                    maapi.finishTrans(tid);
+                }
+            }
+        }
+    }
+
+    private static class RedeployThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+        private final String name;
+
+        RedeployThreadFactory(String name) {
+            this.name = name;
+        }
+
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.tailf.pkg.nsoutil;
+
+/**
+ * RedeployServiceMXBean
+ *
+ * The figures of RedeployService as seen over JMX, the same ones as in
+ * /ralloc:redeploy-status with the latency in more detail.
+ */
+public interface RedeployServiceMXBean {
+
+    int getQueued();
+
+    int getRunning();
+
+    long getRedeployed();
+
+    long getFailed();
+
+    /**
+     * From the first submit() of a service until it is re-deployed, in
+     * microseconds.
+     */
+    LatencyHistogram.Summary getLatency();
+}
@@ -0,0 +1,291 @@
+package com.tailf.pkg.nsoutil;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+/**
+ * RequestJournal
+ *
+ * Batches of requests taken from a CDB subscription, kept on local disk
+ * from the time the subscription is synced until the requests have been
+ * handled. An allocator that syncs before handling a batch appends it
+ * here first, and marks it done afterwards. Batches not marked done when
+ * the allocator stopped are returned by getPending() on the next start.
+ *
+ * A request is a record of strings, any of which may be null; what the
+ * fields mean is up to the allocator.
+ *
+ * File layout, big endian: magic and version, then entries. An entry is
+ * a type, the batch sequence number, the length of its payload, the
+ * payload and a CRC32 of all of it. The payload of a batch is the number
+ * of records, then per record the number of fields and the fields, each
+ * a present flag followed by a length and UTF-8 bytes. A done entry has
+ * no payload. A torn or damaged entry at the end, from a crash while it
+ * was written, ends the journal; its batch was never synced.
+ *
+ * Batches are forced to disk before append() returns. The file is
+ * emptied whenever no batch is pending, and rewritten with only the
+ * pending batches when it has grown large.
+ */
+public class RequestJournal {
+
+    private static Logger LOGGER = Logger.getLogger(RequestJournal.class);
+
+    private static final int MAGIC = 0x524d524a;    /* "RMRJ" */
+    private static final int VERSION = 1;
+    private static final int HEADER = 8;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final byte BATCH = 1;
+    private static final byte DONE = 2;
+
+    /* Rewrite the file when it is this large and not empty */
+    private static final long COMPACT_SIZE = 4L * 1024 * 1024;
+
+    public static class Batch {
+        private final long seq;
+        private final List<String[]> records;
+
+        Batch(long seq, List<String[]> records) {
+            this.seq = seq;
+            this.records = records;
+        }
+
+        public long getSeq() {
+            return seq;
+        }
+
+        public List<String[]> getRecords() {
+            return records;
+        }
+    }
+
+    private final File file;
+    private FileOutputStream out;
+    private long nextSeq = 1;
+    private final Map<Long, Batch> pending = new LinkedHashMap<Long, Batch>();
+
+    /**
+     * Open the journal, reading the batches left pending in it. The
+     * file is created if it does not exist.
+     */
+    public RequestJournal(File file) throws IOException {
+        this.file = file;
+
+        if (file.exists()) {
+            read();
+        } else if (file.getParentFile() != null) {
+            file.getParentFile().mkdirs();
+        }
+
+        /* Start from a clean file, without done or torn entries */
+        rewrite();
+    }
+
+    /**
+     * The batches not yet marked done, oldest first.
+     */
+    public synchronized List<Batch> getPending() {
+        return Collections.unmodifiableList(
+            new ArrayList<Batch>(pending.values()));
+    }
+
+    public synchronized boolean hasPending() {
+        return !pending.isEmpty();
+    }
+
+    /**
+     * Add a batch and force it to disk.
+     */
+    public synchronized Batch append(List<String[]> records)
+        throws IOException {
+        Batch batch = new Batch(nextSeq++, records);
+        write(batch);
+        out.getFD().sync();
+        pending.put(batch.seq, batch);
+        return batch;
+    }
+
+    private void write(Batch batch) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(buf);
+        data.writeInt(batch.records.size());
+        for (String[] record : batch.records) {
+            data.writeInt(record.length);
+            for (String field : record) {
+                data.writeBoolean(field != null);
+                if (field != null) {
+                    byte[] b = field.getBytes(UTF8);
+                    data.writeInt(b.length);
+                    data.write(b);
+                }
+            }
+        }
+        data.flush();
+
+        out.write(entry(BATCH, batch.seq, buf.toByteArray()));
+    }
+
+    /**
+     * Mark a batch as handled.
+     *
+     * The entry is not forced to disk. Should it be lost the batch is
+     * handled once more on the next start, which the allocators allow.
+     */
+    public synchronized void done(Batch batch) throws IOException {
+        if (pending.remove(batch.seq) == null) {
+            return;
+        }
+
+        if (pending.isEmpty()) {
+            out.getChannel().truncate(HEADER);
+            out.getFD().sync();
+        } else if (out.getChannel().size() >= COMPACT_SIZE) {
+            rewrite();
+        } else {
+            out.write(entry(DONE, batch.seq, new byte[0]));
+        }
+    }
+
+    public synchronized void close() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException ignore) {
+                ;
+            }
+            out = null;
+        }
+    }
+
+    private static byte[] entry(byte type, long seq, byte[] payload) {
+        ByteBuffer buf = ByteBuffer.allocate(1 + 8 + 4 + payload.length + 8);
+        buf.put(type);
+        buf.putLong(seq);
+        buf.putInt(payload.length);
+        buf.put(payload);
+
+        CRC32 crc = new CRC32();
+        crc.update(buf.array(), 0, buf.position());
+        buf.putLong(crc.getValue());
+        return buf.array();
+    }
+
+    private void read() throws IOException {
+        ByteBuffer buf;
+        FileChannel channel =
+            FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            buf = ByteBuffer.allocate((int) channel.size());
+            while (buf.hasRemaining() && channel.read(buf) >= 0) {
+                ;
+            }
+            buf.flip();
+        } finally {
+            channel.close();
+        }
+
+        if (buf.remaining() < HEADER || buf.getInt() != MAGIC ||
+            buf.getInt() != VERSION) {
+            LOGGER.warn(String.format("Ignoring request journal %s", file));
+            return;
+        }
+
+        while (buf.remaining() >= 1 + 8 + 4) {
+            int start = buf.position();
+            byte type = buf.get();
+            long seq = buf.getLong();
+            int length = buf.getInt();
+            if (length < 0 || buf.remaining() < length + 8) {
+                break;
+            }
+
+            CRC32 crc = new CRC32();
+            crc.update(buf.array(), start, 1 + 8 + 4 + length);
+            ByteBuffer payload = buf.slice();
+            payload.limit(length);
+            buf.position(buf.position() + length);
+            if (crc.getValue() != buf.getLong()) {
+                break;
+            }
+
+            if (type == BATCH) {
+                pending.put(seq, new Batch(seq, parseRecords(payload)));
+            } else if (type == DONE) {
+                pending.remove(seq);
+            }
+            nextSeq = Math.max(nextSeq, seq + 1);
+        }
+
+        if (buf.hasRemaining()) {
+            LOGGER.warn(String.format("Dropping %d bytes torn off the end" +
+                                      " of request journal %s",
+                                      buf.remaining(), file));
+        }
+    }
+
+    private static List<String[]> parseRecords(ByteBuffer buf) {
+        int n = buf.getInt();
+        List<String[]> records = new ArrayList<String[]>(n);
+        for (int i = 0; i < n; i++) {
+            String[] record = new String[buf.getInt()];
+            for (int j = 0; j < record.length; j++) {
+                if (buf.get() != 0) {
+                    byte[] b = new byte[buf.getInt()];
+                    buf.get(b);
+                    record[j] = new String(b, UTF8);
+                }
+            }
+            records.add(record);
+        }
+        return records;
+    }
+
+    /*
+     * Write the pending batches to a new file and move it in place of
+     * the old one.
+     */
+    private void rewrite() throws IOException {
+        close();
+
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream tmpOut = new FileOutputStream(tmp);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            header.putInt(MAGIC);
+            header.putInt(VERSION);
+            tmpOut.write(header.array());
+
+            out = tmpOut;
+            for (Batch batch : pending.values()) {
+                write(batch);
+            }
+            tmpOut.getFD().sync();
+        } finally {
+            tmpOut.close();
+            out = null;
+        }
+
+        Files.move(tmp.toPath(), file.toPath(),
+                   StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+        out = new FileOutputStream(file, true);
+    }
+}
@@ -0,0 +1,111 @@
+package com.tailf.pkg.nsoutil;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * ResponseCache
+ *
+ * The responses of an allocator by pool and allocation id, so that the
+ * static read helpers used by services on every re-deploy can answer
+ * without opening CDB sessions.
+ *
+ * The allocator puts a response when it writes it to CDB and removes
+ * it when it takes it away, on release, reallocation and when the pool
+ * is deleted. The helpers fill in responses they had to read from CDB
+ * with putIfCurrent(), which drops the response if anything was
+ * removed since they called epoch(), as it might then be stale.
+ *
+ * Only the allocator writing the responses can keep the cache up to
+ * date, so it must be cleared whenever the allocator stops or this
+ * node stops being HA master, and only used while it runs as master.
+ */
+public class ResponseCache<V> {
+
+    private final ConcurrentHashMap<Key, V> responses =
+        new ConcurrentHashMap<Key, V>();
+
+    /* Bumped on every removal, guarded by this */
+    private long epoch;
+
+    private static class Key {
+        final String pool;
+        final String id;
+
+        Key(String pool, String id) {
+            this.pool = pool;
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return pool.equals(k.pool) && id.equals(k.id);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * pool.hashCode() + id.hashCode();
+        }
+    }
+
+    /**
+     * The cached response, or null if there is none.
+     */
+    public V get(String pool, String id) {
+        return responses.get(new Key(pool, id));
+    }
+
+    /**
+     * Called by the allocator with the response it has just written.
+     */
+    public void put(String pool, String id, V response) {
+        responses.put(new Key(pool, id), response);
+    }
+
+    /**
+     * To be called before reading a response from CDB that is to be
+     * handed to putIfCurrent().
+     */
+    public synchronized long epoch() {
+        return epoch;
+    }
+
+    /**
+     * Cache a response read from CDB, unless something was removed
+     * since epoch was taken or the allocator has put a newer one.
+     */
+    public synchronized void putIfCurrent(String pool, String id,
+                                          V response, long epoch) {
+        if (epoch == this.epoch) {
+            responses.putIfAbsent(new Key(pool, id), response);
+        }
+    }
+
+    public synchronized void remove(String pool, String id) {
+        epoch++;
+        responses.remove(new Key(pool, id));
+    }
+
+    public synchronized void removePool(String pool) {
+        epoch++;
+        Iterator<Key> it = responses.keySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().pool.equals(pool)) {
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        epoch++;
+        responses.clear();
+    }
+
+    public int size() {
+        return responses.size();
+    }
+}
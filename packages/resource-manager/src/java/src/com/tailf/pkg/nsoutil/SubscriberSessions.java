@@ -0,0 +1,79 @@
+package com.tailf.pkg.nsoutil;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.EnumSet;
+
+import com.tailf.cdb.Cdb;
+import com.tailf.cdb.CdbDBType;
+import com.tailf.cdb.CdbLockType;
+import com.tailf.cdb.CdbSession;
+import com.tailf.conf.Conf;
+import com.tailf.conf.ConfException;
+import com.tailf.maapi.Maapi;
+import com.tailf.maapi.MaapiUserSessionFlag;
+import com.tailf.ncs.NcsMain;
+
+/**
+ * SubscriberSessions
+ *
+ * Sockets of their own for the subscriber thread of an allocator that
+ * syncs its subscription before the requests are handled. The handling
+ * goes on in the background with the allocator's usual sockets, which
+ * CDB and MAAPI do not allow to be shared between threads, while the
+ * subscriber thread reads the next notification with these.
+ *
+ * rcdb is for the running session the diff iteration reads with, it is
+ * started and ended per notification. osess is a long-lived operational
+ * session and maapi/tid a read transaction, used e.g. for the HA mode.
+ */
+public class SubscriberSessions {
+    public final Cdb rcdb;
+    public final Cdb ocdb;
+    public final CdbSession osess;
+    public final Maapi maapi;
+    public final int tid;
+
+    public SubscriberSessions(String name) throws ConfException, IOException {
+        String host = NcsMain.getInstance().getNcsHost();
+        int port = NcsMain.getInstance().getNcsPort();
+
+        rcdb = new Cdb(name, new Socket(host, port));
+        ocdb = new Cdb(name, new Socket(host, port));
+        osess = ocdb.startSession(CdbDBType.CDB_OPERATIONAL,
+                                  EnumSet.of(CdbLockType.LOCK_REQUEST,
+                                             CdbLockType.LOCK_WAIT));
+
+        maapi = new Maapi(new Socket(host, port));
+        maapi.startUserSession("",
+                               maapi.getSocket().getInetAddress(),
+                               "system",
+                               new String[] {},
+                               MaapiUserSessionFlag.PROTO_TCP);
+        tid = maapi.startTrans(Conf.DB_RUNNING, Conf.MODE_READ);
+    }
+
+    public void close() {
+        try {
+            osess.endSession();
+        } catch (Exception ignore) {
+            ;
+        }
+        try {
+            rcdb.close();
+            ocdb.close();
+        } catch (Exception ignore) {
+            ;
+        }
+        try {
+            maapi.finishTrans(tid);
+        } catch (Exception ignore) {
+            ;
+        }
+        try {
+            maapi.getSocket().close();
+        } catch (Exception ignore) {
+            ;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.tailf.pkg.nsoutil;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import com.tailf.cdb.CdbSession;
+import com.tailf.conf.ConfPath;
+import com.tailf.conf.ConfValue;
+
+/**
+ * WriteBehindBuffer
+ *
+ * Records creates and deletes of oper data list entries in memory and
+ * writes the net result to CDB on flush(). A create followed by a
+ * delete of the same entry cancels out, as does a delete followed by
+ * a create of an entry without leaf values.
+ *
+ * The sets mirroring pool state in CDB use this so that a batch of
+ * allocations costs one write per changed entry instead of one per
+ * intermediate step. The allocators flush all pools before they sync
+ * the subscription.
+ *
+ * Those sets take two sessions. They read their entries, and create
+ * the pool entry if it is missing, with rsess, a session of the thread
+ * loading the pool, e.g. a worker. Their buffer writes with wsess, the
+ * session of the thread that flushes the pools, so nothing is written
+ * to a session of another thread.
+ */
+public class WriteBehindBuffer {
+
+    private static Logger LOGGER = Logger.getLogger(WriteBehindBuffer.class);
+
+    private enum Op { CREATE, DELETE, REPLACE }
+
+    private static class Pending {
+        Op op;
+        Map<String, ConfValue> leaves;
+
+        Pending(Op op, Map<String, ConfValue> leaves) {
+            this.op = op;
+            this.leaves = leaves;
+        }
+    }
+
+    private CdbSession wsess;
+    private String listPath;
+    private boolean cleared = false;
+    private LinkedHashMap<String, Pending> pending =
+        new LinkedHashMap<String, Pending>();
+
+    /**
+     * @param wsess     Operational session used when flushing.
+     * @param listPath  Path to the list the entries belong to, deleted
+     *                  as a whole when the buffer is cleared.
+     */
+    public WriteBehindBuffer(CdbSession wsess, String listPath) {
+        this.wsess = wsess;
+        this.listPath = listPath;
+    }
+
+    public synchronized void create(String path) {
+        create(path, null);
+    }
+
+    /**
+     * Record the creation of the list entry at path, optionally with
+     * leaf values to set (leaf name to value, in order).
+     */
+    public synchronized void create(String path,
+                                    Map<String, ConfValue> leaves) {
+        Pending prev = pending.get(path);
+
+        if (prev == null || prev.op == Op.CREATE) {
+            pending.put(path, new Pending(Op.CREATE, leaves));
+        } else if (leaves == null || leaves.isEmpty()) {
+            /* Deleted and re-created, the entry stays as it is in CDB. */
+            pending.remove(path);
+        } else {
+            pending.put(path, new Pending(Op.REPLACE, leaves));
+        }
+    }
+
+    public synchronized void delete(String path) {
+        Pending prev = pending.get(path);
+
+        if (prev != null && prev.op == Op.CREATE) {
+            /* Never written, nothing to delete. */
+            pending.remove(path);
+        } else {
+            pending.put(path, new Pending(Op.DELETE, null));
+        }
+    }
+
+    /**
+     * Record that the whole list is to be deleted. Anything recorded
+     * before this is dropped.
+     */
+    public synchronized void clear() {
+        pending.clear();
+        cleared = true;
+    }
+
+    /**
+     * Drop everything recorded since the last flush, e.g. when the
+     * pool owning the list has been deleted from CDB.
+     */
+    public synchronized void discard() {
+        pending.clear();
+        cleared = false;
+    }
+
+    public synchronized boolean isEmpty() {
+        return !cleared && pending.isEmpty();
+    }
+
+    /**
+     * Write the recorded changes to CDB. Like the direct writes used
+     * to, an entry is only created if it does not exist and deleted if
+     * it does, and the leaves are set either way. Failing entries are
+     * logged and skipped.
+     *
+     * @return The number of entries written, counting a clear as one
+     */
+    public synchronized int flush() {
+        if (isEmpty()) {
+            return 0;
+        }
+
+        int written = pending.size();
+
+        LOGGER.debug(String.format("Flushing %d changes to %s",
+                                   pending.size(), listPath));
+
+        if (cleared) {
+            try {
+                if (wsess.exists(listPath)) {
+                    wsess.delete(listPath);
+                }
+            } catch (Exception e) {
+                LOGGER.error(String.format("Failed to clear %s", listPath), e);
+            }
+            cleared = false;
+            written++;
+        }
+
+        for (Map.Entry<String, Pending> entry : pending.entrySet()) {
+            String path = entry.getKey();
+            Pending p = entry.getValue();
+
+            try {
+                if (p.op == Op.DELETE) {
+                    if (wsess.exists(path)) {
+                        wsess.delete(path);
+                    }
+                    continue;
+                }
+
+                if (!wsess.exists(path)) {
+                    wsess.create(path);
+                }
+
+                if (p.leaves != null) {
+                    for (Map.Entry<String, ConfValue> leaf :
+                             p.leaves.entrySet()) {
+                        wsess.setElem(leaf.getValue(),
+                                      new ConfPath(path + "/" +
+                                                   leaf.getKey()));
+                    }
+                }
+            } catch (Exception e) {
+                LOGGER.error(String.format("Could not %s %s",
+                                           p.op == Op.DELETE ? "delete"
+                                                             : "create",
+                                           path), e);
+            }
+        }
+        pending.clear();
+        return written;
+    }
+}
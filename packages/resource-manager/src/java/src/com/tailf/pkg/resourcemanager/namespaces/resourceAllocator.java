@@ -43,4 +43,52 @@ public class resourceAllocator extends ConfNamespace {
 
     public static final int    _resource_pools = 453484040;
     public static final String _resource_pools_ = "resource-pools";
+    public static final int    _redeploy_status = 1893333972;
+    public static final String _redeploy_status_ = "redeploy-status";
+    public static final int    _queued = 2131640108;
+    public static final String _queued_ = "queued";
+    public static final int    _running = 59151599;
+    public static final String _running_ = "running";
+    public static final int    _connections = 1259277820;
+    public static final String _connections_ = "connections";
+    public static final int    _redeployed = 1060639259;
+    public static final String _redeployed_ = "redeployed";
+    public static final int    _failed = 244831632;
+    public static final String _failed_ = "failed";
+    public static final int    _average_latency = 1094625702;
+    public static final String _average_latency_ = "average-latency";
+    public static final int    _max_latency = 1663839798;
+    public static final String _max_latency_ = "max-latency";
+    public static final int    _statistics = 1049034618;
+    public static final String _statistics_ = "statistics";
+    public static final int    _allocator = 1783783143;
+    public static final String _allocator_ = "allocator";
+    public static final int    _name = 1998270519;
+    public static final String _name_ = "name";
+    public static final int    _requests = 1968374847;
+    public static final String _requests_ = "requests";
+    public static final int    _oper_writes = 427846180;
+    public static final String _oper_writes_ = "oper-writes";
+    public static final int    _request_latency = 969426520;
+    public static final String _request_latency_ = "request-latency";
+    public static final int    _worker_time = 1144044043;
+    public static final String _worker_time_ = "worker-time";
+    public static final int    _pool = 1920184583;
+    public static final String _pool_ = "pool";
+    public static final int    _free_blocks = 1960191945;
+    public static final String _free_blocks_ = "free-blocks";
+    public static final int    _lock_hold_time = 343613258;
+    public static final String _lock_hold_time_ = "lock-hold-time";
+    public static final int    _count = 180894398;
+    public static final String _count_ = "count";
+    public static final int    _average = 1866561589;
+    public static final String _average_ = "average";
+    public static final int    _median = 1341528463;
+    public static final String _median_ = "median";
+    public static final int    _p90 = 2055052956;
+    public static final String _p90_ = "p90";
+    public static final int    _p99 = 968499307;
+    public static final String _p99_ = "p99";
+    public static final int    _max = 2088175689;
+    public static final String _max_ = "max";
 }
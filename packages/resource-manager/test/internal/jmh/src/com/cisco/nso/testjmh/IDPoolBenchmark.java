@@ -0,0 +1,83 @@
+package com.tailf.pkg.testjmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.tailf.cdb.CdbSession;
+import com.tailf.pkg.idallocator.AllocationsSet;
+import com.tailf.pkg.idallocator.RangeSet;
+import com.tailf.pkg.idallocator.namespaces.idAllocatorOper;
+import com.tailf.pkg.idpool.Allocation;
+import com.tailf.pkg.idpool.IDPool;
+import com.tailf.pkg.idpool.Range;
+
+/**
+ * Allocating and releasing ids, with the free ids of the pool split
+ * into a varying number of ranges.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IDPoolBenchmark {
+
+    private static final long SIZE = 1L << 20;
+
+    /* Number of free ranges, made by allocating ids spread evenly */
+    @Param({ "1", "1000", "100000" })
+    public int fragments;
+
+    private IDPool pool;
+
+    /* An id in the middle of the last free range */
+    private long free;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        CdbSession cdb = MemoryCdb.session();
+        RangeSet availables = new RangeSet(cdb, "bench",
+                                           idAllocatorOper._available_);
+        AllocationsSet allocations = new AllocationsSet(cdb, "bench");
+        pool = new IDPool("bench", new RangeSet(cdb, "bench",
+                                                idAllocatorOper._exclude_),
+                          availables, allocations, false, 0);
+        pool.setRange(new Range(0, SIZE - 1));
+
+        long stride = SIZE / fragments;
+        for (long id = stride; id < SIZE; id += stride) {
+            pool.allocate("fragment", id);
+        }
+        availables.flush();
+        allocations.flush();
+
+        free = SIZE - stride / 2;
+    }
+
+    @Benchmark
+    public Allocation allocateFirstFree() throws Exception {
+        Allocation a = pool.allocate("bench");
+        pool.release(a);
+        return a;
+    }
+
+    @Benchmark
+    public Allocation allocateRequested() throws Exception {
+        Allocation a = pool.allocate("bench", free);
+        pool.release(a);
+        return a;
+    }
+}
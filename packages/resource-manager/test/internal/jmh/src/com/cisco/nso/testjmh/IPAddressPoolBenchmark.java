@@ -0,0 +1,98 @@
+package com.tailf.pkg.testjmh;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.tailf.cdb.CdbSession;
+import com.tailf.pkg.ipaddressallocator.AllocationsSet;
+import com.tailf.pkg.ipaddressallocator.AvailablesSet;
+import com.tailf.pkg.ipam.Allocation;
+import com.tailf.pkg.ipam.IPAddressPool;
+import com.tailf.pkg.ipam.Subnet;
+import com.tailf.pkg.ipam.SubnetComparator;
+import com.tailf.pkg.ipam.util.InetAddressValue;
+
+/**
+ * Allocating and releasing hosts and /24 sized blocks from an IPv4 or
+ * IPv6 pool of 2^20 addresses, with single addresses taken out of it
+ * to split the free space.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IPAddressPoolBenchmark {
+
+    private static final int BITS = 20;
+
+    @Param({ "v4", "v6" })
+    public String family;
+
+    /* Number of single addresses taken out, spread evenly */
+    @Param({ "0", "1000", "100000" })
+    public int holes;
+
+    private IPAddressPool pool;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        boolean ipv6 = family.equals("v6");
+        Subnet subnet = ipv6 ? new Subnet("2001:db8::", 128 - BITS) :
+            new Subnet("10.0.0.0", 32 - BITS);
+
+        CdbSession cdb = MemoryCdb.session();
+        AvailablesSet availables =
+            new AvailablesSet(cdb, "bench", new SubnetComparator());
+        AllocationsSet allocations = new AllocationsSet(cdb, "bench");
+        Set<Subnet> subnets = new HashSet<Subnet>();
+        subnets.add(subnet);
+        pool = new IPAddressPool("bench", availables, allocations, subnets);
+        pool.addToAvailable(subnet);
+
+        if (holes > 0) {
+            InetAddressValue network = subnet.getValue();
+            long stride = (1L << BITS) / holes;
+            int single = subnet.getSingleHostPrefix();
+            for (long i = 1; i <= holes; i++) {
+                long offset = i * stride - 1;
+                InetAddressValue host = ipv6 ?
+                    InetAddressValue.ipv6(network.getHigh(),
+                                          network.getLow() + offset) :
+                    InetAddressValue.ipv4(network.getLow() + offset);
+                pool.removeFromAvailable(new Subnet(host, single));
+            }
+        }
+        availables.flush();
+        allocations.flush();
+    }
+
+    @Benchmark
+    public Allocation allocateHost() throws Exception {
+        Allocation a = pool.allocate(32, 128, "bench", "admin", "req");
+        pool.release(a);
+        return a;
+    }
+
+    @Benchmark
+    public Allocation allocateBlock() throws Exception {
+        Allocation a = pool.allocate(24, 120, "bench", "admin", "req");
+        pool.release(a);
+        return a;
+    }
+}
@@ -0,0 +1,72 @@
+package com.tailf.pkg.testjmh;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.tailf.pkg.ipam.util.InetAddressComparator;
+
+/**
+ * Comparing addresses, one pair at a time and by sorting an array of
+ * random ones.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InetAddressComparatorBenchmark {
+
+    private static final int COUNT = 1024;
+
+    /* mixed compares IPv4 with IPv6 addresses */
+    @Param({ "v4", "v6", "mixed" })
+    public String family;
+
+    private final InetAddressComparator comparator =
+        new InetAddressComparator();
+    private InetAddress[] addresses;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        Random random = new Random(42);
+        addresses = new InetAddress[COUNT];
+        for (int i = 0; i < COUNT; i++) {
+            boolean ipv6 = family.equals("v6") ||
+                (family.equals("mixed") && (i & 1) == 1);
+            byte[] bytes = new byte[ipv6 ? 16 : 4];
+            random.nextBytes(bytes);
+            addresses[i] = InetAddress.getByAddress(bytes);
+        }
+    }
+
+    @Benchmark
+    public int compare() {
+        int i = next;
+        next = (i + 1) & (COUNT - 1);
+        return comparator.compare(addresses[i], addresses[next]);
+    }
+
+    @Benchmark
+    public InetAddress[] sort() {
+        InetAddress[] copy = addresses.clone();
+        Arrays.sort(copy, comparator);
+        return copy;
+    }
+}
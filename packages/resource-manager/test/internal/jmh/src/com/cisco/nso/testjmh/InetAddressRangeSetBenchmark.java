@@ -0,0 +1,82 @@
+package com.tailf.pkg.testjmh;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.tailf.pkg.ipam.Subnet;
+import com.tailf.pkg.ipam.util.InetAddressRange;
+import com.tailf.pkg.ipam.util.InetAddressRangeSet;
+import com.tailf.pkg.ipam.util.InetAddressValue;
+
+/**
+ * Merging overlapping address ranges into a normalized set, and
+ * turning the set into subnets.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InetAddressRangeSetBenchmark {
+
+    @Param({ "v4", "v6" })
+    public String family;
+
+    @Param({ "16", "1024" })
+    public int ranges;
+
+    private List<InetAddressRange> input;
+    private InetAddressRangeSet normalized;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        boolean ipv6 = family.equals("v6");
+        Random random = new Random(42);
+
+        /*
+         * Ranges with unaligned ends at random places in a space where
+         * about half of them overlap another.
+         */
+        long space = (long) ranges << 12;
+        input = new ArrayList<InetAddressRange>(ranges);
+        for (int i = 0; i < ranges; i++) {
+            long start = (long) (random.nextDouble() * space);
+            long end = start + 1 + random.nextInt(4096);
+            input.add(new InetAddressRange(value(ipv6, start),
+                                           value(ipv6, end)));
+        }
+        normalized = new InetAddressRangeSet(input);
+    }
+
+    private static InetAddressValue value(boolean ipv6, long offset) {
+        return ipv6 ? InetAddressValue.ipv6(0x20010db800000000L, offset) :
+            InetAddressValue.ipv4(0x0a000000L + offset);
+    }
+
+    @Benchmark
+    public InetAddressRangeSet normalize() {
+        return new InetAddressRangeSet(input);
+    }
+
+    @Benchmark
+    public Collection<Subnet> asSubnetSet() throws Exception {
+        return normalized.asSubnetSet();
+    }
+}
@@ -0,0 +1,87 @@
+package com.tailf.pkg.testjmh;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.TreeSet;
+
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.tailf.cdb.CdbSession;
+
+/**
+ * A CdbSession that keeps which paths exist in memory, so that the sets
+ * mirroring pool state in CDB can be used without NSO.
+ *
+ * Nothing is read back from the lists, the sets always start out empty
+ * as for a pool that was just created. Leaf values are dropped.
+ *
+ * Mockito records every call, which costs far more than the call
+ * itself. Benchmarks should leave flushing to their setup, the sets
+ * only write to CDB on flush().
+ */
+public class MemoryCdb implements Answer<Object> {
+
+    private final TreeSet<String> paths = new TreeSet<String>();
+
+    public static CdbSession session() {
+        return Mockito.mock(CdbSession.class, new MemoryCdb());
+    }
+
+    public Object answer(InvocationOnMock invocation) {
+        Method method = invocation.getMethod();
+        String name = method.getName();
+        Object[] args = invocation.getArguments();
+
+        if (name.equals("exists")) {
+            return paths.contains(path(args, 0));
+        } else if (name.equals("create")) {
+            paths.add(path(args, 0));
+        } else if (name.equals("delete")) {
+            delete(path(args, 0));
+        } else if (name.equals("getObjects")) {
+            return Collections.emptyList();
+        }
+
+        Class<?> type = method.getReturnType();
+        if (type == Boolean.TYPE) {
+            return false;
+        } else if (type == Integer.TYPE) {
+            return 0;
+        }
+        return null;
+    }
+
+    /*
+     * The path argument at index i, a ConfPath or a format string. The
+     * format arguments follow it, Mockito expands the varargs.
+     */
+    private static String path(Object[] args, int i) {
+        if (!(args[i] instanceof String)) {
+            return args[i].toString();
+        }
+        Object[] fmtArgs = Arrays.copyOfRange(args, i + 1, args.length);
+        if (fmtArgs.length == 1 && fmtArgs[0] instanceof Object[]) {
+            fmtArgs = (Object[]) fmtArgs[0];
+        }
+        return String.format((String) args[i], fmtArgs);
+    }
+
+    private void delete(String path) {
+        Iterator<String> it = paths.tailSet(path).iterator();
+        while (it.hasNext()) {
+            String p = it.next();
+            if (!p.startsWith(path)) {
+                break;
+            }
+            if (p.length() == path.length() ||
+                p.charAt(path.length()) == '{' ||
+                p.charAt(path.length()) == '/') {
+                it.remove();
+            }
+        }
+    }
+}
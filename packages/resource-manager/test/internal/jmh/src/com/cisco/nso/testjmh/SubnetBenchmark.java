@@ -0,0 +1,93 @@
+package com.tailf.pkg.testjmh;
+
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.tailf.pkg.ipam.Subnet;
+import com.tailf.pkg.ipam.util.AddressCursor;
+import com.tailf.pkg.ipam.util.AddressVisitor;
+
+/**
+ * Splitting subnets, and stepping through the addresses of a subnet
+ * with an iterator, a cursor and a visitor.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SubnetBenchmark {
+
+    @Param({ "v4", "v6" })
+    public String family;
+
+    /* Split down to single addresses, through the special cases */
+    private Subnet block;
+    /* Iterated, 4094 addresses */
+    private Subnet hosts;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        if (family.equals("v6")) {
+            block = new Subnet("2001:db8::", 64);
+            hosts = new Subnet("2001:db8::", 116);
+        } else {
+            block = new Subnet("10.0.0.0", 8);
+            hosts = new Subnet("10.0.0.0", 20);
+        }
+    }
+
+    @Benchmark
+    public Subnet split() throws Exception {
+        Subnet s = block;
+        while (s.size() != 1) {
+            s = s.split()[0];
+        }
+        return s;
+    }
+
+    @Benchmark
+    public void iterate(Blackhole bh) {
+        Iterator<InetAddress> it = hosts.iterator();
+        while (it.hasNext()) {
+            bh.consume(it.next());
+        }
+    }
+
+    @Benchmark
+    public long cursor() {
+        long sum = 0;
+        AddressCursor c = hosts.cursor();
+        while (c.hasNext()) {
+            c.next();
+            sum += c.getLow();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public void visit(final Blackhole bh) {
+        hosts.visitAddresses(new AddressVisitor() {
+                public boolean visit(long high, long low) {
+                    bh.consume(low);
+                    return true;
+                }
+            });
+    }
+}
@@ -0,0 +1,134 @@
+package com.tailf.pkg.testjunit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import org.junit.Test;
+
+import com.tailf.pkg.idallocator.AllocationIndex;
+import com.tailf.pkg.idpool.Allocation;
+import com.tailf.pkg.idpool.Range;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class AllocationIndexTest {
+
+    private static final String A = "/pool{p}/allocation{a}";
+    private static final String B = "/pool{p}/allocation{b}";
+    private static final String C = "/pool{p}/allocation{c}";
+
+    @Test
+    public void testAnsweredClearsError() {
+        AllocationIndex index = new AllocationIndex();
+        index.failed(A);
+        index.failed(B);
+        assertEquals(2, index.errors().size());
+
+        /* Retried after a pool change, and this time it got an id */
+        index.answered(5, A);
+        assertEquals(Collections.singletonList(B), index.errors());
+        assertTrue(index.isAnswered(5));
+        assertEquals(A, index.pathOf(5));
+    }
+
+    @Test
+    public void testRemovedAndReleased() {
+        AllocationIndex index = new AllocationIndex();
+        index.answered(5, A);
+        index.failed(B);
+
+        index.removed(B);
+        assertTrue(index.errors().isEmpty());
+
+        index.released(5);
+        assertFalse(index.isAnswered(5));
+        assertNull(index.pathOf(5));
+    }
+
+    @Test
+    public void testErrorsIsACopy() {
+        AllocationIndex index = new AllocationIndex();
+        index.failed(A);
+        index.failed(B);
+
+        /* The retry loop updates the index as it goes */
+        List<String> errors = index.errors();
+        for (String path : errors) {
+            index.removed(path);
+        }
+        assertEquals(2, errors.size());
+        assertTrue(index.errors().isEmpty());
+    }
+
+    @Test
+    public void testAffectedByExclude() {
+        AllocationIndex index = new AllocationIndex();
+        index.answered(1, A);
+        index.answered(10, B);
+        index.answered(20, C);
+
+        Map<Long, String> affected = index.affectedBy(new Range(10, 20), true);
+        assertEquals(Arrays.asList(10L, 20L),
+                     Arrays.asList(affected.keySet().toArray()));
+        assertEquals(C, affected.get(20L));
+
+        /* Reallocating must not change what was picked */
+        index.released(10);
+        assertEquals(2, affected.size());
+    }
+
+    @Test
+    public void testAffectedByRange() {
+        AllocationIndex index = new AllocationIndex();
+        index.answered(1, A);
+        index.answered(10, B);
+        index.answered(20, C);
+
+        Map<Long, String> affected =
+            index.affectedBy(new Range(10, 19), false);
+        assertEquals(Arrays.asList(1L, 20L),
+                     Arrays.asList(affected.keySet().toArray()));
+    }
+
+    @Test
+    public void testReconcile() {
+        AllocationIndex index = new AllocationIndex();
+        index.answered(1, A);
+        index.answered(2, B);
+
+        /*
+         * 3 was reserved for a transaction that never committed, and
+         * 2 was answered but not flushed to the allocations.
+         */
+        Set<Allocation> allocations = new HashSet<Allocation>();
+        allocations.add(new Allocation(1));
+        allocations.add(new Allocation(3));
+
+        assertEquals(Collections.singletonList(3L),
+                     index.unanswered(allocations));
+        assertEquals(Collections.singletonMap(2L, B),
+                     index.unrecorded(allocations));
+
+        allocations.remove(new Allocation(3));
+        allocations.add(new Allocation(2));
+        assertTrue(index.unanswered(allocations).isEmpty());
+        assertTrue(index.unrecorded(allocations).isEmpty());
+    }
+
+    @Test
+    public void testClear() {
+        AllocationIndex index = new AllocationIndex();
+        index.answered(1, A);
+        index.failed(B);
+
+        index.clear();
+        assertFalse(index.isAnswered(1));
+        assertTrue(index.errors().isEmpty());
+    }
+}
@@ -0,0 +1,200 @@
+package com.tailf.pkg.testjunit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import com.tailf.pkg.ipam.Allocation;
+import com.tailf.pkg.ipam.HostBitmapPool;
+import com.tailf.pkg.ipam.Subnet;
+import com.tailf.pkg.ipam.exceptions.AddressPoolEmptyException;
+import com.tailf.pkg.ipam.exceptions.AddressPoolMaskInvalidException;
+import com.tailf.pkg.ipam.util.InetAddressRange;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+public class HostBitmapPoolTest {
+
+    private HostBitmapPool newPool(TreeSet<InetAddressRange> freeRanges,
+                                   String... subnets) throws Exception {
+        Set<Subnet> subnetSet = new HashSet<Subnet>();
+        for (String s : subnets) {
+            subnetSet.add(new Subnet(s));
+        }
+        HostBitmapPool pool =
+            new HostBitmapPool("test-pool", freeRanges,
+                               new HashSet<Allocation>(), subnetSet);
+        for (Subnet s : subnetSet) {
+            pool.addToAvailable(s);
+        }
+        return pool;
+    }
+
+    private static InetAddressRange range(String from, String to)
+        throws Exception {
+        return new InetAddressRange(InetAddress.getByName(from),
+                                    InetAddress.getByName(to));
+    }
+
+    @Test
+    public void testNetworkBroadcastReserved() throws Exception {
+        TreeSet<InetAddressRange> free = new TreeSet<InetAddressRange>();
+        HostBitmapPool pool = newPool(free, "10.0.0.0/30");
+
+        assertEquals(Arrays.asList(range("10.0.0.1", "10.0.0.2")),
+                     new ArrayList<InetAddressRange>(free));
+        assertEquals(2, pool.getNumberOfAvailables());
+
+        assertEquals("10.0.0.1/32",
+                     pool.allocate(32, "o", "u", "r1").getAllocated()
+                     .toString());
+        assertEquals("10.0.0.2/32",
+                     pool.allocate(32, "o", "u", "r2").getAllocated()
+                     .toString());
+        assertTrue(pool.isEmpty());
+        try {
+            pool.allocate(32, "o", "u", "r3");
+            fail("Expected AddressPoolEmptyException");
+        } catch (AddressPoolEmptyException e) {
+            ;
+        }
+    }
+
+    @Test
+    public void testFreeRangesFollowAllocations() throws Exception {
+        TreeSet<InetAddressRange> free = new TreeSet<InetAddressRange>();
+        HostBitmapPool pool = newPool(free, "10.0.0.0/8");
+        assertEquals((1 << 24) - 2, pool.getNumberOfAvailables());
+
+        List<Allocation> allocated = new ArrayList<Allocation>();
+        for (int i = 0; i < 1000; i++) {
+            allocated.add(pool.allocate(32, "o", "u", "r" + i));
+        }
+        assertEquals(Arrays.asList(range("10.0.3.233", "10.255.255.254")),
+                     new ArrayList<InetAddressRange>(free));
+
+        pool.release(allocated.get(10));
+        pool.release(allocated.get(11));
+        pool.release(InetAddress.getByName("10.0.3.232"));
+        assertEquals(Arrays.asList(range("10.0.0.11", "10.0.0.12"),
+                                   range("10.0.3.232", "10.255.255.254")),
+                     new ArrayList<InetAddressRange>(free));
+
+        /* The lowest free address is handed out first */
+        assertEquals("10.0.0.11/32",
+                     pool.allocate(32, "o", "u", "x").getAllocated()
+                     .toString());
+    }
+
+    @Test
+    public void testRestoreFromFreeRanges() throws Exception {
+        TreeSet<InetAddressRange> free = new TreeSet<InetAddressRange>();
+        free.add(range("192.168.0.7", "192.168.0.9"));
+        free.add(range("192.168.1.1", "192.168.1.1"));
+        HostBitmapPool pool =
+            new HostBitmapPool("test-pool", free, new HashSet<Allocation>(),
+                               new HashSet<Subnet>(Arrays.asList(
+                                   new Subnet("192.168.0.0/23"))));
+
+        assertEquals(4, pool.getNumberOfAvailables());
+        assertEquals("192.168.0.7/32",
+                     pool.allocate(32, "o", "u", "r").getAllocated()
+                     .toString());
+    }
+
+    @Test
+    public void testExcludeAndSubnetSize() throws Exception {
+        TreeSet<InetAddressRange> free = new TreeSet<InetAddressRange>();
+        HostBitmapPool pool = newPool(free, "10.1.0.0/24");
+
+        pool.removeFromAvailable(new Subnet("10.1.0.0/25"));
+        assertEquals(Arrays.asList(range("10.1.0.128", "10.1.0.254")),
+                     new ArrayList<InetAddressRange>(free));
+
+        pool.addToAvailable(new Subnet("10.1.0.0/25"));
+        assertEquals(Arrays.asList(range("10.1.0.1", "10.1.0.254")),
+                     new ArrayList<InetAddressRange>(free));
+
+        try {
+            pool.allocate(30, "o", "u", "r");
+            fail("Expected AddressPoolMaskInvalidException");
+        } catch (AddressPoolMaskInvalidException e) {
+            ;
+        }
+    }
+
+    @Test
+    public void testReleaseHost() throws Exception {
+        TreeSet<InetAddressRange> free = new TreeSet<InetAddressRange>();
+        HostBitmapPool pool = newPool(free, "10.2.0.0/24", "10.2.0.0/26");
+        assertEquals(Arrays.asList(range("10.2.0.1", "10.2.0.62"),
+                                   range("10.2.0.64", "10.2.0.254")),
+                     new ArrayList<InetAddressRange>(free));
+
+        /* Network and broadcast addresses stay taken when released */
+        pool.addToAvailable(new Subnet("10.2.0.63/32"));
+        pool.addToAvailable(new Subnet("10.2.0.255/32"));
+        assertEquals(253, pool.getNumberOfAvailables());
+
+        /* Others come back, even those that end in all ones */
+        pool.removeFromAvailable(new Subnet("10.2.0.127/32"));
+        pool.addToAvailable(new Subnet("10.2.0.127/32"));
+        pool.removeFromAvailable(new Subnet("10.2.0.64/32"));
+        pool.addToAvailable(new Subnet("10.2.0.64/32"));
+        assertEquals(Arrays.asList(range("10.2.0.1", "10.2.0.62"),
+                                   range("10.2.0.64", "10.2.0.254")),
+                     new ArrayList<InetAddressRange>(free));
+    }
+
+    @Test
+    public void testAllocateRun() throws Exception {
+        TreeSet<InetAddressRange> free = new TreeSet<InetAddressRange>();
+        HostBitmapPool pool = newPool(free, "10.3.0.0/29");
+
+        assertTrue(pool.allocateRun(30, 0, "o", "u",
+                                    Arrays.asList("r1", "r2")).isEmpty());
+
+        List<Allocation> run =
+            pool.allocateRun(32, 0, "o", "u",
+                             Arrays.asList("r1", "r2", "r3", "r4", "r5",
+                                           "r6", "r7", "r8"));
+        assertEquals(6, run.size());
+        assertEquals("10.3.0.1/32", run.get(0).getAllocated().toString());
+        assertEquals("10.3.0.6/32", run.get(5).getAllocated().toString());
+        assertTrue(pool.isEmpty());
+    }
+
+    @Test
+    public void testAcrossBlocks() throws Exception {
+        TreeSet<InetAddressRange> free = new TreeSet<InetAddressRange>();
+        HostBitmapPool pool = newPool(free, "10.255.255.0/24", "11.0.0.0/24");
+        assertEquals(508, pool.getNumberOfAvailables());
+
+        /* Once the first /8 is full the next one is used */
+        List<String> ids = new ArrayList<String>();
+        for (int i = 0; i < 254; i++) {
+            ids.add("r" + i);
+        }
+        List<Allocation> run = pool.allocateRun(32, 0, "o", "u", ids);
+        assertEquals("10.255.255.254/32",
+                     run.get(253).getAllocated().toString());
+        assertEquals("11.0.0.1/32",
+                     pool.allocate(32, 0, "o", "u", "next")
+                     .getAllocated().toString());
+
+        /* A released address of the full /8 is handed out again */
+        pool.release(run.get(100));
+        assertEquals("10.255.255.101/32",
+                     pool.allocate(32, 0, "o", "u", "again")
+                     .getAllocated().toString());
+        assertEquals(253, pool.getNumberOfAvailables());
+    }
+}
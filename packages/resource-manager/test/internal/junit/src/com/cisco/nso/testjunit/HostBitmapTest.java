@@ -0,0 +1,81 @@
+package com.tailf.pkg.testjunit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.tailf.pkg.ipam.util.HostBitmap;
+
+public class HostBitmapTest {
+
+    private static final int PAGE = HostBitmap.PAGE_BITS;
+
+    @Test
+    public void testSetClear() {
+        HostBitmap bitmap = new HostBitmap(3 * PAGE + 100, false);
+        assertEquals(3 * PAGE + 100, bitmap.freeCount());
+
+        assertTrue(bitmap.set(5));
+        assertFalse(bitmap.set(5));
+        assertTrue(bitmap.get(5));
+        assertFalse(bitmap.get(6));
+        assertEquals(1, bitmap.cardinality());
+
+        assertTrue(bitmap.clear(5));
+        assertFalse(bitmap.clear(5));
+        assertEquals(0, bitmap.cardinality());
+    }
+
+    @Test
+    public void testFirstClear() {
+        HostBitmap bitmap = new HostBitmap(2 * PAGE + 10, true);
+        assertEquals(-1, bitmap.firstClear());
+
+        bitmap.clear(2 * PAGE + 9);
+        bitmap.clear(PAGE + 1);
+        assertEquals(PAGE + 1, bitmap.firstClear());
+
+        bitmap.set(PAGE + 1);
+        assertEquals(2 * PAGE + 9, bitmap.firstClear());
+
+        bitmap.set(2 * PAGE + 9);
+        assertEquals(-1, bitmap.firstClear());
+        assertEquals(0, bitmap.freeCount());
+    }
+
+    @Test
+    public void testSequentialFill() {
+        int size = 5 * PAGE;
+        HostBitmap bitmap = new HostBitmap(size, false);
+        for (int i = 0; i < size; i++) {
+            int pos = bitmap.firstClear();
+            assertEquals(i, pos);
+            bitmap.set(pos);
+        }
+        assertEquals(-1, bitmap.firstClear());
+
+        bitmap.clear(3 * PAGE + 17);
+        assertEquals(3 * PAGE + 17, bitmap.firstClear());
+    }
+
+    @Test
+    public void testRanges() {
+        HostBitmap bitmap = new HostBitmap(4 * PAGE, true);
+        bitmap.clear(10, 3 * PAGE + 5);
+        assertEquals(3 * PAGE - 5, bitmap.freeCount());
+        assertTrue(bitmap.get(9));
+        assertFalse(bitmap.get(10));
+        assertFalse(bitmap.get(3 * PAGE + 4));
+        assertTrue(bitmap.get(3 * PAGE + 5));
+
+        assertEquals(10, bitmap.nextClear(0));
+        assertEquals(3 * PAGE + 5, bitmap.nextSet(10));
+        assertEquals(-1, bitmap.nextClear(3 * PAGE + 5));
+
+        bitmap.set(0, 4 * PAGE);
+        assertEquals(0, bitmap.freeCount());
+        assertEquals(-1, bitmap.nextClear(0));
+    }
+}
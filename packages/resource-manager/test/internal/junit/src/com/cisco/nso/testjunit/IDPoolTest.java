@@ -1,7 +1,9 @@
 package com.tailf.pkg.testjunit;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import org.junit.*;
@@ -11,7 +13,11 @@ import com.tailf.pkg.idpool.IDPool;
 import com.tailf.pkg.idpool.Range;
 import com.tailf.pkg.idpool.exceptions.AllocationException;
 
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
 
 public class IDPoolTest {
 
@@ -20,7 +26,8 @@ public class IDPoolTest {
         IDPool pool = new IDPool("test-pool",
                                  new HashSet<Range>(),
                                  new HashSet<Range>(),
-                                 new HashSet<Allocation>());
+                                 new HashSet<Allocation>(),
+                                 false, 0);
         Allocation a1 = null;
 
         try {
@@ -31,7 +38,7 @@ public class IDPoolTest {
         }
 
         assertNotNull(a1);
-        assertEquals((Integer)5, a1.getAllocated());
+        assertEquals(5, a1.getAllocated());
 
         try {
             pool.release(a1);
@@ -47,4 +54,207 @@ public class IDPoolTest {
                          "from the pool test-pool", e.getMessage());
         }
     }
+
+    @Test
+    public void testReleaseCoalesces() throws Exception {
+        Set<Range> availables = new TreeSet<Range>();
+        IDPool pool = new IDPool("test-pool",
+                                 new HashSet<Range>(),
+                                 availables,
+                                 new HashSet<Allocation>(),
+                                 false, 0);
+        pool.setRange(new Range(1, 10));
+
+        pool.allocate("occupant", 3);
+        pool.allocate("occupant", 4);
+        pool.allocate("occupant", 5);
+        assertEquals(2, availables.size());
+        assertEquals(7, pool.getNumberOfAvailables());
+        assertFalse(pool.isAvailable(4));
+        assertTrue(pool.isAvailable(6));
+
+        pool.release(3);
+        pool.release(5);
+        assertEquals(2, availables.size());
+        assertTrue(availables.contains(new Range(1, 3)));
+        assertFalse(pool.isAvailable(4));
+
+        pool.release(4);
+        assertEquals(1, availables.size());
+        assertEquals(new Range(1, 10), availables.iterator().next());
+        assertEquals(10, pool.getNumberOfAvailables());
+        assertTrue(pool.isAvailable(4));
+    }
+
+    @Test
+    public void testAllocateUnavailable() throws Exception {
+        IDPool pool = new IDPool("test-pool",
+                                 new HashSet<Range>(),
+                                 new TreeSet<Range>(),
+                                 new HashSet<Allocation>(),
+                                 false, 0);
+        pool.setRange(new Range(1, 10));
+        pool.allocate("occupant", 7);
+
+        try {
+            pool.allocate("occupant", 7);
+            fail("Expected an AllocationException to be thrown");
+        } catch (AllocationException e) {
+        }
+
+        try {
+            pool.allocate("occupant", 11);
+            fail("Expected an AllocationException to be thrown");
+        } catch (AllocationException e) {
+        }
+
+        assertEquals(1, pool.allocate("occupant").getAllocated());
+    }
+
+    @Test
+    public void testNextFree() throws Exception {
+        IDPool pool = new IDPool("test-pool",
+                                 new HashSet<Range>(),
+                                 new TreeSet<Range>(),
+                                 new HashSet<Allocation>(),
+                                 false, 0);
+        pool.setRange(new Range(1, 10));
+        pool.addToExcludes(new Range(4, 6));
+        pool.allocate("occupant", 1);
+
+        assertEquals(2, pool.nextFree(Long.MIN_VALUE));
+        assertEquals(3, pool.nextFree(3));
+        assertEquals(7, pool.nextFree(4));
+        assertEquals(-1, pool.nextFree(11));
+
+        /* Nothing was allocated by the lookups. */
+        assertEquals(2, pool.allocate("occupant").getAllocated());
+    }
+
+    @Test
+    public void testIncrementalRangeAndExcludes() throws Exception {
+        Set<Range> availables = new TreeSet<Range>();
+        IDPool pool = new IDPool("test-pool",
+                                 new TreeSet<Range>(),
+                                 availables,
+                                 new HashSet<Allocation>(),
+                                 false, 0);
+        pool.setRange(new Range(1, 100));
+        pool.allocate("occupant", 10);
+        pool.allocate("occupant", 50);
+
+        pool.addToExcludes(new Range(20, 30));
+        assertEquals(new TreeSet<Range>(Arrays.asList(
+                         new Range(1, 9), new Range(11, 19),
+                         new Range(31, 49), new Range(51, 100))),
+                     availables);
+
+        /* Shrink at both ends, then grow past the old end. */
+        pool.setRange(new Range(5, 60));
+        pool.setRange(new Range(5, 120));
+        pool.removeFromExcludes(new Range(20, 30));
+        assertEquals(new TreeSet<Range>(Arrays.asList(
+                         new Range(5, 9), new Range(11, 49),
+                         new Range(51, 120))),
+                     availables);
+        assertEquals(114, pool.getNumberOfAvailables());
+
+        /* Moving the range elsewhere leaves no trace of the old one. */
+        pool.release(10);
+        pool.release(50);
+        pool.setRange(new Range(200, 210));
+        assertEquals(1, availables.size());
+        assertEquals(new Range(200, 210), availables.iterator().next());
+        assertEquals(11, pool.getNumberOfAvailables());
+    }
+
+    @Test
+    public void testRoundRobin() throws Exception {
+        IDPool pool = new IDPool("test-pool",
+                                 new TreeSet<Range>(),
+                                 new TreeSet<Range>(),
+                                 new HashSet<Allocation>(),
+                                 false, 0);
+        pool.setRange(new Range(1, 5));
+        pool.allocate("occupant", 3);
+
+        /* Continues after the last allocation and skips taken ids. */
+        assertEquals(4, pool.allocate("occupant", "roundrobin").
+                     getAllocated());
+        assertEquals(5, pool.allocate("occupant", "roundrobin").
+                     getAllocated());
+        pool.release(4);
+
+        /* Wraps around instead of reusing the id just released. */
+        assertEquals(1, pool.allocate("occupant", "roundrobin").
+                     getAllocated());
+        assertEquals(Long.valueOf(1), pool.getLastAllocation());
+    }
+
+    @Test
+    public void testRoundRobinRestoredPosition() throws Exception {
+        Set<Allocation> allocations = new HashSet<Allocation>();
+        allocations.add(new Allocation(8));
+        IDPool pool = new IDPool("test-pool",
+                                 new TreeSet<Range>(),
+                                 new TreeSet<Range>(),
+                                 allocations,
+                                 false, 0, 2L);
+        pool.setRange(new Range(1, 10));
+
+        assertEquals(3, pool.allocate("occupant", "roundrobin").
+                     getAllocated());
+    }
+
+    @Test
+    public void testAllocateRun() throws Exception {
+        IDPool pool = new IDPool("test-pool",
+                                 new TreeSet<Range>(),
+                                 new TreeSet<Range>(),
+                                 new HashSet<Allocation>(),
+                                 false, 0);
+        pool.setRange(new Range(1, 15));
+        pool.allocate("occupant", 3);
+        pool.allocate("occupant", 8);
+
+        /* [1,2] and [4,7] are too small, [9,15] is the first fit. */
+        List<Allocation> run = pool.allocateRun("occupant", 5);
+        assertEquals(5, run.size());
+        for (int i = 0; i < 5; i++) {
+            assertEquals(9 + i, run.get(i).getAllocated());
+        }
+
+        /* No range is large enough, take the lowest free ids. */
+        pool.allocate("occupant", 5);
+        run = pool.allocateRun("occupant", 3);
+        assertEquals(1, run.get(0).getAllocated());
+        assertEquals(2, run.get(1).getAllocated());
+        assertEquals(4, run.get(2).getAllocated());
+
+        /* Running out returns what there was. */
+        assertEquals(pool.getNumberOfAvailables(),
+                     pool.allocateRun("occupant", 100).size());
+        assertTrue(pool.isEmpty());
+    }
+
+    @Test
+    public void testAllocateRunLowestFit() throws Exception {
+        IDPool pool = new IDPool("test-pool",
+                                 new TreeSet<Range>(),
+                                 new TreeSet<Range>(),
+                                 new HashSet<Allocation>(),
+                                 false, 0);
+        pool.setRange(new Range(1, 30));
+        pool.allocate("occupant", 4);
+        pool.allocate("occupant", 20);
+
+        /* [5,19] is lower than the closer fit [21,30]. */
+        List<Allocation> run = pool.allocateRun("occupant", 8);
+        assertEquals(5, run.get(0).getAllocated());
+
+        /* [13,19] is left, too small now. */
+        run = pool.allocateRun("occupant", 8);
+        assertEquals(21, run.get(0).getAllocated());
+        assertEquals(28, run.get(7).getAllocated());
+    }
 }
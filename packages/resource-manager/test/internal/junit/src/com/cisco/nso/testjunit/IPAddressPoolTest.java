@@ -19,6 +19,7 @@ import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 
 public class IPAddressPoolTest {
 
@@ -153,4 +154,248 @@ public class IPAddressPoolTest {
         Assert.assertFalse((Boolean)m.invoke(i, new Object[]
             {new Subnet("1:2:ffff:ffff:ffff:ffff:ffff:ffff", 128), 128}));
     }
+
+    private IPAddressPool newPool(String subnet) throws Exception {
+        Subnet s = new Subnet(subnet);
+        IPAddressPool pool =
+            new IPAddressPool("test-pool",
+                              new HashSet<Subnet>(),
+                              new HashSet<Allocation>(),
+                              new HashSet<Subnet>(Arrays.asList(s)));
+        pool.addToAvailable(s);
+        return pool;
+    }
+
+    @Test
+    public void testBuddyAllocateRelease() throws Exception {
+        IPAddressPool pool = newPool("10.0.0.0/24");
+
+        /* The network address is skipped */
+        Allocation a1 = pool.allocate(32, "o", "admin", "a1");
+        assertEquals(new Subnet("10.0.0.1/32"), a1.getAllocated());
+
+        /* The network address is left, then a /31, /30 and so on */
+        assertEquals(new HashSet<Subnet>(Arrays.asList(
+                         new Subnet("10.0.0.0/32"),
+                         new Subnet("10.0.0.2/31"),
+                         new Subnet("10.0.0.4/30"),
+                         new Subnet("10.0.0.8/29"),
+                         new Subnet("10.0.0.16/28"),
+                         new Subnet("10.0.0.32/27"),
+                         new Subnet("10.0.0.64/26"),
+                         new Subnet("10.0.0.128/25"))),
+                     new HashSet<Subnet>(pool.getAvailables()));
+
+        /* Narrowest fit first */
+        Allocation a2 = pool.allocate(31, "o", "admin", "a2");
+        assertEquals(new Subnet("10.0.0.2/31"), a2.getAllocated());
+        Allocation a3 = pool.allocate(31, "o", "admin", "a3");
+        assertEquals(new Subnet("10.0.0.4/31"), a3.getAllocated());
+        assertEquals(true, pool.getAvailables().contains(
+                         new Subnet("10.0.0.6/31")));
+        Allocation a4 = pool.allocate(26, "o", "admin", "a4");
+        assertEquals(new Subnet("10.0.0.64/26"), a4.getAllocated());
+
+        pool.release(a3);
+        pool.release(a1);
+        pool.release(a4);
+        pool.release(a2);
+        assertEquals(Arrays.asList(new Subnet("10.0.0.0/24")),
+                     Arrays.asList(pool.getAvailables().toArray()));
+        assertEquals(0, pool.getAllocations().size());
+    }
+
+    @Test
+    public void testBuddyBroadcastAvoided() throws Exception {
+        IPAddressPool pool = newPool("10.0.0.0/30");
+        pool.removeFromAvailable(new Subnet("10.0.0.0/31"));
+        pool.removeFromAvailable(new Subnet("10.0.0.2/32"));
+
+        /* Only the broadcast address is left */
+        try {
+            pool.allocate(32, "o", "admin", "a1");
+            fail("Expected AddressPoolException to be thrown");
+        } catch (AddressPoolException e) {
+            ;
+        }
+        pool.addToAvailable(new Subnet("10.0.0.2/32"));
+        Allocation a = pool.allocate(32, "o", "admin", "a1");
+        assertEquals(new Subnet("10.0.0.2/32"), a.getAllocated());
+    }
+
+    @Test
+    public void testRemoveFromAvailableSplits() throws Exception {
+        IPAddressPool pool = newPool("2001:db8::/120");
+        pool.removeFromAvailable(new Subnet("2001:db8::10/124"));
+        assertEquals(new HashSet<Subnet>(Arrays.asList(
+                         new Subnet("2001:db8::/124"),
+                         new Subnet("2001:db8::20/123"),
+                         new Subnet("2001:db8::40/122"),
+                         new Subnet("2001:db8::80/121"))),
+                     new HashSet<Subnet>(pool.getAvailables()));
+
+        try {
+            pool.removeFromAvailable(new Subnet("2001:db8::18/125"));
+            fail("Expected AddressRequestNotAvailableException to be thrown");
+        } catch (AddressRequestNotAvailableException e) {
+            ;
+        }
+    }
+
+    @Test
+    public void testSplitAvailablesMerged() throws Exception {
+        /* As left behind by earlier versions */
+        IPAddressPool pool =
+            new IPAddressPool("test-pool",
+                              new HashSet<Subnet>(Arrays.asList(
+                                  new Subnet("10.0.0.2/32"),
+                                  new Subnet("10.0.0.3/32"),
+                                  new Subnet("10.0.0.4/30"))),
+                              new HashSet<Allocation>(),
+                              new HashSet<Subnet>());
+        assertEquals(new HashSet<Subnet>(Arrays.asList(
+                         new Subnet("10.0.0.2/31"),
+                         new Subnet("10.0.0.4/30"))),
+                     new HashSet<Subnet>(pool.getAvailables()));
+    }
+
+    /* Counts the changes made to the available set */
+    private static class CountingSet extends HashSet<Subnet> {
+        private static final long serialVersionUID = 0;
+        int changes = 0;
+
+        public boolean add(Subnet s) {
+            changes++;
+            return super.add(s);
+        }
+
+        public boolean remove(Object o) {
+            changes++;
+            return super.remove(o);
+        }
+    }
+
+    @Test
+    public void testAddOverlappingMerges() throws Exception {
+        IPAddressPool pool = newPool("10.1.0.0/24");
+        pool.removeFromAvailable(new Subnet("10.1.0.16/28"));
+        pool.removeFromAvailable(new Subnet("10.1.0.5/32"));
+
+        pool.addToAvailable(new Subnet("10.1.0.0/25"));
+        assertEquals(Arrays.asList(new Subnet("10.1.0.0/24")),
+                     Arrays.asList(pool.getAvailables().toArray()));
+
+        /* Adding what is already available changes nothing */
+        pool.addToAvailable(new Subnet("10.1.0.64/26"));
+        assertEquals(Arrays.asList(new Subnet("10.1.0.0/24")),
+                     Arrays.asList(pool.getAvailables().toArray()));
+    }
+
+    @Test
+    public void testReleaseChangesOnlyNeighbours() throws Exception {
+        CountingSet availables = new CountingSet();
+        Subnet s = new Subnet("10.0.0.0/16");
+        IPAddressPool pool =
+            new IPAddressPool("test-pool", availables,
+                              new HashSet<Allocation>(),
+                              new HashSet<Subnet>(Arrays.asList(s)));
+        pool.addToAvailable(s);
+
+        Allocation[] a = new Allocation[1000];
+        for (int i = 0; i < a.length; i++) {
+            a[i] = pool.allocate(30, "o", "admin", "id" + i);
+        }
+
+        /* Every other allocation released, so nothing can merge */
+        for (int i = 0; i < a.length; i += 2) {
+            availables.changes = 0;
+            pool.release(a[i]);
+            assertEquals(1, availables.changes);
+        }
+
+        /* Each of these merges with at most one buddy per prefix length */
+        for (int i = 1; i < a.length; i += 2) {
+            availables.changes = 0;
+            pool.release(a[i]);
+            Assert.assertTrue(availables.changes <= 2 * 15);
+        }
+        assertEquals(Arrays.asList(s),
+                     Arrays.asList(pool.getAvailables().toArray()));
+    }
+
+    @Test
+    public void testOverlappingAllocations() throws Exception {
+        IPAddressPool pool = newPool("10.0.0.0/16");
+        Allocation a1 = pool.allocate(24, "o", "admin", "a1");
+        Allocation a2 = pool.allocate(30, "o", "admin", "a2");
+        Allocation a3 = pool.allocate(30, "o", "admin", "a3");
+        assertEquals(new Subnet("10.0.0.0/24"), a1.getAllocated());
+        assertEquals(new Subnet("10.0.1.0/30"), a2.getAllocated());
+        assertEquals(new Subnet("10.0.1.4/30"), a3.getAllocated());
+
+        /* Within the subnet */
+        assertEquals(Arrays.asList(a2, a3),
+                     pool.getOverlappingAllocations(
+                         new Subnet("10.0.1.0/24")));
+        /* Containing the subnet */
+        assertEquals(Arrays.asList(a1),
+                     pool.getOverlappingAllocations(
+                         new Subnet("10.0.0.128/25")));
+        assertEquals(Arrays.asList(a3),
+                     pool.getOverlappingAllocations(
+                         new Subnet("10.0.1.5/32")));
+        assertEquals(0, pool.getOverlappingAllocations(
+                         new Subnet("10.0.2.0/24")).size());
+        assertEquals(0, pool.getOverlappingAllocations(
+                         new Subnet("2001:db8::/32")).size());
+
+        pool.release(InetAddress.getByName("10.0.1.0"));
+        assertEquals(Arrays.asList(a3),
+                     pool.getOverlappingAllocations(
+                         new Subnet("10.0.1.0/24")));
+        try {
+            pool.release(InetAddress.getByName("10.0.1.0"));
+            fail("Expected AddressNotAllocatedException to be thrown");
+        } catch (AddressNotAllocatedException e) {
+            ;
+        }
+    }
+
+    @Test
+    public void testAllocateRun() throws Exception {
+        IPAddressPool pool = newPool("10.0.0.0/24");
+        pool.allocate(30, "o", "admin", "a0");
+        pool.allocate(28, "o", "admin", "a1");
+
+        /* Not from the /30 left at 10.0.0.4, but from a block of eight */
+        List<Allocation> run =
+            pool.allocateRun(31, 31, "o", "admin",
+                             Arrays.asList("r0", "r1", "r2", "r3", "r4"));
+        assertEquals(5, run.size());
+        for (int i = 0; i < run.size(); i++) {
+            assertEquals(new Subnet("10.0.0." + (32 + 2 * i) + "/31"),
+                         run.get(i).getAllocated());
+            assertEquals("r" + i, run.get(i).getRequestId());
+        }
+        assertEquals(new Subnet("10.0.0.42/31"),
+                     pool.allocate(31, "o", "admin", "x").getAllocated());
+    }
+
+    @Test
+    public void testAllocateRunFragmented() throws Exception {
+        IPAddressPool pool = newPool("10.0.0.0/29");
+
+        /* Single addresses skip the network and broadcast addresses */
+        List<Allocation> run =
+            pool.allocateRun(32, 32, "o", "admin",
+                             Arrays.asList("r0", "r1", "r2", "r3", "r4",
+                                           "r5", "r6", "r7"));
+        assertEquals(6, run.size());
+        for (int i = 0; i < run.size(); i++) {
+            assertEquals(new Subnet("10.0.0." + (i + 1) + "/32"),
+                         run.get(i).getAllocated());
+        }
+        /* Only those two are left */
+        assertEquals(2, pool.getNumberOfAvailables());
+    }
 }
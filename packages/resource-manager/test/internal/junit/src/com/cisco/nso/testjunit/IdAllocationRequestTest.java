@@ -0,0 +1,75 @@
+package com.tailf.pkg.testjunit;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+import com.tailf.conf.ConfBool;
+import com.tailf.conf.ConfBuf;
+import com.tailf.conf.ConfNoExists;
+import com.tailf.conf.ConfObject;
+import com.tailf.conf.ConfTag;
+import com.tailf.conf.ConfUInt32;
+import com.tailf.pkg.idallocator.IdAllocator;
+import com.tailf.pkg.idallocator.namespaces.idAllocator;
+
+public class IdAllocationRequestTest {
+
+    /*
+     * An entry as getObjects() reads it from running: id, username,
+     * allocating-service, sync, id, the method case, firstfree and
+     * roundrobin.
+     */
+    private static ConfObject[] entry(boolean sync, ConfObject id,
+                                      ConfObject method) {
+        ConfObject none = new ConfNoExists();
+        boolean firstfree = method instanceof ConfTag &&
+            ((ConfTag) method).getTagHash() == idAllocator._firstfree;
+        boolean roundrobin = method instanceof ConfTag && !firstfree;
+        return new ConfObject[] {
+            new ConfBuf("r1"), new ConfBuf("admin"), none,
+            new ConfBool(sync), id, method,
+            firstfree ? method : none,
+            roundrobin ? method : none
+        };
+    }
+
+    private static ConfObject method(int tag) {
+        return new ConfTag(idAllocator.hash, tag);
+    }
+
+    @Test
+    public void testFirstFree() {
+        assertTrue(IdAllocator.isPlainRequest(
+                       entry(false, new ConfNoExists(),
+                             method(idAllocator._firstfree))));
+    }
+
+    @Test
+    public void testDefaultMethod() {
+        /* No case selected, the choice defaults to firstfree */
+        assertTrue(IdAllocator.isPlainRequest(
+                       entry(false, new ConfNoExists(), new ConfNoExists())));
+    }
+
+    @Test
+    public void testSync() {
+        assertFalse(IdAllocator.isPlainRequest(
+                        entry(true, new ConfNoExists(),
+                              method(idAllocator._firstfree))));
+    }
+
+    @Test
+    public void testSpecificId() {
+        assertFalse(IdAllocator.isPlainRequest(
+                        entry(false, new ConfUInt32(17),
+                              method(idAllocator._firstfree))));
+    }
+
+    @Test
+    public void testRoundRobin() {
+        assertFalse(IdAllocator.isPlainRequest(
+                        entry(false, new ConfNoExists(),
+                              method(idAllocator._roundrobin))));
+    }
+}
@@ -6,9 +6,13 @@ import org.junit.runners.Suite;
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
     IdAllocationTest.class,
+    IdAllocationRequestTest.class,
     IdAllocationsSetTest.class,
     RangeTest.class,
-    IDPoolTest.class
+    AllocationIndexTest.class,
+    IDPoolTest.class,
+    PoolSnapshotTest.class,
+    PartitionsTest.class
 })
 
 public class IdAllocatorSuite {
@@ -9,6 +9,7 @@ import com.tailf.pkg.ipam.Allocation;
 import com.tailf.pkg.ipam.IPAddressPool;
 import com.tailf.pkg.ipam.Subnet;
 import com.tailf.pkg.ipam.util.InetAddressRange;
+import com.tailf.pkg.ipam.util.InetAddressRangeSet;
 import com.tailf.pkg.ipam.exceptions.AddressNotAllocatedException;
 import com.tailf.pkg.ipam.exceptions.AddressPoolException;
 import com.tailf.pkg.ipam.exceptions.AddressRequestNotAvailableException;
@@ -18,6 +19,7 @@ import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
@@ -85,4 +87,76 @@ public class InetAddressRangeTest {
         }
         Assert.assertEquals(4, i);
     }
+
+    @Test
+    public void testSubnetsAcrossWords() throws UnknownHostException
+    {
+        /* Carries from the low to the high 64 bits */
+        InetAddressRange r =
+            new InetAddressRange(InetAddress.getByName("::ffff:ffff:ffff:fffe"),
+                                 InetAddress.getByName("0:0:0:1::1"));
+        Assert.assertEquals(Arrays.asList("0:0:0:0:ffff:ffff:ffff:fffe/127",
+                                          "0:0:0:1:0:0:0:0/127"),
+                            toStrings(r.subnets()));
+
+        r = new InetAddressRange(InetAddress.getByName("::"),
+                                 InetAddress.getByName(
+                                     "ffff:ffff:ffff:ffff:ffff:ffff:ffff:ffff"));
+        Assert.assertEquals(Arrays.asList("0:0:0:0:0:0:0:0/0"), toStrings(r.subnets()));
+
+        r = new InetAddressRange(InetAddress.getByName("8000::"),
+                                 InetAddress.getByName(
+                                     "ffff:ffff:ffff:ffff:ffff:ffff:ffff:fffe"));
+        Assert.assertEquals(127, r.getSubnets().size());
+    }
+
+    @Test
+    public void testSubnetsMatchAddresses() throws UnknownHostException
+    {
+        /* Every range within a /24 against a count of its addresses */
+        for (int first = 0; first < 256; first += 7) {
+            for (int last = first; last < 256; last += 5) {
+                InetAddressRange r =
+                    new InetAddressRange(InetAddress.getByName("10.1.1." + first),
+                                         InetAddress.getByName("10.1.1." + last));
+                long next = first;
+                for (Subnet s : r.subnets()) {
+                    long network = s.getValue().getLow() & 0xff;
+                    int hostBits = 32 - s.getCIDRMask();
+                    Assert.assertEquals(next, network);
+                    /* Aligned, and not half of a block that would fit */
+                    Assert.assertEquals(0, network & ((1L << hostBits) - 1));
+                    Assert.assertTrue(
+                        (network & (1L << hostBits)) != 0 ||
+                        network + (2L << hostBits) - 1 > last);
+                    next = network + (1L << hostBits);
+                }
+                Assert.assertEquals(last + 1, next);
+            }
+        }
+    }
+
+    @Test
+    public void testAsSubnetSet() throws Exception
+    {
+        InetAddressRangeSet set = new InetAddressRangeSet(Arrays.asList(
+            new InetAddressRange(InetAddress.getByName("10.0.0.2"),
+                                 InetAddress.getByName("10.0.0.8")),
+            new InetAddressRange(InetAddress.getByName("10.0.0.9"),
+                                 InetAddress.getByName("10.0.0.9"))));
+
+        /* Two-address blocks come out as single addresses */
+        Assert.assertEquals(Arrays.asList("10.0.0.2/32", "10.0.0.3/32",
+                                          "10.0.0.4/30", "10.0.0.8/32",
+                                          "10.0.0.9/32"),
+                            toStrings(set.asSubnetSet()));
+    }
+
+    private static List<String> toStrings(Iterable<Subnet> subnets) {
+        List<String> res = new ArrayList<String>();
+        for (Subnet s : subnets) {
+            res.add(s.toString());
+        }
+        return res;
+    }
 }
@@ -0,0 +1,98 @@
+package com.tailf.pkg.testjunit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.tailf.pkg.ipam.util.InetAddressRange;
+import com.tailf.pkg.ipam.util.InetAddressValue;
+
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+public class InetAddressValueTest {
+
+    private static InetAddressValue v(String address)
+        throws UnknownHostException {
+        return InetAddressValue.of(InetAddress.getByName(address));
+    }
+
+    @Test
+    public void testRoundTrip() throws UnknownHostException {
+        String[] addresses = { "0.0.0.0", "10.1.2.3", "255.255.255.255",
+                               "::", "2001:db8::1",
+                               "ffff:ffff:ffff:ffff:ffff:ffff:ffff:ffff" };
+        for (String a : addresses) {
+            InetAddress address = InetAddress.getByName(a);
+            assertEquals(address, InetAddressValue.of(address).toInetAddress());
+            assertEquals(new BigInteger(1, address.getAddress()),
+                         InetAddressValue.of(address).toBigInteger());
+        }
+    }
+
+    @Test
+    public void testCompare() throws UnknownHostException {
+        assertTrue(v("10.0.0.1").compareTo(v("10.0.0.2")) < 0);
+        assertTrue(v("128.0.0.0").compareTo(v("127.255.255.255")) > 0);
+        assertTrue(v("8000::").compareTo(v("7fff::")) > 0);
+        assertTrue(v("::8000:0:0:0").compareTo(v("::7fff:0:0:0")) > 0);
+
+        /* IPv4 compares as its IPv4-compatible IPv6 address */
+        assertEquals(0, v("10.0.0.1").compareTo(v("::a00:1")));
+        assertFalse(v("10.0.0.1").equals(v("::a00:1")));
+    }
+
+    @Test
+    public void testArithmetic() throws UnknownHostException {
+        assertEquals(v("10.0.1.0"), v("10.0.0.255").addOne());
+        assertEquals(v("0.0.0.0"), v("255.255.255.255").addOne());
+        assertEquals(v("2001:db8::1:0"), v("2001:db8::ffff").addOne());
+        assertEquals(v("2001:db9::"),
+                     v("2001:db8:ffff:ffff:ffff:ffff:ffff:ffff").addOne());
+        assertEquals(v("2001:db8:ffff:ffff:ffff:ffff:ffff:ffff"),
+                     v("2001:db9::").subtractOne());
+        assertEquals(v("255.255.255.255"), v("0.0.0.0").subtractOne());
+
+        assertEquals(v("10.1.0.0"), v("10.1.2.3").network(16));
+        assertEquals(v("10.1.255.255"), v("10.1.2.3").broadcast(16));
+        assertEquals(v("0.0.0.0"), v("10.1.2.3").network(0));
+        assertEquals(v("2001:db8::"), v("2001:db8::5:1").network(64));
+        assertEquals(v("2001:db8::ffff:ffff:ffff:ffff"),
+                     v("2001:db8::5:1").broadcast(64));
+        assertEquals(v("2001:db8::4:0"), v("2001:db8::5:1").network(110));
+
+        assertEquals(v("10.128.0.0"), v("10.0.0.0").setBit(8));
+        assertEquals(v("::1"), v("::").setBit(127));
+        assertEquals(v("8000::"), v("::").setBit(0));
+
+        assertEquals(8, v("10.0.1.0").trailingZeros());
+        assertEquals(32, v("0.0.0.0").trailingZeros());
+        assertEquals(80, v("2001:db8:1::").trailingZeros());
+    }
+
+    @Test
+    public void testSamePrefix() throws UnknownHostException {
+        assertTrue(v("10.1.2.3").samePrefix(v("10.1.200.1"), 16));
+        assertFalse(v("10.1.2.3").samePrefix(v("10.2.2.3"), 16));
+        assertTrue(v("2001:db8::1").samePrefix(v("2001:db8::ffff:1"), 64));
+        assertFalse(v("2001:db8::1").samePrefix(v("2001:db8::ffff:1"), 120));
+        assertFalse(v("10.0.0.1").samePrefix(v("::a00:1"), 0));
+    }
+
+    @Test
+    public void testRangeSize() throws UnknownHostException {
+        InetAddressRange r4 =
+            new InetAddressRange(InetAddress.getByName("0.0.0.0"),
+                                 InetAddress.getByName("255.255.255.255"));
+        assertEquals(BigInteger.valueOf(0xffffffffL), r4.getSize());
+
+        InetAddressRange r6 =
+            new InetAddressRange(InetAddress.getByName("::"),
+                                 InetAddress.getByName("2::1"));
+        assertEquals(BigInteger.ONE.shiftLeft(113).add(BigInteger.ONE),
+                     r6.getSize());
+    }
+}
@@ -0,0 +1,104 @@
+package com.tailf.pkg.testjunit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import com.tailf.pkg.ipam.Subnet;
+import com.tailf.pkg.ipam.util.InetAddressRange;
+import com.tailf.pkg.ipam.util.InetAddressValue;
+import com.tailf.pkg.ipam.util.IntervalIndex;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class IntervalIndexTest {
+
+    @Test
+    public void testOverlappingAndContaining() throws Exception {
+        IntervalIndex<String> index = new IntervalIndex<String>();
+        index.add(new Subnet("10.0.0.0/24"), "a");
+        index.add(new Subnet("10.0.2.0/23"), "b");
+        index.add(new Subnet("192.168.0.0/16"), "c");
+
+        assertEquals("a", index.findOverlapping(new Subnet("10.0.0.128/25"),
+                                                null));
+        assertEquals("b", index.findOverlapping(new Subnet("10.0.0.0/22"),
+                                                "a"));
+        assertNull(index.findOverlapping(new Subnet("10.0.1.0/24"), null));
+        assertNull(index.findOverlapping(new Subnet("10.0.0.0/24"), "a"));
+
+        assertEquals("b", index.findContaining(new Subnet("10.0.3.4/30")));
+        assertNull(index.findContaining(new Subnet("10.0.0.0/23")));
+
+        InetAddressRange range =
+            new InetAddressRange(InetAddress.getByName("10.0.1.7"),
+                                 InetAddress.getByName("10.0.2.0"));
+        assertEquals("b", index.findOverlapping(range, null));
+    }
+
+    @Test
+    public void testFamiliesKeptApart() throws Exception {
+        IntervalIndex<String> index = new IntervalIndex<String>();
+        index.add(new Subnet("::/96"), "v6");
+        assertNull(index.findOverlapping(new Subnet("10.0.0.0/8"), null));
+        assertNull(index.findContaining(new Subnet("10.0.0.0/8")));
+
+        index.add(new Subnet("0.0.0.0/1"), "v4");
+        assertEquals("v4", index.findContaining(new Subnet("10.0.0.0/8")));
+        assertEquals("v6", index.findOverlapping(new Subnet("::a00:0/104"),
+                                                 null));
+    }
+
+    @Test
+    public void testMatchesLinearSearch() {
+        Random random = new Random(4711);
+        IntervalIndex<Integer> index = new IntervalIndex<Integer>();
+        List<long[]> intervals = new ArrayList<long[]>();
+        for (int i = 0; i < 500; i++) {
+            long start = random.nextInt(100000);
+            long end = start + random.nextInt(random.nextBoolean() ? 50 : 5000);
+            intervals.add(new long[] { start, end });
+            index.add(InetAddressValue.ipv4(start), InetAddressValue.ipv4(end),
+                      i);
+        }
+
+        for (int q = 0; q < 2000; q++) {
+            long start = random.nextInt(110000);
+            long end = start + random.nextInt(300);
+            Integer skip = random.nextInt(500);
+
+            boolean overlap = false;
+            boolean contain = false;
+            for (int i = 0; i < intervals.size(); i++) {
+                long[] iv = intervals.get(i);
+                if (iv[0] <= end && iv[1] >= start && i != skip) {
+                    overlap = true;
+                }
+                if (iv[0] <= start && iv[1] >= end) {
+                    contain = true;
+                }
+            }
+
+            Integer found =
+                index.findOverlapping(InetAddressValue.ipv4(start),
+                                      InetAddressValue.ipv4(end), skip);
+            assertEquals(overlap, found != null);
+            if (found != null) {
+                long[] iv = intervals.get(found);
+                assertEquals(true, iv[0] <= end && iv[1] >= start);
+            }
+
+            found = index.findContaining(InetAddressValue.ipv4(start),
+                                         InetAddressValue.ipv4(end));
+            assertEquals(contain, found != null);
+            if (found != null) {
+                long[] iv = intervals.get(found);
+                assertEquals(true, iv[0] <= start && iv[1] >= end);
+            }
+        }
+    }
+}
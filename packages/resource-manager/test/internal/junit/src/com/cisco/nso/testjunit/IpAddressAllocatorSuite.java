@@ -10,7 +10,13 @@ import org.junit.runners.Suite;
     AvailablesSetTest.class,
     IPAddressPoolTest.class,
     SubnetTest.class,
-    InetAddressRangeTest.class
+    InetAddressRangeTest.class,
+    InetAddressValueTest.class,
+    HostBitmapTest.class,
+    HostBitmapPoolTest.class,
+    IntervalIndexTest.class,
+    ReconcileAllocationsTest.class,
+    ParallelLoadTest.class
 })
 
 public class IpAddressAllocatorSuite {}
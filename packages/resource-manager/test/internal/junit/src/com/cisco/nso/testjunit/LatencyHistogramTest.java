@@ -0,0 +1,80 @@
+package com.tailf.pkg.testjunit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+import com.tailf.pkg.nsoutil.LatencyHistogram;
+import com.tailf.pkg.nsoutil.PoolStats;
+
+import java.util.concurrent.TimeUnit;
+
+public class LatencyHistogramTest {
+
+    private static long us(long micros) {
+        return TimeUnit.MICROSECONDS.toNanos(micros);
+    }
+
+    @Test
+    public void testEmpty() {
+        LatencyHistogram.Summary s = new LatencyHistogram().summary();
+        assertEquals(0, s.getCount());
+        assertEquals(0, s.getAverage());
+        assertEquals(0, s.getMedian());
+        assertEquals(0, s.getP99());
+        assertEquals(0, s.getMax());
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram h = new LatencyHistogram();
+        for (int i = 0; i < 98; i++) {
+            h.record(us(100));
+        }
+        h.record(us(5000));
+        h.record(us(70000));
+
+        LatencyHistogram.Summary s = h.summary();
+        assertEquals(100, s.getCount());
+        assertEquals((98 * 100 + 5000 + 70000) / 100, s.getAverage());
+        /* 100 us is in the bucket up to 127 us */
+        assertEquals(127, s.getMedian());
+        assertEquals(127, s.getP90());
+        assertEquals(8191, s.getP99());
+        assertEquals(70000, s.getMax());
+    }
+
+    @Test
+    public void testPercentileCappedByMax() {
+        LatencyHistogram h = new LatencyHistogram();
+        h.record(us(1000));
+        LatencyHistogram.Summary s = h.summary();
+        assertEquals(1000, s.getMedian());
+        assertEquals(1000, s.getMax());
+    }
+
+    @Test
+    public void testNegativeAndHuge() {
+        LatencyHistogram h = new LatencyHistogram();
+        h.record(-1);
+        h.record(Long.MAX_VALUE);
+        LatencyHistogram.Summary s = h.summary();
+        assertEquals(2, s.getCount());
+        assertEquals(0, s.getMedian());
+        assertEquals(TimeUnit.NANOSECONDS.toMicros(Long.MAX_VALUE),
+                     s.getMax());
+    }
+
+    @Test
+    public void testPoolStatsNested() {
+        PoolStats stats = new PoolStats();
+        long outer = stats.enter();
+        long inner = stats.enter();
+        assertEquals(0, inner);
+        stats.exit(inner);
+        assertEquals(0, stats.getLockHoldTime().getCount());
+        stats.exit(outer);
+        assertEquals(1, stats.getLockHoldTime().getCount());
+        assertTrue(stats.getLockHoldTime().getMax() >= 0);
+    }
+}
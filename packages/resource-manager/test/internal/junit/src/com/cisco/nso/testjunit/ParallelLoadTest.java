@@ -0,0 +1,163 @@
+package com.tailf.pkg.testjunit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+import com.tailf.pkg.nsoutil.ParallelLoad;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ParallelLoadTest {
+
+    /* The sessions of one loader thread */
+    private static class Sessions {
+        final String thread = Thread.currentThread().getName();
+        volatile boolean closed;
+    }
+
+    private static class Load extends ParallelLoad<Sessions> {
+        final List<Sessions> opened =
+            Collections.synchronizedList(new ArrayList<Sessions>());
+        final boolean failOpen;
+
+        Load(int threads, boolean failOpen) {
+            super("loader", threads);
+            this.failOpen = failOpen;
+        }
+
+        protected Sessions open() throws Exception {
+            if (failOpen) {
+                throw new Exception("cannot connect");
+            }
+            Sessions s = new Sessions();
+            opened.add(s);
+            return s;
+        }
+
+        protected void close(Sessions s) {
+            s.closed = true;
+        }
+    }
+
+    /* Records the thread and sessions it ran with, fails if told to */
+    private static class Recorder extends ParallelLoad.Task<Sessions> {
+        final Map<String, Sessions> used;
+        final boolean fail;
+        volatile boolean loaded;
+
+        Recorder(String name, Map<String, Sessions> used, boolean fail) {
+            super(name);
+            this.used = used;
+            this.fail = fail;
+        }
+
+        public void load(Sessions s) throws Exception {
+            String thread = Thread.currentThread().getName();
+            synchronized (used) {
+                Sessions before = used.put(thread, s);
+                assertTrue(before == null || before == s);
+            }
+            assertEquals(thread, s.thread);
+            Thread.sleep(5);
+            if (fail) {
+                throw new Exception(getName() + " is broken");
+            }
+            loaded = true;
+        }
+    }
+
+    private static List<Recorder> tasks(int n, Map<String, Sessions> used,
+                                        int failing) {
+        List<Recorder> tasks = new ArrayList<Recorder>();
+        for (int i = 0; i < n; i++) {
+            tasks.add(new Recorder("pool-" + i, used, i == failing));
+        }
+        return tasks;
+    }
+
+    @Test
+    public void testSessionsPerThread() {
+        Map<String, Sessions> used = new HashMap<String, Sessions>();
+        List<Recorder> tasks = tasks(20, used, -1);
+        Load load = new Load(3, false);
+
+        assertEquals(0, load.run(tasks));
+        for (Recorder task : tasks) {
+            assertTrue(task.getName(), task.loaded);
+        }
+
+        /* At most one set of sessions per thread, all closed */
+        assertTrue(load.opened.size() <= 3);
+        assertEquals(load.opened.size(), used.size());
+        Set<String> threads = new HashSet<String>();
+        for (Sessions s : load.opened) {
+            assertTrue(s.closed);
+            assertTrue(s.thread.startsWith("loader-"));
+            threads.add(s.thread);
+        }
+        assertEquals(used.keySet(), threads);
+    }
+
+    @Test
+    public void testFailingTask() {
+        Map<String, Sessions> used = new HashMap<String, Sessions>();
+        List<Recorder> tasks = tasks(10, used, 4);
+        Load load = new Load(2, false);
+
+        /* The broken pool is skipped, the others still load */
+        assertEquals(1, load.run(tasks));
+        for (Recorder task : tasks) {
+            assertEquals(task.getName(), !task.fail, task.loaded);
+        }
+        for (Sessions s : load.opened) {
+            assertTrue(s.closed);
+        }
+    }
+
+    @Test
+    public void testOpenFails() {
+        Map<String, Sessions> used = new HashMap<String, Sessions>();
+        List<Recorder> tasks = tasks(5, used, -1);
+
+        assertEquals(5, new Load(2, true).run(tasks));
+        assertTrue(used.isEmpty());
+    }
+
+    @Test
+    public void testNoTasks() {
+        Load load = new Load(4, false);
+        assertEquals(0, load.run(new ArrayList<Recorder>()));
+        assertTrue(load.opened.isEmpty());
+    }
+
+    @Test
+    public void testThreadLimit() {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger most = new AtomicInteger();
+        List<ParallelLoad.Task<Sessions>> tasks =
+            new ArrayList<ParallelLoad.Task<Sessions>>();
+        for (int i = 0; i < 12; i++) {
+            tasks.add(new ParallelLoad.Task<Sessions>("pool-" + i) {
+                    public void load(Sessions s) throws Exception {
+                        int now = running.incrementAndGet();
+                        synchronized (most) {
+                            most.set(Math.max(most.get(), now));
+                        }
+                        Thread.sleep(10);
+                        running.decrementAndGet();
+                    }
+                });
+        }
+
+        assertEquals(0, new Load(3, false).run(tasks));
+        assertTrue(most.get() <= 3);
+    }
+}
@@ -0,0 +1,63 @@
+package com.tailf.pkg.testjunit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+import com.tailf.pkg.nsoutil.Partitions;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class PartitionsTest {
+
+    /* Requests are "pool:id", partitioned by pool */
+    private static final Partitions.Key<String> POOL =
+        new Partitions.Key<String>() {
+            public String of(String req) {
+                return req.substring(0, req.indexOf(':'));
+            }
+        };
+
+    @Test
+    public void testByPool() {
+        List<String> reqs = Arrays.asList("a:1", "b:1", "a:2", "c:1",
+                                          "b:2", "a:3");
+        List<ArrayList<String>> partitions = Partitions.byKey(reqs, POOL);
+
+        /* In the order the pools first appear, requests in order */
+        assertEquals(3, partitions.size());
+        assertEquals(Arrays.asList("a:1", "a:2", "a:3"), partitions.get(0));
+        assertEquals(Arrays.asList("b:1", "b:2"), partitions.get(1));
+        assertEquals(Arrays.asList("c:1"), partitions.get(2));
+    }
+
+    @Test
+    public void testOnePool() {
+        List<String> reqs = Arrays.asList("a:3", "a:1", "a:2");
+        List<ArrayList<String>> partitions = Partitions.byKey(reqs, POOL);
+
+        assertEquals(1, partitions.size());
+        assertEquals(reqs, partitions.get(0));
+    }
+
+    @Test
+    public void testEmpty() {
+        List<String> reqs = Collections.emptyList();
+        assertTrue(Partitions.byKey(reqs, POOL).isEmpty());
+    }
+
+    @Test
+    public void testPartitionsAreCopies() {
+        List<String> reqs = new ArrayList<String>(Arrays.asList("a:1"));
+        List<ArrayList<String>> partitions = Partitions.byKey(reqs, POOL);
+
+        /* A worker owns its partition, the batch may change meanwhile */
+        reqs.add("a:2");
+        partitions.get(0).add("a:3");
+        assertEquals(Arrays.asList("a:1", "a:3"), partitions.get(0));
+        assertEquals(Arrays.asList("a:1", "a:2"), reqs);
+    }
+}
@@ -0,0 +1,103 @@
+package com.tailf.pkg.testjunit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import org.junit.Test;
+
+import com.tailf.pkg.idallocator.PoolSnapshot;
+import com.tailf.pkg.idpool.Allocation;
+import com.tailf.pkg.idpool.Range;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+public class PoolSnapshotTest {
+
+    private PoolSnapshot newSnapshot() {
+        PoolSnapshot snapshot = new PoolSnapshot("1500-123456-7890");
+        snapshot.addPool("vlan",
+                         Long.valueOf(42),
+                         Arrays.asList(new Range(1, 9)),
+                         Arrays.asList(new Range(10, 41),
+                                       new Range(43, 4094)),
+                         Arrays.asList(new Allocation(42)));
+        snapshot.addPool("lsp",
+                         null,
+                         Arrays.<Range>asList(),
+                         Arrays.asList(new Range(0, 65535)),
+                         Arrays.<Allocation>asList());
+        return snapshot;
+    }
+
+    @Test
+    public void testWriteRead() throws Exception {
+        File file = File.createTempFile("pool", ".snapshot");
+        try {
+            newSnapshot().write(file);
+            PoolSnapshot read = PoolSnapshot.read(file);
+
+            assertEquals("1500-123456-7890", read.getTxId());
+
+            PoolSnapshot.PoolState vlan = read.getPool("vlan");
+            assertEquals(Long.valueOf(42), vlan.lastAllocation);
+            assertEquals(Arrays.asList(new Range(1, 9)), vlan.excludes);
+            assertEquals(Arrays.asList(new Range(10, 41),
+                                       new Range(43, 4094)),
+                         vlan.availables);
+            assertEquals(Arrays.asList(new Allocation(42)),
+                         vlan.allocations);
+
+            PoolSnapshot.PoolState lsp = read.getPool("lsp");
+            assertNull(lsp.lastAllocation);
+            assertEquals(0, lsp.excludes.size());
+            assertEquals(0, lsp.allocations.size());
+
+            assertNull(read.getPool("missing"));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testCorruptSnapshotIgnored() throws Exception {
+        File file = File.createTempFile("pool", ".snapshot");
+        try {
+            newSnapshot().write(file);
+
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.seek(40);
+                int b = raf.read();
+                raf.seek(40);
+                raf.write(b ^ 0x01);
+            } finally {
+                raf.close();
+            }
+
+            assertNull(PoolSnapshot.read(file));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testTruncatedSnapshotIgnored() throws Exception {
+        File file = File.createTempFile("pool", ".snapshot");
+        try {
+            newSnapshot().write(file);
+
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(raf.length() - 3);
+            } finally {
+                raf.close();
+            }
+
+            assertNull(PoolSnapshot.read(file));
+            assertNull(PoolSnapshot.read(new File(file.getPath() + ".none")));
+        } finally {
+            file.delete();
+        }
+    }
+}
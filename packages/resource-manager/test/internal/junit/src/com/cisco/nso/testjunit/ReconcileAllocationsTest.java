@@ -0,0 +1,194 @@
+package com.tailf.pkg.testjunit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.tailf.cdb.CdbSession;
+import com.tailf.conf.ConfBuf;
+import com.tailf.conf.ConfNoExists;
+import com.tailf.conf.ConfObject;
+import com.tailf.conf.ConfTag;
+import com.tailf.pkg.ipaddressallocator.IPAddressAllocator;
+import com.tailf.pkg.ipaddressallocator.namespaces.ipaddressAllocator;
+import com.tailf.pkg.ipam.Allocation;
+import com.tailf.pkg.ipam.IPAddressPool;
+import com.tailf.pkg.ipam.Subnet;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+public class ReconcileAllocationsTest {
+
+    private static final String POOL = "/resource-pools/ip-address-pool{p}";
+
+    /* The allocation entries in the oper data, as getObjects() has them */
+    private final List<ConfObject[]> entries = new ArrayList<ConfObject[]>();
+    /* The first entry of each getObjects() call */
+    private final List<Integer> reads = new ArrayList<Integer>();
+
+    private CdbSession responseSession() {
+        return Mockito.mock(CdbSession.class, new Answer<Object>() {
+                public Object answer(InvocationOnMock invocation) {
+                    String name = invocation.getMethod().getName();
+                    Object[] args = invocation.getArguments();
+                    if (name.equals("getNumberOfInstances")) {
+                        assertEquals(POOL + "/allocation", args[0]);
+                        return entries.size();
+                    }
+                    if (name.equals("getObjects")) {
+                        assertEquals(POOL + "/allocation", args[3]);
+                        int first = (Integer) args[1];
+                        int n = (Integer) args[2];
+                        reads.add(first);
+                        return new ArrayList<ConfObject[]>(
+                            entries.subList(first, first + n));
+                    }
+                    throw new UnsupportedOperationException(name);
+                }
+            });
+    }
+
+    /*
+     * An entry with id, username, allocating-service, subnet-size,
+     * invert-subnet-size, the response case, error, subnet and from.
+     * The oper data has no config, so only the id and the response.
+     */
+    private static ConfObject[] entry(String requestId, ConfObject respCase,
+                                      ConfObject error, ConfObject subnet) {
+        ConfObject none = new ConfNoExists();
+        return new ConfObject[] {
+            new ConfBuf(requestId), none, none, none, none,
+            respCase, error, subnet, none
+        };
+    }
+
+    private void answer(String requestId, Allocation a) {
+        entries.add(entry(requestId,
+                          new ConfTag(ipaddressAllocator.hash,
+                                      ipaddressAllocator._ok),
+                          new ConfNoExists(),
+                          new ConfBuf(a.getAllocated().toString())));
+    }
+
+    private void answerError(String requestId) {
+        entries.add(entry(requestId,
+                          new ConfTag(ipaddressAllocator.hash,
+                                      ipaddressAllocator._error),
+                          new ConfBuf("pool exhausted"),
+                          new ConfNoExists()));
+    }
+
+    private void unanswered(String requestId) {
+        entries.add(entry(requestId, new ConfNoExists(), new ConfNoExists(),
+                          new ConfNoExists()));
+    }
+
+    private static IPAddressPool pool() throws Exception {
+        IPAddressPool pool =
+            new IPAddressPool("p",
+                              new HashSet<Subnet>(),
+                              new HashSet<Allocation>(),
+                              new HashSet<Subnet>());
+        pool.addToAvailable(
+            new Subnet(InetAddress.getByName("10.0.0.0"), 24));
+        return pool;
+    }
+
+    private static List<String> requestIds(IPAddressPool pool) {
+        List<String> ids = new ArrayList<String>();
+        for (Allocation a : pool.getAllocations()) {
+            ids.add(a.getRequestId());
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
+    @Test
+    public void testReleaseUnanswered() throws Exception {
+        IPAddressPool pool = pool();
+        Allocation a1 = pool.allocate(32, "o", "admin", "a1");
+        pool.allocate(32, "o", "admin", "a2");
+        pool.allocate(32, "o", "admin", "a3");
+        answer("a1", a1);
+        unanswered("a2");
+
+        /* Reserved for transactions that never committed */
+        IPAddressAllocator.reconcileAllocations(pool, POOL,
+                                                responseSession());
+        assertEquals(Collections.singletonList("a1"), requestIds(pool));
+    }
+
+    @Test
+    public void testReleaseAnsweredElsewhere() throws Exception {
+        IPAddressPool pool = pool();
+        Allocation a1 = pool.allocate(32, "o", "admin", "a1");
+        Allocation a2 = pool.allocate(32, "o", "admin", "a2");
+
+        /* The response of a1 names another subnet than the pool has */
+        answer("a1", a2);
+        answer("a2", a2);
+        IPAddressAllocator.reconcileAllocations(pool, POOL,
+                                                responseSession());
+        assertEquals(Collections.singletonList("a2"), requestIds(pool));
+
+        /* What was given back can be handed out again */
+        Allocation a3 = pool.allocate(32, "o", "admin", "a3");
+        assertEquals(a1.getAllocated(), a3.getAllocated());
+    }
+
+    @Test
+    public void testAllAnswered() throws Exception {
+        IPAddressPool pool = pool();
+        answer("a1", pool.allocate(32, "o", "admin", "a1"));
+        answer("a2", pool.allocate(30, "o", "admin", "a2"));
+
+        IPAddressAllocator.reconcileAllocations(pool, POOL,
+                                                responseSession());
+        assertEquals(2, pool.getAllocations().size());
+        assertEquals(Collections.singletonList(0), reads);
+    }
+
+    @Test
+    public void testReleaseAnsweredWithError() throws Exception {
+        IPAddressPool pool = pool();
+        answer("a1", pool.allocate(32, "o", "admin", "a1"));
+        pool.allocate(32, "o", "admin", "a2");
+        answerError("a2");
+
+        IPAddressAllocator.reconcileAllocations(pool, POOL,
+                                                responseSession());
+        assertEquals(Collections.singletonList("a1"), requestIds(pool));
+    }
+
+    @Test
+    public void testReadInChunks() throws Exception {
+        IPAddressPool pool =
+            new IPAddressPool("p",
+                              new HashSet<Subnet>(),
+                              new HashSet<Allocation>(),
+                              new HashSet<Subnet>());
+        pool.addToAvailable(
+            new Subnet(InetAddress.getByName("10.0.0.0"), 20));
+        for (int i = 0; i < 2500; i++) {
+            String id = String.format("a%04d", i);
+            Allocation a = pool.allocate(32, "o", "admin", id);
+            if (i != 1700) {
+                answer(id, a);
+            }
+        }
+
+        IPAddressAllocator.reconcileAllocations(pool, POOL,
+                                                responseSession());
+        assertEquals(2499, pool.getAllocations().size());
+        assertFalse(requestIds(pool).contains("a1700"));
+        assertEquals(Arrays.asList(0, 1000, 2000), reads);
+    }
+}
@@ -0,0 +1,168 @@
+package com.tailf.pkg.testjunit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Test;
+
+import com.tailf.pkg.nsoutil.RedeployService;
+import com.tailf.pkg.nsoutil.ToRedeploy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class RedeployServiceTest {
+
+    /* What the service handed over, "user: service service ..." */
+    private final List<String> batches = new ArrayList<String>();
+    private final CountDownLatch release = new CountDownLatch(1);
+    private RedeployService service;
+
+    private class Recorder implements RedeployService.Redeployer {
+        private final boolean block;
+
+        Recorder(boolean block) {
+            this.block = block;
+        }
+
+        public void redeploy(String user, Collection<String> services)
+            throws Exception {
+            if (block) {
+                release.await(10, TimeUnit.SECONDS);
+            }
+            StringBuilder sb = new StringBuilder(user + ":");
+            for (String s : services) {
+                sb.append(" ").append(s);
+            }
+            synchronized (batches) {
+                batches.add(sb.toString());
+            }
+        }
+    }
+
+    private static Set<ToRedeploy> services(String user, String... paths) {
+        Set<ToRedeploy> set = new HashSet<ToRedeploy>();
+        for (String path : paths) {
+            set.add(new ToRedeploy(path, user));
+        }
+        return set;
+    }
+
+    private List<String> sortedBatches() {
+        synchronized (batches) {
+            List<String> sorted = new ArrayList<String>(batches);
+            Collections.sort(sorted);
+            return sorted;
+        }
+    }
+
+    private void awaitRedeployed(long n) throws InterruptedException {
+        long end = System.currentTimeMillis() + 10000;
+        while (service.getRedeployed() < n &&
+               System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        assertEquals(n, service.getRedeployed());
+    }
+
+    private void awaitRunning() throws InterruptedException {
+        long end = System.currentTimeMillis() + 10000;
+        while (service.getRunning() == 0 &&
+               System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        assertTrue(service.getRunning() > 0);
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        if (service != null) {
+            service.shutdown();
+        }
+    }
+
+    @Test
+    public void testCoalescingWindow() throws Exception {
+        service = new RedeployService(2, 1, 300, new Recorder(false));
+
+        /* Batches within the window go out together, each service once */
+        service.submit(services("admin", "/s{a}", "/s{b}"));
+        service.submit(services("admin", "/s{b}", "/s{c}"));
+        assertEquals(3, service.getQueued());
+
+        awaitRedeployed(3);
+        List<String> sorted = sortedBatches();
+        assertEquals(1, sorted.size());
+        assertTrue(sorted.get(0).startsWith("admin:"));
+        for (String s : Arrays.asList("/s{a}", "/s{b}", "/s{c}")) {
+            assertTrue(sorted.get(0).contains(s));
+        }
+        assertEquals(0, service.getQueued());
+    }
+
+    @Test
+    public void testPerUser() throws Exception {
+        service = new RedeployService(2, 1, 0, new Recorder(false));
+
+        Set<ToRedeploy> set = services("alice", "/s{a}");
+        set.addAll(services("bob", "/s{a}"));
+        service.submit(set);
+
+        /* The same service for two users is re-deployed as each */
+        awaitRedeployed(2);
+        assertEquals(Arrays.asList("alice: /s{a}", "bob: /s{a}"),
+                     sortedBatches());
+    }
+
+    @Test
+    public void testQueuedWhileRunning() throws Exception {
+        service = new RedeployService(2, 1, 0, new Recorder(true));
+
+        service.submit(services("admin", "/s{a}"));
+        awaitRunning();
+
+        /* Not the same job, it may see allocations the first did not */
+        service.submit(services("admin", "/s{a}"));
+        service.submit(services("admin", "/s{a}"));
+        assertEquals(1, service.getQueued());
+
+        release.countDown();
+        awaitRedeployed(2);
+        assertEquals(Arrays.asList("admin: /s{a}", "admin: /s{a}"),
+                     sortedBatches());
+    }
+
+    @Test
+    public void testPendingAtShutdown() throws Exception {
+        service = new RedeployService(1, 1, 0, new Recorder(true));
+
+        service.submit(services("admin", "/s{a}"));
+        awaitRunning();
+        service.submit(services("admin", "/s{b}"));
+
+        /* Shut down while /s{a} runs and /s{b} waits for it */
+        Thread stopper = new Thread(new Runnable() {
+                public void run() {
+                    service.shutdown();
+                }
+            });
+        stopper.start();
+        Thread.sleep(100);
+        release.countDown();
+        stopper.join(10000);
+
+        assertEquals(2, service.getRedeployed());
+        assertEquals(0, service.getFailed());
+        assertEquals(Arrays.asList("admin: /s{a}", "admin: /s{b}"),
+                     sortedBatches());
+        service = null;
+    }
+}
@@ -0,0 +1,103 @@
+package com.tailf.pkg.testjunit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+import com.tailf.pkg.nsoutil.RequestJournal;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+
+public class RequestJournalTest {
+
+    private static List<String[]> records(String... paths) {
+        String[][] records = new String[paths.length][];
+        for (int i = 0; i < paths.length; i++) {
+            records[i] = new String[] { "ALLOC", "CREATE", paths[i], null };
+        }
+        return Arrays.asList(records);
+    }
+
+    @Test
+    public void testPendingAfterReopen() throws Exception {
+        File file = File.createTempFile("requests", ".journal");
+        try {
+            RequestJournal journal = new RequestJournal(file);
+            RequestJournal.Batch first = journal.append(records("/a{1}"));
+            RequestJournal.Batch second =
+                journal.append(records("/a{2}", "/a{\u00e5 3}"));
+            journal.append(records("/a{4}"));
+            journal.done(first);
+            journal.close();
+
+            journal = new RequestJournal(file);
+            List<RequestJournal.Batch> pending = journal.getPending();
+            assertEquals(2, pending.size());
+            assertEquals(second.getSeq(), pending.get(0).getSeq());
+            assertArrayEquals(
+                new String[] { "ALLOC", "CREATE", "/a{\u00e5 3}", null },
+                pending.get(0).getRecords().get(1));
+
+            /* Sequence numbers go on from those read */
+            RequestJournal.Batch next = journal.append(records("/a{5}"));
+            assertTrue(next.getSeq() > pending.get(1).getSeq());
+            journal.close();
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testEmptiedWhenAllDone() throws Exception {
+        File file = File.createTempFile("requests", ".journal");
+        try {
+            RequestJournal journal = new RequestJournal(file);
+            long empty = file.length();
+            RequestJournal.Batch first = journal.append(records("/a{1}"));
+            RequestJournal.Batch second = journal.append(records("/a{2}"));
+            journal.done(second);
+            assertTrue(journal.hasPending());
+            journal.done(first);
+            assertFalse(journal.hasPending());
+            assertEquals(empty, file.length());
+            journal.close();
+
+            journal = new RequestJournal(file);
+            assertEquals(0, journal.getPending().size());
+            journal.close();
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testTornBatchDropped() throws Exception {
+        File file = File.createTempFile("requests", ".journal");
+        try {
+            RequestJournal journal = new RequestJournal(file);
+            journal.append(records("/a{1}"));
+            long whole = file.length();
+            journal.append(records("/a{2}"));
+            journal.close();
+
+            /* As if the VM died while the second batch was written */
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            raf.setLength(file.length() - 3);
+            raf.close();
+
+            journal = new RequestJournal(file);
+            List<RequestJournal.Batch> pending = journal.getPending();
+            assertEquals(1, pending.size());
+            assertEquals("/a{1}", pending.get(0).getRecords().get(0)[2]);
+            assertEquals(whole, file.length());
+            journal.close();
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -5,7 +5,12 @@ import org.junit.runners.Suite;
 
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
-    ErrorCodeTest.class
+    ErrorCodeTest.class,
+    WriteBehindBufferTest.class,
+    RequestJournalTest.class,
+    LatencyHistogramTest.class,
+    ResponseCacheTest.class,
+    RedeployServiceTest.class
 })
 
 public class ResourceManagerSuite {}
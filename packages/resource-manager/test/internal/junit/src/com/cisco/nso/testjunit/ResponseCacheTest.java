@@ -0,0 +1,73 @@
+package com.tailf.pkg.testjunit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import org.junit.Test;
+
+import com.tailf.pkg.nsoutil.ResponseCache;
+
+public class ResponseCacheTest {
+
+    @Test
+    public void testPutGetRemove() {
+        ResponseCache<String> cache = new ResponseCache<String>();
+        cache.put("pool", "a", "1");
+        cache.put("pool", "b", "2");
+        cache.put("other", "a", "3");
+
+        assertEquals("1", cache.get("pool", "a"));
+        assertEquals("3", cache.get("other", "a"));
+        assertNull(cache.get("pool", "c"));
+
+        cache.remove("pool", "a");
+        assertNull(cache.get("pool", "a"));
+        assertEquals("2", cache.get("pool", "b"));
+    }
+
+    @Test
+    public void testKeysDoNotRunTogether() {
+        ResponseCache<String> cache = new ResponseCache<String>();
+        cache.put("ab", "c", "1");
+        assertNull(cache.get("a", "bc"));
+    }
+
+    @Test
+    public void testRemovePool() {
+        ResponseCache<String> cache = new ResponseCache<String>();
+        cache.put("pool", "a", "1");
+        cache.put("pool", "b", "2");
+        cache.put("other", "a", "3");
+
+        cache.removePool("pool");
+        assertNull(cache.get("pool", "a"));
+        assertNull(cache.get("pool", "b"));
+        assertEquals("3", cache.get("other", "a"));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testPutIfCurrent() {
+        ResponseCache<String> cache = new ResponseCache<String>();
+
+        long epoch = cache.epoch();
+        cache.putIfCurrent("pool", "a", "1", epoch);
+        assertEquals("1", cache.get("pool", "a"));
+
+        /* Read before a removal, so possibly stale */
+        epoch = cache.epoch();
+        cache.remove("pool", "a");
+        cache.putIfCurrent("pool", "a", "1", epoch);
+        assertNull(cache.get("pool", "a"));
+
+        /* What the allocator put is newer than what was read */
+        epoch = cache.epoch();
+        cache.put("pool", "b", "2");
+        cache.putIfCurrent("pool", "b", "old", epoch);
+        assertEquals("2", cache.get("pool", "b"));
+
+        epoch = cache.epoch();
+        cache.clear();
+        cache.putIfCurrent("pool", "c", "3", epoch);
+        assertEquals(0, cache.size());
+    }
+}
@@ -14,6 +14,9 @@ import org.junit.runner.JUnitCore;
 
 import com.tailf.pkg.ipam.Subnet;
 import com.tailf.pkg.ipam.exceptions.InvalidNetmaskException;
+import com.tailf.pkg.ipam.util.AddressCursor;
+import com.tailf.pkg.ipam.util.AddressVisitor;
+import com.tailf.pkg.ipam.util.InclusiveSubnet;
 
 import org.junit.Assert;
 
@@ -455,6 +458,103 @@ public class SubnetTest {
         Assert.assertFalse(iterator.hasNext());
     }
 
+    @Test
+    public void testCursor() throws UnknownHostException,
+                                    InvalidNetmaskException {
+        Subnet s = new Subnet("10.0.0.0/16");
+        AddressCursor cursor = s.cursor();
+        long expected = 0x0a000001L;
+        while (cursor.hasNext()) {
+            cursor.next();
+            Assert.assertEquals(expected++, cursor.getLow());
+        }
+        Assert.assertEquals(0x0a00ffffL, expected);
+
+        cursor = s.cursor(true);
+        cursor.next();
+        Assert.assertEquals("10.0.255.254",
+                            cursor.toInetAddress().getHostAddress());
+
+        /* A /31 has no addresses that are not network or broadcast */
+        Assert.assertFalse(new Subnet("10.0.0.0/31").cursor().hasNext());
+        cursor = new Subnet("10.0.0.7/32").cursor();
+        cursor.next();
+        Assert.assertEquals(0x0a000007L, cursor.getLow());
+        Assert.assertFalse(cursor.hasNext());
+    }
+
+    @Test
+    public void testCursorIPv6Carry() throws UnknownHostException,
+                                             InvalidNetmaskException {
+        InclusiveSubnet s =
+            new InclusiveSubnet("2001:db8:0:0:ffff:ffff:ffff:fffe/127");
+        AddressCursor cursor = s.cursor(
+            InetAddress.getByName("2001:db8:0:0:ffff:ffff:ffff:ffff"));
+        cursor.next();
+        Assert.assertEquals(-1L, cursor.getLow());
+        Assert.assertFalse(cursor.hasNext());
+
+        s = new InclusiveSubnet("2001:db8::/64");
+        cursor = s.cursor(true);
+        cursor.next();
+        Assert.assertEquals(0x20010db800000000L, cursor.getHigh());
+        Assert.assertEquals(-1L, cursor.getLow());
+    }
+
+    @Test
+    public void testVisitAddresses() throws UnknownHostException,
+                                            InvalidNetmaskException {
+        final long[] sum = new long[2];
+        Subnet s = new Subnet("192.168.0.0/24");
+        Assert.assertTrue(s.visitAddresses(new AddressVisitor() {
+                public boolean visit(long high, long low) {
+                    sum[0]++;
+                    sum[1] += low & 0xff;
+                    return true;
+                }
+            }));
+        Assert.assertEquals(254, sum[0]);
+        Assert.assertEquals(254 * 255 / 2, sum[1]);
+
+        sum[0] = 0;
+        Assert.assertFalse(s.visitAddresses(new AddressVisitor() {
+                public boolean visit(long high, long low) {
+                    return ++sum[0] < 10;
+                }
+            }));
+        Assert.assertEquals(10, sum[0]);
+    }
+
+    @Test
+    public void testInclusiveIterator() throws UnknownHostException,
+                                               InvalidNetmaskException {
+        InclusiveSubnet s = new InclusiveSubnet("192.168.1.252/30");
+        StringBuilder forward = new StringBuilder();
+        for (Iterator<InetAddress> i = s.iterator(); i.hasNext(); ) {
+            forward.append(i.next().getHostAddress()).append(' ');
+        }
+        Assert.assertEquals("192.168.1.252 192.168.1.253 192.168.1.254 " +
+                            "192.168.1.255 ", forward.toString());
+
+        StringBuilder reverse = new StringBuilder();
+        for (Iterator<InetAddress> i = s.iterator(true); i.hasNext(); ) {
+            reverse.append(i.next().getHostAddress()).append(' ');
+        }
+        Assert.assertEquals("192.168.1.255 192.168.1.254 192.168.1.253 " +
+                            "192.168.1.252 ", reverse.toString());
+
+        Assert.assertEquals(1, countAll(
+            new InclusiveSubnet("255.255.255.255/32").iterator()));
+    }
+
+    private static int countAll(Iterator<InetAddress> i) {
+        int n = 0;
+        for (; i.hasNext(); i.next()) {
+            n++;
+        }
+        return n;
+    }
+
     @Test
     public void testCompare() throws UnknownHostException,
                                      InvalidNetmaskException {
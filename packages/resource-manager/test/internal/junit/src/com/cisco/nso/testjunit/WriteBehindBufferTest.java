@@ -0,0 +1,112 @@
+package com.tailf.pkg.testjunit;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertFalse;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.tailf.pkg.nsoutil.WriteBehindBuffer;
+import com.tailf.cdb.CdbSession;
+import com.tailf.conf.ConfPath;
+import com.tailf.conf.ConfUInt32;
+import com.tailf.conf.ConfValue;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class WriteBehindBufferTest {
+
+    private static final String LIST = "/pool{hello}/available";
+
+    @Test
+    public void testCreateThenDeleteCancels() throws Exception {
+        CdbSession mockedCdb = Mockito.mock(CdbSession.class);
+        WriteBehindBuffer writes = new WriteBehindBuffer(mockedCdb, LIST);
+
+        writes.create(LIST + "{1 10}");
+        assertFalse(writes.isEmpty());
+        writes.delete(LIST + "{1 10}");
+        assertTrue(writes.isEmpty());
+
+        writes.flush();
+        Mockito.verifyZeroInteractions(mockedCdb);
+    }
+
+    @Test
+    public void testDeleteThenCreateCancels() throws Exception {
+        CdbSession mockedCdb = Mockito.mock(CdbSession.class);
+        WriteBehindBuffer writes = new WriteBehindBuffer(mockedCdb, LIST);
+
+        writes.delete(LIST + "{1 10}");
+        writes.create(LIST + "{1 10}");
+        assertTrue(writes.isEmpty());
+    }
+
+    @Test
+    public void testFlushWritesNetDelta() throws Exception {
+        CdbSession mockedCdb = Mockito.mock(CdbSession.class);
+        WriteBehindBuffer writes = new WriteBehindBuffer(mockedCdb, LIST);
+        Mockito.when(mockedCdb.exists(LIST + "{1 10}")).thenReturn(true);
+
+        /* Split 1-10 around 5, then take 6 as well. */
+        writes.delete(LIST + "{1 10}");
+        writes.create(LIST + "{1 4}");
+        writes.create(LIST + "{6 10}");
+        writes.delete(LIST + "{6 10}");
+        writes.create(LIST + "{7 10}");
+
+        writes.flush();
+        assertTrue(writes.isEmpty());
+
+        Mockito.verify(mockedCdb).delete(LIST + "{1 10}");
+        Mockito.verify(mockedCdb).create(LIST + "{1 4}");
+        Mockito.verify(mockedCdb).create(LIST + "{7 10}");
+        Mockito.verify(mockedCdb, Mockito.never()).create(LIST + "{6 10}");
+        Mockito.verify(mockedCdb, Mockito.never()).delete(LIST + "{6 10}");
+    }
+
+    @Test
+    public void testClearAndDiscard() throws Exception {
+        CdbSession mockedCdb = Mockito.mock(CdbSession.class);
+        WriteBehindBuffer writes = new WriteBehindBuffer(mockedCdb, LIST);
+
+        writes.create(LIST + "{1 10}");
+        writes.clear();
+        assertFalse(writes.isEmpty());
+        writes.discard();
+        assertTrue(writes.isEmpty());
+
+        writes.flush();
+        Mockito.verifyZeroInteractions(mockedCdb);
+    }
+
+    @Test
+    public void testCreateExisting() throws Exception {
+        CdbSession mockedCdb = Mockito.mock(CdbSession.class);
+        WriteBehindBuffer writes = new WriteBehindBuffer(mockedCdb, LIST);
+        Mockito.when(mockedCdb.exists(LIST + "{1}")).thenReturn(true);
+
+        /* The entry is there already, its leaves are still set */
+        Map<String, ConfValue> leaves = new LinkedHashMap<String, ConfValue>();
+        leaves.put("size", new ConfUInt32(4));
+        writes.create(LIST + "{1}", leaves);
+        writes.flush();
+
+        Mockito.verify(mockedCdb, Mockito.never()).create(LIST + "{1}");
+        Mockito.verify(mockedCdb).setElem(Mockito.eq(leaves.get("size")),
+                                          Mockito.any(ConfPath.class));
+    }
+
+    @Test
+    public void testDeleteMissing() throws Exception {
+        CdbSession mockedCdb = Mockito.mock(CdbSession.class);
+        WriteBehindBuffer writes = new WriteBehindBuffer(mockedCdb, LIST);
+
+        writes.delete(LIST + "{1 10}");
+        writes.flush();
+
+        Mockito.verify(mockedCdb).exists(LIST + "{1 10}");
+        Mockito.verify(mockedCdb, Mockito.never()).delete(LIST + "{1 10}");
+    }
+}